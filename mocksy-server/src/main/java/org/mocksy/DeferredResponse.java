@@ -0,0 +1,253 @@
+package org.mocksy;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Response that isn't ready yet.  A Rule that has to wait on something,
+ * like a proxied server, can return one of these straight away and
+ * complete it later from whichever thread does the waiting, so the server
+ * thread that processed the request is free to serve others meanwhile.
+ * The server picks up where it left off once the real Response is in.
+ * 
+ * Rules should only return one when the request says it can be handled
+ * that way, e.g. {@link org.mocksy.server.http.HttpRequest#isAsync()};
+ * anyone else calling {@link org.mocksy.rules.Rule#process(Request)}
+ * expects the real thing.
+ */
+public class DeferredResponse extends Response {
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition done = this.lock.newCondition();
+	private List<Runnable> callbacks = new ArrayList<Runnable>();
+	private boolean finished;
+	private boolean cancelled;
+	private Response response;
+	private Exception failure;
+	private long timeout;
+
+	/**
+	 * Creates the placeholder for a Response that's on its way.
+	 * 
+	 * @param id Identifier for the response
+	 */
+	public DeferredResponse(String id) {
+		super( id, new ByteArrayInputStream( new byte[0] ) );
+	}
+
+	/**
+	 * Returns how long the server should wait for the Response before
+	 * giving up on it.
+	 * 
+	 * @return milliseconds to wait, or 0 to wait as long as it takes
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * Sets how long the server should wait for the Response.  If it isn't
+	 * in by then, the client gets a 504 and the Response is cancelled.
+	 * 
+	 * @param timeout milliseconds to wait, or 0 to wait as long as it takes
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Hands over the real Response.  If this one has been cancelled in the
+	 * meantime, the given Response is closed instead.
+	 * 
+	 * @param response the Response, or null if there isn't one
+	 * @return true, if the Response was taken
+	 */
+	public boolean complete(Response response) {
+		if ( !this.finish( response, null, false ) ) {
+			if ( response != null ) {
+				response.close();
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reports that the Response couldn't be produced.  The exception is
+	 * what the server sees, as if the Rule had thrown it.
+	 * 
+	 * @param failure what went wrong
+	 * @return true, if this hadn't been completed or cancelled already
+	 */
+	public boolean fail(Exception failure) {
+		return this.finish( null, failure, false );
+	}
+
+	/**
+	 * Gives up on the Response, e.g. because the client has waited long
+	 * enough.
+	 * 
+	 * @return true, if this hadn't been completed already
+	 */
+	public boolean cancel() {
+		return this.finish( null, null, true );
+	}
+
+	/**
+	 * Returns whether this has been completed, failed or cancelled.
+	 * 
+	 * @return true, if there's nothing more to wait for
+	 */
+	public boolean isDone() {
+		this.lock.lock();
+		try {
+			return this.finished;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether this has been cancelled.
+	 * 
+	 * @return true, if this was cancelled before it was completed
+	 */
+	public boolean isCancelled() {
+		this.lock.lock();
+		try {
+			return this.cancelled;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Has the callback run once this is done, on the thread that completes,
+	 * fails or cancels it.  If this is done already, the callback isn't
+	 * run at all, and the caller can carry on with {@link #get()} itself.
+	 * 
+	 * @param callback what to run once this is done
+	 * @return true, if the callback will be run later on
+	 */
+	public boolean whenDone(Runnable callback) {
+		this.lock.lock();
+		try {
+			if ( this.finished ) {
+				return false;
+			}
+			this.callbacks.add( callback );
+			return true;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the real Response, waiting for it if need be.
+	 * 
+	 * @return the Response, or null if there isn't one
+	 * @throws CancellationException if this was cancelled
+	 * @throws Exception whatever the Response failed with
+	 */
+	public Response get() throws Exception {
+		this.lock.lock();
+		try {
+			while ( !this.finished ) {
+				this.done.await();
+			}
+			if ( this.cancelled ) {
+				throw new CancellationException( "Response '" + this.getId()
+				        + "' was cancelled" );
+			}
+			if ( this.failure != null ) {
+				throw this.failure;
+			}
+			return this.response;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Cancels the Response, or closes it if it's already in, so that
+	 * whatever is behind it can be freed up.
+	 */
+	@Override
+	public void close() {
+		if ( this.cancel() ) {
+			return;
+		}
+		Response response;
+		this.lock.lock();
+		try {
+			response = this.response;
+		}
+		finally {
+			this.lock.unlock();
+		}
+		if ( response != null ) {
+			response.close();
+		}
+	}
+
+	/**
+	 * A DeferredResponse stands for a single request's Response, so it
+	 * can't be copied.
+	 */
+	@Override
+	public Response copy() {
+		throw new UnsupportedOperationException(
+		        "A DeferredResponse can't be copied" );
+	}
+
+	private boolean finish(Response response, Exception failure,
+	        boolean cancelled)
+	{
+		List<Runnable> callbacks;
+		this.lock.lock();
+		try {
+			if ( this.finished ) {
+				return false;
+			}
+			this.finished = true;
+			this.response = response;
+			this.failure = failure;
+			this.cancelled = cancelled;
+			callbacks = this.callbacks;
+			this.callbacks = null;
+			this.done.signalAll();
+		}
+		finally {
+			this.lock.unlock();
+		}
+		// outside the lock, since these usually hand the request back to
+		// the server
+		for ( Runnable callback : callbacks ) {
+			callback.run();
+		}
+		return true;
+	}
+}
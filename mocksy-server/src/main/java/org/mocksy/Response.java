@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.mocksy.filter.FilterException;
@@ -30,16 +31,23 @@ import org.mocksy.filter.ResponseFilter;
 /**
  * Basic abstraction for a service response.
  */
-public class Response {
+public class Response implements Cloneable {
 	private static final int BUFFER_SIZE = 1024 * 10;
 	private static final Logger logger = Logger.getLogger( Response.class
 	        .getName() );
 	private String id;
 	private InputStream stream;
-	private byte[] data;
+	private volatile byte[] data;
 	private List<ResponseFilter> filters;
 	private String contentType;
 	private int delay;
+	private int bandwidth;
+	private int chunkSize;
+	private int chunkInterval;
+	private boolean streamed;
+	// not a monitor, so a virtual thread reading the content doesn't pin
+	// its carrier thread
+	private ReentrantLock lock = new ReentrantLock();
 
 	/**
 	 * Creates a response with given content and content type.
@@ -119,16 +127,15 @@ public class Response {
 	public byte[] toByteArray(boolean filter) throws FilterException,
 	        IOException
 	{
-		byte[] data = this.getData();
 		if ( !filter ) {
-			return data;
+			return this.getData();
 		}
 		// convert response contents to an InputStream
 		InputStream stream = null;
 		ByteArrayOutputStream responseData = new ByteArrayOutputStream();
 		try {
 			// process through the filters
-			stream = this.getFilteredStream( new ByteArrayInputStream( data ) );
+			stream = this.openStream();
 			byte[] bytes = new byte[BUFFER_SIZE];
 			int read = -1;
 			while ( ( read = stream.read( bytes ) ) > -1 ) {
@@ -221,6 +228,182 @@ public class Response {
 		this.delay = delay;
 	}
 
+	/**
+	 * Returns the maximum rate, in bytes per second, at which the response
+	 * body is sent to the client.  Zero means the body is sent as fast as
+	 * the connection allows.
+	 * 
+	 * @return bytes per second, or 0 if unlimited
+	 */
+	public int getBandwidth() {
+		return this.bandwidth;
+	}
+
+	/**
+	 * Limits the rate at which the response body is written to the client.
+	 * Unlike {@link #setDelay(int)}, which only holds back the first byte,
+	 * this trickles the whole body out, which is useful for testing client
+	 * read timeouts against slow servers.
+	 * 
+	 * @param bandwidth bytes per second, or 0 for unlimited
+	 */
+	public void setBandwidth(int bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Returns the number of bytes written in each chunk of a paced response.
+	 * 
+	 * @return bytes per chunk, or 0 if the body isn't chunked
+	 */
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	/**
+	 * Sets the number of bytes written in each chunk of a paced response.
+	 * If a bandwidth is also set, the interval between chunks is derived
+	 * from it; otherwise {@link #setChunkInterval(int)} is used.
+	 * 
+	 * @param chunkSize bytes per chunk
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Returns the pause between chunks of a paced response as milliseconds.
+	 * 
+	 * @return milliseconds between chunks
+	 */
+	public int getChunkInterval() {
+		return this.chunkInterval;
+	}
+
+	/**
+	 * Sets the pause between the chunks of a paced response.  This is only
+	 * used when a chunk size is set and no bandwidth limit is.
+	 * 
+	 * @param chunkInterval milliseconds between chunks
+	 */
+	public void setChunkInterval(int chunkInterval) {
+		this.chunkInterval = chunkInterval;
+	}
+
+	/**
+	 * Returns a copy of this Response that shares its content and filters,
+	 * but whose settings, e.g. the delay, can be changed for a single
+	 * request without affecting the original.
+	 * 
+	 * @return a copy of this Response
+	 */
+	public Response copy() {
+		// make sure the content is read before the copies share it
+		this.getData();
+		try {
+			Response copy = (Response) this.clone();
+			copy.lock = new ReentrantLock();
+			return copy;
+		}
+		catch ( CloneNotSupportedException e ) {
+			// can't happen, we're Cloneable
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Returns the filtered response contents as an InputStream, so that
+	 * the caller can write the body out at its own pace.
+	 * 
+	 * @return the filtered response contents
+	 * @throws FilterException if there's a problem filtering the response
+	 * @throws IOException if there's a problem producing the content
+	 */
+	public InputStream openStream() throws FilterException, IOException {
+		InputStream content = this.takeStream();
+		if ( content == null ) {
+			content = new ByteArrayInputStream( this.getData() );
+		}
+		return this.getFilteredStream( content );
+	}
+
+	/**
+	 * Marks this Response as streamed, so that its content goes straight
+	 * from the InputStream it was created with to the client as it's read,
+	 * rather than being held in memory first.  This is meant for content
+	 * that's only ever sent once, like a proxied server's response; the
+	 * stream can only be opened once, and if the content is read any other
+	 * way it's held in memory as usual.
+	 * 
+	 * @param streamed true to stream the content
+	 */
+	public void setStreamed(boolean streamed) {
+		this.streamed = streamed;
+	}
+
+	/**
+	 * Returns whether the content goes straight from its InputStream to
+	 * the client.
+	 * 
+	 * @return true if the content is streamed
+	 */
+	public boolean isStreamed() {
+		return this.streamed;
+	}
+
+	/**
+	 * Lets go of a streamed Response's content if it hasn't been read, so
+	 * whatever is behind the stream, like a connection, can be freed up.
+	 * Other Responses are left alone, since they may be used again.
+	 */
+	public void close() {
+		InputStream content = null;
+		this.lock.lock();
+		try {
+			if ( this.streamed ) {
+				content = this.stream;
+				this.stream = null;
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+		if ( content != null ) {
+			try {
+				content.close();
+			}
+			catch ( IOException e ) {
+				logger.log( Level.WARNING, "Error closing response stream", e );
+			}
+		}
+	}
+
+	/**
+	 * Hands over the unread InputStream of a streamed Response; no one
+	 * else gets to read it after this.
+	 */
+	private InputStream takeStream() throws IOException {
+		if ( !this.streamed || this.data != null ) {
+			return null;
+		}
+		this.lock.lock();
+		try {
+			if ( this.data != null ) {
+				return null;
+			}
+			if ( this.stream == null ) {
+				throw new IOException( "Response '" + this.id
+				        + "' has already been streamed" );
+			}
+			InputStream content = this.stream;
+			this.stream = null;
+			return content;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
 	/**
 	 * Processing the contents of the response and returns it as a byte
 	 * array.  If the response was created with an InputStream, this will
@@ -228,23 +411,50 @@ public class Response {
 	 * 
 	 * @return the byte[] of response contents
 	 */
-	private synchronized byte[] getData() {
+	private byte[] getData() {
+		// once the content has been read, there's nothing to wait for
+		byte[] data = this.data;
+		if ( data != null ) {
+			return data;
+		}
+		this.lock.lock();
+		try {
+			return this.readData();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	private byte[] readData() {
 		if ( this.data == null && this.stream != null ) {
 			try {
-				ByteArrayOutputStream output = new ByteArrayOutputStream();
-				byte[] buffer = new byte[BUFFER_SIZE];
-				int read = -1;
-				while ( ( read = this.stream.read( buffer ) ) > -1 ) {
-					output.write( buffer, 0, read );
+				if ( this.stream instanceof SharedContent ) {
+					// no need for a copy of content that's shared anyway
+					this.data = ( (SharedContent) this.stream ).getContent();
+				}
+				else {
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read = -1;
+					while ( ( read = this.stream.read( buffer ) ) > -1 ) {
+						output.write( buffer, 0, read );
+					}
+					this.data = output.toByteArray();
+					output.close();
 				}
-				this.data = output.toByteArray();
-				output.close();
-				this.stream.read( this.data );
 			}
 			catch ( IOException e ) {
 				logger.log( Level.SEVERE, "Error reading response stream", e );
 			}
 			finally {
+				try {
+					this.stream.close();
+				}
+				catch ( IOException e ) {
+					logger.log( Level.WARNING, "Error closing response stream",
+					        e );
+				}
 				this.stream = null;
 			}
 		}
@@ -0,0 +1,37 @@
+package org.mocksy;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.IOException;
+
+/**
+ * Implemented by the InputStreams of content that's already held in full,
+ * and may be shared by many Responses, so that a {@link Response} can keep
+ * hold of the content itself rather than reading it into a copy of its
+ * own.  The content mustn't be changed by whoever gets it.
+ */
+public interface SharedContent {
+
+	/**
+	 * Returns the whole of the content, regardless of how much of the
+	 * stream has been read.
+	 * 
+	 * @return the content
+	 * @throws IOException if the content can't be got
+	 */
+	byte[] getContent() throws IOException;
+
+}
@@ -3,6 +3,7 @@ package org.mocksy.config;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import org.mocksy.config.xml.DirectoryRulesetFactory;
 import org.mocksy.config.xml.FileXmlSource;
 import org.mocksy.config.xml.XmlRulesetFactory;
 import org.mocksy.config.xml.XmlSource;
@@ -36,7 +37,9 @@ public final class RulesetFactoryFactory {
 	 * of RulesetFactory.
 	 * 
 	 * Otherwise, we return an XmlRulesetFactory, in which case the String
-	 * argument needs to be either a URL or a filesystem path.
+	 * argument needs to be either a URL or a filesystem path.  A path to a
+	 * directory gets a DirectoryRulesetFactory, which merges all of the
+	 * ruleset files under it.
 	 * 
 	 * @param rulesetFactory the identifier for the RulesetFactory, either
 	 * 		a Java classname, URL or filesystem path.
@@ -67,8 +70,11 @@ public final class RulesetFactoryFactory {
 			// ok, we'll just have to assume this is a filesystem path
 		}
 
-		return new XmlRulesetFactory( new FileXmlSource( new File(
-		        rulesetFactory ) ) );
+		File file = new File( rulesetFactory );
+		if ( file.isDirectory() ) {
+			return new DirectoryRulesetFactory( file );
+		}
+		return new XmlRulesetFactory( new FileXmlSource( file ) );
 	}
 
 	public static RulesetFactory getRulesetFactory(String rulesetFactory,
@@ -0,0 +1,393 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.mocksy.config.UpdateableRulesetFactory;
+import org.mocksy.rules.Rule;
+import org.mocksy.rules.Ruleset;
+
+/**
+ * RulesetFactory that builds one Ruleset out of all of the ruleset files
+ * under a directory, so that a shared set of mocks can grow by dropping
+ * files into it rather than by adding to one big root file.
+ * 
+ * The files are picked out by include and exclude globs, matched against
+ * their paths relative to the directory, e.g. "**&#47;*.xml" or
+ * "drafts/**"; a glob without a slash matches the file name at any depth.
+ * XML files that aren't rulesets, like response files, are passed over, as
+ * are rulesets that another ruleset in the tree nests.  The files are read
+ * side by side, and their rules are merged in the order of their paths, so
+ * a file's rules are tried before those of any file that sorts after it;
+ * prefixing names with numbers, e.g. 10-orders.xml, sets the order.  The
+ * files needn't have a default-rule; the first one that does supplies it.
+ * 
+ * Each file is reloaded as it changes, like any other ruleset file, and
+ * the directory is scanned again now and then for files that have been
+ * added or removed.
+ */
+public class DirectoryRulesetFactory implements UpdateableRulesetFactory {
+	private static final String RULES_TAG = "rules";
+	private static final long SCAN_INTERVAL = 1000L;
+	private static final List<String> DEFAULT_INCLUDES = Arrays
+	        .asList( "**/*.xml" );
+	private static final Logger logger = Logger
+	        .getLogger( DirectoryRulesetFactory.class.getName() );
+
+	private final File dir;
+	private final List<Pattern> includes;
+	private final List<Pattern> excludes;
+	private final Ruleset ruleset;
+	// the ruleset files, by their paths relative to the directory
+	private Map<String, XmlRulesetFactory> factories = new TreeMap<String, XmlRulesetFactory>();
+	// the files that aren't rulesets, or that failed to load, so that
+	// they're only looked at again once they've changed
+	private Map<String, Long> others = new HashMap<String, Long>();
+	// what the merged Ruleset was made from
+	private List<Object> parts;
+	private long scanned;
+	private final ReentrantLock updateLock = new ReentrantLock();
+
+	/**
+	 * Creates the RulesetFactory from all of the XML files under the given
+	 * directory.
+	 * 
+	 * @param dir the directory holding the ruleset files
+	 * @throws Exception if one of the ruleset files can't be loaded
+	 */
+	public DirectoryRulesetFactory(File dir) throws Exception {
+		this( dir, null, null );
+	}
+
+	/**
+	 * Creates the RulesetFactory from the files under the given directory
+	 * that match the globs.
+	 * 
+	 * @param dir the directory holding the ruleset files
+	 * @param includes globs for the files to load, or null for all of the
+	 * 		XML files
+	 * @param excludes globs for the files to leave out, or null for none
+	 * @throws Exception if one of the ruleset files can't be loaded
+	 */
+	public DirectoryRulesetFactory(File dir, List<String> includes,
+	        List<String> excludes) throws Exception
+	{
+		if ( !dir.isDirectory() ) {
+			throw new IllegalArgumentException( dir + " is not a directory" );
+		}
+		this.dir = dir;
+		this.includes = toPatterns( includes == null ? DEFAULT_INCLUDES
+		        : includes );
+		this.excludes = toPatterns( excludes == null ? new ArrayList<String>()
+		        : excludes );
+		this.ruleset = new Ruleset( this );
+		this.scanned = System.currentTimeMillis();
+		this.load( this.scan() );
+		this.merge();
+	}
+
+	/**
+	 * Get the Ruleset built from all of the ruleset files.
+	 * 
+	 * @return the merged Ruleset
+	 */
+	public Ruleset getRuleset() {
+		return this.ruleset;
+	}
+
+	/**
+	 * Reloads the ruleset files that have changed, and picks up any that
+	 * have been added or removed, then merges them again if anything's
+	 * different.  The files are only looked at once a second or so, so that
+	 * a big tree doesn't slow every request down.
+	 */
+	public void checkForUpdates() throws Exception {
+		this.updateLock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			if ( now - this.scanned < SCAN_INTERVAL ) {
+				return;
+			}
+			this.scanned = now;
+			// drop the files that have gone before the rest are checked
+			this.load( this.scan() );
+			for ( XmlRulesetFactory factory : this.factories.values() ) {
+				factory.checkForUpdates();
+			}
+			if ( !this.getParts().equals( this.parts ) ) {
+				this.merge();
+			}
+		}
+		finally {
+			this.updateLock.unlock();
+		}
+	}
+
+	/**
+	 * Finds the files under the directory that match the globs.
+	 * 
+	 * @return the files, by their paths relative to the directory
+	 */
+	private Map<String, File> scan() {
+		Map<String, File> found = new TreeMap<String, File>();
+		this.scan( this.dir, "", found );
+		return found;
+	}
+
+	private void scan(File dir, String prefix, Map<String, File> found) {
+		File[] files = dir.listFiles();
+		if ( files == null ) {
+			return;
+		}
+		for ( File file : files ) {
+			String path = prefix + file.getName();
+			if ( file.isDirectory() ) {
+				this.scan( file, path + "/", found );
+			}
+			else if ( matches( this.includes, path )
+			        && !matches( this.excludes, path ) )
+			{
+				found.put( path, file );
+			}
+		}
+	}
+
+	/**
+	 * Loads the ruleset files that are new since the last scan, side by side,
+	 * and drops the ones that have gone.  If one of them can't be loaded,
+	 * none of the new ones are kept.
+	 * 
+	 * @param found the files the scan found
+	 * @throws Exception if a new ruleset file can't be loaded
+	 */
+	private void load(Map<String, File> found) throws Exception {
+		Map<String, XmlRulesetFactory> factories = new TreeMap<String, XmlRulesetFactory>();
+		Map<String, Long> others = new HashMap<String, Long>();
+		Map<String, FutureTask<XmlRulesetFactory>> tasks = new TreeMap<String, FutureTask<XmlRulesetFactory>>();
+		for ( Map.Entry<String, File> entry : found.entrySet() ) {
+			String path = entry.getKey();
+			File file = entry.getValue();
+			Long other = this.others.get( path );
+			if ( this.factories.containsKey( path ) ) {
+				factories.put( path, this.factories.get( path ) );
+			}
+			else if ( other != null
+			        && other.longValue() == file.lastModified() )
+			{
+				others.put( path, other );
+			}
+			else {
+				tasks.put( path, ParallelLoader.submit( loader( file ) ) );
+			}
+		}
+		try {
+			for ( Map.Entry<String, FutureTask<XmlRulesetFactory>> entry : tasks
+			        .entrySet() )
+			{
+				String path = entry.getKey();
+				File file = found.get( path );
+				try {
+					XmlRulesetFactory factory = ParallelLoader.join( entry
+					        .getValue() );
+					if ( factory != null ) {
+						factories.put( path, factory );
+					}
+					else {
+						others.put( path, file.lastModified() );
+					}
+				}
+				catch ( Exception e ) {
+					// don't try it again until it's been fixed
+					this.others.put( path, file.lastModified() );
+					throw new IOException( "Couldn't load " + file + ": " + e,
+					        e );
+				}
+			}
+		}
+		finally {
+			for ( FutureTask<XmlRulesetFactory> task : tasks.values() ) {
+				task.cancel( false );
+			}
+		}
+		this.factories = factories;
+		this.others = others;
+	}
+
+	/**
+	 * Returns the task that loads the given file, if it's a ruleset.
+	 */
+	private static Callable<XmlRulesetFactory> loader(final File file) {
+		return new Callable<XmlRulesetFactory>() {
+			public XmlRulesetFactory call() throws Exception {
+				String root;
+				try {
+					root = StaxRulesetReader
+					        .readRootName( new BufferedInputStream(
+					                new FileInputStream( file ) ) );
+				}
+				catch ( Exception e ) {
+					logger.log( Level.WARNING, "Skipping " + file
+					        + ", which isn't well-formed XML", e );
+					return null;
+				}
+				if ( !RULES_TAG.equals( root ) ) {
+					return null;
+				}
+				return new XmlRulesetFactory( new FileXmlSource( file ), false );
+			}
+		};
+	}
+
+	/**
+	 * Merges the rules of all of the ruleset files, other than the ones
+	 * nested in others, into the Ruleset, in the order of their paths.
+	 */
+	private void merge() throws IOException {
+		Set<File> nested = new HashSet<File>();
+		for ( XmlRulesetFactory factory : this.factories.values() ) {
+			for ( String url : factory.getNestedRulesets() ) {
+				File file = toFile( url );
+				if ( file != null ) {
+					nested.add( file.getCanonicalFile() );
+				}
+			}
+		}
+		List<Rule> rules = new ArrayList<Rule>();
+		Rule defaultRule = null;
+		int merged = 0;
+		for ( Map.Entry<String, XmlRulesetFactory> entry : this.factories
+		        .entrySet() )
+		{
+			File file = new File( this.dir, entry.getKey() );
+			if ( nested.contains( file.getCanonicalFile() ) ) {
+				continue;
+			}
+			Ruleset part = entry.getValue().getRuleset();
+			rules.addAll( part.getRules() );
+			if ( defaultRule == null ) {
+				defaultRule = part.getDefaultRule();
+			}
+			merged++;
+		}
+		this.ruleset.setRules( rules, defaultRule );
+		this.parts = this.getParts();
+		logger.info( "Merged " + merged + " ruleset files from " + this.dir
+		        + " (" + rules.size() + " rules)" );
+	}
+
+	/**
+	 * Returns what the merged Ruleset would be made from now, to tell
+	 * whether it needs to be merged again.
+	 */
+	private List<Object> getParts() {
+		List<Object> parts = new ArrayList<Object>();
+		for ( Map.Entry<String, XmlRulesetFactory> entry : this.factories
+		        .entrySet() )
+		{
+			Ruleset part = entry.getValue().getRuleset();
+			parts.add( entry.getKey() );
+			parts.add( part.getRules() );
+			parts.add( part.getDefaultRule() );
+			parts.add( entry.getValue().getNestedRulesets() );
+		}
+		return parts;
+	}
+
+	private static File toFile(String url) {
+		try {
+			URL fileUrl = new URL( url );
+			if ( !"file".equals( fileUrl.getProtocol() ) ) {
+				return null;
+			}
+			return new File( fileUrl.toURI() );
+		}
+		catch ( Exception e ) {
+			return null;
+		}
+	}
+
+	private static boolean matches(List<Pattern> patterns, String path) {
+		for ( Pattern pattern : patterns ) {
+			if ( pattern.matcher( path ).matches() ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Pattern> toPatterns(List<String> globs) {
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for ( String glob : globs ) {
+			patterns.add( toPattern( glob.trim() ) );
+		}
+		return patterns;
+	}
+
+	/**
+	 * Turns a glob into a regular expression: ** matches any number of
+	 * directories, * anything but a slash and ? any one character but a
+	 * slash.
+	 */
+	static Pattern toPattern(String glob) {
+		if ( glob.indexOf( '/' ) < 0 ) {
+			glob = "**/" + glob;
+		}
+		StringBuilder regex = new StringBuilder();
+		int i = 0;
+		while ( i < glob.length() ) {
+			char c = glob.charAt( i );
+			if ( glob.startsWith( "**/", i ) ) {
+				regex.append( "(.*/)?" );
+				i += 3;
+			}
+			else if ( glob.startsWith( "**", i ) ) {
+				regex.append( ".*" );
+				i += 2;
+			}
+			else if ( c == '*' ) {
+				regex.append( "[^/]*" );
+				i++;
+			}
+			else if ( c == '?' ) {
+				regex.append( "[^/]" );
+				i++;
+			}
+			else {
+				regex.append( Pattern.quote( String.valueOf( c ) ) );
+				i++;
+			}
+		}
+		return Pattern.compile( regex.toString() );
+	}
+}
@@ -16,7 +16,10 @@ package org.mocksy.config.xml;
  *  limitations under the License.
  */
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import org.mocksy.config.Source;
@@ -47,6 +50,15 @@ public class FileXmlSource extends XmlSource {
 		this.timestamp = -1L;
 	}
 
+	/**
+	 * Returns the File the XML comes from.
+	 * 
+	 * @return the XML File
+	 */
+	public File getFile() {
+		return this.xmlFile;
+	}
+
 	public Source getRelativeSource(String relativePath) {
 		return new FileXmlSource( new File( this.xmlDir, relativePath ) );
 	}
@@ -78,4 +90,14 @@ public class FileXmlSource extends XmlSource {
 		return getRulesetElement( this.xmlFile.toURI().toURL().openStream() );
 	}
 
+	@Override
+	public InputStream openStream() throws Exception {
+		return new BufferedInputStream( new FileInputStream( this.xmlFile ) );
+	}
+
+	@Override
+	public String toString() {
+		return this.xmlFile.getPath();
+	}
+
 }
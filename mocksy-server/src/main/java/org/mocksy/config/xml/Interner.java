@@ -0,0 +1,200 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Hands out one shared copy of each distinct value, so that a generated
+ * ruleset that names the same pattern, header or response content
+ * thousands of times only holds on to it, and only compiles it, once.
+ * 
+ * The copies are only weakly held, so the ones the Rules no longer use,
+ * e.g. after a reload, are let go of.  All of the rulesets loaded share the
+ * same copies, including nested ones and those loaded from a directory.
+ */
+class Interner<T> {
+	private static final Interner<String> strings = new Interner<String>();
+	private static final Interner<byte[]> contents = new Interner<byte[]>() {
+		@Override
+		int hash(byte[] value) {
+			return Arrays.hashCode( value );
+		}
+
+		@Override
+		boolean equal(byte[] value, byte[] other) {
+			return Arrays.equals( value, other );
+		}
+	};
+	// keyed by the interned regex, which the Pattern holds on to, so an
+	// entry lasts exactly as long as its Pattern is in use
+	private static final Map<String, WeakReference<Pattern>> patterns = new WeakHashMap<String, WeakReference<Pattern>>();
+	private static volatile boolean enabled = true;
+
+	private final Map<Ref<T>, Ref<T>> refs = new HashMap<Ref<T>, Ref<T>>();
+	private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+	private long requests;
+
+	/**
+	 * Sets whether values are shared at all; only there to measure what
+	 * sharing them saves.
+	 * 
+	 * @param enable false to hand back every value as it is
+	 */
+	static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	/**
+	 * Returns the shared copy of the given String.
+	 * 
+	 * @param value the String, which may be null
+	 * @return an equal String
+	 */
+	static String string(String value) {
+		return enabled ? strings.intern( value ) : value;
+	}
+
+	/**
+	 * Returns the shared copy of the given content.  The content mustn't
+	 * be changed afterwards.
+	 * 
+	 * @param value the content
+	 * @return an array with the same bytes
+	 */
+	static byte[] content(byte[] value) {
+		return enabled ? contents.intern( value ) : value;
+	}
+
+	/**
+	 * Returns the shared Pattern for the given regex, compiling it only if
+	 * there isn't one already.
+	 * 
+	 * @param regex the regex
+	 * @return the compiled regex
+	 */
+	static Pattern pattern(String regex) {
+		if ( !enabled ) {
+			return Pattern.compile( regex );
+		}
+		regex = string( regex );
+		synchronized ( patterns ) {
+			WeakReference<Pattern> ref = patterns.get( regex );
+			Pattern pattern = ( ref == null ? null : ref.get() );
+			if ( pattern == null ) {
+				pattern = Pattern.compile( regex );
+				patterns.put( regex, new WeakReference<Pattern>( pattern ) );
+			}
+			return pattern;
+		}
+	}
+
+	/**
+	 * Returns how many Strings, contents and Patterns are shared right now,
+	 * and how many were asked for.
+	 * 
+	 * @return the numbers, by name
+	 */
+	static Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		synchronized ( strings ) {
+			metrics.put( "strings.requests", strings.requests );
+			metrics.put( "strings.shared", strings.refs.size() );
+		}
+		synchronized ( contents ) {
+			metrics.put( "contents.requests", contents.requests );
+			metrics.put( "contents.shared", contents.refs.size() );
+		}
+		synchronized ( patterns ) {
+			metrics.put( "patterns.shared", patterns.size() );
+		}
+		return metrics;
+	}
+
+	private synchronized T intern(T value) {
+		if ( value == null ) {
+			return null;
+		}
+		this.requests++;
+		Ref<T> cleared;
+		while ( ( cleared = this.nextCleared() ) != null ) {
+			this.refs.remove( cleared );
+		}
+		Ref<T> existing = this.refs.get( new Ref<T>( this, value, null ) );
+		T shared = ( existing == null ? null : existing.get() );
+		if ( shared != null ) {
+			return shared;
+		}
+		Ref<T> ref = new Ref<T>( this, value, this.queue );
+		this.refs.put( ref, ref );
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Ref<T> nextCleared() {
+		return (Ref<T>) this.queue.poll();
+	}
+
+	int hash(T value) {
+		return value.hashCode();
+	}
+
+	boolean equal(T value, T other) {
+		return value.equals( other );
+	}
+
+	/**
+	 * A weak reference that's equal to any other with an equal value, for
+	 * as long as it has its value.
+	 */
+	private static class Ref<T> extends WeakReference<T> {
+		private final Interner<T> interner;
+		private final int hash;
+
+		Ref(Interner<T> interner, T value, ReferenceQueue<T> queue) {
+			super( value, queue );
+			this.interner = interner;
+			this.hash = interner.hash( value );
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean equals(Object obj) {
+			if ( obj == this ) {
+				return true;
+			}
+			if ( !( obj instanceof Ref ) ) {
+				return false;
+			}
+			T value = this.get();
+			T other = ( (Ref<T>) obj ).get();
+			return value != null && other != null
+			        && this.interner.equal( value, other );
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mocksy.SharedContent;
+
+/**
+ * Loads nested rulesets and response files on a shared pool of threads, so
+ * that a ruleset made of hundreds of files doesn't load them one at a time.
+ *
+ * A thread that needs the result of a task runs the task itself if no
+ * other thread has got to it yet, rather than waiting for one to.  Nested
+ * rulesets wait on their own nested rulesets, so this is what keeps the
+ * pool from filling up with threads that are all waiting on tasks that
+ * are stuck behind them in the queue.
+ */
+final class ParallelLoader {
+	private static final Logger logger = Logger.getLogger( ParallelLoader.class
+	        .getName() );
+	private static final int BUFFER_SIZE = 1024 * 10;
+	// mostly waiting on files and URLs, so more threads than processors
+	private static final int THREADS = Math.max( 4, Runtime.getRuntime()
+	        .availableProcessors() * 2 );
+	private static final ThreadPoolExecutor executor;
+	static {
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor( THREADS, THREADS, 10,
+		        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+		        new ThreadFactory() {
+			        public Thread newThread(Runnable runnable) {
+				        Thread thread = new Thread( runnable, "Ruleset loader "
+				                + count.incrementAndGet() );
+				        thread.setDaemon( true );
+				        return thread;
+			        }
+		        } );
+		// the threads are only needed while loading
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	private ParallelLoader() {
+		// only static methods
+	}
+
+	/**
+	 * Starts the task on the pool.
+	 *
+	 * @param task the work to do
+	 * @return the task, to be passed to {@link #join(FutureTask)}
+	 */
+	static <T> FutureTask<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>( task );
+		executor.execute( future );
+		return future;
+	}
+
+	/**
+	 * Returns the task's result, running it on this thread if it hasn't
+	 * been started yet.
+	 *
+	 * @param task a task from {@link #submit(Callable)}
+	 * @return the task's result
+	 * @throws Exception whatever the task threw
+	 */
+	static <T> T join(FutureTask<T> task) throws Exception {
+		// does nothing if it's already been run, or is running
+		task.run();
+		try {
+			return task.get();
+		}
+		catch ( ExecutionException e ) {
+			if ( e.getCause() instanceof Exception ) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts reading the content at the given URL.
+	 *
+	 * @param source the Source the URL is relative to
+	 * @param url the content's location
+	 * @return the task reading it
+	 */
+	static FutureTask<byte[]> read(final XmlSource source, final URL url) {
+		return submit( new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				long start = System.currentTimeMillis();
+				// files with the same content share one copy of it
+				byte[] content = Interner.content( readFully( source
+				        .openRelativeURL( url ) ) );
+				if ( logger.isLoggable( Level.FINE ) ) {
+					logger.fine( "Read " + url + " (" + content.length
+					        + " bytes) in "
+					        + ( System.currentTimeMillis() - start ) + "ms" );
+				}
+				return content;
+			}
+		} );
+	}
+
+	private static byte[] readFully(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = -1;
+			while ( ( read = input.read( buffer ) ) > -1 ) {
+				output.write( buffer, 0, read );
+			}
+			return output.toByteArray();
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Content that isn't got until it's first read.
+	 */
+	private abstract static class DeferredInputStream extends InputStream {
+		private InputStream content;
+
+		abstract InputStream open() throws IOException;
+
+		private InputStream getContent() throws IOException {
+			if ( this.content == null ) {
+				this.content = this.open();
+			}
+			return this.content;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return this.getContent().read();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+		        throws IOException
+		{
+			return this.getContent().read( buffer, offset, length );
+		}
+
+		@Override
+		public void close() throws IOException {
+			if ( this.content != null ) {
+				this.content.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the content being read by the given task, waiting for it
+	 * when it's first read.
+	 *
+	 * @param task a task from {@link #read(XmlSource, URL)}
+	 * @return the content
+	 */
+	static InputStream pending(FutureTask<byte[]> task) {
+		return new PendingContent( task );
+	}
+
+	/**
+	 * Content being read in the background, which a Response can share
+	 * rather than copy once it's been read.
+	 */
+	private static class PendingContent extends DeferredInputStream
+	        implements SharedContent
+	{
+		private final FutureTask<byte[]> task;
+
+		PendingContent(FutureTask<byte[]> task) {
+			this.task = task;
+		}
+
+		public byte[] getContent() throws IOException {
+			try {
+				return join( this.task );
+			}
+			catch ( IOException e ) {
+				throw e;
+			}
+			catch ( Exception e ) {
+				throw new IOException( "Couldn't load response content", e );
+			}
+		}
+
+		@Override
+		InputStream open() throws IOException {
+			return new ByteArrayInputStream( this.getContent() );
+		}
+	}
+
+	/**
+	 * Returns the content at the given URL, which isn't opened until it's
+	 * first read.
+	 *
+	 * @param source the Source the URL is relative to
+	 * @param url the content's location
+	 * @return the content
+	 */
+	static InputStream lazy(final XmlSource source, final URL url) {
+		return new DeferredInputStream() {
+			@Override
+			InputStream open() throws IOException {
+				return source.openRelativeURL( url );
+			}
+		};
+	}
+}
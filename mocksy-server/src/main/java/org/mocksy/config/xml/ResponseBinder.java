@@ -0,0 +1,240 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.mocksy.Response;
+import org.mocksy.filter.ResponseFilter;
+
+/**
+ * Creates Responses of a given class and sets their options, as named in a
+ * ruleset's response elements.  The constructor, and the setter or field
+ * behind each option, are looked up once per class and kept, rather than
+ * for every rule, which counts when thousands of rules use the same
+ * custom response class.
+ * 
+ * An option like &lt;statusCode&gt; or &lt;status-code&gt; is set through
+ * setStatusCode(), if there is such a method, and otherwise straight into
+ * the statusCode field, which may be declared in any superclass.  The
+ * option's text is converted to the type that the setter or field takes.
+ */
+final class ResponseBinder {
+	private static final ConcurrentMap<Class<?>, ResponseBinder> binders = new ConcurrentHashMap<Class<?>, ResponseBinder>();
+
+	private final Class<? extends Response> type;
+	private final Constructor<? extends Response> constructor;
+	private final ConcurrentMap<String, Option> options = new ConcurrentHashMap<String, Option>();
+
+	private ResponseBinder(Class<? extends Response> type) throws Exception {
+		this.type = type;
+		this.constructor = type.getConstructor( String.class,
+		        InputStream.class, List.class );
+	}
+
+	/**
+	 * Returns the binder for the given Response class.
+	 * 
+	 * @param type the Response class
+	 * @return the class's binder
+	 * @throws Exception if the class hasn't got a public (String,
+	 * 		InputStream, List) constructor
+	 */
+	static ResponseBinder get(Class<? extends Response> type)
+	        throws Exception
+	{
+		ResponseBinder binder = binders.get( type );
+		if ( binder == null ) {
+			binder = new ResponseBinder( type );
+			ResponseBinder existing = binders.putIfAbsent( type, binder );
+			if ( existing != null ) {
+				binder = existing;
+			}
+		}
+		return binder;
+	}
+
+	/**
+	 * Creates a new Response.
+	 * 
+	 * @param id the id of the Response
+	 * @param content the content of the Response
+	 * @param filters the filters to apply to the content
+	 * @return the new Response
+	 * @throws Exception if the constructor fails
+	 */
+	Response create(String id, InputStream content,
+	        List<ResponseFilter> filters) throws Exception
+	{
+		try {
+			return this.constructor.newInstance( id, content, filters );
+		}
+		catch ( InvocationTargetException e ) {
+			if ( e.getCause() instanceof Exception ) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the given options on the Response.
+	 * 
+	 * @param response a Response of this binder's class
+	 * @param options the options' values, by name
+	 * @throws IOException if an option doesn't exist or its value can't be
+	 * 		converted
+	 */
+	void apply(Response response, Map<String, String> options)
+	        throws IOException
+	{
+		for ( Map.Entry<String, String> entry : options.entrySet() ) {
+			try {
+				this.getOption( entry.getKey() ).set( response,
+				        entry.getValue().trim() );
+			}
+			catch ( Exception e ) {
+				throw new IOException( "Could not apply option "
+				        + entry.getKey() + " to response.", e );
+			}
+		}
+	}
+
+	private Option getOption(String name) throws NoSuchFieldException {
+		Option option = this.options.get( name );
+		if ( option == null ) {
+			option = this.findOption( name );
+			this.options.putIfAbsent( name, option );
+		}
+		return option;
+	}
+
+	private Option findOption(String name) throws NoSuchFieldException {
+		String property = toProperty( name );
+		String setter = "set" + Character.toUpperCase( property.charAt( 0 ) )
+		        + property.substring( 1 );
+		for ( Method method : this.type.getMethods() ) {
+			if ( method.getName().equals( setter )
+			        && method.getParameterTypes().length == 1
+			        && isConvertible( method.getParameterTypes()[0] ) )
+			{
+				return new SetterOption( method );
+			}
+		}
+		for ( Class<?> c = this.type; c != null; c = c.getSuperclass() ) {
+			try {
+				Field field = c.getDeclaredField( property );
+				if ( !Modifier.isStatic( field.getModifiers() )
+				        && isConvertible( field.getType() ) )
+				{
+					field.setAccessible( true );
+					return new FieldOption( field );
+				}
+			}
+			catch ( NoSuchFieldException e ) {
+				// try the superclass
+			}
+		}
+		throw new NoSuchFieldException( name );
+	}
+
+	/**
+	 * Turns an option name like status-code into statusCode.
+	 */
+	private static String toProperty(String name) {
+		StringBuilder property = new StringBuilder();
+		boolean upper = false;
+		for ( int i = 0; i < name.length(); i++ ) {
+			char c = name.charAt( i );
+			if ( c == '-' ) {
+				upper = true;
+			}
+			else {
+				property.append( upper ? Character.toUpperCase( c ) : c );
+				upper = false;
+			}
+		}
+		return property.toString();
+	}
+
+	private static boolean isConvertible(Class<?> type) {
+		return type == String.class || type == int.class
+		        || type == Integer.class || type == long.class
+		        || type == Long.class || type == boolean.class
+		        || type == Boolean.class || type == double.class
+		        || type == Double.class;
+	}
+
+	private static Object convert(Class<?> type, String value) {
+		if ( type == int.class || type == Integer.class ) {
+			return Integer.valueOf( value );
+		}
+		if ( type == long.class || type == Long.class ) {
+			return Long.valueOf( value );
+		}
+		if ( type == boolean.class || type == Boolean.class ) {
+			return Boolean.valueOf( value );
+		}
+		if ( type == double.class || type == Double.class ) {
+			return Double.valueOf( value );
+		}
+		return value;
+	}
+
+	/**
+	 * Sets one option on a Response.
+	 */
+	private abstract static class Option {
+		abstract void set(Response response, String value) throws Exception;
+	}
+
+	private static class SetterOption extends Option {
+		private final Method method;
+		private final Class<?> type;
+
+		SetterOption(Method method) {
+			this.method = method;
+			this.type = method.getParameterTypes()[0];
+		}
+
+		@Override
+		void set(Response response, String value) throws Exception {
+			this.method.invoke( response, convert( this.type, value ) );
+		}
+	}
+
+	private static class FieldOption extends Option {
+		private final Field field;
+
+		FieldOption(Field field) {
+			this.field = field;
+		}
+
+		@Override
+		void set(Response response, String value) throws Exception {
+			this.field.set( response, convert( this.field.getType(), value ) );
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.Map;
+import org.w3c.dom.Element;
+
+/**
+ * Reads a ruleset one child of its root element at a time, e.g. from the
+ * XML itself or from a compiled snapshot of it.
+ */
+interface RulesetReader {
+
+	/**
+	 * Returns an attribute of the ruleset element.
+	 * 
+	 * @param name the attribute name
+	 * @return the attribute value, or null if it isn't there
+	 */
+	String getAttribute(String name);
+
+	/**
+	 * Returns all of the ruleset element's attributes.
+	 * 
+	 * @return the attribute values, by name
+	 */
+	Map<String, String> getAttributes();
+
+	/**
+	 * Reads the next child of the ruleset element, e.g. a rule.
+	 * 
+	 * @return the child element and everything in it, or null if there
+	 *         aren't any more
+	 * @throws Exception if the ruleset can't be read
+	 */
+	Element next() throws Exception;
+
+	/**
+	 * Stops reading and closes the ruleset.
+	 */
+	void close();
+}
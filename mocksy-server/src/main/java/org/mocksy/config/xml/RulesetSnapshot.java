@@ -0,0 +1,443 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.mocksy.SharedContent;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A compiled copy of a ruleset file, kept next to it, that loads without
+ * parsing any XML or reading any response files.  It holds the ruleset's
+ * rules, already broken down into elements, and the contents of the
+ * response files they serve, and is memory-mapped when it's read.
+ *
+ * A snapshot is only used while the ruleset file and every response file
+ * in it are the same size and age they were when it was written; if any
+ * of them has changed, or the snapshot was written by a different version
+ * of this class, the ruleset is loaded from the XML again.  Nested
+ * rulesets have snapshots of their own.
+ *
+ * The layout is a header, the rules, a footer with the ruleset's
+ * attributes, the files it was made from and the response contents, and
+ * lastly where the footer starts.
+ */
+final class RulesetSnapshot implements RulesetReader {
+	private static final Logger logger = Logger
+	        .getLogger( RulesetSnapshot.class.getName() );
+	static final String SUFFIX = ".snapshot";
+	private static final int MAGIC = 0x4d4b5359;
+	private static final int VERSION = 1;
+	private static final byte END = 0;
+	private static final byte ELEMENT = 1;
+	private static final byte TEXT = 2;
+
+	private final ByteBuffer buffer;
+	private final Document document;
+	private final Map<String, String> attributes = new HashMap<String, String>();
+	private final Map<String, ByteBuffer> contents = new HashMap<String, ByteBuffer>();
+	private boolean done;
+
+	private RulesetSnapshot(ByteBuffer buffer) throws Exception {
+		this.buffer = buffer;
+		this.document = DocumentBuilderFactory.newInstance()
+		        .newDocumentBuilder().newDocument();
+	}
+
+	/**
+	 * Returns where the snapshot of the given ruleset file goes.
+	 * 
+	 * @param rulesetFile the ruleset's XML file
+	 * @return the snapshot file
+	 */
+	static File getFile(File rulesetFile) {
+		return new File( rulesetFile.getPath() + SUFFIX );
+	}
+
+	/**
+	 * Opens the snapshot of the given ruleset file, if there's one that's
+	 * still up to date.
+	 * 
+	 * @param rulesetFile the ruleset's XML file
+	 * @return the snapshot, or null if the XML needs to be loaded instead
+	 */
+	static RulesetSnapshot open(File rulesetFile) {
+		File file = getFile( rulesetFile );
+		if ( !file.isFile() ) {
+			return null;
+		}
+		try {
+			RandomAccessFile input = new RandomAccessFile( file, "r" );
+			ByteBuffer buffer;
+			try {
+				// the mapping stays valid once the file is closed
+				buffer = input.getChannel().map( FileChannel.MapMode.READ_ONLY,
+				        0, input.length() );
+			}
+			finally {
+				input.close();
+			}
+			RulesetSnapshot snapshot = new RulesetSnapshot( buffer );
+			if ( snapshot.readFooter( rulesetFile ) ) {
+				return snapshot;
+			}
+			logger.info( "Snapshot " + file + " is out of date" );
+		}
+		catch ( Exception e ) {
+			logger.log( Level.WARNING, "Couldn't read snapshot " + file, e );
+		}
+		return null;
+	}
+
+	private boolean readFooter(File rulesetFile) throws Exception {
+		if ( this.buffer.getInt() != MAGIC || this.buffer.getInt() != VERSION
+		        || !readString( this.buffer ).equals( getPath( rulesetFile ) ) )
+		{
+			return false;
+		}
+		int rulesStart = this.buffer.position();
+		this.buffer.position( (int) this.buffer.getLong( this.buffer
+		        .capacity() - 8 ) );
+		int count = this.buffer.getInt();
+		for ( int i = 0; i < count; i++ ) {
+			this.attributes.put( readString( this.buffer ),
+			        readString( this.buffer ) );
+		}
+		count = this.buffer.getInt();
+		for ( int i = 0; i < count; i++ ) {
+			File file = new File( readString( this.buffer ) );
+			long lastModified = this.buffer.getLong();
+			long length = this.buffer.getLong();
+			if ( file.lastModified() != lastModified
+			        || file.length() != length )
+			{
+				return false;
+			}
+		}
+		count = this.buffer.getInt();
+		for ( int i = 0; i < count; i++ ) {
+			String url = readString( this.buffer );
+			int length = this.buffer.getInt();
+			ByteBuffer content = this.buffer.slice();
+			content.limit( length );
+			this.contents.put( url, content );
+			this.buffer.position( this.buffer.position() + length );
+		}
+		this.buffer.position( rulesStart );
+		return true;
+	}
+
+	public String getAttribute(String name) {
+		return this.attributes.get( name );
+	}
+
+	public Map<String, String> getAttributes() {
+		return this.attributes;
+	}
+
+	public Element next() {
+		if ( this.done || this.buffer.get() == END ) {
+			this.done = true;
+			return null;
+		}
+		return this.readElement();
+	}
+
+	public void close() {
+		// nothing to close, the mapping goes when it's no longer used
+	}
+
+	/**
+	 * Returns the content of a response file, as it was when the snapshot
+	 * was written.
+	 * 
+	 * @param url the response file's location
+	 * @return the content, or null if the snapshot doesn't have it
+	 */
+	InputStream getContent(URL url) {
+		ByteBuffer content = this.contents.get( url.toString() );
+		if ( content == null ) {
+			return null;
+		}
+		return new ByteBufferInputStream( content.duplicate() );
+	}
+
+	private Element readElement() {
+		Element element = this.document.createElement( readString( this.buffer ) );
+		int count = this.buffer.getInt();
+		for ( int i = 0; i < count; i++ ) {
+			element.setAttribute( readString( this.buffer ),
+			        readString( this.buffer ) );
+		}
+		byte type;
+		while ( ( type = this.buffer.get() ) != END ) {
+			if ( type == ELEMENT ) {
+				element.appendChild( this.readElement() );
+			}
+			else {
+				element.appendChild( this.document.createTextNode( readString(
+				        this.buffer ) ) );
+			}
+		}
+		return element;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get( bytes );
+		try {
+			return new String( bytes, "UTF-8" );
+		}
+		catch ( IOException e ) {
+			// every JVM has UTF-8
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Writes out an element and everything in it, in the snapshot's
+	 * format.
+	 * 
+	 * @param output where to write it
+	 * @param element the element
+	 * @throws IOException if it can't be written
+	 */
+	static void writeElement(DataOutputStream output, Element element)
+	        throws IOException
+	{
+		writeString( output, element.getTagName() );
+		output.writeInt( element.getAttributes().getLength() );
+		for ( int i = 0; i < element.getAttributes().getLength(); i++ ) {
+			Node attribute = element.getAttributes().item( i );
+			writeString( output, attribute.getNodeName() );
+			writeString( output, attribute.getNodeValue() );
+		}
+		for ( Node child = element.getFirstChild(); child != null; child = child
+		        .getNextSibling() )
+		{
+			if ( child.getNodeType() == Node.ELEMENT_NODE ) {
+				output.writeByte( ELEMENT );
+				writeElement( output, (Element) child );
+			}
+			else if ( child.getNodeType() == Node.TEXT_NODE
+			        || child.getNodeType() == Node.CDATA_SECTION_NODE )
+			{
+				output.writeByte( TEXT );
+				writeString( output, child.getNodeValue() );
+			}
+		}
+		output.writeByte( END );
+	}
+
+	private static void writeString(DataOutputStream output, String value)
+	        throws IOException
+	{
+		byte[] bytes = value.getBytes( "UTF-8" );
+		output.writeInt( bytes.length );
+		output.write( bytes );
+	}
+
+	private static String getPath(File file) {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Writes a new snapshot of a ruleset file as it's loaded, one rule at a
+	 * time.  It's written to a temporary file first, so that a ruleset that
+	 * fails to load doesn't leave half a snapshot behind.
+	 */
+	static class Writer {
+		private final File rulesetFile;
+		private final File file;
+		private final File tempFile;
+		private final DataOutputStream output;
+		private final Map<String, String> attributes;
+		private final Set<String> urls = new HashSet<String>();
+		private final List<URL> contentUrls = new ArrayList<URL>();
+		private final List<FutureTask<byte[]>> contents = new ArrayList<FutureTask<byte[]>>();
+
+		/**
+		 * Starts a snapshot of the given ruleset file.
+		 * 
+		 * @param rulesetFile the ruleset's XML file
+		 * @param attributes the ruleset element's attributes
+		 * @throws IOException if the snapshot can't be written
+		 */
+		Writer(File rulesetFile, Map<String, String> attributes)
+		        throws IOException
+		{
+			this.rulesetFile = rulesetFile;
+			this.file = getFile( rulesetFile );
+			this.tempFile = new File( this.file.getPath() + ".tmp" );
+			this.attributes = new LinkedHashMap<String, String>( attributes );
+			this.output = new DataOutputStream( new BufferedOutputStream(
+			        new FileOutputStream( this.tempFile ) ) );
+			this.output.writeInt( MAGIC );
+			this.output.writeInt( VERSION );
+			writeString( this.output, getPath( rulesetFile ) );
+		}
+
+		/**
+		 * Adds the next child of the ruleset element.
+		 * 
+		 * @param element the child element
+		 * @throws IOException if the snapshot can't be written
+		 */
+		void write(Element element) throws IOException {
+			this.output.writeByte( ELEMENT );
+			writeElement( this.output, element );
+		}
+
+		/**
+		 * Adds the content of a response file, once it's been read.  Only
+		 * local files are kept, since there's no telling whether anything
+		 * else has changed.
+		 * 
+		 * @param url the response file's location
+		 * @param content the task reading it
+		 */
+		void addContent(URL url, FutureTask<byte[]> content) {
+			// rules often share a response file
+			if ( "file".equals( url.getProtocol() )
+			        && this.urls.add( url.toString() ) )
+			{
+				this.contentUrls.add( url );
+				this.contents.add( content );
+			}
+		}
+
+		/**
+		 * Finishes the snapshot and puts it in place of any old one.
+		 * 
+		 * @throws Exception if the snapshot can't be written
+		 */
+		void finish() throws Exception {
+			this.output.writeByte( END );
+			long footer = this.output.size();
+			this.output.writeInt( this.attributes.size() );
+			for ( Map.Entry<String, String> attribute : this.attributes
+			        .entrySet() )
+			{
+				writeString( this.output, attribute.getKey() );
+				writeString( this.output, attribute.getValue() );
+			}
+			List<File> files = new ArrayList<File>();
+			files.add( this.rulesetFile );
+			for ( URL url : this.contentUrls ) {
+				files.add( new File( url.toURI() ) );
+			}
+			this.output.writeInt( files.size() );
+			for ( File dependency : files ) {
+				writeString( this.output, getPath( dependency ) );
+				this.output.writeLong( dependency.lastModified() );
+				this.output.writeLong( dependency.length() );
+			}
+			this.output.writeInt( this.contents.size() );
+			for ( int i = 0; i < this.contents.size(); i++ ) {
+				byte[] content = ParallelLoader.join( this.contents.get( i ) );
+				writeString( this.output, this.contentUrls.get( i ).toString() );
+				this.output.writeInt( content.length );
+				this.output.write( content );
+			}
+			this.output.writeLong( footer );
+			this.output.close();
+			this.file.delete();
+			if ( !this.tempFile.renameTo( this.file ) ) {
+				throw new IOException( "Couldn't replace " + this.file );
+			}
+		}
+
+		/**
+		 * Throws away the unfinished snapshot.
+		 */
+		void abort() {
+			try {
+				this.output.close();
+			}
+			catch ( IOException e ) {
+				// it's being deleted anyway
+			}
+			this.tempFile.delete();
+		}
+	}
+
+	/**
+	 * Reads a response's content straight out of the mapped snapshot.
+	 */
+	private static class ByteBufferInputStream extends InputStream implements
+	        SharedContent
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public byte[] getContent() {
+			ByteBuffer content = this.buffer.duplicate();
+			content.rewind();
+			byte[] bytes = new byte[content.remaining()];
+			content.get( bytes );
+			return Interner.content( bytes );
+		}
+
+		@Override
+		public int read() {
+			if ( !this.buffer.hasRemaining() ) {
+				return -1;
+			}
+			return this.buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if ( !this.buffer.hasRemaining() ) {
+				return -1;
+			}
+			int read = Math.min( length, this.buffer.remaining() );
+			this.buffer.get( bytes, offset, read );
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Reads a ruleset document one rule at a time, rather than building a DOM
+ * of the whole thing up front.  Only the rule being read is held in memory:
+ * each child of the root element comes back as an Element of its own, and
+ * is dropped once its Rule has been set up, so a ruleset with tens of
+ * thousands of rules needs no more memory to load than the Rules
+ * themselves.
+ */
+class StaxRulesetReader implements RulesetReader {
+	private static final XMLInputFactory FACTORY = XMLInputFactory
+	        .newInstance();
+
+	private final InputStream input;
+	private final XMLStreamReader reader;
+	private final Document document;
+	private final Map<String, String> attributes = new HashMap<String, String>();
+
+	/**
+	 * Starts reading the ruleset, up to and including its root element.
+	 * 
+	 * @param input the XML document
+	 * @throws Exception if the document can't be read
+	 */
+	StaxRulesetReader(InputStream input) throws Exception {
+		if ( input == null ) {
+			throw new IllegalArgumentException(
+			        "input parameter cannot be null" );
+		}
+		this.input = input;
+		this.document = DocumentBuilderFactory.newInstance()
+		        .newDocumentBuilder().newDocument();
+		try {
+			// XMLInputFactory isn't guaranteed to be thread-safe, and nested
+			// rulesets are read at the same time
+			synchronized ( FACTORY ) {
+				this.reader = FACTORY.createXMLStreamReader( input );
+			}
+			do {
+				if ( !this.reader.hasNext() ) {
+					throw new IOException( "No ruleset element found." );
+				}
+			} while ( this.reader.next() != XMLStreamConstants.START_ELEMENT );
+			for ( int i = 0; i < this.reader.getAttributeCount(); i++ ) {
+				this.attributes.put( getName( this.reader
+				        .getAttributePrefix( i ), this.reader
+				        .getAttributeLocalName( i ) ), this.reader
+				        .getAttributeValue( i ) );
+			}
+		}
+		catch ( Exception e ) {
+			input.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads just far enough into a document to find its root element.
+	 * 
+	 * @param input the XML document, which is closed afterwards
+	 * @return the root element's name, or null if it hasn't got one
+	 * @throws Exception if the document can't be read
+	 */
+	static String readRootName(InputStream input) throws Exception {
+		try {
+			XMLStreamReader reader;
+			synchronized ( FACTORY ) {
+				reader = FACTORY.createXMLStreamReader( input );
+			}
+			try {
+				while ( reader.hasNext() ) {
+					if ( reader.next() == XMLStreamConstants.START_ELEMENT ) {
+						return getName( reader.getPrefix(), reader
+						        .getLocalName() );
+					}
+				}
+				return null;
+			}
+			finally {
+				reader.close();
+			}
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	public String getAttribute(String name) {
+		return this.attributes.get( name );
+	}
+
+	public Map<String, String> getAttributes() {
+		return this.attributes;
+	}
+
+	public Element next() throws XMLStreamException {
+		while ( this.reader.hasNext() ) {
+			int event = this.reader.next();
+			if ( event == XMLStreamConstants.START_ELEMENT ) {
+				return this.readElement();
+			}
+			if ( event == XMLStreamConstants.END_ELEMENT ) {
+				// the end of the ruleset
+				return null;
+			}
+		}
+		return null;
+	}
+
+	public void close() {
+		try {
+			this.reader.close();
+			this.input.close();
+		}
+		catch ( Exception e ) {
+			// nothing more to read anyway
+		}
+	}
+
+	private Element readElement() throws XMLStreamException {
+		Element element = this.document.createElement( getName( this.reader
+		        .getPrefix(), this.reader.getLocalName() ) );
+		for ( int i = 0; i < this.reader.getAttributeCount(); i++ ) {
+			element.setAttribute( getName( this.reader.getAttributePrefix( i ),
+			        this.reader.getAttributeLocalName( i ) ), this.reader
+			        .getAttributeValue( i ) );
+		}
+		while ( true ) {
+			int event = this.reader.next();
+			if ( event == XMLStreamConstants.START_ELEMENT ) {
+				element.appendChild( this.readElement() );
+			}
+			else if ( event == XMLStreamConstants.CHARACTERS
+			        || event == XMLStreamConstants.SPACE ) {
+				element.appendChild( this.document.createTextNode( this.reader
+				        .getText() ) );
+			}
+			else if ( event == XMLStreamConstants.CDATA ) {
+				element.appendChild( this.document
+				        .createCDATASection( this.reader.getText() ) );
+			}
+			else if ( event == XMLStreamConstants.END_ELEMENT ) {
+				return element;
+			}
+			// comments and processing instructions aren't needed
+		}
+	}
+
+	private static String getName(String prefix, String localName) {
+		if ( prefix == null || prefix.length() == 0 ) {
+			return localName;
+		}
+		return prefix + ":" + localName;
+	}
+}
@@ -17,6 +17,7 @@ package org.mocksy.config.xml;
  */
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import org.mocksy.config.Source;
@@ -64,8 +65,18 @@ public class StringXmlSource extends XmlSource {
 		return this.root;
 	}
 
+	@Override
+	public InputStream openStream() {
+		return new ByteArrayInputStream( this.xml.getBytes() );
+	}
+
 	public Source getRelativeSource(String relativePath) {
 		return this;
 	}
 
+	@Override
+	public String toString() {
+		return "inline ruleset";
+	}
+
 }
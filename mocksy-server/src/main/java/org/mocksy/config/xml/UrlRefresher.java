@@ -0,0 +1,320 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls a ruleset's URL, and the URLs of the response files and so on that
+ * it names, for changes in the background, so that requests never wait on
+ * the check.  Each URL is fetched with If-None-Match and If-Modified-Since,
+ * so an unchanged one usually costs a 304, and anything that does come
+ * back is compared with what was there before; only a real change counts.
+ * A URL that isn't there is polled all the same, and its showing up counts
+ * as a change, so that a file can be added after the ruleset names it.
+ *
+ * Polls are spread out by up to half the interval either way, so that a
+ * lot of rulesets, or a lot of servers, don't all poll at once.  Polling
+ * stops once the Source it's for is no longer used.
+ */
+final class UrlRefresher {
+	private static final Logger logger = Logger.getLogger( UrlRefresher.class
+	        .getName() );
+	private static final int TIMEOUT = 10000;
+	private static final int BUFFER_SIZE = 1024 * 10;
+	private static final Random random = new Random();
+	private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+	        1, new ThreadFactory() {
+		        public Thread newThread(Runnable runnable) {
+			        Thread thread = new Thread( runnable, "Ruleset refresher" );
+			        thread.setDaemon( true );
+			        return thread;
+		        }
+	        } );
+
+	private final Watched root;
+	private final ConcurrentMap<String, Watched> dependencies = new ConcurrentHashMap<String, Watched>();
+	private final AtomicBoolean changed = new AtomicBoolean();
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	/**
+	 * Creates the refresher for a ruleset at the given URL.
+	 * 
+	 * @param url the ruleset's URL
+	 */
+	UrlRefresher(URL url) {
+		this.root = new Watched( url );
+	}
+
+	/**
+	 * Fetches the ruleset, and starts polling it from then on.
+	 * 
+	 * @return the ruleset's content
+	 * @throws IOException if the ruleset can't be fetched
+	 */
+	InputStream fetch() throws IOException {
+		try {
+			return open( this.root, this.root.fetch( false ) );
+		}
+		finally {
+			// a ruleset that isn't there yet is polled too, for when it is
+			if ( this.started.compareAndSet( false, true ) ) {
+				this.schedule();
+			}
+		}
+	}
+
+	/**
+	 * Fetches something the ruleset depends on, e.g. a response file, and
+	 * polls it from then on.
+	 * 
+	 * @param url the URL to fetch
+	 * @return the content at the URL
+	 * @throws IOException if the URL can't be fetched
+	 */
+	InputStream fetch(URL url) throws IOException {
+		Watched watched = this.getWatched( url );
+		return open( watched, watched.fetch( false ) );
+	}
+
+	private static InputStream open(Watched watched, byte[] content)
+	        throws FileNotFoundException
+	{
+		if ( content == null ) {
+			// only a conditional fetch should come back unchanged
+			throw new FileNotFoundException( watched.url.toString() );
+		}
+		return new ByteArrayInputStream( content );
+	}
+
+	/**
+	 * Returns whether the ruleset has changed since this was last called.
+	 * 
+	 * @return true if the ruleset has changed
+	 */
+	boolean hasChanged() {
+		return this.changed.getAndSet( false );
+	}
+
+	/**
+	 * Returns a number that changes whenever the content at the given URL
+	 * does, and starts polling the URL if it isn't already.
+	 * 
+	 * @param url a URL that the ruleset depends on
+	 * @return the URL's current stamp
+	 */
+	long getStamp(URL url) {
+		return this.getWatched( url ).version;
+	}
+
+	private Watched getWatched(URL url) {
+		String key = url.toString();
+		Watched watched = this.dependencies.get( key );
+		if ( watched == null ) {
+			watched = new Watched( url );
+			Watched existing = this.dependencies.putIfAbsent( key, watched );
+			if ( existing != null ) {
+				watched = existing;
+			}
+		}
+		return watched;
+	}
+
+	private void schedule() {
+		long interval = UrlXmlSource.getRefreshInterval();
+		if ( interval <= 0 ) {
+			return;
+		}
+		long delay = interval / 2 + (long) ( random.nextDouble() * interval );
+		executor.schedule( new Poll( this ), delay, TimeUnit.MILLISECONDS );
+	}
+
+	private void poll() {
+		if ( this.root.check() ) {
+			logger.info( this.root.url + " has changed" );
+			this.changed.set( true );
+		}
+		for ( Watched dependency : this.dependencies.values() ) {
+			if ( dependency.check() ) {
+				logger.info( dependency.url + " has changed" );
+			}
+		}
+	}
+
+	/**
+	 * Polls the refresher, if its Source is still around, and schedules
+	 * the next poll.
+	 */
+	private static class Poll implements Runnable {
+		private final WeakReference<UrlRefresher> refresher;
+
+		Poll(UrlRefresher refresher) {
+			this.refresher = new WeakReference<UrlRefresher>( refresher );
+		}
+
+		public void run() {
+			UrlRefresher refresher = this.refresher.get();
+			if ( refresher == null ) {
+				return;
+			}
+			try {
+				refresher.poll();
+			}
+			finally {
+				refresher.schedule();
+			}
+		}
+	}
+
+	/**
+	 * A URL being polled, and what it looked like last time.
+	 */
+	private static class Watched {
+		final URL url;
+		volatile long version = 1;
+		private String etag;
+		private long lastModified;
+		private String hash;
+		private boolean missing;
+
+		Watched(URL url) {
+			this.url = url;
+		}
+
+		/**
+		 * Fetches the URL, conditionally if asked to and it's been fetched
+		 * before.  Only the bookkeeping is done under the lock, so a slow
+		 * server doesn't hold up everyone else looking at this URL.
+		 * 
+		 * @return the content, or null if it hasn't changed
+		 * @throws FileNotFoundException if there's nothing at the URL
+		 */
+		byte[] fetch(boolean conditional) throws IOException {
+			String etag;
+			long lastModified;
+			synchronized ( this ) {
+				etag = this.etag;
+				lastModified = this.lastModified;
+			}
+			URLConnection connection = this.url.openConnection();
+			connection.setConnectTimeout( TIMEOUT );
+			connection.setReadTimeout( TIMEOUT );
+			connection.setUseCaches( false );
+			if ( conditional && etag != null ) {
+				connection.setRequestProperty( "If-None-Match", etag );
+			}
+			if ( conditional && lastModified > 0 ) {
+				connection.setIfModifiedSince( lastModified );
+			}
+			if ( connection instanceof HttpURLConnection ) {
+				int status = ( (HttpURLConnection) connection )
+				        .getResponseCode();
+				if ( status == HttpURLConnection.HTTP_NOT_MODIFIED ) {
+					return null;
+				}
+			}
+			byte[] content;
+			try {
+				content = readFully( connection.getInputStream() );
+			}
+			catch ( FileNotFoundException e ) {
+				synchronized ( this ) {
+					this.missing = true;
+				}
+				throw e;
+			}
+			this.update( getHash( content ), connection
+			        .getHeaderField( "ETag" ), connection.getLastModified() );
+			return content;
+		}
+
+		private synchronized void update(String hash, String etag,
+		        long lastModified)
+		{
+			if ( this.hash == null ? this.missing : !this.hash.equals( hash ) ) {
+				this.version++;
+			}
+			this.missing = false;
+			this.hash = hash;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Checks the URL for changes.
+		 * 
+		 * @return true if its content has changed
+		 */
+		boolean check() {
+			long before = this.version;
+			try {
+				this.fetch( true );
+			}
+			catch ( IOException e ) {
+				// try again next time
+				logger.log( Level.FINE, "Couldn't check " + this.url, e );
+			}
+			return this.version != before;
+		}
+	}
+
+	private static byte[] readFully(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = -1;
+			while ( ( read = input.read( buffer ) ) > -1 ) {
+				output.write( buffer, 0, read );
+			}
+			return output.toByteArray();
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	private static String getHash(byte[] content) {
+		try {
+			return new BigInteger( 1, MessageDigest.getInstance( "MD5" )
+			        .digest( content ) ).toString( 16 );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			// every JVM has MD5
+			throw new IllegalStateException( e );
+		}
+	}
+}
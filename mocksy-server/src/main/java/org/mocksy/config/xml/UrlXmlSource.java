@@ -16,6 +16,8 @@ package org.mocksy.config.xml;
  *  limitations under the License.
  */
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.logging.Level;
@@ -31,8 +33,26 @@ import org.w3c.dom.Element;
 public class UrlXmlSource extends XmlSource {
 	private static final Logger logger = Logger.getLogger( UrlXmlSource.class
 	        .getName() );
+	private static volatile long refreshInterval = 30000L;
 	private URL url;
 	private URL parentUrl;
+	private final UrlRefresher refresher;
+
+	/**
+	 * Sets how often, on average, rulesets loaded from URLs, and the
+	 * response files they name, are checked for changes in the background.
+	 * Only Sources loaded after this is set are affected.
+	 * 
+	 * @param millis the time between checks, in milliseconds, or 0 to
+	 *        never check
+	 */
+	public static void setRefreshInterval(long millis) {
+		refreshInterval = millis;
+	}
+
+	public static long getRefreshInterval() {
+		return refreshInterval;
+	}
 
 	/**
 	 * Create a UrlXmlSource for the given URL.
@@ -42,6 +62,7 @@ public class UrlXmlSource extends XmlSource {
 	public UrlXmlSource(URL url) {
 		this.url = url;
 		this.parentUrl = getParentUrl( this.url );
+		this.refresher = new UrlRefresher( this.url );
 	}
 
 	public Source getRelativeSource(String relativePath) {
@@ -58,18 +79,48 @@ public class UrlXmlSource extends XmlSource {
 		return new URL( this.parentUrl, relativePath );
 	}
 
+	@Override
+	public String toString() {
+		return this.url.toString();
+	}
+
 	@Override
 	public Element getRulesetElement() throws Exception {
-		return getRulesetElement( this.url.openStream() );
+		return getRulesetElement( this.openStream() );
+	}
+
+	@Override
+	public InputStream openStream() throws Exception {
+		return this.refresher.fetch();
 	}
 
 	/**
-	 * This URL-based Source does not know how to check for updates,
-	 * so this will always return false.
+	 * Returns whether the XML at the URL has changed.  The URL is checked
+	 * in the background, so this doesn't wait on it.
+	 * 
+	 * @return true, if the XML has changed
 	 */
 	public boolean needsUpdate() {
-		// Might want to check for updates periodically
-		return false;
+		return this.refresher.hasChanged();
+	}
+
+	/**
+	 * Fetches the URL, noting what's there so that the URL can be checked
+	 * for changes from then on.
+	 */
+	@Override
+	public InputStream openRelativeURL(URL relativeUrl) throws IOException {
+		return this.refresher.fetch( relativeUrl );
+	}
+
+	/**
+	 * Returns a number that changes whenever the content at the given URL
+	 * does.  The URL is checked in the background from then on, along
+	 * with the XML.
+	 */
+	@Override
+	public long getStamp(URL relativeUrl) {
+		return this.refresher.getStamp( relativeUrl );
 	}
 
 	/**
@@ -16,29 +16,48 @@ package org.mocksy.config.xml;
  *  limitations under the License.
  */
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.mocksy.Response;
 import org.mocksy.config.RulesetFactoryFactory;
 import org.mocksy.config.UpdateableRulesetFactory;
 import org.mocksy.filter.ResponseFilter;
+import org.mocksy.rules.Distribution;
 import org.mocksy.rules.Matcher;
+import org.mocksy.rules.QueueModel;
 import org.mocksy.rules.ResponseRule;
 import org.mocksy.rules.Rule;
 import org.mocksy.rules.Ruleset;
 import org.mocksy.rules.RulesetRule;
+import org.mocksy.rules.http.CircuitBreaker;
 import org.mocksy.rules.http.HttpMatcher;
 import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.MirrorRule;
+import org.mocksy.rules.http.ProxyCache;
+import org.mocksy.rules.http.ProxyRecorder;
 import org.mocksy.rules.xml.XmlMatcher;
+import org.mocksy.server.http.HttpResponse;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -67,9 +86,101 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 	private static final String RESPONSE_TAG = "response";
 	private static final String SOURCE_TAG = "source";
 	private static final String OPTIONS_TAG = "options";
+	private static final String BANDWIDTH_ATTRIB = "bandwidth";
+	private static final String CHUNK_SIZE_ATTRIB = "chunk-size";
+	private static final String CHUNK_INTERVAL_ATTRIB = "chunk-interval";
+	private static final String WORKERS_ATTRIB = "workers";
+	private static final String SERVICE_TIME_ATTRIB = "service-time";
+	private static final String QUEUE_SIZE_ATTRIB = "queue-size";
+	private static final String MAX_CONNECTIONS_ATTRIB = "max-connections";
+	private static final String CONNECT_TIMEOUT_ATTRIB = "connect-timeout";
+	private static final String READ_TIMEOUT_ATTRIB = "read-timeout";
+	private static final String IDLE_TIMEOUT_ATTRIB = "idle-timeout";
+	private static final String CACHE_SIZE_ATTRIB = "cache-size";
+	private static final String CACHE_TTL_ATTRIB = "cache-ttl";
+	private static final String CACHE_HEADERS_ATTRIB = "cache-headers";
+	private static final String CACHE_DIR_ATTRIB = "cache-dir";
+	private static final String COALESCE_ATTRIB = "coalesce";
+	private static final String ASYNC_ATTRIB = "async";
+	private static final String RECORD_DIR_ATTRIB = "record-dir";
+	private static final String TRACK_LATENCY_ATTRIB = "track-latency";
+	private static final String DELAY_ATTRIB = "delay";
+	private static final String BALANCE_ATTRIB = "balance";
+	private static final String MAX_FAILURES_ATTRIB = "max-failures";
+	private static final String EJECT_TIME_ATTRIB = "eject-time";
+	private static final String CIRCUIT_BREAKER_ATTRIB = "circuit-breaker";
+	private static final String BREAKER_WINDOW_ATTRIB = "breaker-window";
+	private static final String BREAKER_FAILURE_RATE_ATTRIB = "breaker-failure-rate";
+	private static final String BREAKER_SLOW_CALL_RATE_ATTRIB = "breaker-slow-call-rate";
+	private static final String BREAKER_SLOW_CALL_TIME_ATTRIB = "breaker-slow-call-time";
+	private static final String BREAKER_OPEN_TIME_ATTRIB = "breaker-open-time";
+	private static final String BREAKER_PROBES_ATTRIB = "breaker-probes";
+	private static final String FALLBACK_ATTRIB = "fallback";
+	private static final String CACHE_STALE_ATTRIB = "cache-stale";
+	private static final String MIRROR_URL_ATTRIB = "mirror-url";
+	private static final String MIRROR_THREADS_ATTRIB = "mirror-threads";
+	private static final String MIRROR_QUEUE_ATTRIB = "mirror-queue";
+	private static final String LAZY_ATTRIB = "lazy";
+	private static final long FILE_CHECK_INTERVAL = 1000L;
+	private static final Logger logger = Logger
+	        .getLogger( XmlRulesetFactory.class.getName() );
+	private static volatile boolean lazyLoading;
+	private static volatile boolean snapshots;
 
 	private Ruleset ruleset;
 	private XmlSource source;
+	private boolean defaultRuleRequired;
+	private Set<String> nestedRulesets = Collections.emptySet();
+	// only used while loading
+	private boolean lazy;
+	private Map<Element, FutureTask<Ruleset>> subRulesets;
+	// the response files being read, by URL, so each is read only once
+	private Map<String, FutureTask<byte[]>> contents;
+	private RulesetSnapshot snapshot;
+	private RulesetSnapshot.Writer snapshotWriter;
+	private long loadTime;
+	// the Rules built last time, to be reused if they haven't changed
+	private Map<String, List<BuiltRule>> builtRules = new HashMap<String, List<BuiltRule>>();
+	private Map<String, Long> files = new HashMap<String, Long>();
+	private final ReentrantLock updateLock = new ReentrantLock();
+	private long filesChecked = System.currentTimeMillis();
+	// only used while loading
+	private Map<String, List<BuiltRule>> loadedRules;
+	private Map<String, Long> loadedFiles;
+	private Map<String, Long> ruleFiles;
+	private Map<String, Long> stamps;
+
+	/**
+	 * Sets whether response files are read only once a request matches
+	 * their rule, rather than when the ruleset is loaded, for rulesets that
+	 * don't say.  Lazy loading makes starting up quicker, but a missing
+	 * file isn't noticed until it's needed.
+	 * 
+	 * @param lazy true to read response files when they're first needed
+	 */
+	public static void setLazyLoading(boolean lazy) {
+		lazyLoading = lazy;
+	}
+
+	public static boolean isLazyLoading() {
+		return lazyLoading;
+	}
+
+	/**
+	 * Sets whether ruleset files are loaded from compiled snapshots kept
+	 * next to them, which skips parsing the XML and reading the response
+	 * files.  A snapshot that's missing or older than the files it was made
+	 * from is written afresh once the XML has been loaded.
+	 * 
+	 * @param enabled true to load from, and write, snapshots
+	 */
+	public static void setSnapshots(boolean enabled) {
+		snapshots = enabled;
+	}
+
+	public static boolean isSnapshots() {
+		return snapshots;
+	}
 
 	/**
 	 * Creates the RulesetFactory from the given Source.
@@ -78,8 +189,25 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 	 * @throws Exception
 	 */
 	public XmlRulesetFactory(XmlSource source) throws Exception {
+		this( source, true );
+	}
+
+	/**
+	 * Creates the RulesetFactory from the given Source, which may leave out
+	 * the default rule if it's only one part of a bigger Ruleset.
+	 * 
+	 * @param source the XmlSource containing the Ruleset info
+	 * @param defaultRuleRequired false if the default-rule is optional
+	 * @throws Exception
+	 */
+	XmlRulesetFactory(XmlSource source, boolean defaultRuleRequired)
+	        throws Exception
+	{
 		this.source = source;
+		this.defaultRuleRequired = defaultRuleRequired;
 		this.ruleset = new Ruleset( this );
+		// it's about to be loaded, so it's up to date
+		this.source.needsUpdate();
 		this.updateData();
 	}
 
@@ -113,11 +241,29 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 	}
 
 	/**
-	 * Updates the Ruleset if the configuration has changed.
+	 * Returns the URLs of the rulesets nested in this one, as of the last
+	 * time it was loaded.
+	 * 
+	 * @return the nested rulesets' URLs
+	 */
+	Set<String> getNestedRulesets() {
+		return this.nestedRulesets;
+	}
+
+	/**
+	 * Updates the Ruleset if the configuration, or any of the files it
+	 * names, has changed.  Only the Rules that are affected are rebuilt;
+	 * the rest, and any nested rulesets, are carried over as they are.
 	 */
-	public synchronized void checkForUpdates() throws Exception {
-		if ( this.source.needsUpdate() ) {
-			updateData();
+	public void checkForUpdates() throws Exception {
+		this.updateLock.lock();
+		try {
+			if ( this.source.needsUpdate() || this.filesChanged() ) {
+				updateData();
+			}
+		}
+		finally {
+			this.updateLock.unlock();
 		}
 	}
 
@@ -128,29 +274,363 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 	 * @throws Exception
 	 */
 	protected void updateData() throws Exception {
-		// Clear the ruleset
-		this.ruleset.clear();
-		Element ruleset = this.source.getRulesetElement();
-		String version = ruleset.getAttribute( "version" );
+		long start = System.currentTimeMillis();
+		RulesetReader reader = this.openRuleset();
+		String version = reader.getAttribute( "version" );
 		if ( version == null ) {
 			// this is for later, when we might have to change the
 			// structure of the ruleset XML
 			version = "1.0";
 		}
-		// Get this list of Rules
-		NodeList nodeList = ruleset.getElementsByTagName( RULE_TAG );
-		for ( int i = 0; i < nodeList.getLength(); i++ ) {
-			Element ruleNode = (Element) nodeList.item( i );
-			this.ruleset
-			        .addRule( getRule( ruleNode, "Rule[" + ( i + 1 ) + "]" ) );
+		String lazyAttrib = reader.getAttribute( LAZY_ATTRIB );
+		this.lazy = ( lazyAttrib == null ? lazyLoading : Boolean
+		        .parseBoolean( lazyAttrib ) );
+		this.contents = new HashMap<String, FutureTask<byte[]>>();
+		this.loadedRules = new HashMap<String, List<BuiltRule>>();
+		this.loadedFiles = new HashMap<String, Long>();
+		this.stamps = new HashMap<String, Long>();
+		Set<String> nested = new HashSet<String>();
+		int reused = 0;
+		List<Rule> rules = new ArrayList<Rule>();
+		Map<Integer, Element> nestedRuleNodes = new HashMap<Integer, Element>();
+		Element defaultRuleNode = null;
+		Rule defaultRule = null;
+		try {
+			this.subRulesets = new HashMap<Element, FutureTask<Ruleset>>();
+			Element node;
+			while ( ( node = reader.next() ) != null ) {
+				this.addToSnapshot( node );
+				if ( node.hasAttribute( RULESET_ATTRIB ) ) {
+					nested.add( this.source.getRelativeURL(
+					        node.getAttribute( RULESET_ATTRIB ) ).toString() );
+				}
+				if ( node.getTagName().equals( RULE_TAG ) ) {
+					String defaultId = "Rule[" + ( rules.size() + 1 ) + "]";
+					Rule rule = this.reuseRule( node, defaultId );
+					if ( rule != null ) {
+						rules.add( rule );
+						reused++;
+					}
+					else if ( node.hasAttribute( RULESET_ATTRIB ) ) {
+						// the nested ruleset loads in the background while
+						// the rest are set up; it's put in its place after
+						this.loadSubRuleset( node );
+						nestedRuleNodes.put( rules.size(), node );
+						rules.add( null );
+					}
+					else {
+						rules.add( this.buildRule( node, defaultId ) );
+					}
+				}
+				else if ( node.getTagName().equals( DEFAULT_RULE_TAG )
+				        && defaultRuleNode == null )
+				{
+					defaultRuleNode = node;
+					defaultRule = this.reuseRule( node, "default" );
+					if ( defaultRule != null ) {
+						reused++;
+					}
+					else {
+						this.loadSubRuleset( node );
+					}
+				}
+			}
+			for ( Map.Entry<Integer, Element> entry : nestedRuleNodes
+			        .entrySet() )
+			{
+				rules.set( entry.getKey(), this.buildRule( entry.getValue(),
+				        "Rule[" + ( entry.getKey() + 1 ) + "]" ) );
+			}
+			// Setup the default response
+			// TODO need to do the same thing here for custom responses.
+			if ( defaultRuleNode == null && this.defaultRuleRequired ) {
+				throw new IOException( DEFAULT_RULE_TAG
+				        + " element is required." );
+			}
+			if ( defaultRule == null && defaultRuleNode != null ) {
+				defaultRule = this.buildRule( defaultRuleNode, "default" );
+			}
+			// wait for the response files, so that a missing one is
+			// reported now rather than when it's needed
+			for ( FutureTask<byte[]> content : this.contents.values() ) {
+				ParallelLoader.join( content );
+			}
+			this.writeSnapshot();
+			// only now that everything's loaded do the new rules replace
+			// the old ones, all at once
+			this.ruleset.setRules( rules, defaultRule );
+			this.builtRules = this.loadedRules;
+			this.files = this.loadedFiles;
+			this.nestedRulesets = nested;
+		}
+		finally {
+			reader.close();
+			if ( this.snapshotWriter != null ) {
+				this.snapshotWriter.abort();
+				this.snapshotWriter = null;
+			}
+			for ( FutureTask<Ruleset> subRuleset : this.subRulesets.values() ) {
+				subRuleset.cancel( false );
+			}
+			this.subRulesets = null;
+			this.loadedRules = null;
+			this.loadedFiles = null;
+			this.stamps = null;
+		}
+		this.loadTime = System.currentTimeMillis() - start;
+		logger.info( "Loaded " + this.source + " in " + this.loadTime + "ms ("
+		        + rules.size() + " rules, " + reused + " reused, "
+		        + this.contents.size() + " response files read"
+		        + ( this.lazy ? ", lazy" : "" )
+		        + ( this.snapshot != null ? ", from snapshot" : "" ) + ")" );
+		this.contents = null;
+		this.snapshot = null;
+	}
+
+	/**
+	 * Returns the Rule built last time from the same XML, as long as none
+	 * of the files it was built from have changed since.
+	 */
+	private Rule reuseRule(Element ruleNode, String defaultId)
+	        throws Exception
+	{
+		String key = this.getKey( ruleNode, defaultId );
+		List<BuiltRule> candidates = this.builtRules.get( key );
+		if ( candidates == null || candidates.isEmpty() ) {
+			return null;
+		}
+		// the same rule can be in the ruleset more than once
+		BuiltRule built = candidates.remove( 0 );
+		for ( Map.Entry<String, Long> file : built.files.entrySet() ) {
+			if ( this.getStamp( file.getKey() ) != file.getValue() ) {
+				return null;
+			}
+		}
+		this.keep( key, built );
+		return built.rule;
+	}
+
+	private Rule buildRule(Element ruleNode, String defaultId)
+	        throws Exception
+	{
+		this.ruleFiles = new HashMap<String, Long>();
+		try {
+			Rule rule = this.getRule( ruleNode, defaultId );
+			this.keep( this.getKey( ruleNode, defaultId ), new BuiltRule(
+			        rule, this.ruleFiles ) );
+			return rule;
+		}
+		finally {
+			this.ruleFiles = null;
+		}
+	}
+
+	private void keep(String key, BuiltRule built) {
+		List<BuiltRule> kept = this.loadedRules.get( key );
+		if ( kept == null ) {
+			kept = new ArrayList<BuiltRule>( 1 );
+			this.loadedRules.put( key, kept );
+		}
+		kept.add( built );
+		this.loadedFiles.putAll( built.files );
+	}
+
+	/**
+	 * Identifies a rule by everything it's built from in the XML.
+	 */
+	private String getKey(Element ruleNode, String defaultId)
+	        throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream( bytes );
+		output.writeBoolean( this.lazy );
+		// responses without ids are named by where their rule is
+		if ( !ruleNode.hasAttribute( "id" )
+		        && !ruleNode.hasAttribute( RULESET_ATTRIB )
+		        && !ruleNode.hasAttribute( PROXY_URL_ATTRIB ) )
+		{
+			output.writeUTF( defaultId );
+		}
+		RulesetSnapshot.writeElement( output, ruleNode );
+		output.close();
+		byte[] digest = MessageDigest.getInstance( "MD5" ).digest(
+		        bytes.toByteArray() );
+		return new BigInteger( 1, digest ).toString( 16 );
+	}
+
+	/**
+	 * Notes that the Rule being built reads the given file, so that the
+	 * Rule is rebuilt if the file changes.
+	 */
+	private void addFile(URL url) {
+		if ( this.ruleFiles == null ) {
+			return;
+		}
+		if ( "file".equals( url.getProtocol() ) && toFile( url ) == null ) {
+			return;
+		}
+		this.ruleFiles.put( url.toString(), this.getStamp( url.toString() ) );
+	}
+
+	/**
+	 * Notes a file that a filter might read, e.g. a stylesheet, if the
+	 * value names one next to the ruleset.
+	 */
+	private void addRelativeFile(String value) {
+		try {
+			this.addFile( this.source.getRelativeURL( value.trim() ) );
+		}
+		catch ( MalformedURLException e ) {
+			// it's not a file, then
+		}
+	}
+
+	private long getStamp(String location) {
+		Long stamp = this.stamps.get( location );
+		if ( stamp == null ) {
+			stamp = this.getCurrentStamp( location );
+			this.stamps.put( location, stamp );
+		}
+		return stamp;
+	}
+
+	/**
+	 * Returns a number that changes whenever the file at the location
+	 * does.  Local files are looked at directly; anything else is up to the
+	 * Source to keep track of.
+	 */
+	private long getCurrentStamp(String location) {
+		try {
+			URL url = new URL( location );
+			File file = toFile( url );
+			if ( file == null ) {
+				return this.source.getStamp( url );
+			}
+			return file.lastModified() * 31 + file.length();
+		}
+		catch ( MalformedURLException e ) {
+			return 0L;
+		}
+	}
+
+	private static File toFile(URL url) {
+		if ( !"file".equals( url.getProtocol() ) ) {
+			return null;
+		}
+		try {
+			File file = new File( url.toURI() );
+			return file.isFile() ? file : null;
+		}
+		catch ( URISyntaxException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether any of the response files, stylesheets and so on
+	 * that the Rules were built from have changed.  They're only looked at
+	 * every so often, since there can be a lot of them.
+	 */
+	private boolean filesChanged() {
+		long now = System.currentTimeMillis();
+		if ( now - this.filesChecked < FILE_CHECK_INTERVAL ) {
+			return false;
+		}
+		this.filesChecked = now;
+		for ( Map.Entry<String, Long> file : this.files.entrySet() ) {
+			if ( this.getCurrentStamp( file.getKey() ) != file.getValue() ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Opens the up-to-date snapshot of the ruleset, if there is one, or
+	 * else the XML, getting ready to write a new snapshot as it's read.
+	 */
+	private RulesetReader openRuleset() throws Exception {
+		File rulesetFile = null;
+		if ( snapshots && this.source instanceof FileXmlSource ) {
+			rulesetFile = ( (FileXmlSource) this.source ).getFile();
+			this.snapshot = RulesetSnapshot.open( rulesetFile );
+			if ( this.snapshot != null ) {
+				return this.snapshot;
+			}
 		}
-		// Setup the default response
-		// TODO need to do the same thing here for custom responses.
-		Element defaultRuleNode = getSingleChild( ruleset, DEFAULT_RULE_TAG );
-		if ( defaultRuleNode == null ) {
-			throw new IOException( DEFAULT_RULE_TAG + " element is required." );
+		// Read the rules one at a time, rather than the whole document at once
+		StaxRulesetReader reader = new StaxRulesetReader( this.source
+		        .openStream() );
+		if ( rulesetFile != null ) {
+			try {
+				this.snapshotWriter = new RulesetSnapshot.Writer( rulesetFile,
+				        reader.getAttributes() );
+			}
+			catch ( IOException e ) {
+				logger.warning( "Can't write a snapshot of " + rulesetFile
+				        + ": " + e.getMessage() );
+			}
+		}
+		return reader;
+	}
+
+	private void addToSnapshot(Element node) {
+		if ( this.snapshotWriter == null ) {
+			return;
+		}
+		try {
+			this.snapshotWriter.write( node );
+		}
+		catch ( IOException e ) {
+			logger.log( Level.WARNING, "Couldn't write a snapshot of "
+			        + this.source, e );
+			this.snapshotWriter.abort();
+			this.snapshotWriter = null;
+		}
+	}
+
+	/**
+	 * Finishes the snapshot of the ruleset that's just been loaded.  The
+	 * ruleset is fine without it, so a snapshot that can't be written is
+	 * only logged.
+	 */
+	private void writeSnapshot() {
+		if ( this.snapshotWriter == null ) {
+			return;
+		}
+		try {
+			this.snapshotWriter.finish();
+			this.snapshotWriter = null;
+		}
+		catch ( Exception e ) {
+			logger.log( Level.WARNING, "Couldn't write a snapshot of "
+			        + this.source, e );
+		}
+	}
+
+	/**
+	 * Returns how long the Ruleset took to load the last time, including
+	 * its nested rulesets and response files.
+	 * 
+	 * @return the load time, in milliseconds
+	 */
+	public long getLoadTime() {
+		return this.loadTime;
+	}
+
+	private void loadSubRuleset(Element ruleNode) {
+		final String rulesetName = getAttribute( ruleNode, RULESET_ATTRIB );
+		if ( rulesetName == null ) {
+			return;
 		}
-		this.ruleset.setDefaultRule( getRule( defaultRuleNode, "default" ) );
+		this.subRulesets.put( ruleNode, ParallelLoader
+		        .submit( new Callable<Ruleset>() {
+			        public Ruleset call() throws Exception {
+				        return RulesetFactoryFactory.getRulesetFactory(
+				                rulesetName, XmlRulesetFactory.this.source )
+				                .getRuleset();
+			        }
+		        } ) );
 	}
 
 	private Rule getRule(Element ruleNode, String defaultId) throws Exception {
@@ -168,38 +648,204 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 			rule = getResponseRule( ruleNode, defaultId );
 		}
 		// Setup the Matchers for the Rule
-		NodeList matcherNodes = ruleNode.getElementsByTagName( MATCH_TAG );
-		NodeList notMatcherNodes = ruleNode
-		        .getElementsByTagName( NOT_MATCH_TAG );
+		List<Element> matcherNodes = getChildren( ruleNode, MATCH_TAG );
+		List<Element> notMatcherNodes = getChildren( ruleNode, NOT_MATCH_TAG );
 		// This doesn't work
 		// if ( matcherNodes.getLength() + notMatcherNodes.getLength() <= 0 ) {
 		// throw new IOException( "At least one <" + MATCH_TAG + "> or <"
 		// + NOT_MATCH_TAG + "> tag must be defined" );
 		// }
-		for ( int j = 0; j < matcherNodes.getLength(); j++ ) {
-			Element elem = (Element) matcherNodes.item( j );
+		for ( Element elem : matcherNodes ) {
 			Matcher matcher = getMatcher( elem );
 			rule.addMatcher( matcher );
 		}
-		for ( int j = 0; j < notMatcherNodes.getLength(); j++ ) {
-			Element elem = (Element) notMatcherNodes.item( j );
+		for ( Element elem : notMatcherNodes ) {
 			Matcher matcher = getMatcher( elem );
 			matcher.setNegative( true );
 			rule.addMatcher( matcher );
 		}
+		// Copy the Rule's requests to another server, if asked to
+		String mirrorUrl = getAttribute( ruleNode, MIRROR_URL_ATTRIB );
+		if ( mirrorUrl != null ) {
+			int threads = MirrorRule.DEFAULT_THREADS;
+			String threadsValue = getAttribute( ruleNode, MIRROR_THREADS_ATTRIB );
+			if ( threadsValue != null ) {
+				threads = Integer.parseInt( threadsValue );
+			}
+			int queueSize = MirrorRule.DEFAULT_QUEUE_SIZE;
+			String queueValue = getAttribute( ruleNode, MIRROR_QUEUE_ATTRIB );
+			if ( queueValue != null ) {
+				queueSize = Integer.parseInt( queueValue );
+			}
+			rule = new MirrorRule( rule, mirrorUrl, threads, queueSize );
+		}
 		return rule;
 	}
 
 	private RulesetRule getRulesetRule(Element ruleNode) throws Exception {
+		FutureTask<Ruleset> loading = this.subRulesets.get( ruleNode );
+		if ( loading != null ) {
+			return new RulesetRule( ParallelLoader.join( loading ) );
+		}
 		String rulesetName = getRequiredAttribute( ruleNode, RULESET_ATTRIB );
 		Ruleset subRuleset = RulesetFactoryFactory.getRulesetFactory(
 		        rulesetName, this.source ).getRuleset();
 		return new RulesetRule( subRuleset );
 	}
 
+	/**
+	 * Returns the content of a response file, which is either taken from
+	 * the snapshot, read in the background now or, when loading lazily,
+	 * opened once it's first read.
+	 */
+	private InputStream openContent(URL url) {
+		this.addFile( url );
+		if ( this.snapshot != null ) {
+			InputStream content = this.snapshot.getContent( url );
+			if ( content != null ) {
+				return content;
+			}
+		}
+		if ( this.lazy ) {
+			return ParallelLoader.lazy( this.source, url );
+		}
+		FutureTask<byte[]> content = this.contents.get( url.toString() );
+		if ( content == null ) {
+			content = ParallelLoader.read( this.source, url );
+			this.contents.put( url.toString(), content );
+			if ( this.snapshotWriter != null ) {
+				this.snapshotWriter.addContent( url, content );
+			}
+		}
+		return ParallelLoader.pending( content );
+	}
+
 	private HttpProxyRule getProxyRule(Element ruleNode) throws Exception {
 		String proxyHost = getRequiredAttribute( ruleNode, PROXY_URL_ATTRIB );
-		return new HttpProxyRule( proxyHost );
+		HttpProxyRule rule = new HttpProxyRule( proxyHost );
+		String maxConnections = getAttribute( ruleNode, MAX_CONNECTIONS_ATTRIB );
+		if ( maxConnections != null ) {
+			rule.setMaxConnections( Integer.parseInt( maxConnections ) );
+		}
+		String connectTimeout = getAttribute( ruleNode, CONNECT_TIMEOUT_ATTRIB );
+		if ( connectTimeout != null ) {
+			rule.setConnectTimeout( Integer.parseInt( connectTimeout ) );
+		}
+		String readTimeout = getAttribute( ruleNode, READ_TIMEOUT_ATTRIB );
+		if ( readTimeout != null ) {
+			rule.setReadTimeout( Integer.parseInt( readTimeout ) );
+		}
+		String idleTimeout = getAttribute( ruleNode, IDLE_TIMEOUT_ATTRIB );
+		if ( idleTimeout != null ) {
+			rule.setIdleTimeout( Integer.parseInt( idleTimeout ) );
+		}
+		String balance = getAttribute( ruleNode, BALANCE_ATTRIB );
+		if ( balance != null ) {
+			rule.setBalance( balance );
+		}
+		String maxFailures = getAttribute( ruleNode, MAX_FAILURES_ATTRIB );
+		if ( maxFailures != null ) {
+			rule.setMaxFailures( Integer.parseInt( maxFailures ) );
+		}
+		String ejectTime = getAttribute( ruleNode, EJECT_TIME_ATTRIB );
+		if ( ejectTime != null ) {
+			rule.setEjectTime( Integer.parseInt( ejectTime ) );
+		}
+		rule.setCircuitBreaker( getCircuitBreaker( ruleNode ) );
+		String fallback = getAttribute( ruleNode, FALLBACK_ATTRIB );
+		if ( fallback != null ) {
+			HttpResponse fallbackResponse = new HttpResponse( "fallback",
+			        this.source.getRelativeURL( fallback ).openStream() );
+			fallbackResponse.setContentType( figureOutContentType( fallback ) );
+			rule.setFallback( fallbackResponse );
+		}
+		for ( ResponseFilter filter : getFilters( ruleNode ) ) {
+			rule.addFilter( filter );
+		}
+		rule.setCache( getProxyCache( ruleNode ) );
+		String headers = getAttribute( ruleNode, CACHE_HEADERS_ATTRIB );
+		if ( headers != null ) {
+			List<String> keyHeaders = new ArrayList<String>();
+			for ( String header : headers.split( "," ) ) {
+				if ( header.trim().length() > 0 ) {
+					keyHeaders.add( header.trim() );
+				}
+			}
+			rule.setKeyHeaders( keyHeaders );
+		}
+		String coalesce = getAttribute( ruleNode, COALESCE_ATTRIB );
+		if ( coalesce != null ) {
+			rule.setCoalescing( Boolean.parseBoolean( coalesce ) );
+		}
+		String async = getAttribute( ruleNode, ASYNC_ATTRIB );
+		if ( async != null ) {
+			rule.setAsync( Boolean.parseBoolean( async ) );
+		}
+		rule.setLatencyTracking( Boolean.parseBoolean( getAttribute(
+		        ruleNode, TRACK_LATENCY_ATTRIB ) ) );
+		String recordDir = getAttribute( ruleNode, RECORD_DIR_ATTRIB );
+		if ( recordDir != null ) {
+			rule.setRecorder( new ProxyRecorder( new File( recordDir ),
+			        proxyHost ) );
+		}
+		return rule;
+	}
+
+	private CircuitBreaker getCircuitBreaker(Element ruleNode) {
+		String enabled = getAttribute( ruleNode, CIRCUIT_BREAKER_ATTRIB );
+		if ( !Boolean.parseBoolean( enabled ) ) {
+			return null;
+		}
+		CircuitBreaker breaker = new CircuitBreaker();
+		String window = getAttribute( ruleNode, BREAKER_WINDOW_ATTRIB );
+		if ( window != null ) {
+			breaker.setWindow( Integer.parseInt( window ) );
+		}
+		String failureRate = getAttribute( ruleNode,
+		        BREAKER_FAILURE_RATE_ATTRIB );
+		if ( failureRate != null ) {
+			breaker.setFailureRate( Integer.parseInt( failureRate ) );
+		}
+		String slowCallRate = getAttribute( ruleNode,
+		        BREAKER_SLOW_CALL_RATE_ATTRIB );
+		if ( slowCallRate != null ) {
+			breaker.setSlowCallRate( Integer.parseInt( slowCallRate ) );
+		}
+		String slowCallTime = getAttribute( ruleNode,
+		        BREAKER_SLOW_CALL_TIME_ATTRIB );
+		if ( slowCallTime != null ) {
+			breaker.setSlowCallTime( Integer.parseInt( slowCallTime ) );
+		}
+		String openTime = getAttribute( ruleNode, BREAKER_OPEN_TIME_ATTRIB );
+		if ( openTime != null ) {
+			breaker.setOpenTime( Integer.parseInt( openTime ) );
+		}
+		String probes = getAttribute( ruleNode, BREAKER_PROBES_ATTRIB );
+		if ( probes != null ) {
+			breaker.setProbes( Integer.parseInt( probes ) );
+		}
+		return breaker;
+	}
+
+	private ProxyCache getProxyCache(Element ruleNode) throws Exception {
+		String cacheSize = getAttribute( ruleNode, CACHE_SIZE_ATTRIB );
+		if ( cacheSize == null ) {
+			return null;
+		}
+		ProxyCache cache = new ProxyCache( Integer.parseInt( cacheSize ) );
+		String ttl = getAttribute( ruleNode, CACHE_TTL_ATTRIB );
+		if ( ttl != null ) {
+			cache.setTtl( Long.parseLong( ttl ) );
+		}
+		String stale = getAttribute( ruleNode, CACHE_STALE_ATTRIB );
+		if ( stale != null ) {
+			cache.setMaxStale( Long.parseLong( stale ) );
+		}
+		String dir = getAttribute( ruleNode, CACHE_DIR_ATTRIB );
+		if ( dir != null ) {
+			cache.setDirectory( new File( dir ) );
+		}
+		return cache;
 	}
 
 	private ResponseRule getResponseRule(Element ruleNode, String defaultId)
@@ -209,8 +855,40 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 		String idAttrib = getAttribute( ruleNode, "id" );
 		String id = ( ( idAttrib != null ) ? idAttrib : defaultId );
 
-		return new ResponseRule( getResponse( id, ruleNode ) );
+		ResponseRule rule = new ResponseRule( getResponse( id, ruleNode ) );
+		QueueModel model = getQueueModel( ruleNode );
+		if ( model != null ) {
+			HttpResponse overload = new HttpResponse( id + " (overloaded)",
+			        "Service is overloaded." );
+			overload.setStatusCode( 503 );
+			rule.setQueueModel( model, overload );
+		}
+		// a delay that isn't a plain number is drawn from a distribution
+		String delay = getAttribute( ruleNode, DELAY_ATTRIB );
+		if ( delay != null && !isNumber( delay ) ) {
+			rule.setDelay( Distribution.parse( delay ) );
+		}
+		return rule;
+	}
+
+	private static boolean isNumber(String value) {
+		return value.trim().matches( "\\d+" );
+	}
 
+	private QueueModel getQueueModel(Element ruleNode) throws Exception {
+		String workers = getAttribute( ruleNode, WORKERS_ATTRIB );
+		if ( workers == null ) {
+			return null;
+		}
+		String serviceTime = getRequiredAttribute( ruleNode,
+		        SERVICE_TIME_ATTRIB );
+		QueueModel model = new QueueModel( Integer.parseInt( workers ),
+		        Distribution.parse( serviceTime ) );
+		String queueSize = getAttribute( ruleNode, QUEUE_SIZE_ATTRIB );
+		if ( queueSize != null ) {
+			model.setQueueSize( Integer.parseInt( queueSize ) );
+		}
+		return model;
 	}
 
 	private Response getResponse(String id, Element ruleNode) throws Exception {
@@ -244,6 +922,9 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 				NodeList optionNodes = optionsNode.getChildNodes();
 				for ( int i = 0; i < optionNodes.getLength(); i++ ) {
 					Node option = optionNodes.item( i );
+					if ( option.getNodeType() != Node.ELEMENT_NODE ) {
+						continue;
+					}
 					options.put( option.getNodeName(), option.getTextContent() );
 				}
 			}
@@ -251,18 +932,31 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 
 		// the (optional) filter class
 		List<ResponseFilter> filters = getFilters( ruleNode );
-		Response response = this.createResponse( responseClass, id, responseURL
-		        .openStream(), filters );
-		if ( ruleNode.hasAttribute( "delay" ) ) {
-			response.setDelay( Integer.parseInt( ruleNode
-			        .getAttribute( "delay" ) ) );
+		Response response = this.createResponse( responseClass, id, this
+		        .openContent( responseURL ), filters );
+		String delay = getAttribute( ruleNode, DELAY_ATTRIB );
+		if ( delay != null && isNumber( delay ) ) {
+			response.setDelay( Integer.parseInt( delay.trim() ) );
+		}
+		// throttle or pace the response body
+		if ( ruleNode.hasAttribute( BANDWIDTH_ATTRIB ) ) {
+			response.setBandwidth( Integer.parseInt( ruleNode
+			        .getAttribute( BANDWIDTH_ATTRIB ) ) );
+		}
+		if ( ruleNode.hasAttribute( CHUNK_SIZE_ATTRIB ) ) {
+			response.setChunkSize( Integer.parseInt( ruleNode
+			        .getAttribute( CHUNK_SIZE_ATTRIB ) ) );
+		}
+		if ( ruleNode.hasAttribute( CHUNK_INTERVAL_ATTRIB ) ) {
+			response.setChunkInterval( Integer.parseInt( ruleNode
+			        .getAttribute( CHUNK_INTERVAL_ATTRIB ) ) );
 		}
 
 		String contentType = getAttribute( ruleNode, CONTENT_TYPE_ATTRIB );
 		if ( contentType == null ) {
 			contentType = figureOutContentType( fileName );
 		}
-		response.setContentType( contentType );
+		response.setContentType( Interner.string( contentType ) );
 
 		this.applyOptions( response, options );
 		return response;
@@ -273,12 +967,8 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 	        throws Exception
 	{
 		try {
-			Constructor<Response> resConstructor = responseClass
-			        .getConstructor( String.class, InputStream.class,
-			                List.class );
-			Response response = resConstructor.newInstance( id,
+			return ResponseBinder.get( responseClass ).create( id,
 			        responseContent, filters );
-			return response;
 		}
 		catch ( Exception e ) {
 			// i know it's bad, but there are just too many exceptions here to
@@ -291,28 +981,16 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 	}
 
 	private void applyOptions(Response response, Map<String, String> options)
-	        throws IOException
+	        throws Exception
 	{
-		// TODO this could use a lot of work
-		try {
-			for ( String key : options.keySet() ) {
-				String value = options.get( key );
-				Field field = response.getClass().getDeclaredField( key );
-				field.setAccessible( true );
-				field.set( response, value );
-			}
-		}
-		catch ( Exception e ) {
-			throw new IOException( "Could not apply options to response.", e );
+		if ( !options.isEmpty() ) {
+			ResponseBinder.get( response.getClass() ).apply( response, options );
 		}
 	}
 
 	private List<ResponseFilter> getFilters(Element ruleNode) throws Exception {
 		List<ResponseFilter> filters = new ArrayList<ResponseFilter>();
-		NodeList filterNodes = ruleNode.getElementsByTagName( FILTER_TAG );
-		int numFilters = filterNodes.getLength();
-		for ( int j = 0; j < numFilters; j++ ) {
-			Element filterNode = (Element) filterNodes.item( j );
+		for ( Element filterNode : getChildren( ruleNode, FILTER_TAG ) ) {
 			String filterClassAttrib = getRequiredAttribute( filterNode,
 			        CLASS_ATTRIB );
 			Class<?> c = Class.forName( filterClassAttrib );
@@ -329,6 +1007,7 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 					Element propNode = (Element) propNodes.item( i );
 					properties.put( propNode.getTagName(), propNode
 					        .getTextContent() );
+					this.addRelativeFile( propNode.getTextContent() );
 				}
 			}
 			filter.initialize( properties );
@@ -346,24 +1025,28 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 		}
 		else if ( matchElem.hasAttribute( XPATH_ATTRIB ) ) {
 			String xpath = getAttribute( matchElem, XPATH_ATTRIB );
-			matcher = new XmlMatcher( xpath );
+			matcher = new XmlMatcher( Interner.string( xpath ) );
 		}
 		else {
 			matcher = new HttpMatcher();
-			( (HttpMatcher) matcher ).setHeader( getAttribute( matchElem,
-			        HEADER_ATTRIB ) );
-			( (HttpMatcher) matcher ).setParam( getAttribute( matchElem,
-			        PARAM_ATTRIB ) );
+			( (HttpMatcher) matcher ).setHeader( Interner.string( getAttribute(
+			        matchElem, HEADER_ATTRIB ) ) );
+			( (HttpMatcher) matcher ).setParam( Interner.string( getAttribute(
+			        matchElem, PARAM_ATTRIB ) ) );
 		}
 		String pattern = matchElem.getTextContent();
 		if ( pattern != null ) {
-			matcher.setPattern( Pattern.compile( pattern ) );
+			// generated rulesets repeat the same patterns over and over
+			matcher.setPattern( Interner.pattern( pattern ) );
 		}
 		return matcher;
 	}
 
 	private String figureOutContentType(String fileName) {
 		String contentType = null;
+		if ( fileName == null ) {
+			return "text/plain";
+		}
 		String[] tokens = fileName.split( "\\." );
 		String extension = tokens[tokens.length - 1];
 		if ( "xml".equals( extension ) ) {
@@ -398,11 +1081,43 @@ public class XmlRulesetFactory implements UpdateableRulesetFactory {
 	}
 
 	private static Element getSingleChild(Element parent, String tagName) {
-		NodeList children = parent.getElementsByTagName( tagName );
-		if ( children.getLength() == 0 ) {
+		List<Element> children = getChildren( parent, tagName );
+		if ( children.isEmpty() ) {
 			return null;
 		}
-		return (Element) children.item( 0 );
+		return children.get( 0 );
 	}
 
+	/**
+	 * Returns the parent's own child elements with the given name, without
+	 * going any deeper, so that e.g. an option named "match" isn't taken for
+	 * one of the rule's matchers.
+	 */
+	private static List<Element> getChildren(Element parent, String tagName) {
+		List<Element> children = new ArrayList<Element>();
+		for ( Node child = parent.getFirstChild(); child != null; child = child
+		        .getNextSibling() )
+		{
+			if ( child.getNodeType() == Node.ELEMENT_NODE
+			        && child.getNodeName().equals( tagName ) )
+			{
+				children.add( (Element) child );
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * A Rule that's been built, and the files it was built from, as they
+	 * were at the time.
+	 */
+	private static class BuiltRule {
+		final Rule rule;
+		final Map<String, Long> files;
+
+		BuiltRule(Rule rule, Map<String, Long> files) {
+			this.rule = rule;
+			this.files = files;
+		}
+	}
 }
@@ -16,6 +16,8 @@ package org.mocksy.config.xml;
  *  limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,6 +25,9 @@ import java.net.URL;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import org.mocksy.config.Source;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -62,6 +67,46 @@ abstract public class XmlSource implements Source {
 	 */
 	abstract public Element getRulesetElement() throws Exception;
 
+	/**
+	 * Opens the XML document itself, so that it can be read one rule at a
+	 * time.  Subtypes that read from a file or a stream should override
+	 * this; by default the ruleset element is written back out as XML.
+	 * 
+	 * @return the XML document
+	 * @throws Exception if there's a problem opening the document
+	 */
+	public InputStream openStream() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TransformerFactory.newInstance().newTransformer().transform(
+		        new DOMSource( this.getRulesetElement() ),
+		        new StreamResult( output ) );
+		return new ByteArrayInputStream( output.toByteArray() );
+	}
+
+	/**
+	 * Opens a URL from {@link #getRelativeURL(String)}, e.g. a response
+	 * file.
+	 * 
+	 * @param url the URL
+	 * @return the content at the URL
+	 * @throws IOException if it can't be opened
+	 */
+	public InputStream openRelativeURL(URL url) throws IOException {
+		return url.openStream();
+	}
+
+	/**
+	 * Returns a number that changes whenever the content at the given URL,
+	 * e.g. a response file, does, for Sources that keep track of that.
+	 * Local files are checked directly, so they needn't be tracked here.
+	 * 
+	 * @param url a URL from {@link #getRelativeURL(String)}
+	 * @return the URL's current stamp, or 0 if it isn't tracked
+	 */
+	public long getStamp(URL url) {
+		return 0L;
+	}
+
 	/**
 	 * Returns the ruleset element from an XML InputStream.  This helper
 	 * method abstracts the actual XML processing from subtypes of XmlSource.
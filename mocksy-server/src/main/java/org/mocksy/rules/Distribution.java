@@ -0,0 +1,284 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * A probability distribution of times, in milliseconds, used to simulate
+ * how long a real service takes to do its work.
+ *
+ * Distributions are usually created from a String with {@link #parse(String)},
+ * which understands the following forms:
+ * <ul>
+ * <li><code>50</code> or <code>constant:50</code> - always 50ms</li>
+ * <li><code>uniform:20,80</code> - anywhere between 20ms and 80ms</li>
+ * <li><code>exponential:50</code> - exponentially distributed, 50ms on average</li>
+ * <li><code>normal:50,10</code> - normally distributed around 50ms, with
+ * a standard deviation of 10ms, never less than 0</li>
+ * <li><code>empirical:0=5,50=12,99=80,100=150</code> - as measured: each
+ * <code>percentile=value</code> pair gives the time that percentage of
+ * requests took, with straight lines in between, e.g. as produced by a
+ * {@link LatencyHistogram}</li>
+ * </ul>
+ */
+abstract public class Distribution {
+	private static final Random random = new Random();
+	private final String spec;
+
+	/**
+	 * Creates the Distribution with the String that describes it.
+	 *
+	 * @param spec the description of the Distribution
+	 */
+	protected Distribution(String spec) {
+		this.spec = spec;
+	}
+
+	/**
+	 * Returns a random time from this Distribution.
+	 *
+	 * @return time in milliseconds
+	 */
+	abstract public long sample();
+
+	/**
+	 * Returns the average time of this Distribution.
+	 *
+	 * @return mean time in milliseconds
+	 */
+	abstract public double getMean();
+
+	/**
+	 * Returns the random number generator shared by all Distributions.
+	 *
+	 * @return a Random instance
+	 */
+	protected static Random getRandom() {
+		return random;
+	}
+
+	/**
+	 * Returns the description of this Distribution, in the same form
+	 * accepted by {@link #parse(String)}.
+	 */
+	@Override
+	public String toString() {
+		return this.spec;
+	}
+
+	/**
+	 * Creates a Distribution from its String description.
+	 *
+	 * @param spec the description, e.g. "exponential:50"
+	 * @return the described Distribution
+	 * @throws IllegalArgumentException if the description can't be understood
+	 */
+	public static Distribution parse(String spec) {
+		if ( spec == null ) {
+			throw new IllegalArgumentException( "No distribution given." );
+		}
+		String trimmed = spec.trim();
+		int colon = trimmed.indexOf( ':' );
+		String type = ( colon < 0 ? "constant" : trimmed.substring( 0, colon ) );
+		String[] args = trimmed.substring( colon + 1 ).split( "," );
+		try {
+			if ( "constant".equals( type ) && args.length == 1 ) {
+				return new Constant( spec, Double.parseDouble( args[0] ) );
+			}
+			else if ( "uniform".equals( type ) && args.length == 2 ) {
+				return new Uniform( spec, Double.parseDouble( args[0] ), Double
+				        .parseDouble( args[1] ) );
+			}
+			else if ( "exponential".equals( type ) && args.length == 1 ) {
+				return new Exponential( spec, Double.parseDouble( args[0] ) );
+			}
+			else if ( "normal".equals( type ) && args.length == 2 ) {
+				return new Normal( spec, Double.parseDouble( args[0] ), Double
+				        .parseDouble( args[1] ) );
+			}
+			else if ( "empirical".equals( type ) ) {
+				return Empirical.parse( spec, args );
+			}
+		}
+		catch ( NumberFormatException e ) {
+			throw new IllegalArgumentException( "Invalid distribution '" + spec
+			        + "'", e );
+		}
+		throw new IllegalArgumentException( "Invalid distribution '" + spec
+		        + "'" );
+	}
+
+	static class Constant extends Distribution {
+		private final double value;
+
+		Constant(String spec, double value) {
+			super( spec );
+			this.value = value;
+		}
+
+		@Override
+		public long sample() {
+			return Math.round( this.value );
+		}
+
+		@Override
+		public double getMean() {
+			return this.value;
+		}
+	}
+
+	static class Uniform extends Distribution {
+		private final double min;
+		private final double max;
+
+		Uniform(String spec, double min, double max) {
+			super( spec );
+			this.min = Math.min( min, max );
+			this.max = Math.max( min, max );
+		}
+
+		@Override
+		public long sample() {
+			return Math.round( this.min + getRandom().nextDouble()
+			        * ( this.max - this.min ) );
+		}
+
+		@Override
+		public double getMean() {
+			return ( this.min + this.max ) / 2;
+		}
+	}
+
+	static class Exponential extends Distribution {
+		private final double mean;
+
+		Exponential(String spec, double mean) {
+			super( spec );
+			this.mean = mean;
+		}
+
+		@Override
+		public long sample() {
+			// inverse transform; 1 - nextDouble() is never 0
+			return Math.round( -this.mean
+			        * Math.log( 1 - getRandom().nextDouble() ) );
+		}
+
+		@Override
+		public double getMean() {
+			return this.mean;
+		}
+	}
+
+	static class Normal extends Distribution {
+		private final double mean;
+		private final double deviation;
+
+		Normal(String spec, double mean, double deviation) {
+			super( spec );
+			this.mean = mean;
+			this.deviation = deviation;
+		}
+
+		@Override
+		public long sample() {
+			double value = this.mean + getRandom().nextGaussian()
+			        * this.deviation;
+			return Math.max( 0L, Math.round( value ) );
+		}
+
+		@Override
+		public double getMean() {
+			return this.mean;
+		}
+	}
+
+	/**
+	 * Interpolates between measured percentiles.
+	 */
+	static class Empirical extends Distribution {
+		private final double[] percentiles;
+		private final double[] values;
+
+		Empirical(String spec, double[] percentiles, double[] values) {
+			super( spec );
+			this.percentiles = percentiles;
+			this.values = values;
+		}
+
+		static Empirical parse(String spec, String[] args) {
+			// always start at 0 and end at 100, so every sample lands
+			// between two points
+			double[] percentiles = new double[args.length + 2];
+			double[] values = new double[args.length + 2];
+			for ( int i = 0; i < args.length; i++ ) {
+				int equals = args[i].indexOf( '=' );
+				if ( equals < 0 ) {
+					throw new IllegalArgumentException( "Invalid distribution '"
+					        + spec + "'" );
+				}
+				percentiles[i + 1] = Double.parseDouble( args[i].substring( 0,
+				        equals ).trim() );
+				values[i + 1] = Double.parseDouble( args[i].substring(
+				        equals + 1 ).trim() );
+				if ( percentiles[i + 1] < percentiles[i]
+				        || percentiles[i + 1] > 100 || values[i + 1] < values[i] )
+				{
+					throw new IllegalArgumentException( "Invalid distribution '"
+					        + spec + "': percentiles and values must go up" );
+				}
+			}
+			percentiles[0] = 0;
+			values[0] = values[1];
+			percentiles[args.length + 1] = 100;
+			values[args.length + 1] = values[args.length];
+			return new Empirical( spec, percentiles, values );
+		}
+
+		@Override
+		public long sample() {
+			return Math.round( this.valueAt( getRandom().nextDouble() * 100 ) );
+		}
+
+		double valueAt(double percentile) {
+			for ( int i = 1; i < this.percentiles.length; i++ ) {
+				if ( percentile <= this.percentiles[i] ) {
+					double width = this.percentiles[i] - this.percentiles[i - 1];
+					if ( width == 0 ) {
+						return this.values[i];
+					}
+					double fraction = ( percentile - this.percentiles[i - 1] )
+					        / width;
+					return this.values[i - 1] + fraction
+					        * ( this.values[i] - this.values[i - 1] );
+				}
+			}
+			return this.values[this.values.length - 1];
+		}
+
+		@Override
+		public double getMean() {
+			double mean = 0;
+			for ( int i = 1; i < this.percentiles.length; i++ ) {
+				mean += ( this.percentiles[i] - this.percentiles[i - 1] ) / 100
+				        * ( this.values[i - 1] + this.values[i] ) / 2;
+			}
+			return mean;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies, in milliseconds, in a fixed number of buckets, so that
+ * percentiles can be read off them however many have been recorded.
+ *
+ * Latencies under 16ms get a bucket each; above that, each doubling is
+ * split into 16 buckets, so a percentile is never more than about 3% off.
+ * That covers up to about 24 days in 448 buckets.  Counts are kept in
+ * atomic arrays, so recording never blocks.
+ */
+public class LatencyHistogram {
+	/** The percentiles an empirical Distribution is made from. */
+	private static final double[] PERCENTILES = { 0, 10, 20, 30, 40, 50, 60,
+	        70, 80, 90, 95, 99, 99.9, 100 };
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BITS = 4;
+	private static final int BUCKETS = SUB_BUCKETS + ( 31 - SUB_BITS )
+	        * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong min = new AtomicLong( Long.MAX_VALUE );
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param millis the latency, in milliseconds
+	 */
+	public void record(long millis) {
+		long value = Math.max( 0, Math.min( millis, Integer.MAX_VALUE ) );
+		this.counts.incrementAndGet( getBucket( value ) );
+		this.count.incrementAndGet();
+		this.total.addAndGet( value );
+		long current;
+		while ( value < ( current = this.min.get() )
+		        && !this.min.compareAndSet( current, value ) ) {
+		}
+		while ( value > ( current = this.max.get() )
+		        && !this.max.compareAndSet( current, value ) ) {
+		}
+	}
+
+	/**
+	 * Returns the number of latencies recorded.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Returns the average latency.
+	 *
+	 * @return the mean, in milliseconds, or 0 if none have been recorded
+	 */
+	public double getMean() {
+		long n = this.count.get();
+		return n == 0 ? 0 : (double) this.total.get() / n;
+	}
+
+	/**
+	 * Returns the latency that the given percentage of the recorded ones
+	 * were no longer than.  The 0th and 100th percentiles are the exact
+	 * minimum and maximum; the rest are the middle of their bucket.
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the latency, in milliseconds, or 0 if none have been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = this.count.get();
+		if ( n == 0 ) {
+			return 0;
+		}
+		if ( percentile <= 0 ) {
+			return this.min.get();
+		}
+		if ( percentile >= 100 ) {
+			return this.max.get();
+		}
+		long target = (long) Math.ceil( percentile / 100 * n );
+		long seen = 0;
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			seen += this.counts.get( i );
+			if ( seen >= target ) {
+				// the bucket's middle can't be outside what was recorded
+				return Math.max( this.min.get(), Math.min( this.max.get(),
+				        getMiddle( i ) ) );
+			}
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * Returns an empirical {@link Distribution} that reproduces the
+	 * recorded latencies, made from a spread of their percentiles.
+	 *
+	 * @return the Distribution, or null if none have been recorded
+	 */
+	public Distribution toDistribution() {
+		if ( this.count.get() == 0 ) {
+			return null;
+		}
+		StringBuilder spec = new StringBuilder( "empirical:" );
+		for ( int i = 0; i < PERCENTILES.length; i++ ) {
+			if ( i > 0 ) {
+				spec.append( ',' );
+			}
+			double percentile = PERCENTILES[i];
+			if ( percentile == Math.floor( percentile ) ) {
+				spec.append( (long) percentile );
+			}
+			else {
+				spec.append( percentile );
+			}
+			spec.append( '=' ).append( this.getPercentile( percentile ) );
+		}
+		return Distribution.parse( spec.toString() );
+	}
+
+	static int getBucket(long value) {
+		if ( value < SUB_BUCKETS ) {
+			return (int) value;
+		}
+		int power = 63 - Long.numberOfLeadingZeros( value );
+		int shift = power - SUB_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS
+		        + (int) ( ( value >> shift ) & ( SUB_BUCKETS - 1 ) );
+	}
+
+	static long getMiddle(int bucket) {
+		if ( bucket < SUB_BUCKETS ) {
+			return bucket;
+		}
+		int shift = ( bucket - SUB_BUCKETS ) / SUB_BUCKETS;
+		long lower = (long) ( SUB_BUCKETS + bucket % SUB_BUCKETS ) << shift;
+		return lower + ( ( 1L << shift ) >> 1 );
+	}
+}
@@ -0,0 +1,33 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * Implemented by Rules that keep track of how they're being used, so that
+ * their numbers can be reported on the admin port.
+ */
+public interface Monitored {
+	/**
+	 * Returns the current value of each of this object's metrics, keyed
+	 * by metric name.
+	 *
+	 * @return the metrics, by name
+	 */
+	public Map<String, Number> getMetrics();
+}
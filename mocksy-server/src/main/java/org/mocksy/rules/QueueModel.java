@@ -0,0 +1,191 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Models a Rule as a service with a fixed number of workers, so that the
+ * latency of its Responses grows with the load on it, the way a saturated
+ * dependency behaves.
+ *
+ * Each request takes a service time from a {@link Distribution} and is
+ * handed to whichever virtual worker frees up first; if every worker is
+ * busy, the request waits in line behind the work already assigned.  No
+ * threads are held while waiting, the model only works out how long the
+ * request <i>would</i> have taken, which becomes the Response's delay.
+ * The workers' schedules are updated with compare-and-set, so the model
+ * never blocks the requests that use it.
+ *
+ * If a queue size is set, requests that would have more than that many
+ * requests waiting ahead of them are rejected instead.
+ */
+public class QueueModel {
+	private final int workers;
+	private final Distribution serviceTime;
+	private final AtomicLongArray busyUntil;
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private int queueSize = -1;
+
+	/**
+	 * Creates the model with the given number of workers and service time.
+	 *
+	 * @param workers the number of requests that can be served at once
+	 * @param serviceTime how long each request takes to serve
+	 */
+	public QueueModel(int workers, Distribution serviceTime) {
+		if ( workers <= 0 ) {
+			throw new IllegalArgumentException(
+			        "QueueModel needs at least one worker." );
+		}
+		if ( serviceTime == null ) {
+			throw new IllegalArgumentException(
+			        "QueueModel needs a service time." );
+		}
+		this.workers = workers;
+		this.serviceTime = serviceTime;
+		this.busyUntil = new AtomicLongArray( workers );
+	}
+
+	/**
+	 * Sets how many requests can be waiting for a worker before new ones
+	 * are rejected.  A negative value, the default, means there's no limit.
+	 *
+	 * @param queueSize the maximum number of waiting requests
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Returns how many requests can be waiting before new ones are rejected.
+	 *
+	 * @return the maximum number of waiting requests, or -1 for no limit
+	 */
+	public int getQueueSize() {
+		return this.queueSize;
+	}
+
+	/**
+	 * Returns the number of virtual workers.
+	 *
+	 * @return number of workers
+	 */
+	public int getWorkers() {
+		return this.workers;
+	}
+
+	/**
+	 * Returns the service time distribution.
+	 *
+	 * @return the service time distribution
+	 */
+	public Distribution getServiceTime() {
+		return this.serviceTime;
+	}
+
+	/**
+	 * Admits a request to the model and returns how long it takes to be
+	 * served, including any time spent waiting for a worker.
+	 *
+	 * @return the request's latency in milliseconds, or -1 if the request
+	 * 		is rejected because the queue is full
+	 */
+	public long admit() {
+		long now = System.currentTimeMillis();
+		long service = this.serviceTime.sample();
+		while ( true ) {
+			// find the worker that frees up first
+			int worker = 0;
+			long free = this.busyUntil.get( 0 );
+			for ( int i = 1; i < this.workers; i++ ) {
+				long until = this.busyUntil.get( i );
+				if ( until < free ) {
+					worker = i;
+					free = until;
+				}
+			}
+			long start = Math.max( now, free );
+			if ( this.queueSize >= 0
+			        && this.getWaiting( start - now ) > this.queueSize )
+			{
+				this.rejected.incrementAndGet();
+				return -1;
+			}
+			// if another request got to this worker first, look again
+			if ( this.busyUntil.compareAndSet( worker, free, start + service ) )
+			{
+				this.admitted.incrementAndGet();
+				return start + service - now;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of workers currently serving a request.
+	 *
+	 * @return number of busy workers
+	 */
+	public int getBusyWorkers() {
+		long now = System.currentTimeMillis();
+		int busy = 0;
+		for ( int i = 0; i < this.workers; i++ ) {
+			if ( this.busyUntil.get( i ) > now ) {
+				busy++;
+			}
+		}
+		return busy;
+	}
+
+	/**
+	 * Returns the number of requests admitted so far.
+	 *
+	 * @return number of admitted requests
+	 */
+	public long getAdmitted() {
+		return this.admitted.get();
+	}
+
+	/**
+	 * Returns the number of requests rejected so far.
+	 *
+	 * @return number of rejected requests
+	 */
+	public long getRejected() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * Estimates how many requests are ahead of one that has to wait the
+	 * given time for a worker, based on the average service time.
+	 */
+	private long getWaiting(long wait) {
+		if ( wait <= 0 ) {
+			return 0;
+		}
+		double mean = Math.max( 1.0, this.serviceTime.getMean() );
+		return (long) Math.ceil( wait * this.workers / mean );
+	}
+
+	@Override
+	public String toString() {
+		return "QueueModel, " + this.workers + " workers, service time "
+		        + this.serviceTime + ", queue size " + this.queueSize;
+	}
+}
@@ -24,6 +24,9 @@ import org.mocksy.Response;
 public class ResponseRule implements Rule {
 	private Collection<Matcher> matchers = new ArrayList<Matcher>();
 	private Response response;
+	private QueueModel queueModel;
+	private Response overloadResponse;
+	private Distribution delay;
 
 	public ResponseRule(Response response) {
 		this.response = response;
@@ -47,7 +50,58 @@ public class ResponseRule implements Rule {
 	}
 
 	public Response process(Request request) {
-		return this.response;
+		if ( this.queueModel == null && this.delay == null ) {
+			return this.response;
+		}
+		long latency = 0;
+		if ( this.queueModel != null ) {
+			latency = this.queueModel.admit();
+			if ( latency < 0 ) {
+				return this.overloadResponse;
+			}
+		}
+		if ( this.delay != null ) {
+			latency += this.delay.sample();
+		}
+		// the latency is only for this request, so don't touch the original
+		Response response = this.response.copy();
+		response.setDelay( (int) Math.min( Integer.MAX_VALUE, response
+		        .getDelay() + latency ) );
+		return response;
+	}
+
+	/**
+	 * Sets the model that works out how long each request takes based on
+	 * how many requests this Rule is currently serving.  Requests that the
+	 * model rejects get the overload Response instead.
+	 * 
+	 * @param queueModel the QueueModel, or null to always respond right away
+	 * @param overloadResponse the Response for rejected requests
+	 */
+	public void setQueueModel(QueueModel queueModel,
+	        Response overloadResponse)
+	{
+		this.queueModel = queueModel;
+		this.overloadResponse = overloadResponse;
+	}
+
+	public QueueModel getQueueModel() {
+		return this.queueModel;
+	}
+
+	/**
+	 * Sets a Distribution to draw an extra delay from for each Response,
+	 * e.g. one measured from the real service by a {@link LatencyHistogram},
+	 * on top of the Response's own delay.
+	 * 
+	 * @param delay the Distribution of delays, or null for none
+	 */
+	public void setDelay(Distribution delay) {
+		this.delay = delay;
+	}
+
+	public Distribution getDelay() {
+		return this.delay;
 	}
 
 	public Collection<Matcher> getMatchers() {
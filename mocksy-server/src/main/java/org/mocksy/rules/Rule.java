@@ -61,6 +61,11 @@ public interface Rule {
 	 * should be invoked to ensure that this Rule should even be used for 
 	 * this Request before calling {@link #process(Request)}.
 	 * 
+	 * A Rule that has to wait for its Response can return a
+	 * {@link org.mocksy.DeferredResponse} and complete it later, but only if
+	 * the Request says the server can wait for one, e.g.
+	 * {@link org.mocksy.server.http.HttpRequest#isAsync()}.
+	 * 
 	 * @param request the Request to process
 	 * @return the {@link org.mocksy.Response} that this Rule creates for 
 	 * 		the given Request
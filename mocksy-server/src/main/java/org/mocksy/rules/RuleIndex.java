@@ -0,0 +1,266 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.mocksy.Request;
+import org.mocksy.Response;
+
+/**
+ * A Ruleset compiled, along with the Rulesets nested in it, into one flat
+ * table of Rules, so that a Request is matched in a single pass however
+ * deeply the Rulesets are nested.
+ * 
+ * Each nested Ruleset's Rules are inlined where its RulesetRule was, with
+ * the RulesetRule as a guard in front of them.  A guard is only checked
+ * once per Request; if it doesn't match, its Rules are skipped all at once.
+ * After a nested Ruleset's Rules comes a fallback for when the guard
+ * matched but none of the Rules did, which is the nested default Rule.  A
+ * Rule that gives no Response falls back to the default Rule of its
+ * Ruleset, and then to those of the Rulesets around it, which is just what
+ * the nested Rulesets would have done on their own.
+ * 
+ * The table is only good for as long as none of the Rulesets in it change;
+ * {@link #isCurrent()} tells whether one has.
+ */
+class RuleIndex {
+	private final Entry[] entries;
+	private final Rule[] defaults;
+	private final Ruleset[] rulesets;
+	private final long[] versions;
+	private volatile long checked;
+
+	private RuleIndex(List<Entry> entries, Rule[] defaults,
+	        List<Ruleset> rulesets, List<Long> versions, long checked)
+	{
+		this.entries = entries.toArray( new Entry[entries.size()] );
+		this.defaults = defaults;
+		this.rulesets = rulesets.toArray( new Ruleset[rulesets.size()] );
+		this.versions = new long[versions.size()];
+		for ( int i = 0; i < this.versions.length; i++ ) {
+			this.versions[i] = versions.get( i );
+		}
+		this.checked = checked;
+	}
+
+	/**
+	 * Compiles the given Ruleset, and the Rulesets nested in it.
+	 * 
+	 * @param ruleset the Ruleset to compile
+	 * @return the compiled Ruleset
+	 */
+	static RuleIndex compile(Ruleset ruleset) {
+		// anything that changes from here on makes the index out of date
+		long modifications = Ruleset.getModifications();
+		List<Entry> entries = new ArrayList<Entry>();
+		List<Ruleset> rulesets = new ArrayList<Ruleset>();
+		List<Long> versions = new ArrayList<Long>();
+		Set<Ruleset> path = new HashSet<Ruleset>();
+		path.add( ruleset );
+		Rule[] defaults = compile( ruleset, new Guard[0], new Rule[0],
+		        entries, rulesets, versions, path );
+		for ( int i = 0; i < entries.size(); i++ ) {
+			Entry entry = entries.get( i );
+			if ( i > 0 ) {
+				entry.shared = shared( entries.get( i - 1 ).guards,
+				        entry.guards );
+			}
+			for ( Guard guard : entry.guards ) {
+				guard.end = i + 1;
+			}
+		}
+		return new RuleIndex( entries, defaults, rulesets, versions,
+		        modifications );
+	}
+
+	private static Rule[] compile(Ruleset ruleset, Guard[] guards,
+	        Rule[] outerDefaults, List<Entry> entries, List<Ruleset> rulesets,
+	        List<Long> versions, Set<Ruleset> path)
+	{
+		// the version is read first, so that a change made while this is
+		// being compiled is noticed afterwards
+		versions.add( ruleset.getVersion() );
+		rulesets.add( ruleset );
+		List<Rule> rules = ruleset.getRules();
+		Rule defaultRule = ruleset.getDefaultRule();
+		Rule[] defaults = outerDefaults;
+		if ( defaultRule != null ) {
+			defaults = new Rule[outerDefaults.length + 1];
+			defaults[0] = defaultRule;
+			System.arraycopy( outerDefaults, 0, defaults, 1,
+			        outerDefaults.length );
+		}
+		for ( Rule rule : rules ) {
+			Ruleset nested = getNestedRuleset( rule );
+			if ( nested == null || path.contains( nested ) ) {
+				entries.add( new Entry( guards, rule, defaults ) );
+				continue;
+			}
+			Guard[] nestedGuards = new Guard[guards.length + 1];
+			System.arraycopy( guards, 0, nestedGuards, 0, guards.length );
+			nestedGuards[guards.length] = new Guard( (RulesetRule) rule );
+			path.add( nested );
+			Rule[] nestedDefaults = compile( nested, nestedGuards, defaults,
+			        entries, rulesets, versions, path );
+			path.remove( nested );
+			// the guard matched, but none of the nested rules did
+			entries.add( new Entry( nestedGuards, null, nestedDefaults ) );
+		}
+		return defaults;
+	}
+
+	/**
+	 * Returns the Ruleset to inline in place of the given Rule, if any.
+	 * Subclasses of RulesetRule might do more than hand the Request on, so
+	 * only RulesetRules themselves are inlined.
+	 */
+	private static Ruleset getNestedRuleset(Rule rule) {
+		if ( rule == null || rule.getClass() != RulesetRule.class ) {
+			return null;
+		}
+		return ( (RulesetRule) rule ).getRuleset();
+	}
+
+	private static int shared(Guard[] previous, Guard[] guards) {
+		int shared = 0;
+		while ( shared < previous.length && shared < guards.length
+		        && previous[shared] == guards[shared] )
+		{
+			shared++;
+		}
+		return shared;
+	}
+
+	/**
+	 * Returns whether none of the compiled Rulesets have changed since.
+	 * 
+	 * @return true if the index is still good
+	 */
+	boolean isCurrent() {
+		long modifications = Ruleset.getModifications();
+		if ( modifications == this.checked ) {
+			return true;
+		}
+		// something's changed, but it might not be one of these
+		for ( int i = 0; i < this.rulesets.length; i++ ) {
+			if ( this.rulesets[i].getVersion() != this.versions[i] ) {
+				return false;
+			}
+		}
+		this.checked = modifications;
+		return true;
+	}
+
+	/**
+	 * Returns the number of Rules in the table, including the fallbacks for
+	 * the nested Rulesets.
+	 * 
+	 * @return the size of the table
+	 */
+	int size() {
+		return this.entries.length;
+	}
+
+	/**
+	 * Finds the first Rule that matches the Request and processes it.
+	 * 
+	 * @param request the Request to process
+	 * @param owner the Ruleset this index was compiled from, which takes
+	 * 		over if a nested Ruleset is updated along the way
+	 * @return the Response, or null if nothing gave one
+	 * @throws Exception
+	 */
+	Response process(Request request, Ruleset owner) throws Exception {
+		// the number of guards of the current entry known to match
+		int verified = 0;
+		int i = 0;
+		while ( i < this.entries.length ) {
+			Entry entry = this.entries[i];
+			if ( entry.shared < verified ) {
+				verified = entry.shared;
+			}
+			boolean guarded = true;
+			while ( verified < entry.guards.length ) {
+				Guard guard = entry.guards[verified];
+				if ( !guard.rule.matches( request ) ) {
+					i = guard.end;
+					guarded = false;
+					break;
+				}
+				// the nested Ruleset would have checked for updates now
+				guard.rule.getRuleset().checkForUpdates();
+				if ( !this.isCurrent() ) {
+					return owner.dispatch( request );
+				}
+				verified++;
+			}
+			if ( !guarded ) {
+				continue;
+			}
+			if ( entry.rule == null || entry.rule.matches( request ) ) {
+				Response response = null;
+				if ( entry.rule != null ) {
+					response = entry.rule.process( request );
+				}
+				return fallBack( request, response, entry.defaults );
+			}
+			i++;
+		}
+		return fallBack( request, null, this.defaults );
+	}
+
+	private static Response fallBack(Request request, Response response,
+	        Rule[] defaults) throws Exception
+	{
+		for ( int i = 0; response == null && i < defaults.length; i++ ) {
+			response = defaults[i].process( request );
+		}
+		return response;
+	}
+
+	/**
+	 * A nested Ruleset's RulesetRule, in front of the Ruleset's Rules.
+	 */
+	private static class Guard {
+		final RulesetRule rule;
+		// the index of the first entry after the nested Rules
+		int end;
+
+		Guard(RulesetRule rule) {
+			this.rule = rule;
+		}
+	}
+
+	private static class Entry {
+		final Guard[] guards;
+		// null for a nested Ruleset's fallback
+		final Rule rule;
+		// the default Rules to try if the Rule gives no Response, innermost
+		// first
+		final Rule[] defaults;
+		// how many guards this entry has in common with the one before
+		int shared;
+
+		Entry(Guard[] guards, Rule rule, Rule[] defaults) {
+			this.guards = guards;
+			this.rule = rule;
+			this.defaults = defaults;
+		}
+	}
+}
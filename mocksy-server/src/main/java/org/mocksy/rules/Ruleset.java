@@ -16,8 +16,17 @@ package org.mocksy.rules;
  *  limitations under the License.
  */
 
-import java.util.LinkedList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.mocksy.Request;
 import org.mocksy.Response;
 import org.mocksy.config.UpdateableRulesetFactory;
@@ -34,13 +43,26 @@ import org.mocksy.config.UpdateableRulesetFactory;
  * A Ruleset can be associated with a {@link org.mocksy.config.UpdateableRulesetFactory},
  * which allows it to be easily updated during runtime, e.g. responding to
  * updates in file-based configuration without need to recycling the server.
+ * 
+ * Requests are matched against a compiled table of the Rules, with those of
+ * any nested Rulesets inlined, rather than against each Ruleset in turn.
+ * The table is compiled again whenever one of the Rulesets changes.
  *  
  * @author Saleem Shafi
  */
 public class Ruleset {
-	private List<Rule> rules = new LinkedList<Rule>();
+	private static final Logger logger = Logger.getLogger( Ruleset.class
+	        .getName() );
+	// counts changes to all Rulesets, so that a compiled index can tell at a
+	// glance that none of its Rulesets have changed
+	private static final AtomicLong modifications = new AtomicLong();
+	// the rules and default rule are replaced together, so that a Request
+	// sees either the old ones or the new ones, never a mix
+	private volatile Contents contents;
 	private UpdateableRulesetFactory updateableFactory;
-	private Rule defaultRule;
+	private final ReentrantLock updateLock = new ReentrantLock();
+	private volatile long version;
+	private volatile RuleIndex index;
 
 	/**
 	 * Creates a Ruleset without an associated {@link org.mocksy.config.UpdateableRulesetFactory}.
@@ -66,8 +88,46 @@ public class Ruleset {
 	 * for the first time.
 	 */
 	public void clear() {
-		this.rules.clear();
-		this.defaultRule = null;
+		this.contents = new Contents( new ArrayList<Rule>(), null );
+		this.modified();
+	}
+
+	/**
+	 * Replaces all of the Rules in this Ruleset at once.  Requests that are
+	 * already being processed carry on with the old Rules, and the next
+	 * ones get the new Rules, so a Ruleset can be rebuilt while it's in use.
+	 * 
+	 * Old Rules that aren't among the new ones, and are {@link Closeable}
+	 * because they keep threads of their own, are closed, so that a reload
+	 * doesn't leave their threads behind.
+	 * 
+	 * @param rules the new list of Rules
+	 * @param defaultRule the new default Rule
+	 */
+	public void setRules(List<Rule> rules, Rule defaultRule) {
+		Contents old = this.contents;
+		this.contents = new Contents( rules, defaultRule );
+		this.modified();
+		closeDropped( old, this.contents );
+	}
+
+	private static void closeDropped(Contents old, Contents current) {
+		Set<Rule> kept = Collections.newSetFromMap(
+		        new IdentityHashMap<Rule, Boolean>() );
+		kept.addAll( current.rules );
+		kept.add( current.defaultRule );
+		List<Rule> dropped = new ArrayList<Rule>( old.rules );
+		dropped.add( old.defaultRule );
+		for ( Rule rule : dropped ) {
+			if ( rule instanceof Closeable && kept.add( rule ) ) {
+				try {
+					( (Closeable) rule ).close();
+				}
+				catch ( IOException e ) {
+					logger.log( Level.WARNING, "Couldn't close " + rule, e );
+				}
+			}
+		}
 	}
 
 	/**
@@ -77,7 +137,8 @@ public class Ruleset {
 	 * @param rule the Rule to add to the end of this Ruleset
 	 */
 	public void addRule(Rule rule) {
-		this.rules.add( rule );
+		this.contents.rules.add( rule );
+		this.modified();
 	}
 
 	/**
@@ -87,7 +148,14 @@ public class Ruleset {
 	 * @param defaultRule the default Rule for this ruleset
 	 */
 	public void setDefaultRule(Rule defaultRule) {
-		this.defaultRule = defaultRule;
+		this.contents = new Contents( this.contents.rules, defaultRule );
+		this.modified();
+	}
+
+	private void modified() {
+		// the version has to change before the count does; see RuleIndex
+		this.version++;
+		modifications.incrementAndGet();
 	}
 
 	/**
@@ -100,8 +168,8 @@ public class Ruleset {
 	 * and update the contents of the Ruleset before continuing with
 	 * the processing.
 	 * 
-	 * Note: The logic that updates the Ruleset based on the UpdateableRulesetFactory
-	 * is synchronized, so it should be thread-safe.
+	 * Note: Only one thread at a time checks the UpdateableRulesetFactory
+	 * for updates, so it should be thread-safe.
 	 * 
 	 * @param request the Request to process
 	 * @return the Response from the appropriate Rule in the Ruleset; or the
@@ -110,24 +178,62 @@ public class Ruleset {
 	 */
 	public Response process(Request request) throws Exception {
 		// make sure we've got the most up-to-date configuration
-		if ( this.updateableFactory != null ) {
-			synchronized ( this.updateableFactory ) {
+		this.checkForUpdates();
+		return this.dispatch( request );
+	}
+
+	/**
+	 * Has the {@link org.mocksy.config.UpdateableRulesetFactory}, if there
+	 * is one, update the contents of this Ruleset if its configuration has
+	 * changed.
+	 * 
+	 * Requests don't queue up behind one another to do this: if another
+	 * thread is already checking, this one carries on with the Rules as they
+	 * are, which are no older than they were a moment ago.  Nor is the check
+	 * made holding a monitor, so a virtual thread reading the configuration
+	 * doesn't pin its carrier thread.
+	 * 
+	 * @throws Exception if the update fails
+	 */
+	public void checkForUpdates() throws Exception {
+		if ( this.updateableFactory != null && this.updateLock.tryLock() ) {
+			try {
 				this.updateableFactory.checkForUpdates();
 			}
-		}
-		Response response = null;
-		// check for matches in the list of Rules
-		for ( Rule rule : this.rules ) {
-			if ( rule.matches( request ) ) {
-				response = rule.process( request );
-				break; // first match wins
+			finally {
+				this.updateLock.unlock();
 			}
 		}
-		// if none of 'em match, send back a default response
-		if ( response == null && this.defaultRule != null ) {
-			response = this.defaultRule.process( request );
+	}
+
+	/**
+	 * Processes the Request against the compiled Rules, without checking
+	 * for updates to this Ruleset first.
+	 */
+	Response dispatch(Request request) throws Exception {
+		// first match wins; if none of 'em match, the default rule is used
+		return this.getIndex().process( request, this );
+	}
+
+	/**
+	 * Returns the compiled Rules, compiling them again if this Ruleset, or
+	 * one nested in it, has changed.
+	 */
+	RuleIndex getIndex() {
+		RuleIndex index = this.index;
+		if ( index == null || !index.isCurrent() ) {
+			index = RuleIndex.compile( this );
+			this.index = index;
 		}
-		return response;
+		return index;
+	}
+
+	long getVersion() {
+		return this.version;
+	}
+
+	static long getModifications() {
+		return modifications.get();
 	}
 
 	/**
@@ -137,7 +243,7 @@ public class Ruleset {
 	 * @return the default Rule
 	 */
 	public Rule getDefaultRule() {
-		return this.defaultRule;
+		return this.contents.defaultRule;
 	}
 
 	/**
@@ -146,6 +252,16 @@ public class Ruleset {
 	 * @return list of Rules in the Ruleset
 	 */
 	public List<Rule> getRules() {
-		return this.rules;
+		return this.contents.rules;
+	}
+
+	private static class Contents {
+		final List<Rule> rules;
+		final Rule defaultRule;
+
+		Contents(List<Rule> rules, Rule defaultRule) {
+			this.rules = rules;
+			this.defaultRule = defaultRule;
+		}
 	}
 }
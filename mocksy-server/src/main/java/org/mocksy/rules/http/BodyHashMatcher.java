@@ -0,0 +1,53 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mocksy.Request;
+import org.mocksy.rules.Matcher;
+
+/**
+ * Matcher for the SHA-1 hash of the request body, written as 40 hex digits.
+ * It's meant for matching a body exactly, as recorded by an
+ * {@link HttpProxyRule}, without having to copy the whole body into the
+ * ruleset.  Forms are hashed from their parameters, as the HttpProxyRule
+ * does.
+ */
+public class BodyHashMatcher extends Matcher {
+	private static final Logger logger = Logger
+	        .getLogger( BodyHashMatcher.class.getName() );
+
+	@Override
+	public boolean matches(Request request) {
+		String hash = null;
+		try {
+			hash = HttpProxyRule.hashBody( request );
+		}
+		catch ( IOException e ) {
+			logger.log( Level.WARNING, "Couldn't read the request body", e );
+		}
+		return this.matchValues( hash ) ^ this.isNegative();
+	}
+
+	@Override
+	public String toString() {
+		return "Body hash matcher, pattern " + this.getPattern();
+	}
+
+}
@@ -0,0 +1,178 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.apache.http.Header;
+import org.mocksy.filter.ResponseFilter;
+import org.mocksy.server.http.HttpResponse;
+
+/**
+ * A proxied server's response, read in full so that it can be handed out
+ * more than once, e.g. from the cache or to coalesced requests.
+ */
+class CapturedResponse {
+
+	private final int statusCode;
+	private final String[] headerNames;
+	private final String[] headerValues;
+	private final byte[] body;
+
+	/**
+	 * Captures the status and headers of the response, along with its body.
+	 *
+	 * @param response the proxied server's response
+	 * @param body the body of the response
+	 */
+	CapturedResponse(org.apache.http.HttpResponse response, byte[] body) {
+		this.statusCode = response.getStatusLine().getStatusCode();
+		Header[] headers = response.getAllHeaders();
+		this.headerNames = new String[headers.length];
+		this.headerValues = new String[headers.length];
+		for ( int i = 0; i < headers.length; i++ ) {
+			this.headerNames[i] = headers[i].getName();
+			this.headerValues[i] = headers[i].getValue();
+		}
+		this.body = body;
+	}
+
+	private CapturedResponse(int statusCode, String[] headerNames,
+	        String[] headerValues, byte[] body)
+	{
+		this.statusCode = statusCode;
+		this.headerNames = headerNames;
+		this.headerValues = headerValues;
+		this.body = body;
+	}
+
+	/**
+	 * Writes out the status, headers and body, to be read back in with
+	 * {@link #read(DataInputStream, int)}.
+	 *
+	 * @param output where to write the response
+	 * @throws IOException if it can't be written
+	 */
+	void write(DataOutputStream output) throws IOException {
+		output.writeInt( this.statusCode );
+		output.writeInt( this.headerNames.length );
+		for ( int i = 0; i < this.headerNames.length; i++ ) {
+			writeBytes( output, this.headerNames[i].getBytes( "UTF-8" ) );
+			writeBytes( output, this.headerValues[i].getBytes( "UTF-8" ) );
+		}
+		writeBytes( output, this.body );
+	}
+
+	/**
+	 * Reads in a response written with {@link #write(DataOutputStream)}.
+	 *
+	 * @param input where to read the response from
+	 * @param maxSize the most bytes any header or the body can take up
+	 * @return the response
+	 * @throws IOException if it can't be read, or isn't a response
+	 */
+	static CapturedResponse read(DataInputStream input, int maxSize)
+	        throws IOException
+	{
+		int statusCode = input.readInt();
+		int count = input.readInt();
+		if ( count < 0 || count > maxSize ) {
+			throw new IOException( "Bad header count: " + count );
+		}
+		String[] headerNames = new String[count];
+		String[] headerValues = new String[count];
+		for ( int i = 0; i < count; i++ ) {
+			headerNames[i] = new String( readBytes( input, maxSize ), "UTF-8" );
+			headerValues[i] = new String( readBytes( input, maxSize ), "UTF-8" );
+		}
+		return new CapturedResponse( statusCode, headerNames, headerValues,
+		        readBytes( input, maxSize ) );
+	}
+
+	static void writeBytes(DataOutputStream output, byte[] bytes)
+	        throws IOException
+	{
+		output.writeInt( bytes.length );
+		output.write( bytes );
+	}
+
+	static byte[] readBytes(DataInputStream input, int maxSize)
+	        throws IOException
+	{
+		int length = input.readInt();
+		if ( length < 0 || length > maxSize ) {
+			throw new IOException( "Bad length: " + length );
+		}
+		byte[] bytes = new byte[length];
+		input.readFully( bytes );
+		return bytes;
+	}
+
+	/**
+	 * Returns the HTTP status code of the response.
+	 *
+	 * @return the status code
+	 */
+	int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * Returns the first value of the given header.
+	 *
+	 * @param name the header name, in any case
+	 * @return the header value, or null if there isn't one
+	 */
+	String getHeader(String name) {
+		for ( int i = 0; i < this.headerNames.length; i++ ) {
+			if ( this.headerNames[i].equalsIgnoreCase( name ) ) {
+				return this.headerValues[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the body of the response.
+	 *
+	 * @return the response body
+	 */
+	byte[] getBody() {
+		return this.body;
+	}
+
+	/**
+	 * Creates a new Mocksy Response from the captured one.
+	 *
+	 * @param id the id of the Response
+	 * @param filters the filters to apply to the Response
+	 * @return a new Response
+	 */
+	HttpResponse toResponse(String id, List<ResponseFilter> filters) {
+		HttpResponse response = new HttpResponse( id, new ByteArrayInputStream(
+		        this.body ), filters );
+		response.setStatusCode( this.statusCode );
+		for ( int i = 0; i < this.headerNames.length; i++ ) {
+			if ( HttpProxyRule.isHopByHop( this.headerNames[i] ) ) continue;
+			response.setHeader( this.headerNames[i], this.headerValues[i] );
+		}
+		return response;
+	}
+}
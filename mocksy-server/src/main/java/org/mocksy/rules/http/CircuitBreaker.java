@@ -0,0 +1,352 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker for a proxied server, so that when the server is down,
+ * requests fail straight away instead of each one waiting out the timeouts.
+ *
+ * The breaker starts closed, letting requests through and keeping track of
+ * how the last few went.  When too many of them failed, or were too slow, it
+ * opens, and for the open time every request is turned away.  After that it
+ * goes half-open and lets a few probe requests through: if they all
+ * succeed it closes again, and if any of them fails it opens again.
+ *
+ * A breaker's settings are also used as a template: an {@link HttpProxyRule}
+ * gives each of its servers a breaker of its own, copied from the one it's
+ * given.
+ */
+public class CircuitBreaker {
+	private static final Logger logger = Logger.getLogger( CircuitBreaker.class
+	        .getName() );
+	/** State where requests go through. */
+	public static final int CLOSED = 0;
+	/** State where requests are turned away. */
+	public static final int OPEN = 1;
+	/** State where a few requests go through to see if the server is back. */
+	public static final int HALF_OPEN = 2;
+
+	/** Default number of recent requests the rates are worked out over. */
+	public static final int DEFAULT_WINDOW = 20;
+	/** Default percentage of failed requests that opens the breaker. */
+	public static final int DEFAULT_FAILURE_RATE = 50;
+	/** Default percentage of slow requests that opens the breaker. */
+	public static final int DEFAULT_SLOW_CALL_RATE = 100;
+	/** Default time the breaker stays open for, in milliseconds. */
+	public static final int DEFAULT_OPEN_TIME = 10000;
+	/** Default number of probe requests let through when half-open. */
+	public static final int DEFAULT_PROBES = 3;
+
+	private int window = DEFAULT_WINDOW;
+	private int failureRate = DEFAULT_FAILURE_RATE;
+	private int slowCallRate = DEFAULT_SLOW_CALL_RATE;
+	private int slowCallTime;
+	private int openTime = DEFAULT_OPEN_TIME;
+	private int probes = DEFAULT_PROBES;
+	private String name = "server";
+
+	// everything below is guarded by this
+	private int state = CLOSED;
+	private boolean[] failed;
+	private boolean[] slow;
+	private int calls;
+	private int next;
+	private int failures;
+	private int slowCalls;
+	private long openedAt;
+	private int probesStarted;
+	private int probesPassed;
+	private long opens;
+	private long halfOpens;
+	private long closes;
+	private long rejected;
+
+	/**
+	 * Creates a breaker with the default settings.  Slow requests aren't
+	 * counted until a slow call time is set.
+	 */
+	public CircuitBreaker() {
+		// defaults are fine
+	}
+
+	/**
+	 * Creates a closed breaker with the same settings as the given one.
+	 *
+	 * @param settings the breaker to copy the settings of
+	 * @param name what the breaker protects, for the log
+	 */
+	public CircuitBreaker(CircuitBreaker settings, String name) {
+		this.window = settings.window;
+		this.failureRate = settings.failureRate;
+		this.slowCallRate = settings.slowCallRate;
+		this.slowCallTime = settings.slowCallTime;
+		this.openTime = settings.openTime;
+		this.probes = settings.probes;
+		this.name = name;
+	}
+
+	/**
+	 * Sets how many of the most recent requests the failure and slow call
+	 * rates are worked out over.  The breaker won't open until it's seen
+	 * at least half that many.
+	 *
+	 * @param window the number of requests
+	 */
+	public void setWindow(int window) {
+		if ( window <= 0 ) {
+			throw new IllegalArgumentException(
+			        "CircuitBreaker window must be at least 1." );
+		}
+		this.window = window;
+	}
+
+	public int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * Sets the percentage of failed requests, from 1 to 100, that opens the
+	 * breaker.  Requests fail if the server can't be reached, doesn't
+	 * answer in time or answers with a 5xx status.
+	 *
+	 * @param failureRate the failure percentage
+	 */
+	public void setFailureRate(int failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public int getFailureRate() {
+		return this.failureRate;
+	}
+
+	/**
+	 * Sets the percentage of slow requests, from 1 to 100, that opens the
+	 * breaker.
+	 *
+	 * @param slowCallRate the slow call percentage
+	 */
+	public void setSlowCallRate(int slowCallRate) {
+		this.slowCallRate = slowCallRate;
+	}
+
+	public int getSlowCallRate() {
+		return this.slowCallRate;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, the server can take to answer before
+	 * the request counts as slow.  0, the default, means none are.
+	 *
+	 * @param slowCallTime the slow call time
+	 */
+	public void setSlowCallTime(int slowCallTime) {
+		this.slowCallTime = slowCallTime;
+	}
+
+	public int getSlowCallTime() {
+		return this.slowCallTime;
+	}
+
+	/**
+	 * Sets how long the breaker stays open, in milliseconds, before it lets
+	 * probe requests through.
+	 *
+	 * @param openTime the open time
+	 */
+	public void setOpenTime(int openTime) {
+		this.openTime = openTime;
+	}
+
+	public int getOpenTime() {
+		return this.openTime;
+	}
+
+	/**
+	 * Sets how many probe requests have to succeed for a half-open breaker
+	 * to close.
+	 *
+	 * @param probes the number of probes
+	 */
+	public void setProbes(int probes) {
+		if ( probes <= 0 ) {
+			throw new IllegalArgumentException(
+			        "CircuitBreaker needs at least 1 probe." );
+		}
+		this.probes = probes;
+	}
+
+	public int getProbes() {
+		return this.probes;
+	}
+
+	/**
+	 * Asks to send a request through.  Every request that's let through
+	 * must be followed by a call to {@link #record(long, boolean)}.
+	 *
+	 * @return true if the request can go, false if it should fail now
+	 */
+	public synchronized boolean tryAcquire() {
+		if ( this.state == OPEN ) {
+			if ( System.currentTimeMillis() - this.openedAt < this.openTime ) {
+				this.rejected++;
+				return false;
+			}
+			this.transition( HALF_OPEN );
+		}
+		if ( this.state == HALF_OPEN ) {
+			if ( this.probesStarted >= this.probes ) {
+				this.rejected++;
+				return false;
+			}
+			this.probesStarted++;
+		}
+		return true;
+	}
+
+	/**
+	 * Records how a request that was let through went.
+	 *
+	 * @param millis how long the server took to answer
+	 * @param failed whether the request failed
+	 */
+	public synchronized void record(long millis, boolean failed) {
+		boolean slow = this.slowCallTime > 0 && millis >= this.slowCallTime;
+		if ( this.state == HALF_OPEN ) {
+			if ( failed || slow ) {
+				this.transition( OPEN );
+			}
+			else if ( ++this.probesPassed >= this.probes ) {
+				this.transition( CLOSED );
+			}
+		}
+		else if ( this.state == CLOSED ) {
+			this.add( failed, slow );
+			if ( this.calls >= Math.max( 1, this.window / 2 ) ) {
+				boolean failing = this.failures * 100 >= this.failureRate
+				        * this.calls;
+				boolean slowing = this.slowCallTime > 0
+				        && this.slowCalls * 100 >= this.slowCallRate
+				                * this.calls;
+				if ( failing || slowing ) {
+					this.transition( OPEN );
+				}
+			}
+		}
+		// requests that finish after the breaker opened don't count
+	}
+
+	/**
+	 * Returns whether the breaker is open and still turning requests away.
+	 *
+	 * @return true if requests would be turned away right now
+	 */
+	public synchronized boolean isOpen() {
+		return this.state == OPEN
+		        && System.currentTimeMillis() - this.openedAt < this.openTime;
+	}
+
+	/**
+	 * Returns the breaker's state: {@link #CLOSED}, {@link #OPEN} or
+	 * {@link #HALF_OPEN}.
+	 *
+	 * @return the state
+	 */
+	public synchronized int getState() {
+		return this.state;
+	}
+
+	/**
+	 * Returns the breaker's numbers: its state, how many times it's opened,
+	 * gone half-open and closed, how many requests it's turned away, and
+	 * the failure and slow call percentages over the current window.
+	 *
+	 * @return the metrics, by name
+	 */
+	public synchronized Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		metrics.put( "breaker.state", this.state );
+		metrics.put( "breaker.opens", this.opens );
+		metrics.put( "breaker.half-opens", this.halfOpens );
+		metrics.put( "breaker.closes", this.closes );
+		metrics.put( "breaker.rejected", this.rejected );
+		metrics.put( "breaker.failure-rate", this.calls == 0 ? 0
+		        : this.failures * 100 / this.calls );
+		metrics.put( "breaker.slow-call-rate", this.calls == 0 ? 0
+		        : this.slowCalls * 100 / this.calls );
+		return metrics;
+	}
+
+	private void add(boolean failed, boolean slow) {
+		if ( this.failed == null ) {
+			this.failed = new boolean[this.window];
+			this.slow = new boolean[this.window];
+		}
+		if ( this.calls == this.window ) {
+			// forget the oldest
+			if ( this.failed[this.next] ) this.failures--;
+			if ( this.slow[this.next] ) this.slowCalls--;
+		}
+		else {
+			this.calls++;
+		}
+		this.failed[this.next] = failed;
+		this.slow[this.next] = slow;
+		if ( failed ) this.failures++;
+		if ( slow ) this.slowCalls++;
+		this.next = ( this.next + 1 ) % this.window;
+	}
+
+	private void transition(int state) {
+		this.state = state;
+		if ( state == OPEN ) {
+			this.opens++;
+			this.openedAt = System.currentTimeMillis();
+			logger.log( Level.WARNING, "Circuit breaker for " + this.name
+			        + " opened" );
+		}
+		else if ( state == HALF_OPEN ) {
+			this.halfOpens++;
+			this.probesStarted = 0;
+			this.probesPassed = 0;
+			logger.log( Level.INFO, "Circuit breaker for " + this.name
+			        + " half-open, probing" );
+		}
+		else {
+			this.closes++;
+			logger.log( Level.INFO, "Circuit breaker for " + this.name
+			        + " closed" );
+		}
+		// start counting afresh
+		this.calls = 0;
+		this.next = 0;
+		this.failures = 0;
+		this.slowCalls = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "CircuitBreaker for " + this.name + ", opens at "
+		        + this.failureRate + "% failed or " + this.slowCallRate
+		        + "% over " + this.slowCallTime + "ms, over " + this.window
+		        + " requests, for " + this.openTime + "ms";
+	}
+}
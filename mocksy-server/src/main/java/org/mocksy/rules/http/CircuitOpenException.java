@@ -0,0 +1,31 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request isn't sent because the server's circuit breaker is
+ * open.
+ */
+class CircuitOpenException extends IOException {
+	private static final long serialVersionUID = 7319404162542315094L;
+
+	CircuitOpenException(String url) {
+		super( "Circuit breaker for " + url + " is open" );
+	}
+}
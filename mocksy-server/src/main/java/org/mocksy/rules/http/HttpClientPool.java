@@ -0,0 +1,346 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * A pool of keep-alive connections to a single proxied server.
+ *
+ * Opening a new connection for every proxied request is slow and, under load,
+ * runs the machine out of sockets, so the {@link HttpProxyRule}s share pools
+ * instead.  There's one pool for every combination of server and settings,
+ * so rules that proxy to the same place with the same settings share their
+ * connections, even across Ruleset reloads.  Connections that sit idle for
+ * longer than the idle timeout are closed in the background.
+ */
+public class HttpClientPool {
+	/** Default maximum number of connections to a server. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 20;
+	/** Default time to wait for a connection to open, in milliseconds. */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	/** Default time to wait for data from the server, in milliseconds. */
+	public static final int DEFAULT_READ_TIMEOUT = 60000;
+	/** Default time an unused connection is kept open, in milliseconds. */
+	public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+	private static final Map<String, HttpClientPool> pools = new HashMap<String, HttpClientPool>();
+	private static Timer evictor;
+
+	private final String target;
+	private final int maxConnections;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int idleTimeout;
+	private final ThreadSafeClientConnManager manager;
+	private final DefaultHttpClient client;
+	private final AtomicInteger leased = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Returns the pool for the server at the given URL with the given
+	 * settings, creating it if it doesn't exist yet.
+	 *
+	 * @param url the URL of the proxied server; only the scheme, host and
+	 * 		port are used
+	 * @param maxConnections the maximum number of open connections
+	 * @param connectTimeout milliseconds to wait for a connection, 0 for ever
+	 * @param readTimeout milliseconds to wait for data, 0 for ever
+	 * @param idleTimeout milliseconds to keep an unused connection open
+	 * @return the shared pool
+	 */
+	public static HttpClientPool getPool(String url, int maxConnections,
+	        int connectTimeout, int readTimeout, int idleTimeout)
+	{
+		URI uri = URI.create( url );
+		String target = uri.getScheme() + "://" + uri.getHost()
+		        + ( uri.getPort() < 0 ? "" : ":" + uri.getPort() );
+		String key = target + "|" + maxConnections + "|" + connectTimeout
+		        + "|" + readTimeout + "|" + idleTimeout;
+		synchronized ( pools ) {
+			HttpClientPool pool = pools.get( key );
+			if ( pool == null ) {
+				pool = new HttpClientPool( target, maxConnections,
+				        connectTimeout, readTimeout, idleTimeout );
+				pools.put( key, pool );
+				pool.scheduleEviction();
+			}
+			return pool;
+		}
+	}
+
+	private HttpClientPool(String target, int maxConnections,
+	        int connectTimeout, int readTimeout, int idleTimeout)
+	{
+		if ( maxConnections <= 0 ) {
+			throw new IllegalArgumentException(
+			        "HttpClientPool needs at least one connection." );
+		}
+		this.target = target;
+		this.maxConnections = maxConnections;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.idleTimeout = idleTimeout;
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion( params, HttpVersion.HTTP_1_1 );
+		ConnManagerParams.setMaxTotalConnections( params, maxConnections );
+		ConnManagerParams.setMaxConnectionsPerRoute( params,
+		        new ConnPerRouteBean( maxConnections ) );
+		// don't wait on the pool any longer than we'd wait to connect
+		ConnManagerParams.setTimeout( params, connectTimeout );
+		HttpConnectionParams.setConnectionTimeout( params, connectTimeout );
+		HttpConnectionParams.setSoTimeout( params, readTimeout );
+		HttpConnectionParams.setStaleCheckingEnabled( params, true );
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register( new Scheme( "http", PlainSocketFactory
+		        .getSocketFactory(), 80 ) );
+		schemes.register( new Scheme( "https", SSLSocketFactory
+		        .getSocketFactory(), 443 ) );
+		this.manager = new ThreadSafeClientConnManager( params, schemes );
+		this.client = new DefaultHttpClient( this.manager, params );
+	}
+
+	/**
+	 * Sends the request using one of the pool's connections.  The response
+	 * body is read straight from the connection, which goes back to the pool
+	 * once the body has been read to the end or its stream is closed.  If the
+	 * stream is closed before the end, the connection is dropped instead, so
+	 * the rest of a large body doesn't have to be read just to reuse it.
+	 *
+	 * @param request the request to send
+	 * @return the server's response
+	 * @throws IOException if the request fails
+	 */
+	public HttpResponse execute(HttpRequestBase request) throws IOException {
+		this.requests.incrementAndGet();
+		this.leased.incrementAndGet();
+		boolean leasing = false;
+		try {
+			HttpResponse response = this.client.execute( request );
+			HttpEntity entity = response.getEntity();
+			// without a body to read, the connection is already back
+			if ( entity != null && entity.isStreaming() ) {
+				response.setEntity( new PooledEntity( entity, request ) );
+				leasing = true;
+			}
+			return response;
+		}
+		catch ( IOException e ) {
+			this.failures.incrementAndGet();
+			throw e;
+		}
+		finally {
+			if ( !leasing ) {
+				this.leased.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Closes connections that have been unused for longer than the idle
+	 * timeout, or that the server has said it's done with.
+	 */
+	public void evictIdleConnections() {
+		this.manager.closeExpiredConnections();
+		this.manager.closeIdleConnections( this.idleTimeout,
+		        TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Returns the number of connections that are currently open.
+	 *
+	 * @return number of open connections
+	 */
+	public int getOpenConnections() {
+		return this.manager.getConnectionsInPool();
+	}
+
+	/**
+	 * Returns the number of connections being used by a request right now.
+	 *
+	 * @return number of connections in use
+	 */
+	public int getLeasedConnections() {
+		return this.leased.get();
+	}
+
+	/**
+	 * Returns the maximum number of connections that can be open.
+	 *
+	 * @return maximum number of connections
+	 */
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	/**
+	 * Returns the pool's usage numbers: open, leased and idle connections,
+	 * the connection limit, the fraction of that limit in use, and the total
+	 * number of requests and failed requests.
+	 *
+	 * @return the metrics, by name
+	 */
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		int open = this.getOpenConnections();
+		int leased = this.getLeasedConnections();
+		metrics.put( "connections.open", open );
+		metrics.put( "connections.leased", leased );
+		metrics.put( "connections.idle", Math.max( 0, open - leased ) );
+		metrics.put( "connections.max", this.maxConnections );
+		metrics.put( "connections.utilization", (double) leased
+		        / this.maxConnections );
+		metrics.put( "requests", this.requests.get() );
+		metrics.put( "failures", this.failures.get() );
+		return metrics;
+	}
+
+	private void scheduleEviction() {
+		if ( this.idleTimeout <= 0 ) {
+			return;
+		}
+		if ( evictor == null ) {
+			evictor = new Timer( "HttpClientPool evictor", true );
+		}
+		long period = Math.max( 1000, this.idleTimeout / 2 );
+		evictor.schedule( new TimerTask() {
+			@Override
+			public void run() {
+				evictIdleConnections();
+			}
+		}, period, period );
+	}
+
+	/**
+	 * Entity whose content gives the connection back to the pool when it's
+	 * been read or closed, and keeps the pool's count of leased connections.
+	 */
+	private class PooledEntity extends HttpEntityWrapper {
+		private final HttpRequestBase request;
+		private final AtomicBoolean released = new AtomicBoolean();
+		private InputStream content;
+
+		PooledEntity(HttpEntity entity, HttpRequestBase request) {
+			super( entity );
+			this.request = request;
+		}
+
+		@Override
+		public synchronized InputStream getContent() throws IOException {
+			if ( this.content == null ) {
+				this.content = new PooledInputStream( super.getContent() );
+			}
+			return this.content;
+		}
+
+		@Override
+		public void consumeContent() throws IOException {
+			this.getContent().close();
+		}
+
+		private void release() {
+			if ( this.released.compareAndSet( false, true ) ) {
+				leased.decrementAndGet();
+			}
+		}
+
+		private class PooledInputStream extends FilterInputStream {
+			private boolean eof;
+
+			PooledInputStream(InputStream input) {
+				super( input );
+			}
+
+			@Override
+			public int read() throws IOException {
+				int read = super.read();
+				this.checkEof( read );
+				return read;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read( b, off, len );
+				this.checkEof( read );
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					if ( this.eof ) {
+						super.close();
+					}
+					else {
+						// don't wait for the rest of the body, just drop it
+						PooledEntity.this.request.abort();
+					}
+				}
+				finally {
+					release();
+				}
+			}
+
+			private void checkEof(int read) throws IOException {
+				if ( read < 0 && !this.eof ) {
+					this.eof = true;
+					this.close();
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HttpClientPool for " + this.target + ", " + this.maxConnections
+		        + " connections, connect timeout " + this.connectTimeout
+		        + "ms, read timeout " + this.readTimeout + "ms, idle timeout "
+		        + this.idleTimeout + "ms";
+	}
+}
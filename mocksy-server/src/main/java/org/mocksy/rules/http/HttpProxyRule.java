@@ -16,36 +16,110 @@ package org.mocksy.rules.http;
  *  limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
+import java.net.URLEncoder;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.message.BasicNameValuePair;
+import org.mocksy.DeferredResponse;
 import org.mocksy.Request;
 import org.mocksy.Response;
+import org.mocksy.filter.ResponseFilter;
 import org.mocksy.rules.Matcher;
+import org.mocksy.rules.Monitored;
 import org.mocksy.rules.Rule;
 import org.mocksy.server.http.HttpRequest;
 import org.mocksy.server.http.HttpResponse;
 
-public class HttpProxyRule implements Rule {
+/**
+ * Rule that passes the request on to a real server and returns that server's
+ * response.  Connections to the server are kept open and shared through an
+ * {@link HttpClientPool}, whose size and timeouts can be set on the rule.
+ * The proxy URL can list more than one server, separated by commas, in which
+ * case requests are spread over them by an {@link UpstreamGroup}.
+ */
+public class HttpProxyRule implements Rule, Monitored, Closeable {
+	// headers that only apply to a single connection, and so can't be passed on
+	private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<String>(
+	        Arrays.asList( "connection", "keep-alive", "proxy-connection",
+	                "proxy-authenticate", "proxy-authorization", "te",
+	                "trailer", "trailers", "transfer-encoding", "upgrade" ) );
+
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+	private static final int BUFFER_SIZE = 1024 * 8;
+
 	private Collection<Matcher> matchers = new ArrayList<Matcher>();
+	private List<ResponseFilter> filters = new ArrayList<ResponseFilter>();
 	private String proxyUrl;
+	private List<String> proxyUrls = new ArrayList<String>();
+	private int maxConnections = HttpClientPool.DEFAULT_MAX_CONNECTIONS;
+	private int connectTimeout = HttpClientPool.DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = HttpClientPool.DEFAULT_READ_TIMEOUT;
+	private int idleTimeout = HttpClientPool.DEFAULT_IDLE_TIMEOUT;
+	private String balance = UpstreamGroup.ROUND_ROBIN;
+	private int maxFailures = UpstreamGroup.DEFAULT_MAX_FAILURES;
+	private int ejectTime = UpstreamGroup.DEFAULT_EJECT_TIME;
+	private CircuitBreaker breaker;
+	private UpstreamGroup upstreams;
+	private Response fallback;
+	private ProxyCache cache;
+	private RequestCoalescer coalescer;
+	private ProxyRecorder recorder;
+	private LatencyTracker latency;
+	private List<String> keyHeaders = Collections.emptyList();
+	private boolean async;
+	private ThreadPoolExecutor executor;
 
+	/**
+	 * Creates the rule for the server, or servers, at the given URL.
+	 * 
+	 * @param proxyUrl the server's URL, or a comma-separated list of them
+	 */
 	public HttpProxyRule(String proxyUrl) {
 		this.proxyUrl = proxyUrl;
+		for ( String url : proxyUrl.split( "," ) ) {
+			if ( url.trim().length() > 0 ) {
+				this.proxyUrls.add( url.trim() );
+			}
+		}
+		if ( this.proxyUrls.isEmpty() ) {
+			throw new IllegalArgumentException( "No proxy URL given." );
+		}
 		this.clear();
 	}
 
@@ -65,49 +139,743 @@ public class HttpProxyRule implements Rule {
 		this.matchers.clear();
 	}
 
+	/**
+	 * Adds a filter to apply to the proxied server's responses.  Filtered
+	 * responses are read in full before they're sent on, rather than being
+	 * streamed through.
+	 * 
+	 * @param filter the ResponseFilter to add
+	 */
+	public void addFilter(ResponseFilter filter) {
+		this.filters.add( filter );
+	}
+
+	public List<ResponseFilter> getFilters() {
+		return this.filters;
+	}
+
 	public String getProxyUrl() {
 		return this.proxyUrl;
 	}
 
+	/**
+	 * Returns the URLs of the servers the rule proxies to.
+	 * 
+	 * @return the server URLs
+	 */
+	public List<String> getProxyUrls() {
+		return this.proxyUrls;
+	}
+
+	/**
+	 * Sets how to pick which server gets each request, when there's more
+	 * than one.  See {@link UpstreamGroup} for the choices.
+	 * 
+	 * @param balance round-robin, least-outstanding or ewma
+	 */
+	public synchronized void setBalance(String balance) {
+		UpstreamGroup.checkBalance( balance );
+		this.balance = balance;
+		this.upstreams = null;
+	}
+
+	public String getBalance() {
+		return this.balance;
+	}
+
+	/**
+	 * Sets how many failures in a row get a server ejected, when there's
+	 * more than one.  0 means servers are never ejected.
+	 * 
+	 * @param maxFailures the number of failures
+	 */
+	public synchronized void setMaxFailures(int maxFailures) {
+		this.maxFailures = maxFailures;
+		this.upstreams = null;
+	}
+
+	public int getMaxFailures() {
+		return this.maxFailures;
+	}
+
+	/**
+	 * Sets how long an ejected server is left out for, in milliseconds.
+	 * 
+	 * @param ejectTime the ejection time
+	 */
+	public synchronized void setEjectTime(int ejectTime) {
+		this.ejectTime = ejectTime;
+		this.upstreams = null;
+	}
+
+	public int getEjectTime() {
+		return this.ejectTime;
+	}
+
+	/**
+	 * Sets the maximum number of connections to keep open to the server.
+	 * 
+	 * @param maxConnections the maximum number of connections
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+		this.upstreams = null;
+	}
+
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	/**
+	 * Sets how long to wait for a connection to the server, in milliseconds.
+	 * 0 means to wait for ever.
+	 * 
+	 * @param connectTimeout the connect timeout
+	 */
+	public synchronized void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.upstreams = null;
+	}
+
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for data from the server, in milliseconds.
+	 * 0 means to wait for ever.
+	 * 
+	 * @param readTimeout the read timeout
+	 */
+	public synchronized void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		this.upstreams = null;
+	}
+
+	public int getReadTimeout() {
+		return this.readTimeout;
+	}
+
+	/**
+	 * Sets how long an unused connection is kept open, in milliseconds.
+	 * 
+	 * @param idleTimeout the idle timeout
+	 */
+	public synchronized void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		this.upstreams = null;
+	}
+
+	public int getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	/**
+	 * Sets the circuit breaker settings for the servers.  Each server gets a
+	 * breaker of its own, with the same settings.
+	 * 
+	 * @param breaker the breaker settings, or null for no breakers
+	 */
+	public synchronized void setCircuitBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+		this.upstreams = null;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return this.breaker;
+	}
+
+	/**
+	 * Sets the response to send when the server can't be reached, doesn't
+	 * answer in time or its circuit breaker is open, in place of a 503 or
+	 * 504.  A stale cached response is still preferred, if there is one.
+	 * 
+	 * @param fallback the fallback response, or null for none
+	 */
+	public void setFallback(Response fallback) {
+		this.fallback = fallback;
+	}
+
+	public Response getFallback() {
+		return this.fallback;
+	}
+
+	/**
+	 * Returns the servers this rule sends its requests to.
+	 * 
+	 * @return the servers
+	 */
+	public synchronized UpstreamGroup getUpstreams() {
+		if ( this.upstreams == null ) {
+			Map<String, HttpClientPool> pools = new LinkedHashMap<String, HttpClientPool>();
+			for ( String url : this.proxyUrls ) {
+				pools.put( url, HttpClientPool.getPool( url,
+				        this.maxConnections, this.connectTimeout,
+				        this.readTimeout, this.idleTimeout ) );
+			}
+			this.upstreams = new UpstreamGroup( pools, this.balance,
+			        this.maxFailures, this.ejectTime, this.breaker );
+		}
+		return this.upstreams;
+	}
+
+	/**
+	 * Returns the connection pool this rule sends its requests through, or
+	 * the first server's pool if there's more than one.
+	 * 
+	 * @return the connection pool
+	 */
+	public HttpClientPool getPool() {
+		return this.getUpstreams().getUpstreams().get( 0 ).getPool();
+	}
+
+	/**
+	 * Sets the cache to keep the proxied server's responses in, so that
+	 * repeated requests don't have to go to the server again.
+	 * 
+	 * @param cache the ProxyCache, or null to send every request on
+	 */
+	public void setCache(ProxyCache cache) {
+		this.cache = cache;
+	}
+
+	public ProxyCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Turns coalescing on or off.  When it's on, identical requests that
+	 * arrive while one is already being proxied wait for, and share, that
+	 * one's response, rather than going to the server themselves.  Shared
+	 * responses are read in full before they're handed out.
+	 * 
+	 * @param coalescing true to coalesce identical requests
+	 */
+	public void setCoalescing(boolean coalescing) {
+		this.coalescer = ( coalescing ? new RequestCoalescer() : null );
+	}
+
+	public boolean isCoalescing() {
+		return this.coalescer != null;
+	}
+
+	/**
+	 * Sets the recorder to write the proxied server's responses to, so that
+	 * they can be served again without it.
+	 * 
+	 * @param recorder the recorder, or null not to record
+	 */
+	public void setRecorder(ProxyRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	public ProxyRecorder getRecorder() {
+		return this.recorder;
+	}
+
+	/**
+	 * Sets whether to keep a histogram of the proxied server's latency for
+	 * each route, i.e. method and path.  Recorded rules then get a delay
+	 * that reproduces it.
+	 * 
+	 * @param tracking true to track latency
+	 */
+	public void setLatencyTracking(boolean tracking) {
+		this.latency = ( tracking ? new LatencyTracker() : null );
+	}
+
+	public boolean isLatencyTracking() {
+		return this.latency != null;
+	}
+
+	/**
+	 * Returns the proxied server's latency for each route.
+	 * 
+	 * @return the latency tracker, or null if latency isn't tracked
+	 */
+	public LatencyTracker getLatencyTracker() {
+		return this.latency;
+	}
+
+	/**
+	 * Sets the request headers whose values tell otherwise identical
+	 * requests apart, e.g. Accept or Authorization, for caching and
+	 * coalescing.
+	 * 
+	 * @param keyHeaders the header names
+	 */
+	public void setKeyHeaders(List<String> keyHeaders) {
+		this.keyHeaders = new ArrayList<String>( keyHeaders );
+	}
+
+	public List<String> getKeyHeaders() {
+		return this.keyHeaders;
+	}
+
+	/**
+	 * Sets whether to wait for the proxied server on the rule's own
+	 * threads, so that the server's thread can serve other requests in the
+	 * meantime.  This is off by default, and only happens for requests
+	 * whose server can wait for a {@link DeferredResponse}; cached responses
+	 * are always returned straight away.
+	 * 
+	 * The call still blocks one of the rule's threads.  There are as many
+	 * of those as the rule has connections, with as many calls again
+	 * waiting for one; any more get a 503 straight away.
+	 * 
+	 * @param async true to hand the call off to the rule's threads
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public boolean isAsync() {
+		return this.async;
+	}
+
+	public Map<String, Number> getMetrics() {
+		UpstreamGroup upstreams = this.getUpstreams();
+		Map<String, Number> metrics;
+		if ( upstreams.getUpstreams().size() == 1 ) {
+			metrics = this.getPool().getMetrics();
+			CircuitBreaker breaker = upstreams.getUpstreams().get( 0 )
+			        .getBreaker();
+			if ( breaker != null ) {
+				metrics.putAll( breaker.getMetrics() );
+			}
+		}
+		else {
+			metrics = upstreams.getMetrics();
+		}
+		if ( this.cache != null ) {
+			metrics.putAll( this.cache.getMetrics() );
+		}
+		if ( this.coalescer != null ) {
+			metrics.putAll( this.coalescer.getMetrics() );
+		}
+		if ( this.recorder != null ) {
+			metrics.putAll( this.recorder.getMetrics() );
+		}
+		if ( this.latency != null ) {
+			metrics.putAll( this.latency.getMetrics() );
+		}
+		return metrics;
+	}
+
 	public Response process(Request request) throws Exception {
 		if ( !( request instanceof HttpRequest ) ) {
 			throw new IllegalArgumentException(
 			        "ProxyRule only works for HttpRequests" );
 		}
 		HttpRequest httpRequest = (HttpRequest) request;
-		HttpClient httpClient = new DefaultHttpClient();
-		HttpRequestBase method = this.getProxyMethod( httpRequest
-		        .getServletRequest() );
-		// httpRequest.getServletRequest();
-		HttpResponse response = null;
+		String route = getRoute( httpRequest );
+		ProxyCache cache = this.cache;
+		RequestCoalescer coalescer = this.coalescer;
+		ProxyRecorder recorder = this.recorder;
+		String key = null;
+		ProxyRecorder.RecordedRequest recording = null;
+		if ( cache != null || coalescer != null || recorder != null ) {
+			String bodyHash = this.getBodyHash( httpRequest );
+			key = this.getRequestKey( httpRequest, bodyHash );
+			if ( recorder != null ) {
+				recording = this.getRecordedRequest( httpRequest, key,
+				        bodyHash, route );
+			}
+		}
+		if ( cache != null ) {
+			HttpResponse cached = cache.get( key, this.filters );
+			if ( cached != null ) {
+				return cached;
+			}
+		}
+		boolean defer = this.async && httpRequest.isAsync();
+		if ( defer ) {
+			// the server may not let another thread read the body once it
+			// has moved on, so a call that's handed off gets a copy of it
+			readBody( httpRequest );
+		}
+		UpstreamGroup.Upstream upstream = this.getUpstreams().select();
+		ProxiedCall call = new ProxiedCall( upstream, this.getProxyMethod(
+		        httpRequest, upstream.getUrl() ), route, cache, coalescer,
+		        recorder, key, recording );
+		if ( defer ) {
+			// wait for the server on one of our own threads rather than
+			// the server's
+			return this.defer( call );
+		}
+		return call.call();
+	}
+
+	/**
+	 * Makes the call on one of the rule's threads, and returns a Response
+	 * that's completed once it's done.
+	 */
+	private Response defer(final ProxiedCall call) {
+		final DeferredResponse deferred = new DeferredResponse(
+		        "proxied response" );
 		try {
-			org.apache.http.HttpResponse httpResp = httpClient.execute( method );
+			this.getExecutor().execute( new Runnable() {
+				public void run() {
+					try {
+						deferred.complete( call.call() );
+					}
+					catch ( Exception e ) {
+						deferred.fail( e );
+					}
+				}
+			} );
+		}
+		catch ( RejectedExecutionException e ) {
+			deferred.complete( this.busy() );
+		}
+		return deferred;
+	}
 
-			response = new HttpResponse( "proxied response", httpResp
-			        .getEntity().getContent() );
-			response.setStatusCode( httpResp.getStatusLine().getStatusCode() );
+	/**
+	 * Returns the executor the deferred calls run on.  Each call blocks a
+	 * thread until it has a connection and the server's response, so there
+	 * are only as many threads as there are connections to all of the
+	 * servers, and as many calls again can wait for one.
+	 */
+	private synchronized ThreadPoolExecutor getExecutor() {
+		int threads = this.maxConnections
+		        * this.getUpstreams().getUpstreams().size();
+		if ( this.executor == null
+		        || this.executor.getMaximumPoolSize() != threads )
+		{
+			if ( this.executor != null ) {
+				// the connections have changed, let the old calls finish
+				this.executor.shutdown();
+			}
+			final String name = "HttpProxyRule " + this.proxyUrl;
+			this.executor = new ThreadPoolExecutor( threads, threads, 60,
+			        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+			                threads ), new ThreadFactory() {
+				        public Thread newThread(Runnable runnable) {
+					        Thread thread = new Thread( runnable, name );
+					        thread.setDaemon( true );
+					        return thread;
+				        }
+			        } );
+			this.executor.allowCoreThreadTimeOut( true );
+		}
+		return this.executor;
+	}
 
-			// Pass response headers back to the client
-			Header[] headerArrayResponse = httpResp.getAllHeaders();
-			for ( Header header : headerArrayResponse ) {
-				response.setHeader( header.getName(), header.getValue() );
+	/**
+	 * Lets the deferred calls that are under way finish, and stops the
+	 * threads they run on once they have.  The connection pools are shared
+	 * with other rules, so they're left alone.  The rule still works
+	 * afterwards, for requests that were already on their way to it.
+	 */
+	public synchronized void close() {
+		if ( this.executor != null ) {
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+
+	private HttpResponse busy() {
+		HttpResponse response = new HttpResponse( "proxy busy",
+		        "Too many requests waiting for " + this.proxyUrl + "." );
+		response.setStatusCode( 503 );
+		return response;
+	}
+
+	/**
+	 * Works out what to send back when the server has failed: a stale
+	 * cached response if there is one, or else the fallback response, or
+	 * else the given error.
+	 */
+	private Response failed(ProxyCache cache, String key, HttpResponse error)
+	{
+		Response stale = this.getStale( cache, key );
+		if ( stale != null ) {
+			return stale;
+		}
+		if ( this.fallback != null ) {
+			return this.fallback;
+		}
+		return error;
+	}
+
+	private HttpResponse getStale(ProxyCache cache, String key) {
+		if ( cache == null || key == null ) {
+			return null;
+		}
+		return cache.getStale( key, this.filters );
+	}
+
+	/**
+	 * Sends the request on and reads the whole response, caching and
+	 * recording it if need be.
+	 */
+	private CapturedResponse capture(UpstreamGroup.Upstream upstream,
+	        HttpRequestBase method, String route, ProxyCache cache,
+	        String key, ProxyRecorder.RecordedRequest recording)
+	        throws IOException
+	{
+		org.apache.http.HttpResponse httpResp = this.execute( upstream,
+		        method, route );
+		InputStream content = getContent( httpResp );
+		if ( cache != null ) {
+			content = cache.put( key, httpResp, content );
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = -1;
+			while ( ( read = content.read( buffer ) ) > -1 ) {
+				body.write( buffer, 0, read );
 			}
 		}
-		catch ( ConnectException e ) {
-			response = new HttpResponse( "connection failed",
-			        "Proxied server at " + method.getURI() + " is unavailable." );
-			response.setStatusCode( 503 );
+		finally {
+			content.close();
 		}
+		CapturedResponse captured = new CapturedResponse( httpResp, body
+		        .toByteArray() );
+		ProxyRecorder recorder = this.recorder;
+		if ( recording != null && recorder != null && recorder.start( key ) ) {
+			recorder.record( recording, captured );
+		}
+		return captured;
+	}
 
+	/**
+	 * Sends the request on, timing how long the server takes to answer if
+	 * latency is being tracked.
+	 */
+	private org.apache.http.HttpResponse execute(
+	        UpstreamGroup.Upstream upstream, HttpRequestBase method,
+	        String route) throws IOException
+	{
+		LatencyTracker latency = this.latency;
+		if ( latency == null ) {
+			return upstream.execute( method );
+		}
+		long start = System.currentTimeMillis();
+		org.apache.http.HttpResponse response = upstream.execute( method );
+		latency.record( route, System.currentTimeMillis() - start );
 		return response;
 	}
 
+	/**
+	 * Returns the route that the request's latency is counted under: its
+	 * method and path, without the query string.
+	 */
+	private static String getRoute(HttpRequest request) {
+		HttpServletRequest servletRequest = request.getServletRequest();
+		return servletRequest.getMethod() + " "
+		        + servletRequest.getPathInfo();
+	}
+
+	/**
+	 * Works out the key that tells this request apart from others, from its
+	 * method, URL, key headers and body hash.
+	 */
+	private String getRequestKey(HttpRequest request, String bodyHash) {
+		HttpServletRequest servletRequest = request.getServletRequest();
+		StringBuilder key = new StringBuilder();
+		key.append( servletRequest.getMethod() ).append( ' ' );
+		key.append( this.proxyUrl ).append( servletRequest.getPathInfo() );
+		if ( servletRequest.getQueryString() != null ) {
+			key.append( '?' ).append( servletRequest.getQueryString() );
+		}
+		for ( String header : this.keyHeaders ) {
+			key.append( '\n' ).append( header ).append( ": " ).append(
+			        servletRequest.getHeader( header ) );
+		}
+		if ( bodyHash != null ) {
+			key.append( '\n' ).append( bodyHash );
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns the hash of the body of a POST or PUT.  The body has to be
+	 * read to hash it, so it's held on to.
+	 * 
+	 * @return the hash, or null if there's no body to tell requests apart
+	 */
+	private String getBodyHash(HttpRequest request) throws IOException {
+		String method = request.getServletRequest().getMethod();
+		if ( "POST".equals( method ) || "PUT".equals( method ) ) {
+			return hashBody( request );
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the request's body, in hex.  Forms are
+	 * hashed from their parameters instead, since reading the body would
+	 * leave the servlet container nothing to get the parameters from.
+	 * 
+	 * @return the hash, or null if there's no body
+	 */
+	static String hashBody(Request request) throws IOException {
+		if ( request instanceof HttpRequest
+		        && isForm( ( (HttpRequest) request ).getServletRequest() ) )
+		{
+			return hash( new ByteArrayInputStream( encodeParameters(
+			        ( (HttpRequest) request ).getServletRequest() ) ) );
+		}
+		InputStream body = request.getData();
+		return ( body == null ? null : hash( body ) );
+	}
+
+	/**
+	 * Encodes the request's parameters in name order, so that the same form
+	 * always comes out the same whatever order the fields were sent in.
+	 */
+	private static byte[] encodeParameters(HttpServletRequest request)
+	        throws IOException
+	{
+		Map<String, String[]> params = new TreeMap<String, String[]>(
+		        getParameterMap( request ) );
+		StringBuilder encoded = new StringBuilder();
+		for ( Map.Entry<String, String[]> param : params.entrySet() ) {
+			for ( String value : param.getValue() ) {
+				if ( encoded.length() > 0 ) {
+					encoded.append( '&' );
+				}
+				encoded.append( URLEncoder.encode( param.getKey(), "UTF-8" ) )
+				        .append( '=' ).append(
+				                URLEncoder.encode( value, "UTF-8" ) );
+			}
+		}
+		return encoded.toString().getBytes( "UTF-8" );
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, String[]> getParameterMap(
+	        HttpServletRequest request)
+	{
+		return request.getParameterMap();
+	}
+
+	private static boolean isForm(HttpServletRequest request) {
+		String contentType = request.getContentType();
+		return contentType != null && contentType.startsWith( FORM_CONTENT_TYPE );
+	}
+
+	/**
+	 * Reads the body of a POST or PUT into memory, so that it's sent on
+	 * from there rather than streamed.  Forms are left to the servlet
+	 * container, which reads them to get at the parameters.
+	 */
+	static void readBody(HttpRequest request) throws IOException {
+		HttpServletRequest servletRequest = request.getServletRequest();
+		String method = servletRequest.getMethod();
+		if ( ( "POST".equals( method ) || "PUT".equals( method ) )
+		        && !isForm( servletRequest ) )
+		{
+			request.getData();
+		}
+	}
+
+	private ProxyRecorder.RecordedRequest getRecordedRequest(
+	        HttpRequest request, String key, String bodyHash, String route)
+	{
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		for ( String header : this.keyHeaders ) {
+			headers.put( header, request.getHeader( header ) );
+		}
+		LatencyTracker latency = this.latency;
+		return new ProxyRecorder.RecordedRequest( key, request
+		        .getServletRequest().getMethod(), request.getFullURL(),
+		        headers, bodyHash, latency == null ? null : latency
+		                .getHistogram( route ) );
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the stream, in hex.
+	 */
+	static String hash(InputStream input) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = -1;
+			while ( ( read = input.read( buffer ) ) > -1 ) {
+				digest.update( buffer, 0, read );
+			}
+			return toHex( digest.digest() );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			// every JVM has SHA-1
+			throw new IllegalStateException( e );
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for ( byte b : bytes ) {
+			hex.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) );
+			hex.append( Character.forDigit( b & 0xf, 16 ) );
+		}
+		return hex.toString();
+	}
+
+	private static HttpResponse unavailable(HttpRequestBase method) {
+		HttpResponse response = new HttpResponse( "connection failed",
+		        "Proxied server at " + method.getURI() + " is unavailable." );
+		response.setStatusCode( 503 );
+		return response;
+	}
+
+	/**
+	 * Copies the proxied server's response.  Unless there are filters to
+	 * apply, the body isn't read here; it's streamed to the client as it
+	 * arrives, and the connection goes back to the pool once it's been sent.
+	 * Filtered bodies are read in full first, so that a filter error can
+	 * still be reported properly.
+	 */
+	private HttpResponse toResponse(org.apache.http.HttpResponse httpResp,
+	        InputStream content)
+	{
+		HttpResponse response = new HttpResponse( "proxied response", content,
+		        this.filters );
+		response.setStreamed( this.filters.isEmpty() );
+		response.setStatusCode( httpResp.getStatusLine().getStatusCode() );
+
+		// Pass response headers back to the client
+		Header[] headerArrayResponse = httpResp.getAllHeaders();
+		for ( Header header : headerArrayResponse ) {
+			if ( isHopByHop( header.getName() ) ) continue;
+			response.setHeader( header.getName(), header.getValue() );
+		}
+		return response;
+	}
+
+	private static InputStream getContent(org.apache.http.HttpResponse httpResp)
+	        throws IOException
+	{
+		HttpEntity entity = httpResp.getEntity();
+		return ( entity == null ? new ByteArrayInputStream( new byte[0] )
+		        : entity.getContent() );
+	}
+
+	static boolean isHopByHop(String header) {
+		return HOP_BY_HOP_HEADERS.contains( header.toLowerCase() );
+	}
+
 	public Collection<Matcher> getMatchers() {
 		return this.matchers;
 	}
 
-	protected HttpRequestBase getProxyMethod(HttpServletRequest request) {
-		String proxyUrl = this.proxyUrl;
+	protected HttpRequestBase getProxyMethod(HttpRequest httpRequest)
+	        throws IOException
+	{
+		return this.getProxyMethod( httpRequest, this.proxyUrls.get( 0 ) );
+	}
+
+	/**
+	 * Creates the request to send on to the server at the given URL.
+	 */
+	protected HttpRequestBase getProxyMethod(HttpRequest httpRequest,
+	        String serverUrl) throws IOException
+	{
+		HttpServletRequest request = httpRequest.getServletRequest();
+		String proxyUrl = serverUrl;
 		proxyUrl += request.getPathInfo();
 		if ( request.getQueryString() != null ) {
 			proxyUrl += "?" + request.getQueryString();
@@ -120,25 +888,11 @@ public class HttpProxyRule implements Rule {
 		}
 		else if ( "POST".equals( request.getMethod() ) ) {
 			method = new HttpPost( proxyUrl );
-
-			Map<String, String[]> paramMap = request.getParameterMap();
-			List<NameValuePair> params = new ArrayList<NameValuePair>();
-			for ( String paramName : paramMap.keySet() ) {
-				String[] values = paramMap.get( paramName );
-				for ( String value : values ) {
-					NameValuePair param = new BasicNameValuePair( paramName,
-					        value );
-					params.add( param );
-				}
-			}
-
-			try {
-				( (HttpPost) method ).setEntity( new UrlEncodedFormEntity(
-				        params ) );
-			}
-			catch ( UnsupportedEncodingException e ) {
-				// don't worry, this won't happen
-			}
+			( (HttpPost) method ).setEntity( getProxyEntity( httpRequest ) );
+		}
+		else if ( "PUT".equals( request.getMethod() ) ) {
+			method = new HttpPut( proxyUrl );
+			( (HttpPut) method ).setEntity( getProxyEntity( httpRequest ) );
 		}
 
 		Enumeration headers = request.getHeaderNames();
@@ -146,7 +900,7 @@ public class HttpProxyRule implements Rule {
 			String header = (String) headers.nextElement();
 			if ( "If-Modified-Since".equals( header )
 			        || "Content-Length".equals( header )
-			        || "Transfer-Encoding".equals( header ) ) continue;
+			        || isHopByHop( header ) ) continue;
 			Enumeration values = request.getHeaders( header );
 			while ( values.hasMoreElements() ) {
 				String value = (String) values.nextElement();
@@ -156,4 +910,131 @@ public class HttpProxyRule implements Rule {
 
 		return method;
 	}
+
+	/**
+	 * Returns the request body to send on to the proxied server.  The body
+	 * is streamed through as it arrives, except for forms, which the servlet
+	 * container may already have read to get at the parameters; those are
+	 * encoded again from the parameters instead.
+	 */
+	private static HttpEntity getProxyEntity(HttpRequest httpRequest)
+	        throws IOException
+	{
+		HttpServletRequest request = httpRequest.getServletRequest();
+		if ( !isForm( request ) ) {
+			InputStream body = httpRequest.streamData();
+			if ( body != null ) {
+				return new InputStreamEntity( body, request.getContentLength() );
+			}
+		}
+
+		Map<String, String[]> paramMap = getParameterMap( request );
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		for ( String paramName : paramMap.keySet() ) {
+			String[] values = paramMap.get( paramName );
+			for ( String value : values ) {
+				NameValuePair param = new BasicNameValuePair( paramName, value );
+				params.add( param );
+			}
+		}
+
+		try {
+			return new UrlEncodedFormEntity( params );
+		}
+		catch ( UnsupportedEncodingException e ) {
+			// don't worry, this won't happen
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * A request on its way to the proxied server, with everything needed to
+	 * cache, coalesce or record its response, so that it can be sent on
+	 * from another thread.
+	 */
+	private class ProxiedCall implements Callable<Response> {
+		private final UpstreamGroup.Upstream upstream;
+		private final HttpRequestBase method;
+		private final String route;
+		private final ProxyCache cache;
+		private final RequestCoalescer coalescer;
+		private final ProxyRecorder recorder;
+		private final String key;
+		private final ProxyRecorder.RecordedRequest recording;
+
+		ProxiedCall(UpstreamGroup.Upstream upstream, HttpRequestBase method,
+		        String route, ProxyCache cache, RequestCoalescer coalescer,
+		        ProxyRecorder recorder, String key,
+		        ProxyRecorder.RecordedRequest recording)
+		{
+			this.upstream = upstream;
+			this.method = method;
+			this.route = route;
+			this.cache = cache;
+			this.coalescer = coalescer;
+			this.recorder = recorder;
+			this.key = key;
+			this.recording = recording;
+		}
+
+		public Response call() throws Exception {
+			Response response = null;
+			try {
+				if ( coalescer != null ) {
+					CapturedResponse captured = coalescer.execute( key,
+					        new Callable<CapturedResponse>() {
+						        public CapturedResponse call() throws Exception {
+							        return capture( upstream, method, route,
+							                cache, key, recording );
+						        }
+					        } );
+					if ( captured.getStatusCode() >= 500 ) {
+						response = getStale( cache, key );
+					}
+					if ( response == null ) {
+						response = captured.toResponse( "proxied response",
+						        filters );
+					}
+				}
+				else {
+					org.apache.http.HttpResponse httpResp = execute(
+					        upstream, method, route );
+					if ( httpResp.getStatusLine().getStatusCode() >= 500 ) {
+						HttpResponse stale = getStale( cache, key );
+						if ( stale != null ) {
+							getContent( httpResp ).close();
+							return stale;
+						}
+					}
+					InputStream content = getContent( httpResp );
+					if ( cache != null ) {
+						content = cache.put( key, httpResp, content );
+					}
+					if ( recording != null && recorder.start( key ) ) {
+						content = recorder.tee( recording, httpResp,
+						        content );
+					}
+					response = toResponse( httpResp, content );
+				}
+			}
+			catch ( CircuitOpenException e ) {
+				response = failed( cache, key, unavailable( method ) );
+			}
+			catch ( ConnectException e ) {
+				response = failed( cache, key, unavailable( method ) );
+			}
+			catch ( ConnectTimeoutException e ) {
+				response = failed( cache, key, unavailable( method ) );
+			}
+			catch ( SocketTimeoutException e ) {
+				HttpResponse timedOut = new HttpResponse( "read timed out",
+				        "Proxied server at " + method.getURI()
+				                + " did not respond in time." );
+				timedOut.setStatusCode( 504 );
+				response = failed( cache, key, timedOut );
+			}
+
+			return response;
+		}
+	}
 }
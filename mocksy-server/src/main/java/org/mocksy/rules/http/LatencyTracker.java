@@ -0,0 +1,102 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.mocksy.rules.LatencyHistogram;
+
+/**
+ * Keeps a {@link LatencyHistogram} of how long the proxied server takes to
+ * start answering, for each route, i.e. each method and path, so that mock
+ * rules can be given the same delays later.
+ *
+ * Only the first {@link #MAX_ROUTES} routes get a histogram of their own;
+ * once there are that many, the rest share one called {@link #OTHER_ROUTE},
+ * so that URLs with ids in them can't use up all the memory.
+ */
+public class LatencyTracker {
+	/** The most routes that get a histogram of their own. */
+	public static final int MAX_ROUTES = 1000;
+	/** The route that the routes over {@link #MAX_ROUTES} are counted in. */
+	public static final String OTHER_ROUTE = "other";
+
+	private final ConcurrentMap<String, LatencyHistogram> routes = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final LatencyHistogram all = new LatencyHistogram();
+
+	/**
+	 * Returns the histogram for the given route, starting one if need be.
+	 *
+	 * @param route the method and path, e.g. <code>GET /accounts</code>
+	 * @return the route's histogram
+	 */
+	public LatencyHistogram getHistogram(String route) {
+		LatencyHistogram histogram = this.routes.get( route );
+		if ( histogram == null ) {
+			if ( this.routes.size() >= MAX_ROUTES ) {
+				route = OTHER_ROUTE;
+			}
+			histogram = new LatencyHistogram();
+			LatencyHistogram existing = this.routes.putIfAbsent( route,
+			        histogram );
+			if ( existing != null ) {
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Records how long a request on the given route took.
+	 *
+	 * @param route the method and path
+	 * @param millis the latency, in milliseconds
+	 */
+	public void record(String route, long millis) {
+		this.getHistogram( route ).record( millis );
+		this.all.record( millis );
+	}
+
+	/**
+	 * Returns the histogram of each route, sorted by route.
+	 *
+	 * @return the histograms, by route
+	 */
+	public SortedMap<String, LatencyHistogram> getHistograms() {
+		return new TreeMap<String, LatencyHistogram>( this.routes );
+	}
+
+	/**
+	 * Returns the latency percentiles over all routes, in milliseconds.
+	 *
+	 * @return the metrics, by name
+	 */
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		metrics.put( "latency.count", this.all.getCount() );
+		metrics.put( "latency.routes", this.routes.size() );
+		metrics.put( "latency.p50", this.all.getPercentile( 50 ) );
+		metrics.put( "latency.p90", this.all.getPercentile( 90 ) );
+		metrics.put( "latency.p99", this.all.getPercentile( 99 ) );
+		metrics.put( "latency.max", this.all.getPercentile( 100 ) );
+		return metrics;
+	}
+}
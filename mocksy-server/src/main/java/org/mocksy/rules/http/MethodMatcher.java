@@ -0,0 +1,43 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import org.mocksy.Request;
+import org.mocksy.rules.Matcher;
+import org.mocksy.server.http.HttpRequest;
+
+/**
+ * Matcher for the HTTP method of the request, e.g. GET or POST.
+ */
+public class MethodMatcher extends Matcher {
+
+	@Override
+	public boolean matches(Request request) {
+		if ( !( request instanceof HttpRequest ) ) {
+			return this.isNegative();
+		}
+		String method = ( (HttpRequest) request ).getServletRequest()
+		        .getMethod();
+		return this.matchValues( method ) ^ this.isNegative();
+	}
+
+	@Override
+	public String toString() {
+		return "HTTP Method matcher, pattern " + this.getPattern();
+	}
+
+}
@@ -0,0 +1,245 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.Matcher;
+import org.mocksy.rules.Monitored;
+import org.mocksy.rules.Rule;
+import org.mocksy.server.http.HttpRequest;
+
+/**
+ * Sends a copy of each request that another {@link Rule} handles on to a
+ * second server as well, e.g. to try a new version of a service out on the
+ * same traffic.  The other Rule's Response is what the client gets; the
+ * second server's response is read and thrown away.
+ *
+ * Copies are sent from a small pool of background threads, so mirroring
+ * never holds up the Response.  If the second server falls too far behind,
+ * new copies are dropped rather than queued.  Only GET, POST and PUT
+ * requests are mirrored, the same as a proxy rule sends on.  Their bodies
+ * are read into memory before the Rule sees them, where it can still read
+ * them; forms are left for the servlet container to decode, and the copy
+ * is made from their parameters.
+ */
+public class MirrorRule implements Rule, Monitored, Closeable {
+	private static final Logger logger = Logger.getLogger( MirrorRule.class
+	        .getName() );
+	/** The number of threads sending copies, by default. */
+	public static final int DEFAULT_THREADS = 2;
+	/** The number of copies that can wait to be sent, by default. */
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	private static final int BUFFER_SIZE = 1024 * 10;
+
+	private final Rule rule;
+	private final HttpProxyRule target;
+	private final ThreadPoolExecutor sender;
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Creates a rule that mirrors the given Rule's requests to the given
+	 * URL, with the default number of threads and queue size.
+	 *
+	 * @param rule the Rule that handles the requests
+	 * @param mirrorUrl the URL of the server to send copies to
+	 */
+	public MirrorRule(Rule rule, String mirrorUrl) {
+		this( rule, mirrorUrl, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE );
+	}
+
+	/**
+	 * Creates a rule that mirrors the given Rule's requests to the given
+	 * URL.
+	 *
+	 * @param rule the Rule that handles the requests
+	 * @param mirrorUrl the URL of the server to send copies to
+	 * @param threads the number of threads sending copies
+	 * @param queueSize the number of copies that can wait to be sent
+	 */
+	public MirrorRule(Rule rule, final String mirrorUrl, int threads,
+	        int queueSize)
+	{
+		if ( rule == null ) {
+			throw new IllegalArgumentException(
+			        "MirrorRule needs a Rule to mirror." );
+		}
+		this.rule = rule;
+		this.target = new HttpProxyRule( mirrorUrl );
+		this.target.setMaxConnections( threads );
+		this.sender = new ThreadPoolExecutor( threads, threads, 30,
+		        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( queueSize ),
+		        new ThreadFactory() {
+			        public Thread newThread(Runnable runnable) {
+				        Thread thread = new Thread( runnable, "MirrorRule "
+				                + mirrorUrl );
+				        thread.setDaemon( true );
+				        return thread;
+			        }
+		        } );
+		// don't hang on to the threads once the traffic stops
+		this.sender.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Returns the Rule whose requests are mirrored.
+	 *
+	 * @return the mirrored Rule
+	 */
+	public Rule getRule() {
+		return this.rule;
+	}
+
+	/**
+	 * Returns the URL of the server that copies are sent to.
+	 *
+	 * @return the mirror URL
+	 */
+	public String getMirrorUrl() {
+		return this.target.getProxyUrl();
+	}
+
+	public void addMatcher(Matcher matcher) {
+		this.rule.addMatcher( matcher );
+	}
+
+	public Collection<Matcher> getMatchers() {
+		return this.rule.getMatchers();
+	}
+
+	public boolean matches(Request request) {
+		return this.rule.matches( request );
+	}
+
+	/**
+	 * Queues a copy of the request for the mirror server, then lets the
+	 * mirrored Rule process it.
+	 */
+	public Response process(Request request) throws Exception {
+		if ( request instanceof HttpRequest ) {
+			this.mirror( (HttpRequest) request );
+		}
+		return this.rule.process( request );
+	}
+
+	private void mirror(HttpRequest request) {
+		String method = request.getServletRequest().getMethod();
+		if ( !"GET".equals( method ) && !"POST".equals( method )
+		        && !"PUT".equals( method ) )
+		{
+			return;
+		}
+		final HttpRequestBase copy;
+		try {
+			// the servlet request is gone by the time the copy is sent,
+			// so the body has to be read in now
+			HttpProxyRule.readBody( request );
+			copy = this.target.getProxyMethod( request, this.target
+			        .getProxyUrl() );
+		}
+		catch ( IOException e ) {
+			this.failed.incrementAndGet();
+			logger.log( Level.FINE, "Couldn't copy request for mirror", e );
+			return;
+		}
+		try {
+			this.sender.execute( new Runnable() {
+				public void run() {
+					send( copy );
+				}
+			} );
+		}
+		catch ( RejectedExecutionException e ) {
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	private void send(HttpRequestBase copy) {
+		try {
+			org.apache.http.HttpResponse response = this.target.getPool()
+			        .execute( copy );
+			HttpEntity entity = response.getEntity();
+			if ( entity != null ) {
+				InputStream content = entity.getContent();
+				if ( content != null ) {
+					// read it to the end, so the connection can be reused
+					byte[] buffer = new byte[BUFFER_SIZE];
+					while ( content.read( buffer ) > -1 ) {
+					}
+					content.close();
+				}
+			}
+			if ( response.getStatusLine().getStatusCode() >= 500 ) {
+				this.failed.incrementAndGet();
+			}
+			else {
+				this.sent.incrementAndGet();
+			}
+		}
+		catch ( IOException e ) {
+			this.failed.incrementAndGet();
+			logger.log( Level.FINE, "Mirror request to " + copy.getURI()
+			        + " failed", e );
+		}
+	}
+
+	/**
+	 * Stops sending copies once the ones waiting have gone, and closes the
+	 * mirrored Rule if it needs closing too.  Copies of any requests still
+	 * coming in are dropped.
+	 */
+	public void close() throws IOException {
+		this.sender.shutdown();
+		if ( this.rule instanceof Closeable ) {
+			( (Closeable) this.rule ).close();
+		}
+	}
+
+	/**
+	 * Returns the mirror's numbers: copies the mirror server took, copies
+	 * that failed or got a 5xx status, copies dropped because the queue was
+	 * full, and copies waiting to be sent.
+	 *
+	 * @return the metrics, by name
+	 */
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		metrics.put( "mirror.sent", this.sent.get() );
+		metrics.put( "mirror.failed", this.failed.get() );
+		metrics.put( "mirror.dropped", this.dropped.get() );
+		metrics.put( "mirror.pending", this.sender.getQueue().size() );
+		return metrics;
+	}
+}
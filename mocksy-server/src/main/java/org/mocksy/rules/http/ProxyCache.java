@@ -0,0 +1,504 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.mocksy.filter.ResponseFilter;
+
+/**
+ * Cache of proxied responses, so that a slow server only has to answer the
+ * same request once.
+ *
+ * Responses are cached for as long as the server says they can be, through
+ * the Cache-Control max-age or the Expires header.  Responses that don't
+ * say are cached for the time-to-live, if one is set; responses marked
+ * no-store or no-cache are never cached.  Requests are told apart by the
+ * key the {@link HttpProxyRule} works out for them.  Once the cache is full,
+ * the least recently used entries make way for new ones.
+ *
+ * Expired responses can be kept for a while longer, so that they can still
+ * be served when the proxied server is failing; see {@link #setMaxStale}.
+ *
+ * If a directory is set, entries are also written there, one file per
+ * entry, and read back in when the cache is created, so that they survive
+ * a restart.  The files hold just the key, the expiry time and the status,
+ * headers and body of the response, so a file that's been tampered with
+ * can't make the cache create anything else.
+ *
+ * The cache is sized in entries rather than bytes.  Each one can be up to
+ * {@link #MAX_ENTRY_SIZE}, so a full cache can take up to that many times
+ * the number of entries of memory.
+ */
+public class ProxyCache {
+	private static final Logger logger = Logger.getLogger( ProxyCache.class
+	        .getName() );
+	/** Responses bigger than this are passed on without being cached. */
+	public static final int MAX_ENTRY_SIZE = 1024 * 1024;
+	private static final String FILE_SUFFIX = ".entry";
+	// starts every cache file: "MKSC", then the format version
+	private static final int MAGIC = 0x4d4b5343;
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1024 * 8;
+
+	private final int maxEntries;
+	private final Map<String, Entry> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+	private long ttl;
+	private long maxStale;
+	private File directory;
+
+	/**
+	 * Creates a cache that holds up to the given number of responses.  Each
+	 * response is at most {@link #MAX_ENTRY_SIZE}, so the cache can grow to
+	 * that many times the number of entries.
+	 *
+	 * @param maxEntries the maximum number of cached responses
+	 */
+	public ProxyCache(int maxEntries) {
+		if ( maxEntries <= 0 ) {
+			throw new IllegalArgumentException(
+			        "ProxyCache needs room for at least one entry." );
+		}
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true ) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+			        Map.Entry<String, ProxyCache.Entry> eldest)
+			{
+				if ( size() > ProxyCache.this.maxEntries ) {
+					ProxyCache.this.evictions.incrementAndGet();
+					deleteFile( eldest.getKey() );
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Sets how long, in seconds, to cache responses that don't say how long
+	 * they can be cached for.  0, the default, means they aren't cached.
+	 *
+	 * @param seconds the time-to-live in seconds
+	 */
+	public void setTtl(long seconds) {
+		this.ttl = seconds * 1000;
+	}
+
+	/**
+	 * Returns how long, in seconds, responses that don't say otherwise are
+	 * cached for.
+	 *
+	 * @return the time-to-live in seconds
+	 */
+	public long getTtl() {
+		return this.ttl / 1000;
+	}
+
+	/**
+	 * Sets how long, in seconds, a response is kept after it expires, to be
+	 * served if the proxied server fails.  0, the default, means expired
+	 * responses are dropped straight away.
+	 *
+	 * @param seconds the time to keep expired responses for
+	 */
+	public void setMaxStale(long seconds) {
+		this.maxStale = seconds * 1000;
+	}
+
+	/**
+	 * Returns how long, in seconds, expired responses are kept for.
+	 *
+	 * @return the time to keep expired responses for, in seconds
+	 */
+	public long getMaxStale() {
+		return this.maxStale / 1000;
+	}
+
+	/**
+	 * Sets the directory to keep a copy of the cache in, and loads any
+	 * entries that are already there and haven't expired.
+	 *
+	 * @param directory the directory for the cache files
+	 * @throws IOException if the directory can't be created
+	 */
+	public void setDirectory(File directory) throws IOException {
+		if ( !directory.isDirectory() && !directory.mkdirs() ) {
+			throw new IOException( "Can't create cache directory "
+			        + directory.getAbsolutePath() );
+		}
+		this.directory = directory;
+		this.load();
+	}
+
+	/**
+	 * Returns the directory the cache is kept in.
+	 *
+	 * @return the cache directory, or null if the cache is only in memory
+	 */
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * Returns a copy of the cached response for the given key.
+	 *
+	 * @param key the cache key
+	 * @param filters the filters to apply to the response
+	 * @return the cached response, or null if there isn't an unexpired one
+	 */
+	public org.mocksy.server.http.HttpResponse get(String key,
+	        List<ResponseFilter> filters)
+	{
+		Entry entry = this.getEntry( key );
+		if ( entry == null || entry.isExpired() ) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		this.hits.incrementAndGet();
+		return entry.response.toResponse( "cached response", filters );
+	}
+
+	/**
+	 * Returns a copy of the cached response for the given key, even if it's
+	 * expired, as long as it's been expired for no longer than the max-stale
+	 * time.  It's meant for when the proxied server is failing, and a stale
+	 * response is better than none.
+	 *
+	 * @param key the cache key
+	 * @param filters the filters to apply to the response
+	 * @return the cached response, or null if there isn't one
+	 */
+	public org.mocksy.server.http.HttpResponse getStale(String key,
+	        List<ResponseFilter> filters)
+	{
+		Entry entry = this.getEntry( key );
+		if ( entry == null ) {
+			return null;
+		}
+		org.mocksy.server.http.HttpResponse response = entry.response
+		        .toResponse( "stale cached response", filters );
+		if ( entry.isExpired() ) {
+			this.staleHits.incrementAndGet();
+			response.setHeader( "Warning", "110 - \"Response is Stale\"" );
+		}
+		else {
+			this.hits.incrementAndGet();
+		}
+		return response;
+	}
+
+	/**
+	 * Returns the entry for the key, dropping it if it's been expired for
+	 * too long.
+	 */
+	private Entry getEntry(String key) {
+		synchronized ( this.entries ) {
+			Entry entry = this.entries.get( key );
+			if ( entry != null && entry.isExpired( this.maxStale ) ) {
+				this.entries.remove( key );
+				this.deleteFile( key );
+				entry = null;
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Caches the proxied server's response, if it can be cached, and returns
+	 * the body to send on to the client.  Bodies are only read up to
+	 * {@link #MAX_ENTRY_SIZE}; anything bigger is passed on without being
+	 * cached, with the part that was read put back in front of the rest.
+	 *
+	 * @param key the cache key
+	 * @param response the proxied server's response
+	 * @param content the body of the response
+	 * @return the body of the response, to be sent on to the client
+	 * @throws IOException if the body can't be read
+	 */
+	public InputStream put(String key, HttpResponse response,
+	        InputStream content) throws IOException
+	{
+		long expires = this.getExpires( response );
+		if ( expires <= System.currentTimeMillis() ) {
+			return content;
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] bytes = new byte[BUFFER_SIZE];
+		int read = -1;
+		try {
+			while ( ( read = content.read( bytes ) ) > -1 ) {
+				buffer.write( bytes, 0, read );
+				if ( buffer.size() > MAX_ENTRY_SIZE ) {
+					return new SequenceInputStream( new ByteArrayInputStream(
+					        buffer.toByteArray() ), content );
+				}
+			}
+		}
+		catch ( IOException e ) {
+			content.close();
+			throw e;
+		}
+		content.close();
+
+		Entry entry = new Entry( key, new CapturedResponse( response, buffer
+		        .toByteArray() ), expires );
+		synchronized ( this.entries ) {
+			this.entries.put( key, entry );
+		}
+		this.saveFile( entry );
+		return new ByteArrayInputStream( entry.response.getBody() );
+	}
+
+	/**
+	 * Returns the number of cached responses.
+	 *
+	 * @return number of cached responses
+	 */
+	public int size() {
+		synchronized ( this.entries ) {
+			return this.entries.size();
+		}
+	}
+
+	/**
+	 * Returns the cache's numbers: hits, misses, evictions and the number
+	 * of cached responses.
+	 *
+	 * @return the metrics, by name
+	 */
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		metrics.put( "cache.hits", this.hits.get() );
+		metrics.put( "cache.misses", this.misses.get() );
+		metrics.put( "cache.evictions", this.evictions.get() );
+		metrics.put( "cache.stale-hits", this.staleHits.get() );
+		metrics.put( "cache.entries", this.size() );
+		metrics.put( "cache.max-entries", this.maxEntries );
+		return metrics;
+	}
+
+	/**
+	 * Works out when the response expires, from its Cache-Control or
+	 * Expires header, or else the time-to-live.
+	 *
+	 * @return the expiry time, which is in the past if it can't be cached
+	 */
+	private long getExpires(HttpResponse response) {
+		long now = System.currentTimeMillis();
+		int status = response.getStatusLine().getStatusCode();
+		if ( status != 200 && status != 203 && status != 300 && status != 301
+		        && status != 404 && status != 410 )
+		{
+			return 0;
+		}
+		Header vary = response.getFirstHeader( "Vary" );
+		if ( vary != null && "*".equals( vary.getValue().trim() ) ) {
+			return 0;
+		}
+		Header[] cacheControls = response.getHeaders( "Cache-Control" );
+		long maxAge = -1;
+		for ( Header cacheControl : cacheControls ) {
+			for ( String directive : cacheControl.getValue().split( "," ) ) {
+				directive = directive.trim().toLowerCase();
+				if ( directive.equals( "no-store" )
+				        || directive.equals( "no-cache" ) )
+				{
+					return 0;
+				}
+				if ( directive.startsWith( "s-maxage=" ) ) {
+					maxAge = parseSeconds( directive.substring( 9 ) );
+				}
+				else if ( directive.startsWith( "max-age=" ) && maxAge < 0 ) {
+					maxAge = parseSeconds( directive.substring( 8 ) );
+				}
+			}
+		}
+		if ( maxAge >= 0 ) {
+			return now + maxAge * 1000;
+		}
+		Header expires = response.getFirstHeader( "Expires" );
+		if ( expires != null ) {
+			try {
+				Date expiry = DateUtils.parseDate( expires.getValue() );
+				// go by the server's clock, in case it's out of step with ours
+				Header date = response.getFirstHeader( "Date" );
+				long serverNow = ( date == null ? now : DateUtils.parseDate(
+				        date.getValue() ).getTime() );
+				return now + expiry.getTime() - serverNow;
+			}
+			catch ( DateParseException e ) {
+				// an invalid date means it's already expired
+				return 0;
+			}
+		}
+		return now + this.ttl;
+	}
+
+	private static long parseSeconds(String value) {
+		try {
+			return Long.parseLong( value.trim() );
+		}
+		catch ( NumberFormatException e ) {
+			return 0;
+		}
+	}
+
+	private static String hash(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+			return HttpProxyRule.toHex( digest.digest( key.getBytes( "UTF-8" ) ) );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			// every JVM has SHA-1
+			throw new IllegalStateException( e );
+		}
+		catch ( UnsupportedEncodingException e ) {
+			// every JVM has UTF-8
+			throw new IllegalStateException( e );
+		}
+	}
+
+	private File getFile(String key) {
+		return new File( this.directory, hash( key ) + FILE_SUFFIX );
+	}
+
+	private void saveFile(Entry entry) {
+		if ( this.directory == null ) {
+			return;
+		}
+		try {
+			DataOutputStream output = new DataOutputStream(
+			        new BufferedOutputStream( new FileOutputStream( this
+			                .getFile( entry.key ) ) ) );
+			try {
+				output.writeInt( MAGIC );
+				output.writeInt( VERSION );
+				CapturedResponse.writeBytes( output, entry.key
+				        .getBytes( "UTF-8" ) );
+				output.writeLong( entry.expires );
+				entry.response.write( output );
+			}
+			finally {
+				output.close();
+			}
+		}
+		catch ( IOException e ) {
+			logger.log( Level.WARNING, "Couldn't save cache entry", e );
+		}
+	}
+
+	private void deleteFile(String key) {
+		if ( this.directory != null ) {
+			this.getFile( key ).delete();
+		}
+	}
+
+	private void load() {
+		File[] files = this.directory.listFiles();
+		if ( files == null ) {
+			return;
+		}
+		for ( File file : files ) {
+			if ( !file.getName().endsWith( FILE_SUFFIX ) ) continue;
+			try {
+				DataInputStream input = new DataInputStream(
+				        new BufferedInputStream( new FileInputStream( file ) ) );
+				Entry entry;
+				try {
+					if ( input.readInt() != MAGIC || input.readInt() != VERSION ) {
+						throw new IOException( "Not a cache entry" );
+					}
+					String key = new String( CapturedResponse.readBytes(
+					        input, MAX_ENTRY_SIZE ), "UTF-8" );
+					long expires = input.readLong();
+					entry = new Entry( key, CapturedResponse.read( input,
+					        MAX_ENTRY_SIZE ), expires );
+				}
+				finally {
+					input.close();
+				}
+				if ( entry.isExpired( this.maxStale ) ) {
+					file.delete();
+				}
+				else {
+					synchronized ( this.entries ) {
+						this.entries.put( entry.key, entry );
+					}
+				}
+			}
+			catch ( Exception e ) {
+				logger.log( Level.WARNING, "Couldn't load cache entry "
+				        + file.getName(), e );
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * A cached response.
+	 */
+	static class Entry {
+		private final String key;
+		private final CapturedResponse response;
+		private final long expires;
+
+		Entry(String key, CapturedResponse response, long expires) {
+			this.key = key;
+			this.response = response;
+			this.expires = expires;
+		}
+
+		boolean isExpired() {
+			return this.isExpired( 0 );
+		}
+
+		boolean isExpired(long grace) {
+			return this.expires + grace <= System.currentTimeMillis();
+		}
+	}
+}
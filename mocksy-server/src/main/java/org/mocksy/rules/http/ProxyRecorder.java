@@ -0,0 +1,521 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.mocksy.rules.Distribution;
+import org.mocksy.rules.LatencyHistogram;
+import org.mocksy.server.http.HttpResponse;
+
+/**
+ * Records what a proxied server sends back as a Mocksy ruleset, so that the
+ * same traffic can be served later without the server.
+ *
+ * Each distinct request, as told apart by the {@link HttpProxyRule}'s
+ * request key, is recorded once: its response body goes into a file of its
+ * own, and a rule that matches the request's method, URL, key headers and
+ * body hash is added to a rules.xml file in the same directory.  The
+ * rules.xml file sends anything that wasn't recorded on to the proxied
+ * server.  Files are written on a background thread, so recording doesn't
+ * hold up the response; if the writer falls too far behind, new exchanges
+ * are dropped rather than queued.
+ *
+ * If the proxy rule tracks latency, each recorded rule also gets a delay
+ * drawn from the latency measured for its route, brought up to date each
+ * time the ruleset is written.
+ */
+public class ProxyRecorder {
+	private static final Logger logger = Logger.getLogger( ProxyRecorder.class
+	        .getName() );
+	/** The name of the generated ruleset file. */
+	public static final String RULES_FILE = "rules.xml";
+	/** Responses bigger than this are passed on without being recorded. */
+	public static final int MAX_BODY_SIZE = 1024 * 1024;
+	private static final int MAX_PENDING = 1000;
+	private static final String ID_PREFIX = "recorded-";
+
+	private final File directory;
+	private final String proxyUrl;
+	private final ThreadPoolExecutor writer;
+	private final ConcurrentMap<String, Boolean> keys = new ConcurrentHashMap<String, Boolean>();
+	// only used on the writer thread
+	private final List<RecordedRule> rules = new ArrayList<RecordedRule>();
+	private boolean changed;
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Creates a recorder that writes to the given directory.  Anything
+	 * already recorded there is overwritten.
+	 *
+	 * @param directory the directory for the ruleset and response files
+	 * @param proxyUrl the URL of the proxied server, for requests that
+	 *            weren't recorded
+	 * @throws IOException if the directory can't be created
+	 */
+	public ProxyRecorder(File directory, String proxyUrl) throws IOException {
+		if ( !directory.isDirectory() && !directory.mkdirs() ) {
+			throw new IOException( "Can't create record directory "
+			        + directory.getAbsolutePath() );
+		}
+		this.directory = directory;
+		this.proxyUrl = proxyUrl;
+		this.writer = new ThreadPoolExecutor( 1, 1, 30, TimeUnit.SECONDS,
+		        new LinkedBlockingQueue<Runnable>( MAX_PENDING ),
+		        new ThreadFactory() {
+			        public Thread newThread(Runnable runnable) {
+				        Thread thread = new Thread( runnable, "ProxyRecorder "
+				                + ProxyRecorder.this.directory.getName() );
+				        thread.setDaemon( true );
+				        return thread;
+			        }
+		        } );
+		// don't hang on to the thread once the traffic stops
+		this.writer.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Returns the directory the recording is written to.
+	 *
+	 * @return the record directory
+	 */
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * Claims the given request key for recording.
+	 *
+	 * @param key the request key
+	 * @return true if the request should be recorded, false if it already
+	 *         has been, or is being
+	 */
+	boolean start(String key) {
+		return this.keys.putIfAbsent( key, Boolean.TRUE ) == null;
+	}
+
+	/**
+	 * Gives up on recording the given request key, so that a later request
+	 * with the same key can be recorded instead.
+	 *
+	 * @param key the request key
+	 */
+	void cancel(String key) {
+		this.keys.remove( key );
+	}
+
+	/**
+	 * Queues the exchange to be written.
+	 *
+	 * @param request the request, as recorded
+	 * @param response the proxied server's response
+	 */
+	void record(final RecordedRequest request, final CapturedResponse response)
+	{
+		try {
+			this.writer.execute( new Runnable() {
+				public void run() {
+					write( request, response );
+				}
+			} );
+		}
+		catch ( RejectedExecutionException e ) {
+			this.dropped.incrementAndGet();
+			this.cancel( request.key );
+		}
+	}
+
+	/**
+	 * Wraps the body of the proxied server's response so that it's recorded
+	 * as it's read.  If the body isn't read to the end, or is bigger than
+	 * {@link #MAX_BODY_SIZE}, nothing is recorded.
+	 *
+	 * @param request the request, as recorded
+	 * @param response the proxied server's response
+	 * @param content the body of the response
+	 * @return the body, to be sent on to the client
+	 */
+	InputStream tee(RecordedRequest request,
+	        org.apache.http.HttpResponse response, InputStream content)
+	{
+		return new RecordingInputStream( request, response, content );
+	}
+
+	/**
+	 * Waits for everything that's been queued so far to be written.
+	 *
+	 * @throws Exception if the wait is interrupted, or the queue is full
+	 */
+	public void flush() throws Exception {
+		this.writer.submit( new Runnable() {
+			public void run() {
+				if ( hasLatency() ) {
+					// the measured delays will have moved on
+					ProxyRecorder.this.changed = true;
+				}
+				writeRulesIfChanged();
+			}
+		} ).get();
+	}
+
+	/**
+	 * Returns the recorder's numbers: exchanges recorded and exchanges
+	 * dropped because the writer was behind.
+	 *
+	 * @return the metrics, by name
+	 */
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		metrics.put( "record.recorded", this.recorded.get() );
+		metrics.put( "record.dropped", this.dropped.get() );
+		metrics.put( "record.pending", this.writer.getQueue().size() );
+		return metrics;
+	}
+
+	private void write(RecordedRequest request, CapturedResponse response) {
+		String id = ID_PREFIX + ( this.rules.size() + 1 );
+		String contentType = response.getHeader( "Content-Type" );
+		String fileName = id + getExtension( contentType );
+		try {
+			OutputStream output = new FileOutputStream( new File(
+			        this.directory, fileName ) );
+			try {
+				output.write( response.getBody() );
+			}
+			finally {
+				output.close();
+			}
+			this.rules.add( new RecordedRule( id, fileName, contentType,
+			        request, response.getStatusCode() ) );
+			this.recorded.incrementAndGet();
+			this.changed = true;
+		}
+		catch ( IOException e ) {
+			logger.log( Level.WARNING, "Couldn't record response for "
+			        + request.url, e );
+		}
+		// don't rewrite the ruleset for every one of a burst
+		if ( this.writer.getQueue().isEmpty() ) {
+			this.writeRulesIfChanged();
+		}
+	}
+
+	private boolean hasLatency() {
+		for ( RecordedRule rule : this.rules ) {
+			if ( rule.request.latency != null ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeRulesIfChanged() {
+		if ( !this.changed ) {
+			return;
+		}
+		try {
+			this.writeRules();
+			this.changed = false;
+		}
+		catch ( IOException e ) {
+			logger.log( Level.WARNING, "Couldn't write the recorded ruleset",
+			        e );
+		}
+	}
+
+	private void writeRules() throws IOException {
+		File file = new File( this.directory, RULES_FILE );
+		File temp = new File( this.directory, RULES_FILE + ".tmp" );
+		Writer output = new OutputStreamWriter( new FileOutputStream( temp ),
+		        "UTF-8" );
+		try {
+			output.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+			output.write( "<rules xmlns=\"http://mocksy.org/RULESET/1.0.0\">\n" );
+			for ( RecordedRule rule : this.rules ) {
+				output.write( toRule( rule ) );
+			}
+			output.write( "\n\t<default-rule proxy-url=\""
+			        + escape( this.proxyUrl ) + "\" />\n" );
+			output.write( "</rules>\n" );
+		}
+		finally {
+			output.close();
+		}
+		// swap it in whole, so a reload never sees half a ruleset
+		if ( !temp.renameTo( file ) ) {
+			file.delete();
+			if ( !temp.renameTo( file ) ) {
+				throw new IOException( "Couldn't write " + file );
+			}
+		}
+	}
+
+	private static String toRule(RecordedRule recorded) {
+		RecordedRequest request = recorded.request;
+		StringBuilder rule = new StringBuilder();
+		rule.append( "\n\t<rule id=\"" ).append( recorded.id ).append(
+		        "\" content-type=\"" );
+		rule.append( escape( recorded.contentType == null ? "text/plain"
+		        : recorded.contentType ) );
+		rule.append( "\"" );
+		Distribution delay = ( request.latency == null ? null
+		        : request.latency.toDistribution() );
+		if ( delay != null ) {
+			rule.append( " delay=\"" ).append( escape( delay.toString() ) )
+			        .append( "\"" );
+		}
+		rule.append( ">\n" );
+		rule.append( "\t\t<response class=\"" ).append(
+		        HttpResponse.class.getName() ).append( "\">\n" );
+		rule.append( "\t\t\t<source>" ).append( escape( recorded.fileName ) )
+		        .append( "</source>\n" );
+		if ( recorded.statusCode != 200 ) {
+			rule.append( "\t\t\t<options>\n" );
+			rule.append( "\t\t\t\t<statusCode>" ).append(
+			        recorded.statusCode ).append( "</statusCode>\n" );
+			rule.append( "\t\t\t</options>\n" );
+		}
+		rule.append( "\t\t</response>\n" );
+		rule.append( "\t\t<match class=\"" ).append(
+		        MethodMatcher.class.getName() ).append( "\">" ).append(
+		        escape( request.method ) ).append( "</match>\n" );
+		rule.append( "\t\t<match>" ).append(
+		        escape( Pattern.quote( request.url ) ) ).append( "</match>\n" );
+		for ( Map.Entry<String, String> header : request.headers.entrySet() ) {
+			if ( header.getValue() == null ) {
+				// it has to be missing, as it was
+				rule.append( "\t\t<not-match header=\"" ).append(
+				        escape( header.getKey() ) ).append(
+				        "\">.*</not-match>\n" );
+			}
+			else {
+				rule.append( "\t\t<match header=\"" ).append(
+				        escape( header.getKey() ) ).append( "\">" ).append(
+				        escape( Pattern.quote( header.getValue() ) ) ).append(
+				        "</match>\n" );
+			}
+		}
+		if ( request.bodyHash != null ) {
+			rule.append( "\t\t<match class=\"" ).append(
+			        BodyHashMatcher.class.getName() ).append( "\">" ).append(
+			        request.bodyHash ).append( "</match>\n" );
+		}
+		rule.append( "\t</rule>\n" );
+		return rule.toString();
+	}
+
+	private static String getExtension(String contentType) {
+		if ( contentType == null ) {
+			return ".txt";
+		}
+		contentType = contentType.toLowerCase();
+		if ( contentType.contains( "json" ) ) {
+			return ".json";
+		}
+		else if ( contentType.contains( "html" ) ) {
+			return ".html";
+		}
+		else if ( contentType.contains( "xml" ) ) {
+			return ".xml";
+		}
+		return ".txt";
+	}
+
+	private static String escape(String text) {
+		StringBuilder escaped = new StringBuilder();
+		for ( char c : text.toCharArray() ) {
+			switch ( c ) {
+				case '&':
+					escaped.append( "&amp;" );
+					break;
+				case '<':
+					escaped.append( "&lt;" );
+					break;
+				case '>':
+					escaped.append( "&gt;" );
+					break;
+				case '"':
+					escaped.append( "&quot;" );
+					break;
+				default:
+					escaped.append( c );
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * The parts of a request that its recorded rule matches on.
+	 */
+	static class RecordedRequest {
+		private final String key;
+		private final String method;
+		private final String url;
+		private final Map<String, String> headers;
+		private final String bodyHash;
+		private final LatencyHistogram latency;
+
+		/**
+		 * @param key the request key
+		 * @param method the HTTP method
+		 * @param url the request URI and query string
+		 * @param headers the values of the key headers, null if missing
+		 * @param bodyHash the hash of the body, or null not to match on it
+		 * @param latency the latency measured for the request's route, or
+		 *            null for no delay
+		 */
+		RecordedRequest(String key, String method, String url,
+		        Map<String, String> headers, String bodyHash,
+		        LatencyHistogram latency)
+		{
+			this.key = key;
+			this.method = method;
+			this.url = url;
+			this.headers = headers;
+			this.bodyHash = bodyHash;
+			this.latency = latency;
+		}
+	}
+
+	/**
+	 * What goes into a recorded rule, kept until the ruleset is written.
+	 */
+	private static class RecordedRule {
+		private final String id;
+		private final String fileName;
+		private final String contentType;
+		private final RecordedRequest request;
+		private final int statusCode;
+
+		RecordedRule(String id, String fileName, String contentType,
+		        RecordedRequest request, int statusCode)
+		{
+			this.id = id;
+			this.fileName = fileName;
+			this.contentType = contentType;
+			this.request = request;
+			this.statusCode = statusCode;
+		}
+	}
+
+	/**
+	 * Keeps a copy of what's read through it, and records it once it's
+	 * been read to the end.
+	 */
+	private class RecordingInputStream extends FilterInputStream {
+		private final RecordedRequest request;
+		private final org.apache.http.HttpResponse response;
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		RecordingInputStream(RecordedRequest request,
+		        org.apache.http.HttpResponse response, InputStream content)
+		{
+			super( content );
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if ( b > -1 ) {
+				this.copy( new byte[] { (byte) b }, 0, 1 );
+			}
+			else {
+				this.done();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+		        throws IOException
+		{
+			int read = super.read( buffer, offset, length );
+			if ( read > -1 ) {
+				this.copy( buffer, offset, read );
+			}
+			else {
+				this.done();
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes can't be recorded
+			this.giveUp();
+			return super.skip( n );
+		}
+
+		@Override
+		public void close() throws IOException {
+			// closed before the end
+			this.giveUp();
+			super.close();
+		}
+
+		private void copy(byte[] buffer, int offset, int length) {
+			if ( this.copy == null ) {
+				return;
+			}
+			if ( this.copy.size() + length > MAX_BODY_SIZE ) {
+				this.giveUp();
+				return;
+			}
+			this.copy.write( buffer, offset, length );
+		}
+
+		private void done() {
+			if ( this.copy != null ) {
+				record( this.request, new CapturedResponse( this.response,
+				        this.copy.toByteArray() ) );
+				this.copy = null;
+			}
+		}
+
+		private void giveUp() {
+			if ( this.copy != null ) {
+				cancel( this.request.key );
+				this.copy = null;
+			}
+		}
+	}
+}
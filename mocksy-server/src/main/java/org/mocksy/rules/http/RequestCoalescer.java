@@ -0,0 +1,96 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes identical requests that arrive while one is already on its way to
+ * the proxied server wait for that one's response, instead of each making
+ * their own call.  When a load test fires hundreds of the same request at
+ * once, the server only sees one of them.
+ *
+ * The first request for a key makes the call on its own thread; the rest
+ * block until it's done and then share its result, or its exception.  Once
+ * the call is done, the next request for the key makes a new call.
+ */
+class RequestCoalescer {
+	private final ConcurrentMap<String, FutureTask<CapturedResponse>> inFlight = new ConcurrentHashMap<String, FutureTask<CapturedResponse>>();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Returns the response for the request with the given key, making the
+	 * call only if there isn't one for the same key in flight already.
+	 *
+	 * @param key identifies the request
+	 * @param call makes the call to the proxied server
+	 * @return the response
+	 * @throws Exception whatever the call threw
+	 */
+	CapturedResponse execute(String key, Callable<CapturedResponse> call)
+	        throws Exception
+	{
+		FutureTask<CapturedResponse> task = new FutureTask<CapturedResponse>(
+		        call );
+		FutureTask<CapturedResponse> existing = this.inFlight.putIfAbsent(
+		        key, task );
+		if ( existing == null ) {
+			this.calls.incrementAndGet();
+			try {
+				task.run();
+			}
+			finally {
+				this.inFlight.remove( key, task );
+			}
+		}
+		else {
+			this.coalesced.incrementAndGet();
+			task = existing;
+		}
+		try {
+			return task.get();
+		}
+		catch ( ExecutionException e ) {
+			if ( e.getCause() instanceof Exception ) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the coalescer's numbers: calls made, requests that shared
+	 * another's call, and calls in flight right now.
+	 *
+	 * @return the metrics, by name
+	 */
+	Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		metrics.put( "coalesce.calls", this.calls.get() );
+		metrics.put( "coalesce.coalesced", this.coalesced.get() );
+		metrics.put( "coalesce.in-flight", this.inFlight.size() );
+		return metrics;
+	}
+}
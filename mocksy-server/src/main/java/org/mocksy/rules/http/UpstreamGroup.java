@@ -0,0 +1,369 @@
+package org.mocksy.rules.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * The servers an {@link HttpProxyRule} spreads its requests over, and how it
+ * picks between them.  There are three ways to pick:
+ * <ul>
+ * <li><code>round-robin</code> - each server in turn</li>
+ * <li><code>least-outstanding</code> - the server with the fewest requests
+ * in progress</li>
+ * <li><code>ewma</code> - the server that's been quickest to answer lately,
+ * allowing for how busy it is right now</li>
+ * </ul>
+ *
+ * Servers are watched as requests go through them.  One that fails too many
+ * times in a row, by not answering or answering with a 5xx status, is
+ * ejected: it gets no requests until the ejection time is up, after which
+ * it's tried again.  If every server has been ejected, they're all used
+ * anyway, since some chance of an answer beats none.
+ *
+ * Each server can also have a {@link CircuitBreaker}.  Servers whose breaker
+ * is open are passed over like ejected ones, but when a request does come to
+ * one, it fails straight away instead of being sent.
+ */
+public class UpstreamGroup {
+	/** Picks each server in turn. */
+	public static final String ROUND_ROBIN = "round-robin";
+	/** Picks the server with the fewest requests in progress. */
+	public static final String LEAST_OUTSTANDING = "least-outstanding";
+	/** Picks the server with the lowest recent latency, allowing for load. */
+	public static final String EWMA = "ewma";
+	/** Default number of failures in a row that get a server ejected. */
+	public static final int DEFAULT_MAX_FAILURES = 5;
+	/** Default time an ejected server is left out for, in milliseconds. */
+	public static final int DEFAULT_EJECT_TIME = 30000;
+
+	// how much each new latency counts towards the average
+	private static final double EWMA_WEIGHT = 0.3;
+	// how quickly an old average is forgotten, so slow servers get retried
+	private static final double EWMA_DECAY = 10000;
+
+	private final List<Upstream> upstreams;
+	private final AtomicInteger next = new AtomicInteger();
+	private final String balance;
+	private final int maxFailures;
+	private final int ejectTime;
+	private final CircuitBreaker breaker;
+
+	/**
+	 * Creates the group of servers.
+	 *
+	 * @param pools the connection pools for the servers, by URL
+	 * @param balance how to pick a server; one of {@link #ROUND_ROBIN},
+	 *            {@link #LEAST_OUTSTANDING} or {@link #EWMA}
+	 * @param maxFailures failures in a row that get a server ejected, 0 to
+	 *            never eject
+	 * @param ejectTime milliseconds to leave an ejected server out for
+	 * @param breaker the settings for each server's circuit breaker, or null
+	 *            for none
+	 */
+	public UpstreamGroup(Map<String, HttpClientPool> pools, String balance,
+	        int maxFailures, int ejectTime, CircuitBreaker breaker)
+	{
+		if ( pools.isEmpty() ) {
+			throw new IllegalArgumentException(
+			        "UpstreamGroup needs at least one server." );
+		}
+		checkBalance( balance );
+		this.breaker = breaker;
+		List<Upstream> upstreams = new ArrayList<Upstream>();
+		for ( Map.Entry<String, HttpClientPool> pool : pools.entrySet() ) {
+			upstreams.add( new Upstream( pool.getKey(), pool.getValue() ) );
+		}
+		this.upstreams = Collections.unmodifiableList( upstreams );
+		this.balance = balance;
+		this.maxFailures = maxFailures;
+		this.ejectTime = ejectTime;
+	}
+
+	/**
+	 * Checks that the given way of picking servers is one that's understood.
+	 *
+	 * @param balance the way of picking servers
+	 * @throws IllegalArgumentException if it isn't understood
+	 */
+	public static void checkBalance(String balance) {
+		if ( !ROUND_ROBIN.equals( balance )
+		        && !LEAST_OUTSTANDING.equals( balance )
+		        && !EWMA.equals( balance ) )
+		{
+			throw new IllegalArgumentException( "Unknown balance '" + balance
+			        + "', expected " + ROUND_ROBIN + ", " + LEAST_OUTSTANDING
+			        + " or " + EWMA );
+		}
+	}
+
+	/**
+	 * Returns the servers in the group.
+	 *
+	 * @return the servers
+	 */
+	public List<Upstream> getUpstreams() {
+		return this.upstreams;
+	}
+
+	/**
+	 * Picks the server to send the next request to.
+	 *
+	 * @return the server
+	 */
+	public Upstream select() {
+		int size = this.upstreams.size();
+		if ( size == 1 ) {
+			return this.upstreams.get( 0 );
+		}
+		long now = System.currentTimeMillis();
+		// start from a different server each time, to spread out ties
+		int start = ( this.next.getAndIncrement() & Integer.MAX_VALUE ) % size;
+		Upstream best = this.pick( start, now, true );
+		if ( best == null ) {
+			// all ejected
+			best = this.pick( start, now, false );
+		}
+		return best;
+	}
+
+	private Upstream pick(int start, long now, boolean healthyOnly) {
+		int size = this.upstreams.size();
+		Upstream best = null;
+		double bestCost = Double.MAX_VALUE;
+		for ( int i = 0; i < size; i++ ) {
+			Upstream upstream = this.upstreams.get( ( start + i ) % size );
+			if ( healthyOnly && !upstream.isAvailable( now ) ) continue;
+			if ( ROUND_ROBIN.equals( this.balance ) ) {
+				return upstream;
+			}
+			double cost = upstream.getOutstanding();
+			if ( EWMA.equals( this.balance ) ) {
+				cost = upstream.getLatency( now ) * ( cost + 1 );
+			}
+			if ( cost < bestCost ) {
+				best = upstream;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the numbers for each server, prefixed with its place in the
+	 * group, e.g. upstream[0].requests.
+	 *
+	 * @return the metrics, by name
+	 */
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		long now = System.currentTimeMillis();
+		for ( int i = 0; i < this.upstreams.size(); i++ ) {
+			Upstream upstream = this.upstreams.get( i );
+			String prefix = "upstream[" + i + "].";
+			for ( Map.Entry<String, Number> metric : upstream.pool
+			        .getMetrics().entrySet() )
+			{
+				metrics.put( prefix + metric.getKey(), metric.getValue() );
+			}
+			metrics.put( prefix + "latency.ewma", upstream.getLatency( now ) );
+			metrics.put( prefix + "ejected", upstream.isEjected( now ) ? 1 : 0 );
+			metrics.put( prefix + "ejections", upstream.ejections.get() );
+			if ( upstream.breaker != null ) {
+				for ( Map.Entry<String, Number> metric : upstream.breaker
+				        .getMetrics().entrySet() )
+				{
+					metrics.put( prefix + metric.getKey(), metric.getValue() );
+				}
+			}
+		}
+		return metrics;
+	}
+
+	@Override
+	public String toString() {
+		return "UpstreamGroup of " + this.upstreams.size() + " servers, "
+		        + this.balance;
+	}
+
+	/**
+	 * One of the servers in the group, with its connection pool and what's
+	 * been seen of its health and speed.
+	 */
+	public class Upstream {
+		private final String url;
+		private final HttpClientPool pool;
+		private final CircuitBreaker breaker;
+		private final AtomicInteger failures = new AtomicInteger();
+		private final AtomicLong ejections = new AtomicLong();
+		private volatile long ejectedUntil;
+		// in milliseconds; guarded by this
+		private double latency;
+		private long latencyTime;
+
+		Upstream(String url, HttpClientPool pool) {
+			this.url = url;
+			this.pool = pool;
+			this.breaker = ( UpstreamGroup.this.breaker == null ? null
+			        : new CircuitBreaker( UpstreamGroup.this.breaker, url ) );
+		}
+
+		/**
+		 * Returns the base URL of the server.
+		 *
+		 * @return the server URL
+		 */
+		public String getUrl() {
+			return this.url;
+		}
+
+		/**
+		 * Returns the connection pool for the server.
+		 *
+		 * @return the connection pool
+		 */
+		public HttpClientPool getPool() {
+			return this.pool;
+		}
+
+		/**
+		 * Returns the server's circuit breaker.
+		 *
+		 * @return the circuit breaker, or null if there isn't one
+		 */
+		public CircuitBreaker getBreaker() {
+			return this.breaker;
+		}
+
+		/**
+		 * Returns the number of requests in progress on the server, from this
+		 * or any other rule that shares its pool, counting until their
+		 * response bodies have been read.
+		 *
+		 * @return the requests in progress
+		 */
+		public int getOutstanding() {
+			return this.pool.getLeasedConnections();
+		}
+
+		/**
+		 * Returns whether the server is currently ejected.
+		 *
+		 * @return true if it's ejected
+		 */
+		public boolean isEjected() {
+			return this.isEjected( System.currentTimeMillis() );
+		}
+
+		private boolean isEjected(long now) {
+			return this.ejectedUntil > now;
+		}
+
+		private boolean isAvailable(long now) {
+			return !this.isEjected( now )
+			        && ( this.breaker == null || !this.breaker.isOpen() );
+		}
+
+		/**
+		 * Sends the request to the server, keeping track of how long it
+		 * takes to answer and whether it fails.
+		 *
+		 * @param request the request, addressed to this server
+		 * @return the server's response
+		 * @throws CircuitOpenException if the server's breaker is open
+		 * @throws IOException if the request fails
+		 */
+		public HttpResponse execute(HttpRequestBase request)
+		        throws IOException
+		{
+			if ( this.breaker != null && !this.breaker.tryAcquire() ) {
+				throw new CircuitOpenException( this.url );
+			}
+			long start = System.currentTimeMillis();
+			HttpResponse response = null;
+			boolean failed = true;
+			try {
+				response = this.pool.execute( request );
+				failed = response.getStatusLine().getStatusCode() >= 500;
+			}
+			finally {
+				long now = System.currentTimeMillis();
+				if ( this.breaker != null ) {
+					this.breaker.record( now - start, failed );
+				}
+				if ( failed ) {
+					this.failed();
+				}
+				else {
+					this.failures.set( 0 );
+				}
+				if ( response != null ) {
+					this.updateLatency( now - start, now );
+				}
+			}
+			return response;
+		}
+
+		private void failed() {
+			if ( maxFailures > 0
+			        && this.failures.incrementAndGet() >= maxFailures )
+			{
+				this.failures.set( 0 );
+				this.ejectedUntil = System.currentTimeMillis() + ejectTime;
+				this.ejections.incrementAndGet();
+			}
+		}
+
+		private synchronized void updateLatency(long sample, long now) {
+			if ( this.latencyTime == 0 ) {
+				this.latency = sample;
+			}
+			else {
+				this.latency = EWMA_WEIGHT * sample + ( 1 - EWMA_WEIGHT )
+				        * this.getLatency( now );
+			}
+			this.latencyTime = now;
+		}
+
+		/**
+		 * Returns the server's recent average latency, which fades the
+		 * longer it's been since the last request, so a server that was
+		 * slow gets tried again eventually.
+		 */
+		private synchronized double getLatency(long now) {
+			if ( this.latencyTime == 0 ) {
+				return 0;
+			}
+			return this.latency
+			        * Math.exp( -( now - this.latencyTime ) / EWMA_DECAY );
+		}
+
+		@Override
+		public String toString() {
+			return this.url;
+		}
+	}
+}
@@ -18,13 +18,18 @@ package org.mocksy.rules.xml;
 
 import java.io.InputStream;
 import java.util.Map;
+import java.util.Queue;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import org.mocksy.Request;
@@ -41,6 +46,13 @@ public class XmlMatcher extends Matcher {
 	private static final Logger logger = Logger.getLogger( XmlMatcher.class
 	        .getName() );
 	private static final Map<Request, Document> documentCache = new WeakHashMap<Request, Document>();
+	// only guards the cache; documents are parsed without holding it
+	private static final ReentrantLock documentLock = new ReentrantLock();
+	// compiled XPath expressions aren't thread-safe, so each one is only
+	// used by one thread at a time and handed back for the next match;
+	// with a thread per request, a thread-local copy would be compiled
+	// for every match
+	private static final ConcurrentMap<String, Queue<XPathExpression>> expressions = new ConcurrentHashMap<String, Queue<XPathExpression>>();
 	private String xpath;
 
 	/**
@@ -92,9 +104,26 @@ public class XmlMatcher extends Matcher {
 	public static String[] getValues(Document doc, String expression,
 	        boolean trim) throws XPathExpressionException
 	{
-		XPath xpath = XPathFactory.newInstance().newXPath();
-		NodeList nodes = (NodeList) xpath.evaluate( expression, doc,
-		        XPathConstants.NODESET );
+		Queue<XPathExpression> compiled = expressions.get( expression );
+		if ( compiled == null ) {
+			compiled = new ConcurrentLinkedQueue<XPathExpression>();
+			Queue<XPathExpression> existing = expressions.putIfAbsent(
+			        expression, compiled );
+			if ( existing != null ) {
+				compiled = existing;
+			}
+		}
+		XPathExpression xpath = compiled.poll();
+		if ( xpath == null ) {
+			xpath = XPathFactory.newInstance().newXPath().compile( expression );
+		}
+		NodeList nodes;
+		try {
+			nodes = (NodeList) xpath.evaluate( doc, XPathConstants.NODESET );
+		}
+		finally {
+			compiled.offer( xpath );
+		}
 		if ( nodes == null ) {
 			return new String[0];
 		}
@@ -130,28 +159,42 @@ public class XmlMatcher extends Matcher {
 	 * @return the XML document in the Request, null if it's not XML
 	 */
 	protected Document getDocument(Request request) {
-		synchronized ( documentCache ) {
-			// if we haven't seen this request before
-			if ( !documentCache.containsKey( request ) ) {
-				DocumentBuilderFactory domFactory = DocumentBuilderFactory
-				        .newInstance();
-				domFactory.setNamespaceAware( true );
-				try {
-					// get the XML from the request
-					DocumentBuilder builder = domFactory.newDocumentBuilder();
-					InputStream stream = request.getData();
-					// cache it because we can't guarantee that the Request's
-					// InputStream is re-readable
-					documentCache.put( request, builder.parse( stream ) );
-				}
-				catch ( Exception e ) {
-					// If this isn't XML, just log it and move on
-					logger.log( Level.WARNING,
-					        "Trying to process a non-XML request as XML.", e );
-					documentCache.put( request, null );
-				}
+		documentLock.lock();
+		try {
+			// if we've seen this request before
+			if ( documentCache.containsKey( request ) ) {
+				return documentCache.get( request );
 			}
 		}
-		return documentCache.get( request );
+		finally {
+			documentLock.unlock();
+		}
+		// a Request is only processed by one thread, so no one else will
+		// be parsing it meanwhile, and other requests needn't wait on this
+		Document document = null;
+		DocumentBuilderFactory domFactory = DocumentBuilderFactory
+		        .newInstance();
+		domFactory.setNamespaceAware( true );
+		try {
+			// get the XML from the request
+			DocumentBuilder builder = domFactory.newDocumentBuilder();
+			InputStream stream = request.getData();
+			document = builder.parse( stream );
+		}
+		catch ( Exception e ) {
+			// If this isn't XML, just log it and move on
+			logger.log( Level.WARNING,
+			        "Trying to process a non-XML request as XML.", e );
+		}
+		documentLock.lock();
+		try {
+			// cache it because we can't guarantee that the Request's
+			// InputStream is re-readable
+			documentCache.put( request, document );
+		}
+		finally {
+			documentLock.unlock();
+		}
+		return document;
 	}
 }
@@ -31,6 +31,7 @@ import org.mocksy.rules.Ruleset;
 import org.mocksy.rules.RulesetRule;
 import org.mocksy.rules.http.HttpMatcher;
 import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.MirrorRule;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -93,6 +94,13 @@ public class XmlSerializer {
 	private Node getRuleElement(Document rulesDoc, Rule rule)
 	        throws IOException
 	{
+		if ( rule instanceof MirrorRule ) {
+			MirrorRule mirror = (MirrorRule) rule;
+			Element ruleElem = (Element) getRuleElement( rulesDoc, mirror
+			        .getRule() );
+			ruleElem.setAttribute( "mirror-url", mirror.getMirrorUrl() );
+			return ruleElem;
+		}
 		Element ruleElem = rulesDoc.createElement( "rule" );
 		for ( Matcher matcher : rule.getMatchers() ) {
 			ruleElem.appendChild( getMatcherElement( rulesDoc, matcher ) );
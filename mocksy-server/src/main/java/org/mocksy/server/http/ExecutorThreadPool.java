@@ -0,0 +1,82 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.mortbay.thread.ThreadPool;
+
+/**
+ * Jetty thread pool that hands each job to an ExecutorService, so that
+ * Jetty can run its requests on virtual threads, or on a pool with a
+ * bounded queue.  Jetty isn't told about running low on threads; the
+ * executor either starts whatever threads it needs or refuses the job.
+ */
+class ExecutorThreadPool implements ThreadPool {
+	private final ExecutorService executor;
+
+	/**
+	 * Creates the pool for the given executor.
+	 * 
+	 * @param executor the executor to run Jetty's jobs with
+	 */
+	ExecutorThreadPool(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public boolean dispatch(Runnable job) {
+		try {
+			this.executor.execute( job );
+			return true;
+		}
+		catch ( RejectedExecutionException e ) {
+			return false;
+		}
+	}
+
+	public void join() throws InterruptedException {
+		while ( !this.executor.awaitTermination( 1, TimeUnit.DAYS ) ) {
+			// keep waiting until the executor has been shut down
+		}
+	}
+
+	public int getThreads() {
+		return 0;
+	}
+
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	public boolean isLowOnThreads() {
+		return false;
+	}
+
+	/**
+	 * Returns the executor that runs the jobs.
+	 */
+	ExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * Stops taking new jobs; the ones running are left to finish.
+	 */
+	void shutdown() {
+		this.executor.shutdown();
+	}
+}
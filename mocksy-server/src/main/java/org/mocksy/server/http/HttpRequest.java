@@ -16,8 +16,11 @@ package org.mocksy.server.http;
  *  limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.http.HttpServletRequest;
 import org.mocksy.Request;
 
@@ -27,7 +30,14 @@ import org.mocksy.Request;
  * @author Saleem Shafi
  */
 public class HttpRequest implements Request {
+	private static final int BUFFER_SIZE = 1024 * 10;
 	private HttpServletRequest request;
+	private byte[] data;
+	private boolean streamed;
+	private boolean async;
+	// the body is read from the client holding this, and a monitor would
+	// pin a virtual thread to its carrier for as long as that takes
+	private final ReentrantLock lock = new ReentrantLock();
 
 	/**
 	 * Creates the Request instance wrapping the given HttpServletRequest.
@@ -39,12 +49,85 @@ public class HttpRequest implements Request {
 	}
 
 	/**
-	 * Returns the body of the HTTP request as the Request data.
+	 * Returns the body of the HTTP request as the Request data.  The body
+	 * is read in full the first time, so that it can be read again by
+	 * anything else that needs it.
 	 * 
 	 * @return the body of the HTTP request
 	 */
 	public InputStream getData() throws IOException {
-		return this.request.getInputStream();
+		this.lock.lock();
+		try {
+			if ( this.data == null ) {
+				if ( this.streamed ) {
+					throw new IOException(
+					        "The request body has already been sent on." );
+				}
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				InputStream input = this.request.getInputStream();
+				if ( input != null ) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read = -1;
+					while ( ( read = input.read( buffer ) ) > -1 ) {
+						output.write( buffer, 0, read );
+					}
+				}
+				this.data = output.toByteArray();
+			}
+			return new ByteArrayInputStream( this.data );
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the body of the HTTP request without holding on to it, so
+	 * that it can be passed on as it arrives.  If the body has already been
+	 * read through {@link #getData()}, that copy is returned instead.  The
+	 * body can only be streamed once.
+	 * 
+	 * @return the body of the HTTP request, or null if there isn't one
+	 */
+	public InputStream streamData() throws IOException {
+		this.lock.lock();
+		try {
+			if ( this.data != null ) {
+				return new ByteArrayInputStream( this.data );
+			}
+			if ( this.streamed ) {
+				throw new IOException(
+				        "The request body has already been sent on." );
+			}
+			this.streamed = true;
+			return this.request.getInputStream();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the server can wait for a
+	 * {@link org.mocksy.DeferredResponse} to this request without holding
+	 * on to a thread, so that Rules that would otherwise block can hand
+	 * their work off and return one.
+	 * 
+	 * @return true, if a DeferredResponse can be returned
+	 */
+	public boolean isAsync() {
+		return this.async;
+	}
+
+	/**
+	 * Sets whether a {@link org.mocksy.DeferredResponse} can be returned for
+	 * this request.  Only the server should set this, and only when it
+	 * knows how to wait for one.
+	 * 
+	 * @param async true, if a DeferredResponse can be returned
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
 	}
 
 	/**
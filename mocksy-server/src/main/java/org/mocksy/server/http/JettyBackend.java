@@ -0,0 +1,141 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import org.mocksy.rules.Ruleset;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.jetty.webapp.WebAppContext;
+import org.mortbay.resource.FileResource;
+import org.mortbay.thread.ThreadPool;
+
+/**
+ * Backend that serves requests with the {@link RequestServlet} in a Jetty
+ * server of its own.  This is the backend a {@link MocksyServer} uses
+ * unless it's given another one.  It serves SSL with Jetty's blocking
+ * connector, which takes up a thread for every open connection.
+ * Requests run on Jetty's thread pool, or on virtual threads if asked for.
+ */
+public class JettyBackend implements ServerBackend {
+	private final Connector connector;
+	private Server server;
+	private boolean virtualThreads;
+	private ServerTuning tuning = new ServerTuning();
+	private ExecutorThreadPool threadPool;
+
+	/**
+	 * Creates the backend with a non-blocking Jetty connector.
+	 */
+	public JettyBackend() {
+		this( new SelectChannelConnector() );
+	}
+
+	/**
+	 * Creates the backend with the given Jetty connector, e.g. an SSL one.
+	 * 
+	 * @param connector the connector to accept requests with
+	 */
+	public JettyBackend(Connector connector) {
+		this.connector = connector;
+	}
+
+	/**
+	 * Sets whether each request runs on a virtual thread of its own rather
+	 * than on Jetty's thread pool.  This only makes a difference on JVMs that
+	 * have virtual threads.
+	 * 
+	 * @param virtualThreads true to use virtual threads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets the connector and thread pool settings.  Virtual threads, if
+	 * they're available, take the place of the thread pool settings.
+	 * 
+	 * @param tuning the settings
+	 */
+	public void setTuning(ServerTuning tuning) {
+		this.tuning = tuning;
+	}
+
+	public synchronized void start(Ruleset rules, int port) throws Exception {
+		if ( this.server == null ) {
+			this.server = new Server();
+			this.connector.setPort( port );
+			this.tuning.apply( this.connector );
+			this.server.addConnector( this.connector );
+			WebAppContext requestContext = new WebAppContext();
+			requestContext.setContextPath( "/" );
+			// process all requests with Ruleset
+			ServletHolder requestServlet = new ServletHolder(
+			        new RequestServlet( rules ) );
+			requestContext.addServlet( requestServlet, "/*" );
+			requestContext.setBaseResource( new FileResource( new File( "." )
+			        .toURI().toURL() ) );
+			this.server.setHandler( requestContext );
+		}
+		if ( this.threadPool == null ) {
+			ThreadPool pool = null;
+			if ( this.virtualThreads ) {
+				ExecutorService executor = VirtualThreads.newExecutor();
+				if ( executor != null ) {
+					pool = new ExecutorThreadPool( executor );
+				}
+			}
+			if ( pool == null ) {
+				pool = this.tuning.newThreadPool( "mocksy-jetty" );
+			}
+			if ( pool instanceof ExecutorThreadPool ) {
+				// Jetty doesn't stop these, so we have to
+				this.threadPool = (ExecutorThreadPool) pool;
+			}
+			if ( pool != null ) {
+				this.server.setThreadPool( pool );
+			}
+		}
+		this.server.start();
+	}
+
+	public synchronized Map<String, Number> getSettings() {
+		if ( this.server == null ) {
+			return Collections.emptyMap();
+		}
+		return ServerTuning.describe( this.connector, this.server
+		        .getThreadPool() );
+	}
+
+	public int getPort() {
+		return Math.max( 0, this.connector.getLocalPort() );
+	}
+
+	public synchronized void stop() throws Exception {
+		if ( this.server != null ) {
+			this.server.stop();
+		}
+		if ( this.threadPool != null ) {
+			this.threadPool.shutdown();
+			this.threadPool = null;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.mocksy.rules.LatencyHistogram;
+import org.mocksy.rules.Rule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.rules.RulesetRule;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.LatencyTracker;
+import org.mocksy.rules.http.MirrorRule;
+
+/**
+ * Servlet that exports the latency measured by every proxy Rule that
+ * tracks it, one route per line, e.g.
+ * <pre>
+ * default-rule GET /accounts count=120 p50=12 p90=31 p99=85 delay="empirical:0=4,...,100=140"
+ * </pre>
+ * The delay can be pasted onto a mock Rule for the same route, to give it
+ * the same latency as the real service.
+ */
+public class LatencyServlet extends HttpServlet {
+	private static final long serialVersionUID = -2254068419561707213L;
+
+	private Ruleset rules;
+
+	/**
+	 * Creates the servlet that will export the Ruleset's latencies.
+	 *
+	 * @param rules the Ruleset to export
+	 */
+	LatencyServlet(Ruleset rules) {
+		if ( rules == null ) {
+			throw new IllegalArgumentException(
+			        "LatencyServlet cannot be setup with a 'null' Ruleset." );
+		}
+		this.rules = rules;
+	}
+
+	@Override
+	public void destroy() {
+		this.rules = null;
+		super.destroy();
+	}
+
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp)
+	        throws ServletException, IOException
+	{
+		if ( this.rules != null ) {
+			resp.setContentType( "text/plain" );
+			PrintWriter writer = resp.getWriter();
+			export( this.rules, "", writer );
+			resp.flushBuffer();
+		}
+	}
+
+	private static void export(Ruleset rules, String prefix, PrintWriter writer)
+	{
+		int i = 0;
+		for ( Rule rule : rules.getRules() ) {
+			export( rule, prefix + "rule[" + ( ++i ) + "]", writer );
+		}
+		if ( rules.getDefaultRule() != null ) {
+			export( rules.getDefaultRule(), prefix + "default-rule", writer );
+		}
+	}
+
+	private static void export(Rule rule, String name, PrintWriter writer) {
+		if ( rule instanceof MirrorRule ) {
+			export( ( (MirrorRule) rule ).getRule(), name, writer );
+		}
+		else if ( rule instanceof RulesetRule ) {
+			export( ( (RulesetRule) rule ).getRuleset(), name + ".", writer );
+		}
+		else if ( rule instanceof HttpProxyRule ) {
+			LatencyTracker tracker = ( (HttpProxyRule) rule )
+			        .getLatencyTracker();
+			if ( tracker == null ) {
+				return;
+			}
+			for ( Map.Entry<String, LatencyHistogram> route : tracker
+			        .getHistograms().entrySet() )
+			{
+				LatencyHistogram histogram = route.getValue();
+				if ( histogram.getCount() == 0 ) continue;
+				writer.println( name + " " + route.getKey() + " count="
+				        + histogram.getCount() + " p50="
+				        + histogram.getPercentile( 50 ) + " p90="
+				        + histogram.getPercentile( 90 ) + " p99="
+				        + histogram.getPercentile( 99 ) + " delay=\""
+				        + histogram.toDistribution() + "\"" );
+			}
+		}
+	}
+}
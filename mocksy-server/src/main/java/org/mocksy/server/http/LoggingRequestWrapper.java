@@ -40,12 +40,27 @@ class LoggingRequestWrapper extends HttpServletRequestWrapper {
 	 * @throws IOException
 	 */
 	public LoggingRequestWrapper(HttpServletRequest request) throws IOException
+	{
+		this( request, true );
+	}
+
+	/**
+	 * Creates the wrapper for the given servlet request, only holding on
+	 * to the data if it's going to be logged.
+	 * 
+	 * @param request
+	 * @param capture whether to record the request data
+	 * @throws IOException
+	 */
+	public LoggingRequestWrapper(HttpServletRequest request, boolean capture)
+	        throws IOException
 	{
 		super( request );
 		String fullUrl = request.getRequestURL().append( "?" ).append(
 		        request.getQueryString() ).toString();
 		// create the wrapper ServletInputStream
-		this.input = new LoggingInputStream( fullUrl, request.getInputStream() );
+		this.input = new LoggingInputStream( fullUrl,
+		        request.getInputStream(), capture );
 	}
 
 	@Override
@@ -72,18 +87,20 @@ class LoggingRequestWrapper extends HttpServletRequestWrapper {
 		private ServletInputStream rootStream;
 		private ByteArrayOutputStream data;
 
-		public LoggingInputStream(String url, ServletInputStream is)
-		        throws IOException
+		public LoggingInputStream(String url, ServletInputStream is,
+		        boolean capture) throws IOException
 		{
 			this.rootStream = is;
-			this.data = new ByteArrayOutputStream();
-			this.data.write( url.getBytes() );
+			if ( capture ) {
+				this.data = new ByteArrayOutputStream();
+				this.data.write( url.getBytes() );
+			}
 		}
 
 		@Override
 		public int read() throws IOException {
 			int ch = this.rootStream.read();
-			if ( ch != -1 ) {
+			if ( ch != -1 && this.data != null ) {
 				this.data.write( ch );
 			}
 			return ch;
@@ -95,7 +112,7 @@ class LoggingRequestWrapper extends HttpServletRequestWrapper {
 				throw new NullPointerException();
 			}
 			int bytesRead = this.rootStream.read( b, off, len );
-			if ( bytesRead > 0 ) {
+			if ( bytesRead > 0 && this.data != null ) {
 				this.data.write( b, off, bytesRead );
 			}
 			return bytesRead;
@@ -117,7 +134,7 @@ class LoggingRequestWrapper extends HttpServletRequestWrapper {
 		}
 
 		public byte[] getData() {
-			return this.data.toByteArray();
+			return ( this.data == null ? new byte[0] : this.data.toByteArray() );
 		}
 	}
 
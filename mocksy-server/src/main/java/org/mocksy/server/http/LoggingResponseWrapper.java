@@ -41,9 +41,24 @@ class LoggingResponseWrapper extends HttpServletResponseWrapper {
 	 */
 	public LoggingResponseWrapper(HttpServletResponse response)
 	        throws IOException
+	{
+		this( response, true );
+	}
+
+	/**
+	 * Creates the wrapper for the given servlet response, only holding on
+	 * to the data if it's going to be logged.
+	 * 
+	 * @param request
+	 * @param capture whether to record the response data
+	 * @throws IOException
+	 */
+	public LoggingResponseWrapper(HttpServletResponse response, boolean capture)
+	        throws IOException
 	{
 		super( response );
-		this.output = new LoggingOutputStream( response.getOutputStream() );
+		this.output = new LoggingOutputStream( response.getOutputStream(),
+		        capture );
 	}
 
 	@Override
@@ -70,19 +85,36 @@ class LoggingResponseWrapper extends HttpServletResponseWrapper {
 		private ServletOutputStream outputStream;
 		private ByteArrayOutputStream data;
 
-		public LoggingOutputStream(ServletOutputStream os) {
+		public LoggingOutputStream(ServletOutputStream os, boolean capture) {
 			this.outputStream = os;
-			this.data = new ByteArrayOutputStream();
+			if ( capture ) {
+				this.data = new ByteArrayOutputStream();
+			}
 		}
 
 		@Override
 		public void write(int b) throws IOException {
-			this.data.write( b );
+			if ( this.data != null ) {
+				this.data.write( b );
+			}
 			this.outputStream.write( b );
 		}
 
+		@Override
+		public void write(byte b[], int off, int len) throws IOException {
+			if ( this.data != null ) {
+				this.data.write( b, off, len );
+			}
+			this.outputStream.write( b, off, len );
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.outputStream.flush();
+		}
+
 		public byte[] getData() {
-			return this.data.toByteArray();
+			return ( this.data == null ? new byte[0] : this.data.toByteArray() );
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.mocksy.rules.Monitored;
+import org.mocksy.rules.Rule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.rules.RulesetRule;
+import org.mocksy.rules.http.MirrorRule;
+
+/**
+ * Servlet that displays the metrics of every {@link Monitored} Rule running
+ * on the server, one <code>name=value</code> pair per line.  Each metric name
+ * starts with the Rule's position in the Ruleset, e.g.
+ * <code>rule[2].connections.open</code>, or <code>default-rule</code> for
+ * the default Rule.
+ */
+public class MetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = 3127734186513072219L;
+
+	private Ruleset rules;
+
+	/**
+	 * Creates the servlet that will display the Ruleset's metrics.
+	 *
+	 * @param rules the Ruleset to display
+	 */
+	MetricsServlet(Ruleset rules) {
+		if ( rules == null ) {
+			throw new IllegalArgumentException(
+			        "MetricsServlet cannot be setup with a 'null' Ruleset." );
+		}
+		this.rules = rules;
+	}
+
+	@Override
+	public void destroy() {
+		this.rules = null;
+		super.destroy();
+	}
+
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp)
+	        throws ServletException, IOException
+	{
+		if ( this.rules != null ) {
+			Map<String, Number> metrics = new TreeMap<String, Number>();
+			collect( this.rules, "", metrics );
+			resp.setContentType( "text/plain" );
+			PrintWriter writer = resp.getWriter();
+			for ( Map.Entry<String, Number> metric : metrics.entrySet() ) {
+				writer.println( metric.getKey() + "=" + metric.getValue() );
+			}
+			resp.flushBuffer();
+		}
+	}
+
+	/**
+	 * Gathers up the metrics for all of the Rules in the Ruleset, including
+	 * the ones in nested Rulesets.
+	 *
+	 * @param rules the Ruleset to gather metrics from
+	 * @param prefix the name of the Ruleset
+	 * @param metrics the Map to add the metrics to
+	 */
+	static void collect(Ruleset rules, String prefix,
+	        Map<String, Number> metrics)
+	{
+		int i = 0;
+		for ( Rule rule : rules.getRules() ) {
+			collect( rule, prefix + "rule[" + ( ++i ) + "]", metrics );
+		}
+		if ( rules.getDefaultRule() != null ) {
+			collect( rules.getDefaultRule(), prefix + "default-rule", metrics );
+		}
+	}
+
+	private static void collect(Rule rule, String name,
+	        Map<String, Number> metrics)
+	{
+		if ( rule instanceof Monitored ) {
+			for ( Map.Entry<String, Number> metric : ( (Monitored) rule )
+			        .getMetrics().entrySet() )
+			{
+				metrics.put( name + "." + metric.getKey(), metric.getValue() );
+			}
+		}
+		if ( rule instanceof MirrorRule ) {
+			collect( ( (MirrorRule) rule ).getRule(), name, metrics );
+		}
+		else if ( rule instanceof RulesetRule ) {
+			collect( ( (RulesetRule) rule ).getRuleset(), name + ".", metrics );
+		}
+	}
+}
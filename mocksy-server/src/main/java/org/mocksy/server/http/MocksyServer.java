@@ -17,7 +17,12 @@ package org.mocksy.server.http;
  */
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.LogManager;
+import java.util.logging.Logger;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -26,35 +31,46 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.mocksy.config.RulesetFactory;
 import org.mocksy.config.RulesetFactoryFactory;
+import org.mocksy.config.xml.DirectoryRulesetFactory;
+import org.mocksy.config.xml.XmlRulesetFactory;
 import org.mocksy.rules.Ruleset;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.ContextHandlerCollection;
 import org.mortbay.jetty.nio.SelectChannelConnector;
-import org.mortbay.jetty.security.SslSocketConnector;
 import org.mortbay.jetty.servlet.ServletHolder;
 import org.mortbay.jetty.webapp.WebAppContext;
 import org.mortbay.resource.FileResource;
+import org.mortbay.thread.ThreadPool;
 
 /**
- * HTTP server to process Mocksy requests.
+ * HTTP server to process Mocksy requests.  Requests are served by a
+ * {@link ServerBackend}, Jetty unless another one is set; the admin port
+ * is always served by Jetty.
  *  
  * @author Saleem Shafi
  */
 public class MocksyServer {
+	private static final Logger logger = Logger.getLogger( MocksyServer.class
+	        .getName() );
 	private Ruleset ruleset;
 	private Server server;
 	private boolean admin;
-	private String keystore;
-	private String storepass;
+	private TlsSettings tls;
 	private int port;
+	private ServerBackend backend;
+	private boolean virtualThreads;
+	private ServerTuning tuning = new ServerTuning();
+	private ServerTuning adminTuning = new ServerTuning();
+	private Connector adminConnector;
+	private ExecutorThreadPool adminThreadPool;
 
 	/**
 	 * Create a server that will process request with the given Ruleset
 	 * and running on the given port.
 	 * 
 	 * @param rules the Ruleset to process requests with
-	 * @param port the port to run the server on
+	 * @param port the port to run the server on, or 0 for any free port
 	 */
 	public MocksyServer(Ruleset rules, int port) {
 		this.ruleset = rules;
@@ -77,8 +93,86 @@ public class MocksyServer {
 	 * @param password the keystore password
 	 */
 	void setKeystore(String keystore, String password) {
-		this.keystore = keystore;
-		this.storepass = password;
+		File file = new File( keystore );
+		this.setTls( file.isFile() ? new TlsSettings( file, password ) : null );
+	}
+
+	/**
+	 * Sets up the request port to serve TLS.  The default Jetty backend
+	 * picks this up itself; a backend that's been set has to be told.
+	 * 
+	 * @param tls the TLS settings, or null for plain HTTP
+	 */
+	public void setTls(TlsSettings tls) {
+		this.tls = tls;
+	}
+
+	/**
+	 * Sets the backend that serves requests.  This has to be done before
+	 * the server is started.
+	 * 
+	 * @param backend the backend, or null for the default Jetty one
+	 */
+	public void setBackend(ServerBackend backend) {
+		this.backend = backend;
+	}
+
+	/**
+	 * Sets whether the default Jetty backend runs each request on a virtual
+	 * thread rather than on its thread pool.  A backend that's been set has
+	 * to be told itself.
+	 * 
+	 * @param virtualThreads true to use virtual threads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets the connector and thread pool settings of the default Jetty
+	 * backend.  A backend that's been set has to be told itself.
+	 * 
+	 * @param tuning the request port's settings
+	 */
+	public void setTuning(ServerTuning tuning) {
+		this.tuning = tuning;
+	}
+
+	/**
+	 * Sets the connector and thread pool settings of the admin port.
+	 * 
+	 * @param tuning the admin port's settings
+	 */
+	public void setAdminTuning(ServerTuning tuning) {
+		this.adminTuning = tuning;
+	}
+
+	/**
+	 * Returns the settings the request and admin ports are running with,
+	 * e.g. <code>request.max-threads</code> and
+	 * <code>admin.acceptors</code>.
+	 * 
+	 * @return the settings, by name
+	 */
+	public synchronized Map<String, Number> getSettings() {
+		Map<String, Number> settings = new LinkedHashMap<String, Number>();
+		if ( this.backend != null ) {
+			for ( Map.Entry<String, Number> setting : this.backend
+			        .getSettings().entrySet() )
+			{
+				settings.put( "request." + setting.getKey(), setting
+				        .getValue() );
+			}
+		}
+		if ( this.server != null ) {
+			for ( Map.Entry<String, Number> setting : ServerTuning.describe(
+			        this.adminConnector, this.server.getThreadPool() )
+			        .entrySet() )
+			{
+				settings.put( "admin." + setting.getKey(), setting.getValue() );
+			}
+		}
+		return settings;
 	}
 
 	/**
@@ -87,55 +181,92 @@ public class MocksyServer {
 	 * @throws Exception
 	 */
 	public synchronized void start() throws Exception {
-		if ( this.server == null ) {
+		if ( this.admin && this.server == null ) {
 			this.server = new Server();
 			ContextHandlerCollection contexts = new ContextHandlerCollection();
 			this.server.setHandler( contexts );
+			// open up the admin connector
+			Connector adminConnector = setupAdminConnector();
+			this.adminTuning.apply( adminConnector );
+			this.server.addConnector( adminConnector );
+			this.adminConnector = adminConnector;
 
-			if ( this.admin ) {
-				// open up the admin connector
-				Connector adminConnector = setupAdminConnector();
-				this.server.addConnector( adminConnector );
-
-				WebAppContext adminContext = new WebAppContext();
-				adminContext.setContextPath( "/" );
-				// display Ruleset in XML
-				ServletHolder rulesServlet = new ServletHolder(
-				        new RulesServlet( this.ruleset ) );
-				adminContext.addServlet( rulesServlet, "/rules" );
-
-				// show log files
-				adminContext.setBaseResource( new FileResource( new File( "." )
-				        .toURI().toURL() ) );
-				adminContext.setConnectorNames( new String[] { adminConnector
-				        .getName() } );
-				contexts.addHandler( adminContext );
-				WebAppContext logsContext = new WebAppContext();
-				logsContext.setContextPath( "/logs" );
-				logsContext.setBaseResource( new FileResource(
-				        new File( "logs" ).toURI().toURL() ) );
-				logsContext.setConnectorNames( new String[] { adminConnector
-				        .getName() } );
-				contexts.addHandler( logsContext );
-
-			}
-
-			// setup main connector
-			Connector requestConnector = this.setupRequestConnector();
-			this.server.addConnector( requestConnector );
-			WebAppContext requestContext = new WebAppContext();
-			requestContext.setContextPath( "/" );
-			// process all requests with Ruleset
-			ServletHolder requestServlet = new ServletHolder(
-			        new RequestServlet( this.ruleset ) );
-			requestContext.addServlet( requestServlet, "/*" );
-			requestContext.setBaseResource( new FileResource( new File( "." )
+			WebAppContext adminContext = new WebAppContext();
+			adminContext.setContextPath( "/" );
+			// display Ruleset in XML
+			ServletHolder rulesServlet = new ServletHolder(
+			        new RulesServlet( this.ruleset ) );
+			adminContext.addServlet( rulesServlet, "/rules" );
+			// display Rule metrics
+			ServletHolder metricsServlet = new ServletHolder(
+			        new MetricsServlet( this.ruleset ) );
+			adminContext.addServlet( metricsServlet, "/metrics" );
+			// export latency measured by proxy Rules
+			ServletHolder latencyServlet = new ServletHolder(
+			        new LatencyServlet( this.ruleset ) );
+			adminContext.addServlet( latencyServlet, "/latency" );
+			// show the connector and thread pool settings
+			ServletHolder settingsServlet = new ServletHolder(
+			        new SettingsServlet( this ) );
+			adminContext.addServlet( settingsServlet, "/settings" );
+			// show log files
+			adminContext.setBaseResource( new FileResource( new File( "." )
 			        .toURI().toURL() ) );
-			requestContext.setConnectorNames( new String[] { requestConnector
+			adminContext.setConnectorNames( new String[] { adminConnector
 			        .getName() } );
-			contexts.addHandler( requestContext );
+			contexts.addHandler( adminContext );
+			WebAppContext logsContext = new WebAppContext();
+			logsContext.setContextPath( "/logs" );
+			logsContext.setBaseResource( new FileResource(
+			        new File( "logs" ).toURI().toURL() ) );
+			logsContext.setConnectorNames( new String[] { adminConnector
+			        .getName() } );
+			contexts.addHandler( logsContext );
+		}
+		if ( this.server != null ) {
+			if ( this.adminThreadPool == null ) {
+				ThreadPool pool = this.adminTuning
+				        .newThreadPool( "mocksy-admin" );
+				if ( pool instanceof ExecutorThreadPool ) {
+					// Jetty doesn't stop these, so we have to
+					this.adminThreadPool = (ExecutorThreadPool) pool;
+				}
+				if ( pool != null ) {
+					this.server.setThreadPool( pool );
+				}
+			}
+			this.server.start();
+		}
+
+		// serve requests through the backend
+		if ( this.backend == null ) {
+			JettyBackend jetty = new JettyBackend( this
+			        .setupRequestConnector() );
+			jetty.setVirtualThreads( this.virtualThreads );
+			jetty.setTuning( this.tuning );
+			this.backend = jetty;
+		}
+		this.backend.start( this.ruleset, this.port );
+		logger.info( "Request port settings: "
+		        + ServerTuning.format( this.backend.getSettings() ) );
+		if ( this.server != null ) {
+			logger.info( "Admin port settings: "
+			        + ServerTuning.format( ServerTuning.describe(
+			                this.adminConnector, this.server.getThreadPool() ) ) );
+		}
+	}
+
+	/**
+	 * Returns the port the server is processing requests on.  If it was
+	 * created with port 0, this is the port that was picked when it started.
+	 * 
+	 * @return the request port
+	 */
+	public int getPort() {
+		if ( this.backend != null && this.backend.getPort() > 0 ) {
+			return this.backend.getPort();
 		}
-		this.server.start();
+		return this.port;
 	}
 
 	/**
@@ -144,26 +275,28 @@ public class MocksyServer {
 	 * @throws Exception if server cannot be shutdown
 	 */
 	public void stop() throws Exception {
-		this.server.stop();
+		if ( this.backend != null ) {
+			this.backend.stop();
+		}
+		if ( this.server != null ) {
+			this.server.stop();
+		}
+		if ( this.adminThreadPool != null ) {
+			this.adminThreadPool.shutdown();
+			this.adminThreadPool = null;
+		}
 	}
 
 	/**
 	 * Creates the main request-processing connector on the 
-	 * appropriate port.  If the keystore is specified and valid,
-	 * the port will use SSL.
+	 * appropriate port.  If there are TLS settings, the port will use SSL.
 	 * 
 	 * @return the main connector
 	 */
 	protected Connector setupRequestConnector() {
 		Connector connector = new SelectChannelConnector();
-		if ( this.keystore != null ) {
-			File keystore = new File( this.keystore );
-			if ( keystore.exists() && keystore.isFile() ) {
-				SslSocketConnector sslConnector = new SslSocketConnector();
-				sslConnector.setKeystore( keystore.getAbsolutePath() );
-				sslConnector.setPassword( this.storepass );
-				connector = sslConnector;
-			}
+		if ( this.tls != null ) {
+			connector = this.tls.createConnector();
 		}
 		connector.setPort( this.port );
 		return connector;
@@ -191,22 +324,162 @@ public class MocksyServer {
 	public static void main(String[] args) throws Exception {
 		configureLogger();
 		CommandLine line = parseCommandLine( args );
+		if ( line.hasOption( "tls-no-tickets" ) ) {
+			// before anything, e.g. loading rules over https, uses TLS
+			TlsSettings.disableSessionTickets();
+		}
 
 		String rulesLocation = line.getOptionValue( 'r', "." );
 		String keystore = line.getOptionValue( 'k', "./keystore.jks" );
 		String password = line.getOptionValue( 'P', "password" );
 		boolean startAdminServlet = line.hasOption( 'a' );
 		int port = Integer.parseInt( line.getOptionValue( 'p', "8080" ) );
+		XmlRulesetFactory.setLazyLoading( line.hasOption( 'l' )
+		        && !line.hasOption( 'c' ) );
+		XmlRulesetFactory.setSnapshots( line.hasOption( 's' )
+		        || line.hasOption( 'c' ) );
 
-		RulesetFactory factory = RulesetFactoryFactory
-		        .getRulesetFactory( rulesLocation );
+		RulesetFactory factory;
+		if ( new File( rulesLocation ).isDirectory() ) {
+			factory = new DirectoryRulesetFactory( new File( rulesLocation ),
+			        split( line.getOptionValue( 'i' ) ), split( line
+			                .getOptionValue( 'x' ) ) );
+		}
+		else {
+			factory = RulesetFactoryFactory.getRulesetFactory( rulesLocation );
+		}
 		Ruleset mocksy = factory.getRuleset();
+		if ( line.hasOption( 'c' ) ) {
+			// the snapshots are written as the rulesets are loaded
+			System.out.println( "Compiled " + rulesLocation );
+			return;
+		}
 		MocksyServer server = new MocksyServer( mocksy, port );
 		server.startAdminPort( startAdminServlet );
-		server.setKeystore( keystore, password );
+		TlsSettings tls = createTls( line, keystore, password );
+		server.setTls( tls );
+		ServerBackend backend = createBackend( line.getOptionValue( 'b',
+		        "jetty" ) );
+		if ( backend instanceof NioBackend ) {
+			( (NioBackend) backend ).setTls( tls );
+		}
+		else if ( backend != null && tls != null ) {
+			logger.warning( backend.getClass().getName()
+			        + " doesn't serve SSL, ignoring " + keystore );
+		}
+		boolean virtualThreads = line.hasOption( 'V' );
+		ServerTuning tuning = new ServerTuning();
+		ServerTuning adminTuning = new ServerTuning();
+		if ( line.hasOption( 't' ) ) {
+			File tuningFile = new File( line.getOptionValue( 't' ) );
+			tuning = ServerTuning.load( tuningFile );
+			adminTuning = ServerTuning.loadAdmin( tuningFile );
+		}
+		for ( String setting : ServerTuning.SETTINGS ) {
+			// the command line overrides the file, for both ports
+			tuning.set( setting, line.getOptionValue( setting ) );
+			adminTuning.set( setting, line.getOptionValue( setting ) );
+		}
+		if ( backend instanceof NioBackend ) {
+			( (NioBackend) backend ).setVirtualThreads( virtualThreads );
+			tuning.apply( (NioBackend) backend );
+		}
+		server.setVirtualThreads( virtualThreads );
+		server.setTuning( tuning );
+		server.setAdminTuning( adminTuning );
+		server.setBackend( backend );
 		server.start();
 	}
 
+	/**
+	 * Creates the TLS settings from the command line, if the keystore
+	 * exists.
+	 * 
+	 * @param line the command line
+	 * @param keystore the keystore location
+	 * @param password the keystore password
+	 * @return the settings, or null if there's no keystore
+	 */
+	static TlsSettings createTls(CommandLine line, String keystore,
+	        String password)
+	{
+		File file = new File( keystore );
+		if ( !file.isFile() ) {
+			return null;
+		}
+		TlsSettings tls = new TlsSettings( file, password );
+		tls.setProtocols( toArray( split( line
+		        .getOptionValue( "tls-protocols" ) ) ) );
+		tls.setCipherSuites( toArray( split( line
+		        .getOptionValue( "tls-ciphers" ) ) ) );
+		if ( line.hasOption( "tls-session-cache" ) ) {
+			tls.setSessionCacheSize( Integer.parseInt( line
+			        .getOptionValue( "tls-session-cache" ) ) );
+		}
+		if ( line.hasOption( "tls-session-timeout" ) ) {
+			tls.setSessionTimeout( Integer.parseInt( line
+			        .getOptionValue( "tls-session-timeout" ) ) );
+		}
+		tls.setSessionTickets( !line.hasOption( "tls-no-tickets" ) );
+		tls.setAlpn( line.hasOption( "tls-alpn" ) );
+		return tls;
+	}
+
+	/**
+	 * Creates the backend with the given name: "jetty", "nio" or the class
+	 * name of a {@link ServerBackend}.
+	 * 
+	 * @param name the backend's name
+	 * @return the backend, or null for the default Jetty one
+	 * @throws IllegalArgumentException if the name isn't a backend
+	 */
+	static ServerBackend createBackend(String name) {
+		if ( "jetty".equals( name ) ) {
+			// the default, which also takes care of SSL
+			return null;
+		}
+		if ( "nio".equals( name ) ) {
+			return new NioBackend();
+		}
+		try {
+			Class<?> backendClass = Class.forName( name );
+			if ( !ServerBackend.class.isAssignableFrom( backendClass ) ) {
+				throw new IllegalArgumentException( name + " needs to be a "
+				        + ServerBackend.class.getName() );
+			}
+			return (ServerBackend) backendClass.newInstance();
+		}
+		catch ( ClassNotFoundException e ) {
+			throw new IllegalArgumentException( "Unknown backend: " + name );
+		}
+		catch ( InstantiationException e ) {
+			throw new IllegalArgumentException( "Error creating instance of "
+			        + name, e );
+		}
+		catch ( IllegalAccessException e ) {
+			throw new IllegalArgumentException( "Error creating instance of "
+			        + name, e );
+		}
+	}
+
+	/**
+	 * Splits a comma-separated option value into a list.
+	 * 
+	 * @param value the option value, or null
+	 * @return the values, or null if there was no option value
+	 */
+	private static List<String> split(String value) {
+		if ( value == null ) {
+			return null;
+		}
+		return Arrays.asList( value.split( "," ) );
+	}
+
+	private static String[] toArray(List<String> values) {
+		return values == null ? null : values
+		        .toArray( new String[values.size()] );
+	}
+
 	/**
 	 * Parses the program arguments into an Apache CLI CommandLine. If the
 	 * -h switch is present, the usage info will be printed to System.out.
@@ -234,6 +507,54 @@ public class MocksyServer {
 		        "password to open the keystore (default: password)" );
 		options.addOption( "a", "admin", false,
 		        "open admin port (one higher than request port)" );
+		options.addOption( "l", "lazy", false,
+		        "read response files when they're first needed, not at startup" );
+		options.addOption( "s", "snapshot", false,
+		        "load rulesets from compiled snapshots, updating them as needed" );
+		options.addOption( "c", "compile", false,
+		        "compile snapshots of the rulesets and exit" );
+		options.addOption( "i", "include", true,
+		        "comma-separated globs for the ruleset files to load from a directory (default: **/*.xml)" );
+		options.addOption( "x", "exclude", true,
+		        "comma-separated globs for the files to leave out of a directory" );
+		options.addOption( "V", "virtual-threads", false,
+		        "run each request on a virtual thread (Java 21 and later)" );
+		options.addOption( "b", "backend", true,
+		        "what serves requests: jetty, nio or a ServerBackend class name (default: jetty)" );
+		options.addOption( null, "tls-protocols", true,
+		        "comma-separated TLS versions to offer, e.g. TLSv1.3,TLSv1.2 (default: the JVM's)" );
+		options.addOption( null, "tls-ciphers", true,
+		        "comma-separated cipher suites to offer (default: the JVM's)" );
+		options.addOption( null, "tls-session-cache", true,
+		        "TLS sessions kept for clients to resume, 0 for no limit (default: the JVM's)" );
+		options.addOption( null, "tls-session-timeout", true,
+		        "seconds a TLS session can be resumed for (default: the JVM's)" );
+		options.addOption( null, "tls-no-tickets", false,
+		        "don't hand out TLS session tickets, only resume sessions from the cache" );
+		options.addOption( null, "tls-alpn", false,
+		        "agree on http/1.1 with clients that use ALPN (Java 9 and later)" );
+		options.addOption( "t", "tuning", true,
+		        "properties file of connector and thread pool settings, named like their options; admin.<setting> only applies to the admin port" );
+		options.addOption( null, ServerTuning.ACCEPTORS, true,
+		        "threads accepting connections" );
+		options.addOption( null, ServerTuning.SELECTORS, true,
+		        "selectors of the non-blocking connector, each of which accepts connections too" );
+		options.addOption( null, ServerTuning.MIN_THREADS, true,
+		        "threads kept around to process requests" );
+		options.addOption( null, ServerTuning.MAX_THREADS, true,
+		        "most threads processing requests at once" );
+		options.addOption( null, ServerTuning.QUEUE_SIZE, true,
+		        "most requests waiting for a thread (default: no limit)" );
+		options.addOption( null, ServerTuning.IDLE_TIMEOUT, true,
+		        "milliseconds before an idle connection is closed" );
+		options.addOption( null, ServerTuning.BACKLOG, true,
+		        "connections waiting to be accepted before new ones are refused" );
+		options.addOption( null, ServerTuning.HEADER_BUFFER, true,
+		        "bytes of buffer for request and response headers" );
+		options.addOption( null, ServerTuning.REQUEST_BUFFER, true,
+		        "bytes of buffer for request bodies" );
+		options.addOption( null, ServerTuning.RESPONSE_BUFFER, true,
+		        "bytes of buffer for response bodies" );
 
 		CommandLine line = null;
 		boolean help = true;
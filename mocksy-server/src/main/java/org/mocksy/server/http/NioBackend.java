@@ -0,0 +1,508 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLEngine;
+import org.mocksy.rules.Ruleset;
+
+/**
+ * A small HTTP/1.1 server of Mocksy's own, with none of a servlet
+ * container's machinery between the socket and the Ruleset.  One selector
+ * thread accepts connections, reads requests and writes out whatever the
+ * sockets can't take right away; requests are processed on a pool of
+ * worker threads, since a Rule may block, e.g. on a proxied server.
+ * 
+ * Connections are kept alive and requests can be pipelined; request bodies
+ * can be chunked, up to a maximum size.  Connections that go idle, or take
+ * too long over a request's head, are closed.  Plain Responses are encoded
+ * once and written straight from the encoded bytes.  Delayed and paced
+ * Responses wait on a timer, not on a thread.
+ * 
+ * With {@link TlsSettings}, connections are TLS.  Decrypting and encrypting
+ * happen on the same threads as reading and writing, and the expensive part
+ * of a handshake runs on a worker thread, so a connection still doesn't
+ * tie up a thread while it's idle, or while it's handshaking.
+ * 
+ * Instead of the worker pool, each request can run on a virtual thread of
+ * its own, so that Rules that block don't limit how many requests can be
+ * in progress at once.
+ */
+public class NioBackend implements ServerBackend {
+	private static final Logger logger = Logger.getLogger( NioBackend.class
+	        .getName() );
+	private static final int DEFAULT_BUFFER_SIZE = 1024 * 16;
+	private static final int DEFAULT_THREADS = 200;
+	private static final int DEFAULT_BACKLOG = 1024;
+	private static final int DEFAULT_IDLE_TIMEOUT = 30000;
+	// how long a worker beyond the minimum is kept when there's no work
+	private static final int THREAD_IDLE_TIME = 60000;
+	private static final int DEFAULT_MAX_BODY_SIZE = 1024 * 1024 * 16;
+	// how often connections are checked for being idle, at most
+	private static final int IDLE_CHECK_INTERVAL = 1000;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Set<NioConnection> connections = Collections
+	        .newSetFromMap( new ConcurrentHashMap<NioConnection, Boolean>() );
+	private ByteBuffer readBuffer;
+	private int threads = DEFAULT_THREADS;
+	private int minThreads = -1;
+	private int queueSize;
+	private int backlog = DEFAULT_BACKLOG;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+	private boolean virtualThreads;
+	private TlsSettings tls;
+	private volatile Ruleset rules;
+	private volatile boolean running;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+	private ExecutorService workers;
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Sets how many threads process requests, i.e. how many requests can be
+	 * processed at once.  Idle connections and paced responses don't take
+	 * up a thread.
+	 * 
+	 * @param threads the number of worker threads (default: 200)
+	 */
+	public void setThreads(int threads) {
+		if ( threads < 1 ) {
+			throw new IllegalArgumentException(
+			        "There has to be at least one thread" );
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets how many worker threads are kept even when there's no work.  By
+	 * default, all of them are.
+	 * 
+	 * @param minThreads the number of threads to keep
+	 */
+	public void setMinThreads(int minThreads) {
+		if ( minThreads < 0 ) {
+			throw new IllegalArgumentException(
+			        "The minimum threads can't be negative" );
+		}
+		this.minThreads = minThreads;
+	}
+
+	/**
+	 * Sets how many requests can be waiting for a worker thread.  Past
+	 * that, requests get a 503 rather than piling up work the server can't
+	 * get to.
+	 * 
+	 * @param queueSize the most requests that can wait, or 0 for no limit
+	 *        (the default)
+	 */
+	public void setQueueSize(int queueSize) {
+		if ( queueSize < 0 ) {
+			throw new IllegalArgumentException(
+			        "The queue size can't be negative" );
+		}
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets how many connections can be waiting to be accepted before the
+	 * operating system turns new ones away.
+	 * 
+	 * @param backlog the accept backlog (default: 1024)
+	 */
+	public void setBacklog(int backlog) {
+		if ( backlog < 1 ) {
+			throw new IllegalArgumentException(
+			        "The backlog has to be at least one" );
+		}
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Sets the size of the buffer that requests are read into.  It's shared
+	 * by all connections, and a request can span as many reads as it needs.
+	 * 
+	 * @param bufferSize the buffer size in bytes (default: 16KB)
+	 */
+	public void setBufferSize(int bufferSize) {
+		if ( bufferSize < 1 ) {
+			throw new IllegalArgumentException(
+			        "The buffer size has to be at least one byte" );
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets how long a connection can go without reading or writing
+	 * anything before it's closed.  This is also how long a client has to
+	 * send the head of a request.  A request that's being processed doesn't
+	 * count as idle, however long it takes.
+	 * 
+	 * @param idleTimeout the timeout in milliseconds (default: 30s)
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		if ( idleTimeout < 1 ) {
+			throw new IllegalArgumentException(
+			        "The idle timeout has to be at least a millisecond" );
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets how big a request body can be.  Bodies are held in memory, and
+	 * bigger ones get a 413.
+	 * 
+	 * @param maxBodySize the most bytes a body can take up (default: 16MB)
+	 */
+	public void setMaxBodySize(int maxBodySize) {
+		if ( maxBodySize < 0 ) {
+			throw new IllegalArgumentException(
+			        "The maximum body size can't be negative" );
+		}
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Sets whether each request runs on a virtual thread of its own rather
+	 * than on the pool of worker threads.  This only makes a difference on
+	 * JVMs that have virtual threads.
+	 * 
+	 * @param virtualThreads true to use virtual threads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets up the backend to serve TLS rather than plain HTTP.
+	 * 
+	 * @param tls the TLS settings, or null for plain HTTP
+	 */
+	public void setTls(TlsSettings tls) {
+		this.tls = tls;
+	}
+
+	public synchronized void start(Ruleset rules, int port) throws Exception
+	{
+		if ( this.running ) {
+			return;
+		}
+		int readSize = this.bufferSize;
+		if ( this.tls != null ) {
+			// a whole record has to be decrypted in one go
+			readSize = Math.max( readSize, this.tls.createEngine()
+			        .getSession().getApplicationBufferSize() );
+		}
+		this.rules = rules;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().setReuseAddress( true );
+		this.serverChannel.socket().bind( new InetSocketAddress( port ),
+		        this.backlog );
+		this.readBuffer = ByteBuffer.allocate( readSize );
+		this.serverChannel.configureBlocking( false );
+		this.serverChannel.register( this.selector, SelectionKey.OP_ACCEPT );
+		this.workers = ( this.virtualThreads ? VirtualThreads.newExecutor()
+		        : null );
+		if ( this.workers == null ) {
+			this.workers = this.newWorkers();
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(
+		        new NamedThreadFactory( "mocksy-nio-timer" ) );
+		long interval = Math.max( 1, Math.min( IDLE_CHECK_INTERVAL,
+		        this.idleTimeout / 2 ) );
+		this.timer.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				closeIdleConnections();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS );
+		this.running = true;
+		this.selectorThread = new NamedThreadFactory( "mocksy-nio-selector" )
+		        .newThread( new Runnable() {
+			        public void run() {
+				        select();
+			        }
+		        } );
+		this.selectorThread.start();
+		logger.info( "Started NIO backend on port " + this.getPort()
+		        + ( this.tls == null ? "" : " with TLS: " + this.tls ) );
+	}
+
+	private ExecutorService newWorkers() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor( this.threads,
+		        this.threads, THREAD_IDLE_TIME, TimeUnit.MILLISECONDS,
+		        this.queueSize > 0 ? new ArrayBlockingQueue<Runnable>(
+		                this.queueSize ) : new LinkedBlockingQueue<Runnable>(),
+		        new NamedThreadFactory( "mocksy-nio-worker" ) );
+		if ( this.minThreads >= 0 ) {
+			// the pool only starts threads beyond its core size once the
+			// queue is full, so all of them are core threads that can time
+			// out, and the minimum are started up front
+			pool.allowCoreThreadTimeOut( true );
+			int start = Math.min( this.minThreads, this.threads );
+			for ( int i = 0; i < start; i++ ) {
+				pool.prestartCoreThread();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the backend's settings.  There's always the one selector,
+	 * which also accepts connections, and virtual threads have no limit.
+	 */
+	public synchronized Map<String, Number> getSettings() {
+		Map<String, Number> settings = new LinkedHashMap<String, Number>();
+		settings.put( ServerTuning.ACCEPTORS, 1 );
+		settings.put( ServerTuning.SELECTORS, 1 );
+		if ( this.workers != null ) {
+			ServerTuning.describe( this.workers, settings );
+		}
+		else if ( !this.virtualThreads ) {
+			settings.put( ServerTuning.MIN_THREADS,
+			        this.minThreads < 0 ? this.threads : this.minThreads );
+			settings.put( ServerTuning.MAX_THREADS, this.threads );
+			if ( this.queueSize > 0 ) {
+				settings.put( ServerTuning.QUEUE_SIZE, this.queueSize );
+			}
+		}
+		settings.put( ServerTuning.IDLE_TIMEOUT, this.idleTimeout );
+		settings.put( ServerTuning.BACKLOG, this.backlog );
+		settings.put( ServerTuning.REQUEST_BUFFER, this.bufferSize );
+		return settings;
+	}
+
+	public synchronized int getPort() {
+		if ( this.serverChannel == null || !this.serverChannel.isOpen() ) {
+			return 0;
+		}
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	public synchronized void stop() throws Exception {
+		if ( !this.running ) {
+			return;
+		}
+		this.running = false;
+		this.selector.wakeup();
+		this.selectorThread.join();
+		this.workers.shutdownNow();
+		this.timer.shutdownNow();
+		this.serverChannel.close();
+	}
+
+	/**
+	 * Returns the Ruleset that requests are processed with.
+	 */
+	Ruleset getRuleset() {
+		return this.rules;
+	}
+
+	boolean isRunning() {
+		return this.running;
+	}
+
+	Selector getSelector() {
+		return this.selector;
+	}
+
+	int getMaxBodySize() {
+		return this.maxBodySize;
+	}
+
+	/**
+	 * Keeps track of a connection, so it can be closed if it goes idle.
+	 */
+	void register(NioConnection connection) {
+		this.connections.add( connection );
+	}
+
+	/**
+	 * Stops keeping track of a connection once it's been closed.
+	 */
+	void unregister(NioConnection connection) {
+		this.connections.remove( connection );
+	}
+
+	/**
+	 * Processes a request on one of the worker threads.
+	 * 
+	 * @param task the work to do
+	 */
+	void execute(Runnable task) {
+		this.workers.execute( task );
+	}
+
+	/**
+	 * Hands the given task to a worker thread after the given delay,
+	 * without taking up a thread meanwhile.  If the workers are all busy
+	 * and there's no room left to queue the task, the given fallback is run
+	 * instead, on whichever thread found that out.
+	 * 
+	 * @param task the work to do
+	 * @param delay how long to wait first, in milliseconds
+	 * @param rejected what to do if the task can't be queued
+	 */
+	void schedule(final Runnable task, long delay, final Runnable rejected) {
+		if ( delay <= 0 ) {
+			this.execute( task, rejected );
+			return;
+		}
+		this.timer.schedule( new Runnable() {
+			public void run() {
+				execute( task, rejected );
+			}
+		}, delay, TimeUnit.MILLISECONDS );
+	}
+
+	private void execute(Runnable task, Runnable rejected) {
+		try {
+			this.workers.execute( task );
+		}
+		catch ( RejectedExecutionException e ) {
+			rejected.run();
+		}
+	}
+
+	/**
+	 * Runs the given task on the selector thread, which is the only one
+	 * that can change what a connection is selected for.
+	 * 
+	 * @param task the task to run
+	 */
+	void invoke(Runnable task) {
+		this.tasks.add( task );
+		this.selector.wakeup();
+	}
+
+	private void select() {
+		while ( this.running ) {
+			try {
+				this.selector.select();
+				Runnable task;
+				while ( ( task = this.tasks.poll() ) != null ) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys()
+				        .iterator();
+				while ( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if ( !key.isValid() ) {
+						continue;
+					}
+					if ( key.isAcceptable() ) {
+						this.accept();
+						continue;
+					}
+					NioConnection connection = (NioConnection) key
+					        .attachment();
+					if ( key.isWritable() ) {
+						connection.write();
+					}
+					if ( key.isValid() && key.isReadable() ) {
+						connection.read( this.readBuffer );
+					}
+				}
+			}
+			catch ( Exception e ) {
+				logger.log( Level.SEVERE, "Error in NIO selector", e );
+			}
+		}
+		// close whatever connections are still open
+		for ( SelectionKey key : this.selector.keys() ) {
+			if ( key.attachment() instanceof NioConnection ) {
+				( (NioConnection) key.attachment() ).close();
+			}
+		}
+		try {
+			this.selector.close();
+		}
+		catch ( IOException e ) {
+			logger.log( Level.WARNING, "Error closing NIO selector", e );
+		}
+	}
+
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		for ( NioConnection connection : this.connections ) {
+			connection.checkIdle( now, this.idleTimeout );
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ( ( channel = this.serverChannel.accept() ) != null ) {
+			try {
+				SSLEngine engine = ( this.tls == null ? null : this.tls
+				        .createEngine() );
+				new NioConnection( this, channel, engine );
+			}
+			catch ( Exception e ) {
+				logger.log( Level.FINE, "Error accepting connection", e );
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Creates daemon threads with a name that says what they're for.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread( runnable, this.name + "-"
+			        + this.count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,623 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+/**
+ * A client connection to the {@link NioBackend}.  The selector thread reads
+ * requests off the connection and writes out whatever output the socket
+ * couldn't take straight away; everything else happens on the threads
+ * processing the requests.
+ * 
+ * Requests are processed one at a time, in the order they arrived, so the
+ * responses to pipelined requests go out in the right order.  Output goes
+ * straight to the socket when it can, and is queued up for the selector
+ * thread when it can't.  The state is guarded by a ReentrantLock rather
+ * than a monitor, so that waiting on a slow client doesn't pin a virtual
+ * thread to its carrier.
+ * 
+ * A connection that's idle for longer than the backend's idle timeout is
+ * closed, whether it's between requests, partway through a request's head
+ * or stuck writing to a client that has stopped reading.  A request that's
+ * being processed doesn't count as idle, however long it takes.
+ * 
+ * A TLS connection decrypts on the selector thread as it reads, and
+ * encrypts on the thread that sends; the handshake's delegated tasks run
+ * on a worker thread while the connection stops reading.
+ */
+class NioConnection {
+	private static final Logger logger = Logger.getLogger( NioConnection.class
+	        .getName() );
+	// stop reading when this many requests are waiting to be processed
+	private static final int MAX_PIPELINED = 32;
+	// make streamed responses wait when this much output is queued up
+	private static final int MAX_QUEUED_OUTPUT = 1024 * 64;
+	private static final byte[] CONTINUE = NioExchange
+	        .ascii( "HTTP/1.1 100 Continue\r\n\r\n" );
+
+	private final NioBackend backend;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final NioTls tls;
+	private final NioRequestParser parser;
+	private final LinkedList<NioServletRequest> requests = new LinkedList<NioServletRequest>();
+	private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition drained = this.lock.newCondition();
+	private final Runnable interestUpdate = new Runnable() {
+		public void run() {
+			updateInterest();
+		}
+	};
+	private final Runnable handshakeTasks = new Runnable() {
+		public void run() {
+			runHandshakeTasks();
+		}
+	};
+	private long queued;
+	private boolean busy;
+	private boolean reading = true;
+	private boolean writing;
+	private boolean handshaking;
+	private boolean inputShutdown;
+	// the error status to turn the connection away with, if any
+	private int rejection;
+	private long lastActive = System.currentTimeMillis();
+	// when the head of the request being read started arriving
+	private long headStarted;
+	private boolean closing;
+	private boolean closed;
+
+	/**
+	 * Creates the connection and registers it with the backend's selector.
+	 * This has to be called on the selector thread.
+	 * 
+	 * @param backend the backend that accepted the connection
+	 * @param channel the connection's channel
+	 * @param engine the engine to do TLS with, or null for plain HTTP
+	 * @throws IOException if the channel can't be registered
+	 */
+	NioConnection(NioBackend backend, SocketChannel channel, SSLEngine engine)
+	        throws IOException
+	{
+		this.backend = backend;
+		this.channel = channel;
+		this.tls = ( engine == null ? null : new NioTls( engine ) );
+		this.parser = new NioRequestParser( backend.getMaxBodySize() );
+		channel.configureBlocking( false );
+		channel.socket().setTcpNoDelay( true );
+		this.key = channel.register( backend.getSelector(),
+		        SelectionKey.OP_READ, this );
+		backend.register( this );
+	}
+
+	/**
+	 * Reads what's available from the connection and queues up any
+	 * requests that are complete.  Called on the selector thread.
+	 * 
+	 * @param buffer a buffer to read into
+	 */
+	void read(ByteBuffer buffer) {
+		int read = 0;
+		if ( this.tls == null ) {
+			try {
+				buffer.clear();
+				read = this.channel.read( buffer );
+			}
+			catch ( IOException e ) {
+				this.close();
+				return;
+			}
+		}
+		this.lock.lock();
+		try {
+			if ( this.tls != null ) {
+				// the engine's state is guarded by the lock
+				try {
+					read = this.tls.read( this.channel );
+				}
+				catch ( IOException e ) {
+					this.close();
+					return;
+				}
+			}
+			if ( read > 0 ) {
+				this.lastActive = System.currentTimeMillis();
+			}
+			if ( read < 0 ) {
+				// the client has finished sending, but may still be waiting
+				// for the responses to what it sent
+				this.inputShutdown = true;
+				this.reading = false;
+			}
+			else if ( this.tls != null ) {
+				this.decrypt( buffer );
+			}
+			else {
+				this.parser.append( buffer.array(), 0, read );
+				this.parseRequests();
+			}
+			this.updateInterest();
+			if ( !this.busy ) {
+				this.dispatchNext();
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes out as much of the queued output as the socket will take.
+	 * Called on the selector thread.
+	 */
+	void write() {
+		this.lock.lock();
+		try {
+			this.flush();
+			this.updateInterest();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the given buffers to the client, after any output that's
+	 * already queued.
+	 * 
+	 * @param buffers the output
+	 * @throws IOException if the connection has been closed
+	 */
+	void send(ByteBuffer... buffers) throws IOException {
+		this.lock.lock();
+		try {
+			if ( this.closed ) {
+				throw new IOException( "Connection has been closed" );
+			}
+			if ( this.tls != null ) {
+				List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+				this.tls.wrap( buffers, records );
+				this.queue( records );
+			}
+			else {
+				this.queue( Arrays.asList( buffers ) );
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the queued output has gone down to where more can be
+	 * added, so a slow client holds back whoever is producing the output.
+	 * 
+	 * @throws IOException if the connection is closed while waiting
+	 */
+	void awaitOutput() throws IOException {
+		this.lock.lock();
+		try {
+			while ( this.queued > MAX_QUEUED_OUTPUT && !this.closed ) {
+				try {
+					this.drained.await();
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new IOException( "Interrupted waiting for the client" );
+				}
+			}
+			if ( this.closed ) {
+				throw new IOException( "Connection has been closed" );
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Finishes off the request being processed, once its response has been
+	 * sent, and moves on to the next one.
+	 * 
+	 * @param keepAlive whether the connection can take more requests
+	 */
+	void complete(boolean keepAlive) {
+		this.lock.lock();
+		try {
+			this.busy = false;
+			this.lastActive = System.currentTimeMillis();
+			if ( !keepAlive ) {
+				this.requests.clear();
+				this.shutdown();
+				return;
+			}
+			this.dispatchNext();
+			this.resumeReading();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the connection once the output that's queued has been written.
+	 */
+	void shutdown() {
+		this.lock.lock();
+		try {
+			this.closing = true;
+			this.reading = false;
+			if ( this.tls != null && !this.closed ) {
+				// let the client know it hasn't been cut off
+				List<ByteBuffer> alert = new ArrayList<ByteBuffer>();
+				this.tls.close( alert );
+				this.queue( alert );
+			}
+			if ( this.output.isEmpty() ) {
+				this.close();
+			}
+			else {
+				this.backend.invoke( this.interestUpdate );
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the connection right away.
+	 */
+	void close() {
+		this.lock.lock();
+		try {
+			if ( this.closed ) {
+				return;
+			}
+			this.closed = true;
+			this.backend.unregister( this );
+			this.output.clear();
+			this.requests.clear();
+			this.key.cancel();
+			try {
+				this.channel.close();
+			}
+			catch ( IOException e ) {
+				logger.log( Level.FINE, "Error closing connection", e );
+			}
+			// let anyone waiting on the output go
+			this.drained.signalAll();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the connection if it's been idle for longer than the given
+	 * timeout, or has taken longer than that to send a request's head.
+	 * Called on the backend's timer thread.
+	 * 
+	 * @param now the current time, in milliseconds
+	 * @param timeout the idle timeout, in milliseconds
+	 */
+	void checkIdle(long now, long timeout) {
+		this.lock.lock();
+		try {
+			// a slow request isn't idle, but a slow client is
+			boolean idle = ( !this.busy || this.writing )
+			        && now - this.lastActive > timeout;
+			boolean slowHead = this.headStarted > 0
+			        && now - this.headStarted > timeout;
+			if ( ( idle || slowHead ) && !this.closed ) {
+				if ( logger.isLoggable( Level.FINE ) ) {
+					logger.fine( "Closing idle connection from "
+					        + this.channel.socket().getRemoteSocketAddress() );
+				}
+				this.close();
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Fills in the addresses of both ends of the connection on a request.
+	 */
+	void setAddresses(NioServletRequest request) {
+		Socket socket = this.channel.socket();
+		InetSocketAddress remote = (InetSocketAddress) socket
+		        .getRemoteSocketAddress();
+		request.setAddresses( remote == null ? null : remote.getAddress()
+		        .getHostAddress(), socket.getPort(), socket.getLocalAddress()
+		        .getHostAddress(), socket.getLocalPort() );
+		request.setSecure( this.tls != null );
+	}
+
+	NioBackend getBackend() {
+		return this.backend;
+	}
+
+	private void parseRequests() {
+		try {
+			NioServletRequest request;
+			while ( ( request = this.parser.next() ) != null ) {
+				this.setAddresses( request );
+				this.requests.add( request );
+			}
+		}
+		catch ( IOException e ) {
+			if ( logger.isLoggable( Level.FINE ) ) {
+				logger.log( Level.FINE, "Bad request", e );
+			}
+			// answer what came before it, then turn the connection away
+			this.rejection = ( e instanceof NioRequestParser.BodyTooLargeException
+			        ? 413 : 400 );
+			this.inputShutdown = true;
+			this.reading = false;
+		}
+		if ( this.requests.size() >= MAX_PIPELINED ) {
+			this.reading = false;
+		}
+		if ( !this.parser.isReadingHead() ) {
+			this.headStarted = 0;
+		}
+		else if ( this.headStarted == 0 ) {
+			this.headStarted = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Decrypts what's been read, and sends whatever the handshake has to
+	 * send back.  If the handshake has work to do, reading stops until it's
+	 * been done on a worker thread.
+	 * 
+	 * @param buffer a buffer to decrypt into
+	 */
+	private void decrypt(ByteBuffer buffer) {
+		List<ByteBuffer> handshake = new ArrayList<ByteBuffer>();
+		int state;
+		try {
+			state = this.tls.unwrap( buffer, this.parser, handshake );
+		}
+		catch ( SSLException e ) {
+			if ( logger.isLoggable( Level.FINE ) ) {
+				logger.log( Level.FINE, "TLS handshake failed", e );
+			}
+			this.queue( handshake );
+			this.shutdown();
+			return;
+		}
+		this.queue( handshake );
+		this.parseRequests();
+		if ( state == NioTls.NEED_TASKS ) {
+			this.handshaking = true;
+			this.reading = false;
+			try {
+				this.backend.execute( this.handshakeTasks );
+			}
+			catch ( RejectedExecutionException e ) {
+				// the backend is shutting down, or too busy to
+				// finish the handshake
+				this.close();
+			}
+		}
+		else if ( state == NioTls.CLOSED ) {
+			this.inputShutdown = true;
+			this.reading = false;
+		}
+	}
+
+	/**
+	 * Runs the handshake's delegated tasks, then carries on with it.
+	 * Called on a worker thread.
+	 */
+	private void runHandshakeTasks() {
+		this.tls.runTasks();
+		this.lock.lock();
+		try {
+			if ( this.closed ) {
+				return;
+			}
+			this.handshaking = false;
+			// there's usually nothing more to decrypt until the client has
+			// seen our half of the handshake
+			this.decrypt( this.tls.hasInput() ? ByteBuffer.allocate( this.tls
+			        .getApplicationBufferSize() ) : null );
+			this.resumeReading();
+			if ( !this.busy ) {
+				this.dispatchNext();
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	private static String rejectionMessage(int status) {
+		switch ( status ) {
+			case 413:
+				return "Request body is too large";
+			case 503:
+				return "Too many requests waiting";
+			default:
+				return "Bad request";
+		}
+	}
+
+	private void dispatchNext() {
+		if ( this.closed || this.closing ) {
+			return;
+		}
+		NioServletRequest request = this.requests.poll();
+		if ( request != null ) {
+			this.busy = true;
+			try {
+				this.backend.execute( new NioExchange( this, request ) );
+			}
+			catch ( RejectedExecutionException e ) {
+				this.busy = false;
+				if ( this.backend.isRunning() ) {
+					// every worker is busy and the queue is full, so turn
+					// the connection away
+					this.rejection = 503;
+					this.requests.clear();
+					this.inputShutdown = true;
+					this.reading = false;
+					this.dispatchNext();
+				}
+				else {
+					this.close();
+				}
+			}
+		}
+		else if ( this.rejection != 0 ) {
+			try {
+				this.send( NioExchange.encodeError( this.rejection,
+				        rejectionMessage( this.rejection ), false ) );
+			}
+			catch ( IOException e ) {
+				// closed already
+			}
+			this.shutdown();
+		}
+		else if ( this.inputShutdown ) {
+			this.shutdown();
+		}
+		else if ( this.parser.isContinueNeeded() ) {
+			// the client is holding its body back until it's told to go
+			// ahead, which has to wait for the requests before it
+			try {
+				this.send( ByteBuffer.wrap( CONTINUE ) );
+			}
+			catch ( IOException e ) {
+				// closed already
+			}
+		}
+	}
+
+	private void resumeReading() {
+		if ( !this.reading && !this.inputShutdown && !this.closing
+		        && !this.handshaking && this.requests.size() < MAX_PIPELINED )
+		{
+			this.reading = true;
+			this.backend.invoke( this.interestUpdate );
+		}
+	}
+
+	/**
+	 * Adds the given buffers to the output, and writes as much of it as the
+	 * socket will take if the selector thread isn't writing already.
+	 * 
+	 * @param buffers the output
+	 */
+	private void queue(List<ByteBuffer> buffers) {
+		if ( this.closed ) {
+			return;
+		}
+		for ( ByteBuffer buffer : buffers ) {
+			if ( buffer.hasRemaining() ) {
+				this.output.add( buffer );
+				this.queued += buffer.remaining();
+			}
+		}
+		if ( !this.writing ) {
+			this.flush();
+			if ( !this.output.isEmpty() && !this.closed ) {
+				this.writing = true;
+				this.backend.invoke( this.interestUpdate );
+			}
+		}
+	}
+
+	private void flush() {
+		try {
+			while ( !this.output.isEmpty() ) {
+				ByteBuffer[] buffers = this.output
+				        .toArray( new ByteBuffer[this.output.size()] );
+				long written = this.channel.write( buffers );
+				this.queued -= written;
+				if ( written > 0 ) {
+					this.lastActive = System.currentTimeMillis();
+				}
+				while ( !this.output.isEmpty()
+				        && !this.output.getFirst().hasRemaining() )
+				{
+					this.output.removeFirst();
+				}
+				if ( written == 0 ) {
+					break;
+				}
+			}
+		}
+		catch ( IOException e ) {
+			this.close();
+			return;
+		}
+		if ( this.queued <= MAX_QUEUED_OUTPUT ) {
+			this.drained.signalAll();
+		}
+		if ( this.output.isEmpty() ) {
+			this.writing = false;
+			if ( this.closing ) {
+				this.close();
+			}
+		}
+	}
+
+	/**
+	 * Sets the selection key up for whatever the connection is waiting on.
+	 * Called on the selector thread.
+	 */
+	private void updateInterest() {
+		this.lock.lock();
+		try {
+			if ( this.closed || !this.key.isValid() ) {
+				return;
+			}
+			int ops = 0;
+			if ( this.reading ) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if ( this.writing ) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			this.key.interestOps( ops );
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+}
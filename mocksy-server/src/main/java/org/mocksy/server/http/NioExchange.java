@@ -0,0 +1,587 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mocksy.DeferredResponse;
+import org.mocksy.Response;
+import org.mocksy.filter.FilterException;
+
+/**
+ * Processes a single request for the {@link NioBackend} and writes out its
+ * Response, doing for the NIO engine what the {@link RequestServlet} does
+ * in Jetty.
+ * 
+ * A Response without filters comes out the same every time, so the status
+ * line, headers and body are encoded once and kept for as long as the
+ * Response is, and later requests for it are answered straight from those
+ * bytes.  Streamed and paced Responses are sent chunked; pacing waits on
+ * the backend's timer rather than holding on to a thread, and so does a
+ * {@link DeferredResponse}, which has the exchange handed back to a worker
+ * once it's completed.
+ */
+class NioExchange implements Runnable {
+	private static final Logger logger = Logger.getLogger( NioExchange.class
+	        .getName() );
+	private static final int STREAM_BUFFER_SIZE = 1024 * 8;
+	private static final byte[] END_HEAD = ascii( "\r\n" );
+	private static final byte[] END_HEAD_KEEP_ALIVE = ascii( "Connection: keep-alive\r\n\r\n" );
+	private static final byte[] END_HEAD_CLOSE = ascii( "Connection: close\r\n\r\n" );
+	private static final byte[] CRLF = ascii( "\r\n" );
+	private static final byte[] LAST_CHUNK = ascii( "0\r\n\r\n" );
+	private static final Map<Integer, String> REASONS = new HashMap<Integer, String>();
+	// the encoded head and body of Responses that are always the same
+	private static final Map<Response, byte[][]> ENCODED = Collections
+	        .synchronizedMap( new WeakHashMap<Response, byte[][]>() );
+
+	static {
+		REASONS.put( 100, "Continue" );
+		REASONS.put( 200, "OK" );
+		REASONS.put( 201, "Created" );
+		REASONS.put( 202, "Accepted" );
+		REASONS.put( 204, "No Content" );
+		REASONS.put( 206, "Partial Content" );
+		REASONS.put( 301, "Moved Permanently" );
+		REASONS.put( 302, "Found" );
+		REASONS.put( 303, "See Other" );
+		REASONS.put( 304, "Not Modified" );
+		REASONS.put( 307, "Temporary Redirect" );
+		REASONS.put( 400, "Bad Request" );
+		REASONS.put( 401, "Unauthorized" );
+		REASONS.put( 403, "Forbidden" );
+		REASONS.put( 404, "Not Found" );
+		REASONS.put( 405, "Method Not Allowed" );
+		REASONS.put( 408, "Request Timeout" );
+		REASONS.put( 409, "Conflict" );
+		REASONS.put( 413, "Request Entity Too Large" );
+		REASONS.put( 429, "Too Many Requests" );
+		REASONS.put( 500, "Internal Server Error" );
+		REASONS.put( 501, "Not Implemented" );
+		REASONS.put( 502, "Bad Gateway" );
+		REASONS.put( 503, "Service Unavailable" );
+		REASONS.put( 504, "Gateway Timeout" );
+	}
+
+	private final NioConnection connection;
+	private final NioServletRequest request;
+	private final boolean keepAlive;
+	private final boolean chunked;
+	private final boolean headOnly;
+	private ResponsePacer pacer;
+	private DeferredResponse deferred;
+	private boolean started;
+
+	/**
+	 * Creates the exchange for a request read off the given connection.
+	 * 
+	 * @param connection the connection to respond on
+	 * @param request the request to process
+	 */
+	NioExchange(NioConnection connection, NioServletRequest request) {
+		this.connection = connection;
+		this.request = request;
+		// without chunking, the end of a streamed body is the end of the
+		// connection, so HTTP/1.0 clients only get to keep it for plain ones
+		this.chunked = request.isHttp11();
+		this.keepAlive = request.isKeepAlive();
+		this.headOnly = "HEAD".equals( request.getMethod() );
+	}
+
+	/**
+	 * Processes the request through the backend's Ruleset and writes out
+	 * the Response.  For a paced Response, this only gets things going; for
+	 * a DeferredResponse that isn't in yet, this runs again once it is.
+	 */
+	public void run() {
+		if ( this.pacer != null ) {
+			// the timer has handed us back a paced response to carry on with
+			this.pace();
+			return;
+		}
+		Response matchResponse = null;
+		boolean keepAlive = this.keepAlive;
+		try {
+			long start = System.currentTimeMillis();
+			DeferredResponse deferred = this.deferred;
+			if ( deferred == null ) {
+				HttpRequest request = new HttpRequest( this.request );
+				// the whole request has been read, and there's no thread to
+				// hold on to while we wait
+				request.setAsync( true );
+				matchResponse = this.connection.getBackend().getRuleset()
+				        .process( request );
+				if ( matchResponse instanceof DeferredResponse ) {
+					deferred = (DeferredResponse) matchResponse;
+					matchResponse = null;
+					if ( this.await( deferred ) ) {
+						// the exchange carries on once the Response is in
+						return;
+					}
+				}
+			}
+			if ( deferred != null ) {
+				this.deferred = null;
+				if ( deferred.isCancelled() ) {
+					String msg = "Timed out waiting for '" + deferred.getId()
+					        + "'";
+					logger.warning( msg );
+					this.sendWhole( encodeError( 504, msg, this.keepAlive ) );
+					this.connection.complete( this.keepAlive );
+					return;
+				}
+				matchResponse = deferred.get();
+			}
+			if ( matchResponse == null ) {
+				this.sendWhole( encodeError( 404, "No matching rules",
+				        this.keepAlive ) );
+			}
+			else if ( ResponsePacer.isPaced( matchResponse ) ) {
+				this.pacer = new ResponsePacer( matchResponse );
+				matchResponse = null;
+				this.resume( this.pacer.getResponse().getDelay() );
+				// the pacer completes the exchange once it's done
+				return;
+			}
+			else if ( matchResponse.isStreamed() ) {
+				keepAlive = this.stream( matchResponse );
+			}
+			else {
+				this.respond( matchResponse );
+			}
+			if ( logger.isLoggable( Level.FINE ) ) {
+				logger.log( Level.FINE, "Request: "
+				        + this.request.getRequestLine() + "\nResponse: "
+				        + ( matchResponse == null ? "none" : matchResponse
+				                .getId() ) + "\nDuration: "
+				        + ( System.currentTimeMillis() - start ) );
+			}
+		}
+		catch ( Exception e ) {
+			keepAlive = this.fail( e );
+		}
+		finally {
+			// free up anything a streamed response didn't get to use
+			if ( matchResponse != null ) {
+				matchResponse.close();
+			}
+		}
+		this.connection.complete( keepAlive );
+	}
+
+	/**
+	 * Has the exchange run again once the DeferredResponse is in, or once
+	 * its timeout is up, whichever comes first.
+	 * 
+	 * @return false, if it's in already and there's nothing to wait for
+	 */
+	private boolean await(final DeferredResponse deferred) {
+		this.deferred = deferred;
+		if ( !deferred.whenDone( new Runnable() {
+			public void run() {
+				resume( 0 );
+			}
+		} ) )
+		{
+			return false;
+		}
+		if ( deferred.getTimeout() > 0 ) {
+			Runnable cancel = new Runnable() {
+				public void run() {
+					// does nothing if it's in already
+					deferred.cancel();
+				}
+			};
+			// cancelling is quick enough to do on the timer thread if there's
+			// no worker to do it
+			this.connection.getBackend().schedule( cancel,
+			        deferred.getTimeout(), cancel );
+		}
+		return true;
+	}
+
+	/**
+	 * Has a worker thread carry on with the exchange after the given delay.
+	 */
+	private void resume(long delay) {
+		this.connection.getBackend().schedule( this, delay, new Runnable() {
+			public void run() {
+				rejected();
+			}
+		} );
+	}
+
+	/**
+	 * Gives up on the exchange when there's no worker to carry on with it,
+	 * rather than leave the client waiting for ever: it's told to try again
+	 * later, or cut off if part of the Response is out already.
+	 */
+	private void rejected() {
+		if ( this.pacer != null ) {
+			this.pacer.close();
+		}
+		if ( this.deferred != null ) {
+			this.deferred.close();
+			this.deferred = null;
+		}
+		if ( !this.started ) {
+			try {
+				this.sendWhole( encodeError( 503, "Too many requests waiting",
+				        false ) );
+			}
+			catch ( IOException e ) {
+				// closed already
+			}
+		}
+		this.connection.complete( false );
+	}
+
+	private void respond(Response matchResponse) throws IOException {
+		logMatch( matchResponse );
+		byte[][] encoded = ENCODED.get( matchResponse );
+		if ( encoded == null ) {
+			byte[] data;
+			try {
+				data = matchResponse.toByteArray();
+			}
+			catch ( IOException e ) {
+				this.sendWhole( notFound( matchResponse, this.keepAlive ) );
+				return;
+			}
+			catch ( FilterException e ) {
+				this.sendWhole( filterError( matchResponse, this.keepAlive ) );
+				return;
+			}
+			int status = getStatusCode( matchResponse );
+			if ( status >= 400 ) {
+				// like a servlet's sendError, the body is an error message
+				data = ascii( getReason( status ) );
+				encoded = new byte[][] {
+				        encodeHead( status, matchResponse, "text/plain",
+				                "Content-Length: " + data.length ), data };
+			}
+			else {
+				encoded = new byte[][] {
+				        encodeHead( status, matchResponse, matchResponse
+				                .getContentType(), "Content-Length: "
+				                + data.length ), data };
+			}
+			if ( matchResponse.getFilters().isEmpty() ) {
+				ENCODED.put( matchResponse, encoded );
+			}
+		}
+		this.sendWhole( ByteBuffer.wrap( encoded[0] ), ByteBuffer.wrap( this
+		        .endHead( this.keepAlive ) ), ByteBuffer.wrap( encoded[1] ) );
+	}
+
+	/**
+	 * Writes out a streamed Response as its content arrives, waiting for
+	 * the client to catch up whenever it's behind.
+	 * 
+	 * @return whether the connection can be kept open afterwards
+	 */
+	private boolean stream(Response matchResponse) throws IOException {
+		logMatch( matchResponse );
+		InputStream content;
+		try {
+			content = matchResponse.openStream();
+		}
+		catch ( IOException e ) {
+			this.sendWhole( notFound( matchResponse, this.keepAlive ) );
+			return this.keepAlive;
+		}
+		catch ( FilterException e ) {
+			this.sendWhole( filterError( matchResponse, this.keepAlive ) );
+			return this.keepAlive;
+		}
+		boolean keepAlive = this.keepAlive && this.chunked;
+		try {
+			if ( this.sendHead( matchResponse, keepAlive ) ) {
+				return this.keepAlive;
+			}
+			byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+			int read = -1;
+			while ( ( read = content.read( buffer ) ) > -1 ) {
+				this.sendContent( Arrays.copyOf( buffer, read ) );
+				this.connection.awaitOutput();
+			}
+			this.sendEnd();
+		}
+		finally {
+			content.close();
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * Writes out the next step of a paced Response: the head and the first
+	 * chunk once the delay is up, then each chunk as it comes due.
+	 */
+	private void pace() {
+		boolean keepAlive = this.keepAlive && this.chunked;
+		try {
+			Response matchResponse = this.pacer.getResponse();
+			if ( !this.pacer.isStarted() ) {
+				logMatch( matchResponse );
+				InputStream content;
+				try {
+					content = matchResponse.openStream();
+				}
+				catch ( IOException e ) {
+					this.sendWhole( notFound( matchResponse, this.keepAlive ) );
+					this.connection.complete( this.keepAlive );
+					return;
+				}
+				catch ( FilterException e ) {
+					this.sendWhole( filterError( matchResponse,
+					        this.keepAlive ) );
+					this.connection.complete( this.keepAlive );
+					return;
+				}
+				if ( this.sendHead( matchResponse, keepAlive ) ) {
+					content.close();
+					this.connection.complete( this.keepAlive );
+					return;
+				}
+				this.pacer.start( content );
+			}
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+			boolean more = this.pacer.writeChunk( chunk );
+			this.sendContent( chunk.toByteArray() );
+			if ( more ) {
+				this.resume( this.pacer.nextChunkDelay() );
+				return;
+			}
+			this.sendEnd();
+		}
+		catch ( Exception e ) {
+			keepAlive = this.fail( e );
+		}
+		this.connection.complete( keepAlive );
+	}
+
+	/**
+	 * Sends the head of a streamed or paced Response, which is chunked for
+	 * HTTP/1.1 clients and closes the connection for the others.
+	 * 
+	 * @return true, if the status is an error and no body should be written
+	 */
+	private boolean sendHead(Response matchResponse, boolean keepAlive)
+	        throws IOException
+	{
+		int status = getStatusCode( matchResponse );
+		if ( status >= 400 ) {
+			byte[] data = ascii( getReason( status ) );
+			this.sendWhole( ByteBuffer.wrap( encodeHead( status,
+			        matchResponse, "text/plain", "Content-Length: "
+			                + data.length ) ), ByteBuffer.wrap( this
+			        .endHead( this.keepAlive ) ), ByteBuffer.wrap( data ) );
+			return true;
+		}
+		this.send( ByteBuffer.wrap( encodeHead( status, matchResponse,
+		        matchResponse.getContentType(),
+		        this.chunked ? "Transfer-Encoding: chunked" : null ) ),
+		        ByteBuffer.wrap( this.endHead( keepAlive ) ) );
+		return false;
+	}
+
+	private void sendContent(byte[] data) throws IOException {
+		if ( data.length == 0 || this.headOnly ) {
+			return;
+		}
+		ByteBuffer content = ByteBuffer.wrap( data );
+		if ( this.chunked ) {
+			this.send( ByteBuffer.wrap( ascii( Integer
+			        .toHexString( data.length )
+			        + "\r\n" ) ), content, ByteBuffer.wrap( CRLF ) );
+		}
+		else {
+			this.send( content );
+		}
+	}
+
+	private void sendEnd() throws IOException {
+		if ( this.chunked && !this.headOnly ) {
+			this.send( ByteBuffer.wrap( LAST_CHUNK ) );
+		}
+	}
+
+	/**
+	 * Sends a whole response, made up of its head, the end of the head and
+	 * the body, leaving off the body if the request was a HEAD.
+	 */
+	private void sendWhole(ByteBuffer... response) throws IOException {
+		if ( this.headOnly ) {
+			this.send( response[0], response[1] );
+		}
+		else {
+			this.send( response );
+		}
+	}
+
+	private void send(ByteBuffer... buffers) throws IOException {
+		this.started = true;
+		this.connection.send( buffers );
+	}
+
+	/**
+	 * Answers a request that couldn't be processed with a 500, if nothing
+	 * has been sent for it yet.
+	 * 
+	 * @return whether the connection can be kept open afterwards
+	 */
+	private boolean fail(Exception e) {
+		logger.log( Level.SEVERE, "Cannot generate response: "
+		        + e.getMessage(), e );
+		if ( this.started ) {
+			// part of the response is out already, so the client can only
+			// tell it's been cut short by the connection closing
+			return false;
+		}
+		try {
+			this.sendWhole( encodeError( 500, "Cannot generate response",
+			        false ) );
+		}
+		catch ( IOException ioe ) {
+			// closed already
+		}
+		return false;
+	}
+
+	private byte[] endHead(boolean keepAlive) {
+		if ( !keepAlive ) {
+			return END_HEAD_CLOSE;
+		}
+		// HTTP/1.0 clients need to be told the connection stays open
+		return this.request.isHttp11() ? END_HEAD : END_HEAD_KEEP_ALIVE;
+	}
+
+	private static void logMatch(Response matchResponse) {
+		// log which response is being returned
+		if ( logger.isLoggable( Level.INFO ) ) {
+			logger.info( "Matched " + matchResponse.getId() );
+		}
+	}
+
+	private static ByteBuffer[] notFound(Response matchResponse,
+	        boolean keepAlive)
+	{
+		// report processing errors as 404s
+		String msg = "Cannot locate '" + matchResponse.getId() + "'";
+		logger.severe( msg );
+		return encodeError( 404, msg, keepAlive );
+	}
+
+	private static ByteBuffer[] filterError(Response matchResponse,
+	        boolean keepAlive)
+	{
+		// handle filtering problems
+		String msg = "Error processing response '" + matchResponse.getId()
+		        + "'";
+		logger.severe( msg );
+		return encodeError( 500, msg, keepAlive );
+	}
+
+	/**
+	 * Encodes a plain text error response.
+	 * 
+	 * @param status the HTTP status code
+	 * @param message the body of the response
+	 * @param keepAlive whether the connection stays open afterwards
+	 * @return the encoded response
+	 */
+	static ByteBuffer[] encodeError(int status, String message,
+	        boolean keepAlive)
+	{
+		byte[] data = ascii( message );
+		return new ByteBuffer[] {
+		        ByteBuffer.wrap( encodeHead( status, null, "text/plain",
+		                "Content-Length: " + data.length ) ),
+		        ByteBuffer.wrap( keepAlive ? END_HEAD : END_HEAD_CLOSE ),
+		        ByteBuffer.wrap( data ) };
+	}
+
+	/**
+	 * Encodes the status line and headers of a response, leaving off the
+	 * Connection header and the blank line, which depend on the request.
+	 * The Response's own framing headers are replaced by the given one.
+	 */
+	private static byte[] encodeHead(int status, Response response,
+	        String contentType, String framing)
+	{
+		StringBuilder head = new StringBuilder( 128 );
+		head.append( "HTTP/1.1 " ).append( status ).append( ' ' ).append(
+		        getReason( status ) ).append( "\r\n" );
+		if ( response instanceof HttpResponse ) {
+			HttpResponse httpResponse = (HttpResponse) response;
+			for ( String name : httpResponse.getHeaderNames() ) {
+				if ( name.equalsIgnoreCase( "Content-Length" )
+				        || name.equalsIgnoreCase( "Transfer-Encoding" )
+				        || name.equalsIgnoreCase( "Connection" ) )
+				{
+					continue;
+				}
+				head.append( name ).append( ": " ).append(
+				        httpResponse.getHeader( name ) ).append( "\r\n" );
+			}
+		}
+		if ( contentType != null ) {
+			head.append( "Content-Type: " ).append( contentType ).append(
+			        "\r\n" );
+		}
+		if ( framing != null ) {
+			head.append( framing ).append( "\r\n" );
+		}
+		return ascii( head.toString() );
+	}
+
+	private static int getStatusCode(Response response) {
+		if ( response instanceof HttpResponse ) {
+			return ( (HttpResponse) response ).getStatusCode();
+		}
+		return 200;
+	}
+
+	private static String getReason(int status) {
+		String reason = REASONS.get( status );
+		return reason == null ? "Status " + status : reason;
+	}
+
+	/**
+	 * Returns the ISO-8859-1 bytes of a String, the encoding of HTTP heads.
+	 * 
+	 * @param text the text to encode
+	 * @return the encoded text
+	 */
+	static byte[] ascii(String text) {
+		try {
+			return text.getBytes( "ISO-8859-1" );
+		}
+		catch ( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+}
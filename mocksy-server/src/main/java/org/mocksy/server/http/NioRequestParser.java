@@ -0,0 +1,308 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+/**
+ * Reads HTTP/1.x requests out of the bytes arriving on a connection.  Bytes
+ * are added as they're read, and each complete request, body and all, is
+ * taken out in turn, so any number of pipelined requests can be waiting in
+ * the buffer.  Bodies can be sent with a Content-Length or chunked, and
+ * are held in memory, so there's a limit on how big they can be.
+ */
+class NioRequestParser {
+	// the most that the request line and headers can take up
+	static final int MAX_HEADER_SIZE = 1024 * 64;
+	private static final String ENCODING = "ISO-8859-1";
+
+	private final int maxBodySize;
+	private byte[] buffer = new byte[1024 * 4];
+	private int start;
+	private int end;
+	// the request whose headers have been read, while waiting for its body
+	private NioServletRequest request;
+	private int bodyStart;
+	private long contentLength;
+	private ByteArrayOutputStream chunks;
+	private boolean continueNeeded;
+
+	/**
+	 * Creates the parser for a connection.
+	 * 
+	 * @param maxBodySize the most bytes a request body can take up
+	 */
+	NioRequestParser(int maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Adds bytes that have been read from the connection.
+	 * 
+	 * @param bytes the bytes read
+	 * @param offset the offset of the first byte
+	 * @param length how many bytes were read
+	 */
+	void append(byte[] bytes, int offset, int length) {
+		if ( this.end + length > this.buffer.length ) {
+			int used = this.end - this.start;
+			byte[] target = this.buffer;
+			if ( used + length > this.buffer.length ) {
+				target = new byte[Math.max( this.buffer.length * 2, used
+				        + length )];
+			}
+			System.arraycopy( this.buffer, this.start, target, 0, used );
+			this.buffer = target;
+			this.bodyStart -= this.start;
+			this.start = 0;
+			this.end = used;
+		}
+		System.arraycopy( bytes, offset, this.buffer, this.end, length );
+		this.end += length;
+	}
+
+	/**
+	 * Returns the next complete request in the buffer.
+	 * 
+	 * @return the request, or null if there isn't a complete one yet
+	 * @throws IOException if the request is malformed
+	 */
+	NioServletRequest next() throws IOException {
+		if ( this.request == null && !this.readHead() ) {
+			return null;
+		}
+		if ( !this.readBody() ) {
+			return null;
+		}
+		NioServletRequest complete = this.request;
+		this.request = null;
+		this.chunks = null;
+		this.continueNeeded = false;
+		if ( this.start == this.end ) {
+			// nothing pipelined behind it, start again from the beginning
+			this.start = 0;
+			this.end = 0;
+		}
+		return complete;
+	}
+
+	/**
+	 * Returns whether the client is waiting for a 100 Continue before it
+	 * sends the body of the current request.  This only returns true once
+	 * per request.
+	 * 
+	 * @return true, if a 100 Continue should be sent now
+	 */
+	boolean isContinueNeeded() {
+		boolean needed = this.continueNeeded;
+		this.continueNeeded = false;
+		return needed;
+	}
+
+	/**
+	 * Returns whether part of a request has been read.
+	 * 
+	 * @return true, if there are bytes waiting for the rest of a request
+	 */
+	boolean isPartial() {
+		return this.request != null || this.end > this.start;
+	}
+
+	/**
+	 * Returns whether part of a request's head has been read, but not all
+	 * of it.
+	 * 
+	 * @return true, if there are bytes waiting for the rest of a head
+	 */
+	boolean isReadingHead() {
+		return this.request == null && this.end > this.start;
+	}
+
+	private boolean readHead() throws IOException {
+		// ignore blank lines between requests
+		while ( this.start < this.end
+		        && ( this.buffer[this.start] == '\r' || this.buffer[this.start] == '\n' ) )
+		{
+			this.start++;
+		}
+		int headEnd = this.indexOf( this.start, "\r\n\r\n" );
+		if ( headEnd < 0 ) {
+			if ( this.end - this.start > MAX_HEADER_SIZE ) {
+				throw new IOException( "Request header is too large" );
+			}
+			return false;
+		}
+		String[] lines = new String( this.buffer, this.start, headEnd
+		        - this.start, ENCODING ).split( "\r\n" );
+		String[] requestLine = lines[0].split( " " );
+		if ( requestLine.length != 3 || !requestLine[2].startsWith( "HTTP/1." ) )
+		{
+			throw new IOException( "Bad request line: " + lines[0] );
+		}
+		NioServletRequest request = new NioServletRequest( requestLine[0],
+		        requestLine[1], requestLine[2] );
+		for ( int i = 1; i < lines.length; i++ ) {
+			String line = lines[i];
+			if ( line.startsWith( " " ) || line.startsWith( "\t" ) ) {
+				if ( !request.continueHeader( line.trim() ) ) {
+					throw new IOException( "Bad header: " + line );
+				}
+				continue;
+			}
+			int colon = line.indexOf( ':' );
+			if ( colon <= 0 ) {
+				throw new IOException( "Bad header: " + line );
+			}
+			request.addHeader( line.substring( 0, colon ).trim(), line
+			        .substring( colon + 1 ).trim() );
+		}
+
+		String encoding = request.getHeader( "Transfer-Encoding" );
+		String length = request.getHeader( "Content-Length" );
+		if ( encoding != null
+		        && encoding.toLowerCase( Locale.ENGLISH ).contains( "chunked" ) )
+		{
+			this.contentLength = -1;
+			this.chunks = new ByteArrayOutputStream();
+		}
+		else if ( length != null ) {
+			try {
+				this.contentLength = Long.parseLong( length.trim() );
+			}
+			catch ( NumberFormatException e ) {
+				throw new IOException( "Bad Content-Length: " + length );
+			}
+			if ( this.contentLength < 0 ) {
+				throw new IOException( "Bad Content-Length: " + length );
+			}
+			if ( this.contentLength > this.maxBodySize ) {
+				throw new BodyTooLargeException( this.contentLength );
+			}
+		}
+		else {
+			this.contentLength = 0;
+		}
+		String expect = request.getHeader( "Expect" );
+		this.continueNeeded = expect != null
+		        && expect.equalsIgnoreCase( "100-continue" )
+		        && this.contentLength != 0;
+		this.request = request;
+		this.bodyStart = headEnd + 4;
+		this.start = this.bodyStart;
+		return true;
+	}
+
+	private boolean readBody() throws IOException {
+		if ( this.chunks == null ) {
+			if ( this.end - this.bodyStart < this.contentLength ) {
+				return false;
+			}
+			int length = (int) this.contentLength;
+			if ( length > 0 ) {
+				byte[] body = new byte[length];
+				System.arraycopy( this.buffer, this.bodyStart, body, 0, length );
+				this.request.setBody( body );
+			}
+			this.start = this.bodyStart + length;
+			return true;
+		}
+		// each pass takes out one chunk, leaving bodyStart at the next one
+		while ( true ) {
+			int lineEnd = this.indexOf( this.bodyStart, "\r\n" );
+			if ( lineEnd < 0 ) {
+				return false;
+			}
+			String sizeLine = new String( this.buffer, this.bodyStart, lineEnd
+			        - this.bodyStart, ENCODING );
+			int extension = sizeLine.indexOf( ';' );
+			if ( extension >= 0 ) {
+				sizeLine = sizeLine.substring( 0, extension );
+			}
+			int size;
+			try {
+				size = Integer.parseInt( sizeLine.trim(), 16 );
+			}
+			catch ( NumberFormatException e ) {
+				throw new IOException( "Bad chunk size: " + sizeLine );
+			}
+			if ( size < 0 ) {
+				throw new IOException( "Bad chunk size: " + sizeLine );
+			}
+			if ( size == 0 ) {
+				// the last chunk, followed by optional trailers and a blank line
+				int trailers = lineEnd + 2;
+				int done = ( this.end - trailers >= 2
+				        && this.buffer[trailers] == '\r' ? trailers + 2 : -1 );
+				if ( done < 0 ) {
+					int trailerEnd = this.indexOf( trailers, "\r\n\r\n" );
+					if ( trailerEnd < 0 ) {
+						return false;
+					}
+					done = trailerEnd + 4;
+				}
+				this.request.setBody( this.chunks.toByteArray() );
+				this.start = done;
+				return true;
+			}
+			if ( (long) this.chunks.size() + size > this.maxBodySize ) {
+				throw new BodyTooLargeException( (long) this.chunks.size()
+				        + size );
+			}
+			int data = lineEnd + 2;
+			if ( this.end - data < size + 2 ) {
+				return false;
+			}
+			this.chunks.write( this.buffer, data, size );
+			this.bodyStart = data + size + 2;
+			// the chunk has been copied out, so the buffer can let go of it
+			this.start = this.bodyStart;
+		}
+	}
+
+	private int indexOf(int from, String pattern) {
+		byte first = (byte) pattern.charAt( 0 );
+		int last = this.end - pattern.length();
+		for ( int i = from; i <= last; i++ ) {
+			if ( this.buffer[i] != first ) {
+				continue;
+			}
+			int j = 1;
+			while ( j < pattern.length()
+			        && this.buffer[i + j] == (byte) pattern.charAt( j ) )
+			{
+				j++;
+			}
+			if ( j == pattern.length() ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Thrown when a request's body is bigger than the parser takes.
+	 */
+	static class BodyTooLargeException extends IOException {
+		private static final long serialVersionUID = 6083155227036142930L;
+
+		BodyTooLargeException(long size) {
+			super( "Request body is too large: " + size + " bytes" );
+		}
+	}
+}
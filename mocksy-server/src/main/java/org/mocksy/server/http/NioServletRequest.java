@@ -0,0 +1,662 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * An HTTP request read by the {@link NioBackend}, dressed up as an
+ * HttpServletRequest so that it can be wrapped in an {@link HttpRequest}
+ * and matched like any other.  The body has been read in full by the time
+ * the request is processed, so it can be read as often as needed.
+ * 
+ * There's no servlet container behind it, so anything to do with security
+ * or dispatching isn't there, and a session only lasts as long as the
+ * request (see {@link NioSession}); the request behaves like one to a
+ * servlet mapped to "/*" in the root context.
+ */
+class NioServletRequest implements HttpServletRequest {
+	private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+	private static final String DEFAULT_ENCODING = "ISO-8859-1";
+
+	private final String method;
+	private final String target;
+	private final String protocol;
+	private final List<String> headerNames = new ArrayList<String>();
+	private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+	private String requestURI;
+	private String queryString;
+	private byte[] body = new byte[0];
+	private String characterEncoding;
+	private Map<String, String[]> parameters;
+	private String remoteAddr;
+	private int remotePort;
+	private String localAddr;
+	private int localPort;
+	private boolean secure;
+	private NioSession session;
+
+	/**
+	 * Creates the request from its request line.
+	 * 
+	 * @param method the HTTP method
+	 * @param target the request target, as it was sent
+	 * @param protocol the HTTP version, e.g. "HTTP/1.1"
+	 */
+	NioServletRequest(String method, String target, String protocol) {
+		this.method = method;
+		this.target = target;
+		this.protocol = protocol;
+		String uri = target;
+		// take the path out of an absolute URL
+		int scheme = uri.indexOf( "://" );
+		if ( scheme > 0 && uri.indexOf( '/' ) > scheme ) {
+			int path = uri.indexOf( '/', scheme + 3 );
+			uri = ( path < 0 ? "/" : uri.substring( path ) );
+		}
+		int query = uri.indexOf( '?' );
+		if ( query >= 0 ) {
+			this.queryString = uri.substring( query + 1 );
+			uri = uri.substring( 0, query );
+		}
+		this.requestURI = uri;
+	}
+
+	/**
+	 * Adds a header value, keeping any that were there already.
+	 * 
+	 * @param name the header name
+	 * @param value the header value
+	 */
+	void addHeader(String name, String value) {
+		String key = name.toLowerCase( Locale.ENGLISH );
+		List<String> values = this.headers.get( key );
+		if ( values == null ) {
+			values = new ArrayList<String>( 1 );
+			this.headers.put( key, values );
+			this.headerNames.add( name );
+		}
+		values.add( value );
+	}
+
+	/**
+	 * Appends a folded continuation line to the last header added.
+	 * 
+	 * @param value the rest of the header value
+	 * @return false, if no header has been added yet
+	 */
+	boolean continueHeader(String value) {
+		if ( this.headerNames.isEmpty() ) {
+			return false;
+		}
+		List<String> values = this.headers.get( this.headerNames.get(
+		        this.headerNames.size() - 1 ).toLowerCase( Locale.ENGLISH ) );
+		int last = values.size() - 1;
+		values.set( last, values.get( last ) + " " + value );
+		return true;
+	}
+
+	/**
+	 * Sets the request body.
+	 * 
+	 * @param body the body, after any transfer coding has been undone
+	 */
+	void setBody(byte[] body) {
+		this.body = body;
+	}
+
+	/**
+	 * Sets the addresses of both ends of the connection.
+	 */
+	void setAddresses(String remoteAddr, int remotePort, String localAddr,
+	        int localPort)
+	{
+		this.remoteAddr = remoteAddr;
+		this.remotePort = remotePort;
+		this.localAddr = localAddr;
+		this.localPort = localPort;
+	}
+
+	/**
+	 * Sets whether the request came in over TLS.
+	 */
+	void setSecure(boolean secure) {
+		this.secure = secure;
+	}
+
+	/**
+	 * Returns whether the connection can be kept open for another request
+	 * after this one: by default for HTTP/1.1, only when asked for before.
+	 * 
+	 * @return true, if the connection should be kept open
+	 */
+	boolean isKeepAlive() {
+		String connection = this.getHeader( "Connection" );
+		if ( isHttp11() ) {
+			return connection == null
+			        || !connection.toLowerCase( Locale.ENGLISH ).contains(
+			                "close" );
+		}
+		return connection != null
+		        && connection.toLowerCase( Locale.ENGLISH ).contains(
+		                "keep-alive" );
+	}
+
+	/**
+	 * Returns whether the client speaks HTTP/1.1, and so understands chunked
+	 * responses.
+	 * 
+	 * @return true, for an HTTP/1.1 request
+	 */
+	boolean isHttp11() {
+		return "HTTP/1.1".equals( this.protocol );
+	}
+
+	/**
+	 * Returns the request line, for logging.
+	 * 
+	 * @return the request line
+	 */
+	String getRequestLine() {
+		return this.method + " " + this.target + " " + this.protocol;
+	}
+
+	public String getAuthType() {
+		return null;
+	}
+
+	public Cookie[] getCookies() {
+		List<Cookie> cookies = new ArrayList<Cookie>();
+		List<String> values = this.headers.get( "cookie" );
+		if ( values != null ) {
+			for ( String value : values ) {
+				for ( String pair : value.split( ";" ) ) {
+					int equals = pair.indexOf( '=' );
+					if ( equals > 0 ) {
+						String name = pair.substring( 0, equals ).trim();
+						String cookie = pair.substring( equals + 1 ).trim();
+						if ( cookie.startsWith( "\"" ) && cookie.endsWith( "\"" )
+						        && cookie.length() > 1 )
+						{
+							cookie = cookie.substring( 1, cookie.length() - 1 );
+						}
+						try {
+							cookies.add( new Cookie( name, cookie ) );
+						}
+						catch ( IllegalArgumentException e ) {
+							// not a name a cookie can have, skip it
+						}
+					}
+				}
+			}
+		}
+		return cookies.isEmpty() ? null : cookies.toArray( new Cookie[cookies
+		        .size()] );
+	}
+
+	public long getDateHeader(String name) {
+		String value = this.getHeader( name );
+		if ( value == null ) {
+			return -1;
+		}
+		SimpleDateFormat format = new SimpleDateFormat( DATE_FORMAT,
+		        Locale.US );
+		format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+		try {
+			return format.parse( value ).getTime();
+		}
+		catch ( ParseException e ) {
+			throw new IllegalArgumentException( "Not a date: " + value );
+		}
+	}
+
+	public String getHeader(String name) {
+		List<String> values = this.headers.get( name
+		        .toLowerCase( Locale.ENGLISH ) );
+		return values == null ? null : values.get( 0 );
+	}
+
+	public Enumeration getHeaders(String name) {
+		List<String> values = this.headers.get( name
+		        .toLowerCase( Locale.ENGLISH ) );
+		if ( values == null ) {
+			values = Collections.emptyList();
+		}
+		return Collections.enumeration( values );
+	}
+
+	public Enumeration getHeaderNames() {
+		return Collections.enumeration( this.headerNames );
+	}
+
+	public int getIntHeader(String name) {
+		String value = this.getHeader( name );
+		return value == null ? -1 : Integer.parseInt( value.trim() );
+	}
+
+	public String getMethod() {
+		return this.method;
+	}
+
+	public String getPathInfo() {
+		return decodePath( this.requestURI );
+	}
+
+	public String getPathTranslated() {
+		return null;
+	}
+
+	public String getContextPath() {
+		return "";
+	}
+
+	public String getQueryString() {
+		return this.queryString;
+	}
+
+	public String getRemoteUser() {
+		return null;
+	}
+
+	public boolean isUserInRole(String role) {
+		return false;
+	}
+
+	public Principal getUserPrincipal() {
+		return null;
+	}
+
+	public String getRequestedSessionId() {
+		return null;
+	}
+
+	public String getRequestURI() {
+		return this.requestURI;
+	}
+
+	public StringBuffer getRequestURL() {
+		StringBuffer url = new StringBuffer( this.getScheme() );
+		url.append( "://" ).append( this.getServerName() );
+		if ( this.getServerPort() != this.getDefaultPort() ) {
+			url.append( ':' ).append( this.getServerPort() );
+		}
+		return url.append( this.requestURI );
+	}
+
+	public String getServletPath() {
+		return "";
+	}
+
+	public HttpSession getSession(boolean create) {
+		if ( this.session != null && !this.session.isValid() ) {
+			this.session = null;
+		}
+		if ( this.session == null && create ) {
+			this.session = new NioSession();
+		}
+		return this.session;
+	}
+
+	public HttpSession getSession() {
+		return this.getSession( true );
+	}
+
+	public boolean isRequestedSessionIdValid() {
+		return false;
+	}
+
+	public boolean isRequestedSessionIdFromCookie() {
+		return false;
+	}
+
+	public boolean isRequestedSessionIdFromURL() {
+		return false;
+	}
+
+	public boolean isRequestedSessionIdFromUrl() {
+		return false;
+	}
+
+	public Object getAttribute(String name) {
+		return this.attributes.get( name );
+	}
+
+	public Enumeration getAttributeNames() {
+		return Collections.enumeration( this.attributes.keySet() );
+	}
+
+	public String getCharacterEncoding() {
+		if ( this.characterEncoding == null ) {
+			String contentType = this.getContentType();
+			if ( contentType != null ) {
+				int charset = contentType.toLowerCase( Locale.ENGLISH )
+				        .indexOf( "charset=" );
+				if ( charset >= 0 ) {
+					String encoding = contentType.substring( charset + 8 );
+					int end = encoding.indexOf( ';' );
+					if ( end >= 0 ) {
+						encoding = encoding.substring( 0, end );
+					}
+					return encoding.replace( "\"", "" ).trim();
+				}
+			}
+		}
+		return this.characterEncoding;
+	}
+
+	public void setCharacterEncoding(String env)
+	        throws UnsupportedEncodingException
+	{
+		// check that the encoding is there
+		"".getBytes( env );
+		this.characterEncoding = env;
+	}
+
+	public int getContentLength() {
+		return this.getHeader( "Content-Length" ) == null
+		        && this.body.length == 0 ? -1 : this.body.length;
+	}
+
+	public String getContentType() {
+		return this.getHeader( "Content-Type" );
+	}
+
+	public ServletInputStream getInputStream() {
+		return new BodyInputStream( this.body );
+	}
+
+	public String getParameter(String name) {
+		String[] values = this.getParameters().get( name );
+		return values == null ? null : values[0];
+	}
+
+	public Enumeration getParameterNames() {
+		return Collections.enumeration( this.getParameters().keySet() );
+	}
+
+	public String[] getParameterValues(String name) {
+		return this.getParameters().get( name );
+	}
+
+	public Map getParameterMap() {
+		return Collections.unmodifiableMap( this.getParameters() );
+	}
+
+	public String getProtocol() {
+		return this.protocol;
+	}
+
+	public String getScheme() {
+		return this.secure ? "https" : "http";
+	}
+
+	public String getServerName() {
+		String host = this.getHeader( "Host" );
+		if ( host == null ) {
+			return this.localAddr;
+		}
+		int colon = host.lastIndexOf( ':' );
+		return colon > host.lastIndexOf( ']' ) ? host.substring( 0, colon )
+		        : host;
+	}
+
+	public int getServerPort() {
+		String host = this.getHeader( "Host" );
+		if ( host != null ) {
+			int colon = host.lastIndexOf( ':' );
+			if ( colon > host.lastIndexOf( ']' ) ) {
+				try {
+					return Integer.parseInt( host.substring( colon + 1 ) );
+				}
+				catch ( NumberFormatException e ) {
+					// fall back on the port the request came in on
+				}
+			}
+			else {
+				return this.getDefaultPort();
+			}
+		}
+		return this.localPort;
+	}
+
+	private int getDefaultPort() {
+		return this.secure ? 443 : 80;
+	}
+
+	public BufferedReader getReader() throws IOException {
+		String encoding = this.getCharacterEncoding();
+		return new BufferedReader( new InputStreamReader(
+		        this.getInputStream(), encoding == null ? DEFAULT_ENCODING
+		                : encoding ) );
+	}
+
+	public String getRemoteAddr() {
+		return this.remoteAddr;
+	}
+
+	public String getRemoteHost() {
+		return this.remoteAddr;
+	}
+
+	public void setAttribute(String name, Object value) {
+		if ( value == null ) {
+			this.attributes.remove( name );
+		}
+		else {
+			this.attributes.put( name, value );
+		}
+	}
+
+	public void removeAttribute(String name) {
+		this.attributes.remove( name );
+	}
+
+	public Locale getLocale() {
+		return Locale.getDefault();
+	}
+
+	public Enumeration getLocales() {
+		return Collections.enumeration( Collections.singleton( Locale
+		        .getDefault() ) );
+	}
+
+	public boolean isSecure() {
+		return this.secure;
+	}
+
+	public RequestDispatcher getRequestDispatcher(String path) {
+		return null;
+	}
+
+	public String getRealPath(String path) {
+		return null;
+	}
+
+	public int getRemotePort() {
+		return this.remotePort;
+	}
+
+	public String getLocalName() {
+		return this.localAddr;
+	}
+
+	public String getLocalAddr() {
+		return this.localAddr;
+	}
+
+	public int getLocalPort() {
+		return this.localPort;
+	}
+
+	/**
+	 * Parses the parameters from the query string and, for a form post,
+	 * from the body, the first time they're needed.
+	 */
+	private synchronized Map<String, String[]> getParameters() {
+		if ( this.parameters == null ) {
+			String encoding = this.getCharacterEncoding();
+			if ( encoding == null ) {
+				encoding = "UTF-8";
+			}
+			Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+			try {
+				parseParameters( this.queryString, encoding, values );
+				String contentType = this.getContentType();
+				if ( "POST".equals( this.method )
+				        && contentType != null
+				        && contentType.toLowerCase( Locale.ENGLISH )
+				                .startsWith(
+				                        "application/x-www-form-urlencoded" ) )
+				{
+					parseParameters( new String( this.body, DEFAULT_ENCODING ),
+					        encoding, values );
+				}
+			}
+			catch ( UnsupportedEncodingException e ) {
+				throw new IllegalStateException( e );
+			}
+			Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+			for ( Map.Entry<String, List<String>> entry : values.entrySet() ) {
+				parameters.put( entry.getKey(), entry.getValue().toArray(
+				        new String[entry.getValue().size()] ) );
+			}
+			this.parameters = parameters;
+		}
+		return this.parameters;
+	}
+
+	private static void parseParameters(String query, String encoding,
+	        Map<String, List<String>> values)
+	        throws UnsupportedEncodingException
+	{
+		if ( query == null || query.length() == 0 ) {
+			return;
+		}
+		for ( String pair : query.split( "&" ) ) {
+			if ( pair.length() == 0 ) {
+				continue;
+			}
+			int equals = pair.indexOf( '=' );
+			String name = equals < 0 ? pair : pair.substring( 0, equals );
+			String value = equals < 0 ? "" : pair.substring( equals + 1 );
+			try {
+				name = URLDecoder.decode( name, encoding );
+				value = URLDecoder.decode( value, encoding );
+			}
+			catch ( IllegalArgumentException e ) {
+				// leave a badly escaped parameter as it was sent
+			}
+			List<String> list = values.get( name );
+			if ( list == null ) {
+				list = new ArrayList<String>( 1 );
+				values.put( name, list );
+			}
+			list.add( value );
+		}
+	}
+
+	/**
+	 * Decodes the %-escapes in a URL path as UTF-8, leaving '+' alone.
+	 */
+	static String decodePath(String path) {
+		if ( path.indexOf( '%' ) < 0 ) {
+			return path;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( path
+		        .length() );
+		for ( int i = 0; i < path.length(); i++ ) {
+			char c = path.charAt( i );
+			if ( c == '%' && i + 2 < path.length() ) {
+				int high = Character.digit( path.charAt( i + 1 ), 16 );
+				int low = Character.digit( path.charAt( i + 2 ), 16 );
+				if ( high >= 0 && low >= 0 ) {
+					bytes.write( ( high << 4 ) + low );
+					i += 2;
+					continue;
+				}
+			}
+			if ( c < 0x80 ) {
+				bytes.write( c );
+			}
+			else {
+				byte[] encoded;
+				try {
+					encoded = String.valueOf( c ).getBytes( "UTF-8" );
+				}
+				catch ( UnsupportedEncodingException e ) {
+					throw new IllegalStateException( e );
+				}
+				bytes.write( encoded, 0, encoded.length );
+			}
+		}
+		try {
+			return bytes.toString( "UTF-8" );
+		}
+		catch ( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * ServletInputStream over a body that's already been read.
+	 */
+	private static class BodyInputStream extends ServletInputStream {
+		private final ByteArrayInputStream input;
+
+		BodyInputStream(byte[] body) {
+			this.input = new ByteArrayInputStream( body );
+		}
+
+		@Override
+		public int read() {
+			return this.input.read();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			return this.input.read( buffer, offset, length );
+		}
+
+		@Override
+		public int available() {
+			return this.input.available();
+		}
+	}
+}
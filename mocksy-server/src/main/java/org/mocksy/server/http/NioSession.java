@@ -0,0 +1,136 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+
+/**
+ * The session handed out by a {@link NioServletRequest}.  The nio backend
+ * doesn't track sessions between requests, so each one lives only as long
+ * as the request that created it; it's there so that a Rule or filter that
+ * stashes something in the session works rather than failing.
+ */
+@SuppressWarnings("deprecation")
+class NioSession implements HttpSession {
+	private final String id = UUID.randomUUID().toString();
+	private final long creationTime = System.currentTimeMillis();
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+	private int maxInactiveInterval = -1;
+	private boolean valid = true;
+
+	public String getId() {
+		return this.id;
+	}
+
+	public long getCreationTime() {
+		this.checkValid();
+		return this.creationTime;
+	}
+
+	public long getLastAccessedTime() {
+		this.checkValid();
+		return this.creationTime;
+	}
+
+	public ServletContext getServletContext() {
+		return null;
+	}
+
+	public void setMaxInactiveInterval(int interval) {
+		this.maxInactiveInterval = interval;
+	}
+
+	public int getMaxInactiveInterval() {
+		return this.maxInactiveInterval;
+	}
+
+	public HttpSessionContext getSessionContext() {
+		return null;
+	}
+
+	public Object getAttribute(String name) {
+		this.checkValid();
+		return this.attributes.get( name );
+	}
+
+	public Object getValue(String name) {
+		return this.getAttribute( name );
+	}
+
+	public Enumeration<?> getAttributeNames() {
+		this.checkValid();
+		return Collections.enumeration( this.attributes.keySet() );
+	}
+
+	public String[] getValueNames() {
+		this.checkValid();
+		return this.attributes.keySet().toArray(
+		        new String[this.attributes.size()] );
+	}
+
+	public void setAttribute(String name, Object value) {
+		this.checkValid();
+		if ( value == null ) {
+			this.attributes.remove( name );
+		}
+		else {
+			this.attributes.put( name, value );
+		}
+	}
+
+	public void putValue(String name, Object value) {
+		this.setAttribute( name, value );
+	}
+
+	public void removeAttribute(String name) {
+		this.checkValid();
+		this.attributes.remove( name );
+	}
+
+	public void removeValue(String name) {
+		this.removeAttribute( name );
+	}
+
+	public void invalidate() {
+		this.checkValid();
+		this.valid = false;
+		this.attributes.clear();
+	}
+
+	public boolean isNew() {
+		this.checkValid();
+		return true;
+	}
+
+	boolean isValid() {
+		return this.valid;
+	}
+
+	private void checkValid() {
+		if ( !this.valid ) {
+			throw new IllegalStateException( "Session " + this.id
+			        + " has been invalidated" );
+		}
+	}
+}
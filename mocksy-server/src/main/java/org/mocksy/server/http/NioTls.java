@@ -0,0 +1,263 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * The TLS end of a {@link NioConnection}: decrypts what's read off the
+ * socket and encrypts what's sent to it, with an SSLEngine.  The handshake
+ * is driven by the same reads; the expensive part of it, the engine's
+ * delegated tasks, is left for the connection to run off the selector
+ * thread.
+ * 
+ * It isn't thread-safe, the connection only uses it under its lock.
+ */
+class NioTls {
+	/** All the input has been decrypted, and more is needed. */
+	static final int NEED_INPUT = 0;
+	/** The handshake can't go on until the delegated tasks have run. */
+	static final int NEED_TASKS = 1;
+	/** The client has closed its end of the TLS session. */
+	static final int CLOSED = 2;
+
+	private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate( 0 ) };
+
+	private final SSLEngine engine;
+	// what's been read but not decrypted yet, e.g. half a record
+	private ByteBuffer input;
+	// records are encrypted into this, then copied out at their own size
+	private ByteBuffer packet;
+
+	/**
+	 * Creates the TLS end of a connection.
+	 * 
+	 * @param engine the engine for the connection, in server mode
+	 */
+	NioTls(SSLEngine engine) {
+		this.engine = engine;
+		int packetSize = engine.getSession().getPacketBufferSize();
+		this.input = ByteBuffer.allocate( packetSize );
+		this.packet = ByteBuffer.allocate( packetSize );
+	}
+
+	/**
+	 * Reads what's available from the channel, to be decrypted by
+	 * {@link #unwrap}.
+	 * 
+	 * @param channel the connection's channel
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 * @throws IOException if the channel can't be read
+	 */
+	int read(SocketChannel channel) throws IOException {
+		if ( !this.input.hasRemaining() ) {
+			// the session has settled on bigger records than we expected
+			this.input = grow( this.input, this.engine.getSession()
+			        .getPacketBufferSize() );
+		}
+		return channel.read( this.input );
+	}
+
+	/**
+	 * Returns whether there's input waiting to be decrypted.
+	 * 
+	 * @return true, if there's input
+	 */
+	boolean hasInput() {
+		return this.input.position() > 0;
+	}
+
+	/**
+	 * Returns the size of buffer that {@link #unwrap} needs to decrypt
+	 * into.
+	 * 
+	 * @return the buffer size in bytes
+	 */
+	int getApplicationBufferSize() {
+		return this.engine.getSession().getApplicationBufferSize();
+	}
+
+	/**
+	 * Decrypts as much of the input as it can, handing the plaintext to the
+	 * parser, and encrypts whatever the handshake has to send back.
+	 * 
+	 * @param buffer a buffer to decrypt into, which can be null if there's
+	 * 		no input
+	 * @param parser the parser to hand the plaintext to
+	 * @param output the list to add the handshake's records to
+	 * @return what the engine needs next: NEED_INPUT, NEED_TASKS or CLOSED
+	 * @throws SSLException if the client isn't speaking TLS we understand
+	 */
+	int unwrap(ByteBuffer buffer, NioRequestParser parser,
+	        List<ByteBuffer> output) throws SSLException
+	{
+		this.input.flip();
+		try {
+			while ( true ) {
+				HandshakeStatus handshake = this.engine.getHandshakeStatus();
+				if ( handshake == HandshakeStatus.NEED_TASK ) {
+					return NEED_TASKS;
+				}
+				if ( handshake == HandshakeStatus.NEED_WRAP ) {
+					if ( !this.encrypt( NOTHING, output ) ) {
+						return CLOSED;
+					}
+					continue;
+				}
+				if ( !this.input.hasRemaining() ) {
+					return NEED_INPUT;
+				}
+				buffer.clear();
+				SSLEngineResult result = this.engine.unwrap( this.input,
+				        buffer );
+				if ( buffer.position() > 0 ) {
+					parser.append( buffer.array(), 0, buffer.position() );
+				}
+				Status status = result.getStatus();
+				if ( status == Status.CLOSED ) {
+					return CLOSED;
+				}
+				if ( status == Status.BUFFER_UNDERFLOW ) {
+					// the rest of the record hasn't arrived yet
+					return NEED_INPUT;
+				}
+				if ( status == Status.BUFFER_OVERFLOW
+				        && buffer.position() == 0 )
+				{
+					throw new SSLException( "Records are bigger than "
+					        + buffer.capacity() + " bytes" );
+				}
+			}
+		}
+		finally {
+			this.input.compact();
+		}
+	}
+
+	/**
+	 * Encrypts the given plaintext, along with anything the engine has to
+	 * send of its own, into records.
+	 * 
+	 * @param source the plaintext, which is used up
+	 * @param output the list to add the records to
+	 * @throws SSLException if the session has been closed
+	 */
+	void wrap(ByteBuffer[] source, List<ByteBuffer> output) throws SSLException
+	{
+		this.encrypt( source, output );
+		if ( remaining( source ) > 0 ) {
+			// closed, or renegotiating in the middle of a response
+			throw new SSLException( "TLS session can't take any more" );
+		}
+	}
+
+	/**
+	 * Closes the TLS session, adding the close_notify alert to the output.
+	 * 
+	 * @param output the list to add the alert to
+	 */
+	void close(List<ByteBuffer> output) {
+		this.engine.closeOutbound();
+		try {
+			this.encrypt( NOTHING, output );
+		}
+		catch ( SSLException e ) {
+			// it was going to be closed anyway
+		}
+	}
+
+	/**
+	 * Runs the engine's delegated tasks, the expensive part of the
+	 * handshake.  This isn't called on the selector thread, so a handshake
+	 * doesn't hold up the other connections.
+	 */
+	void runTasks() {
+		Runnable task;
+		while ( ( task = this.engine.getDelegatedTask() ) != null ) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Wraps the source until it's used up and the engine has nothing more
+	 * of its own to send.
+	 * 
+	 * @return false if the engine wouldn't take any more
+	 */
+	private boolean encrypt(ByteBuffer[] source, List<ByteBuffer> output)
+	        throws SSLException
+	{
+		while ( true ) {
+			this.packet.clear();
+			SSLEngineResult result = this.engine.wrap( source, this.packet );
+			if ( result.getStatus() == Status.BUFFER_OVERFLOW ) {
+				this.packet = grow( this.packet, this.engine.getSession()
+				        .getPacketBufferSize() );
+				continue;
+			}
+			if ( this.packet.position() > 0 ) {
+				this.packet.flip();
+				ByteBuffer record = ByteBuffer.allocate( this.packet
+				        .remaining() );
+				record.put( this.packet ).flip();
+				output.add( record );
+			}
+			if ( result.getStatus() == Status.CLOSED ) {
+				return false;
+			}
+			HandshakeStatus handshake = result.getHandshakeStatus();
+			if ( handshake == HandshakeStatus.NEED_TASK ) {
+				// only during a renegotiation, which is rare enough to
+				// do right here
+				this.runTasks();
+				continue;
+			}
+			if ( handshake != HandshakeStatus.NEED_WRAP
+			        && remaining( source ) == 0 )
+			{
+				return true;
+			}
+			if ( result.bytesConsumed() == 0 && result.bytesProduced() == 0 ) {
+				// waiting on the client, e.g. in the middle of a handshake
+				return true;
+			}
+		}
+	}
+
+	private static long remaining(ByteBuffer[] buffers) {
+		long remaining = 0;
+		for ( ByteBuffer buffer : buffers ) {
+			remaining += buffer.remaining();
+		}
+		return remaining;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		ByteBuffer bigger = ByteBuffer.allocate( Math.max( size, buffer
+		        .capacity() * 2 ) );
+		buffer.flip();
+		return bigger.put( buffer );
+	}
+}
@@ -17,6 +17,7 @@ package org.mocksy.server.http;
  */
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -24,15 +25,25 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.mocksy.Request;
+import org.mocksy.DeferredResponse;
 import org.mocksy.Response;
 import org.mocksy.filter.FilterException;
 import org.mocksy.rules.Ruleset;
+import org.mortbay.jetty.RetryRequest;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.mortbay.util.ajax.WaitingContinuation;
 
 /**
  * Main servlet that processes incoming requests through a Mocksy Ruleset.
  * Each request is converted into a {@link org.mocksy.server.http.HttpRequest}
  * and then processed with the Ruleset.
+ * 
+ * Most Responses are written out there and then.  A Rule that has to wait
+ * for its Response, like a proxy, can return a
+ * {@link org.mocksy.DeferredResponse} instead, in which case the request is
+ * suspended with a Jetty Continuation and picked up again once the Response
+ * is in, so the thread isn't tied up in the meantime.
  *  
  * @author Saleem Shafi
  */
@@ -40,6 +51,11 @@ public class RequestServlet extends HttpServlet {
 	private static final Logger logger = Logger.getLogger( RequestServlet.class
 	        .getName() );
 	private static final long serialVersionUID = -7412950822802129704L;
+	private static final int STREAM_BUFFER_SIZE = 1024 * 8;
+	private static final String DEFERRED_ATTRIBUTE = DeferredResponse.class
+	        .getName();
+	// how long to wait for a DeferredResponse without a timeout of its own
+	private static final long NO_TIMEOUT = Integer.MAX_VALUE;
 
 	private Ruleset rules;
 
@@ -62,23 +78,45 @@ public class RequestServlet extends HttpServlet {
 	protected void service(HttpServletRequest req, HttpServletResponse resp)
 	        throws ServletException, IOException
 	{
+		ResponsePacer pacer = ResponsePacer.getPacer( req );
+		if ( pacer != null ) {
+			// we've been re-dispatched to carry on with a delayed or paced
+			// response, so the request has already been processed
+			this.pace( pacer, req, resp );
+			return;
+		}
+		DeferredResponse deferred = (DeferredResponse) req
+		        .getAttribute( DEFERRED_ATTRIBUTE );
+		if ( deferred != null ) {
+			// we've been re-dispatched because the response is in, or
+			// because we've waited long enough for it
+			req.removeAttribute( DEFERRED_ATTRIBUTE );
+			this.resume( deferred, req, resp );
+			return;
+		}
 		try {
-			// Wrap the request and response for logging
-			LoggingRequestWrapper reqWrapper = new LoggingRequestWrapper( req );
+			// Wrap the request and response for logging, but only hold on to
+			// the data if it's going to be logged
+			boolean capture = logger.isLoggable( Level.FINE );
+			LoggingRequestWrapper reqWrapper = new LoggingRequestWrapper( req,
+			        capture );
 			LoggingResponseWrapper resWrapper = new LoggingResponseWrapper(
-			        resp );
+			        resp, capture );
 			long start = System.currentTimeMillis();
 
-			Request request = new HttpRequest( reqWrapper );
+			HttpRequest request = new HttpRequest( reqWrapper );
+			request.setAsync( isAsync( req ) );
 			// Process the request through the Ruleset
 			Response matchResponse = this.rules.process( request );
-			// if no response is found, return a 404
-			if ( matchResponse == null ) {
-				resp.sendError( 404, "No matching rules" );
+			if ( matchResponse instanceof DeferredResponse ) {
+				// the Rule is still working on it, so wait for it without
+				// holding on to this thread, unless it's in already
+				deferred = (DeferredResponse) matchResponse;
+				await( deferred, req );
+				this.resume( deferred, req, resWrapper );
 			}
 			else {
-				// else return the response
-				respond( matchResponse, resWrapper );
+				this.send( matchResponse, req, resWrapper );
 			}
 
 			long end = System.currentTimeMillis();
@@ -95,6 +133,10 @@ public class RequestServlet extends HttpServlet {
 			}
 
 		}
+		catch ( RetryRequest e ) {
+			// the request has been suspended, let Jetty have it
+			throw e;
+		}
 		catch ( IOException e ) {
 			throw e;
 		}
@@ -104,6 +146,115 @@ public class RequestServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Writes out the Response that the Ruleset came up with.
+	 */
+	private void send(Response matchResponse, HttpServletRequest req,
+	        HttpServletResponse resp) throws IOException
+	{
+		// if no response is found, return a 404
+		if ( matchResponse == null ) {
+			resp.sendError( 404, "No matching rules" );
+			return;
+		}
+		if ( ResponsePacer.isPaced( matchResponse ) ) {
+			// hand the response over to a pacer that writes it out over
+			// time without holding on to this thread; it takes care of the
+			// response from here on
+			ResponsePacer pacer = new ResponsePacer( matchResponse );
+			pacer.attach( req );
+			this.pace( pacer, req, resp );
+			return;
+		}
+		try {
+			if ( matchResponse.isStreamed() ) {
+				stream( matchResponse, resp );
+			}
+			else {
+				// else return the response
+				respond( matchResponse, resp );
+			}
+		}
+		finally {
+			// free up anything a streamed response didn't get to use
+			matchResponse.close();
+		}
+	}
+
+	/**
+	 * Carries on with a request whose DeferredResponse is in, or has been
+	 * given up on.
+	 */
+	private void resume(DeferredResponse deferred, HttpServletRequest req,
+	        HttpServletResponse resp) throws ServletException, IOException
+	{
+		// if it isn't in yet, the suspend timed out
+		if ( deferred.cancel() ) {
+			String msg = "Timed out waiting for '" + deferred.getId() + "'";
+			logger.warning( msg );
+			resp.setContentType( "text/plain" );
+			resp.sendError( HttpServletResponse.SC_GATEWAY_TIMEOUT, msg );
+			return;
+		}
+		Response matchResponse;
+		try {
+			matchResponse = deferred.get();
+		}
+		catch ( IOException e ) {
+			throw e;
+		}
+		catch ( Exception e ) {
+			throw new ServletException( "Cannot generate response: "
+			        + e.getMessage(), e );
+		}
+		this.send( matchResponse, req, resp );
+	}
+
+	/**
+	 * Returns whether Jetty can suspend the request without holding on to
+	 * the thread.  The blocking connectors can only wait in place, so
+	 * Rules might as well do their waiting on this thread themselves.
+	 */
+	private static boolean isAsync(HttpServletRequest req) {
+		return !( ContinuationSupport.getContinuation( req, null )
+		        instanceof WaitingContinuation );
+	}
+
+	/**
+	 * Suspends the request until the DeferredResponse is in.  With an
+	 * asynchronous continuation this throws Jetty's RetryRequest, and the
+	 * request comes back through {@link #resume} once the Response is
+	 * completed or the timeout expires.  Otherwise, this returns once
+	 * there's no more waiting to do.
+	 */
+	private static void await(DeferredResponse deferred,
+	        HttpServletRequest req)
+	{
+		final Continuation continuation = ContinuationSupport
+		        .getContinuation( req, null );
+		long timeout = deferred.getTimeout();
+		if ( timeout <= 0 ) {
+			timeout = NO_TIMEOUT;
+		}
+		req.setAttribute( DEFERRED_ATTRIBUTE, deferred );
+		// a resume is only heard once the request has been suspended, so
+		// the Response mustn't be completed in between
+		synchronized ( continuation ) {
+			if ( deferred.whenDone( new Runnable() {
+				public void run() {
+					synchronized ( continuation ) {
+						continuation.resume();
+					}
+				}
+			} ) )
+			{
+				continuation.suspend( timeout );
+			}
+		}
+		// we either didn't have to wait, or waited in place
+		req.removeAttribute( DEFERRED_ATTRIBUTE );
+	}
+
 	private void respond(Response matchResponse, HttpServletResponse resp)
 	        throws IOException
 	{
@@ -118,22 +269,138 @@ public class RequestServlet extends HttpServlet {
 			data = matchResponse.toByteArray();
 		}
 		catch ( IOException e ) {
-			// report processing errors as 404s
-			String msg = "Cannot locate '" + matchResponse.getId() + "'";
-			logger.severe( msg );
-			resp.setContentType( "text/plain" );
-			resp.sendError( HttpServletResponse.SC_NOT_FOUND, msg );
+			sendNotFound( matchResponse, resp );
 			return;
 		}
 		catch ( FilterException e ) {
-			// handle filtering problems
-			String msg = "Error processing response '" + matchResponse.getId()
-			        + "'";
-			logger.severe( msg );
-			resp.setContentType( "text/plain" );
-			resp.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg );
+			sendFilterError( matchResponse, resp );
+			return;
+		}
+		if ( !writeStatus( matchResponse, resp ) ) {
+			// resp.setContentLength( data.length );
+			OutputStream out = resp.getOutputStream();
+			out.write( data );
+			out.flush();
+		}
+		resp.flushBuffer();
+	}
+
+	/**
+	 * Writes out a streamed Response as its content arrives.  Whatever has
+	 * arrived is flushed to the client before waiting for more, and writes
+	 * block while the client is behind, so a slow client holds back the
+	 * reading rather than the content piling up in memory.
+	 */
+	private void stream(Response matchResponse, HttpServletResponse resp)
+	        throws IOException
+	{
+		// log which response is being returned
+		if ( logger.isLoggable( Level.INFO ) ) {
+			logger.info( "Matched " + matchResponse.getId() );
+		}
+
+		InputStream content;
+		try {
+			content = matchResponse.openStream();
+		}
+		catch ( IOException e ) {
+			sendNotFound( matchResponse, resp );
+			return;
+		}
+		catch ( FilterException e ) {
+			sendFilterError( matchResponse, resp );
 			return;
 		}
+		try {
+			if ( !writeStatus( matchResponse, resp ) ) {
+				OutputStream out = resp.getOutputStream();
+				byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+				int read = -1;
+				while ( ( read = content.read( buffer ) ) > -1 ) {
+					out.write( buffer, 0, read );
+					if ( content.available() == 0 ) {
+						out.flush();
+					}
+				}
+			}
+		}
+		finally {
+			content.close();
+		}
+		resp.flushBuffer();
+	}
+
+	/**
+	 * Writes out a delayed and/or paced Response.  Each time the pacer
+	 * suspends the request this throws a RetryRequest, and the request
+	 * comes back through here once the timeout expires.
+	 */
+	private void pace(ResponsePacer pacer, HttpServletRequest req,
+	        HttpServletResponse resp) throws IOException
+	{
+		pacer.delay( req );
+		Response matchResponse = pacer.getResponse();
+		if ( !pacer.isStarted() ) {
+			// log which response is being returned
+			if ( logger.isLoggable( Level.INFO ) ) {
+				logger.info( "Matched " + matchResponse.getId() );
+			}
+			InputStream content;
+			try {
+				content = matchResponse.openStream();
+			}
+			catch ( IOException e ) {
+				sendNotFound( matchResponse, resp );
+				return;
+			}
+			catch ( FilterException e ) {
+				sendFilterError( matchResponse, resp );
+				return;
+			}
+			if ( writeStatus( matchResponse, resp ) ) {
+				content.close();
+				resp.flushBuffer();
+				return;
+			}
+			pacer.start( content );
+		}
+		OutputStream out = resp.getOutputStream();
+		while ( pacer.writeChunk( out ) ) {
+			pacer.awaitNextChunk( req );
+		}
+		resp.flushBuffer();
+	}
+
+	private static void sendNotFound(Response matchResponse,
+	        HttpServletResponse resp) throws IOException
+	{
+		// report processing errors as 404s
+		String msg = "Cannot locate '" + matchResponse.getId() + "'";
+		logger.severe( msg );
+		resp.setContentType( "text/plain" );
+		resp.sendError( HttpServletResponse.SC_NOT_FOUND, msg );
+	}
+
+	private static void sendFilterError(Response matchResponse,
+	        HttpServletResponse resp) throws IOException
+	{
+		// handle filtering problems
+		String msg = "Error processing response '" + matchResponse.getId()
+		        + "'";
+		logger.severe( msg );
+		resp.setContentType( "text/plain" );
+		resp.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg );
+	}
+
+	/**
+	 * Sets the status code, headers and content type of the servlet
+	 * response.
+	 * 
+	 * @return true, if the status is an error and no body should be written
+	 */
+	private static boolean writeStatus(Response matchResponse,
+	        HttpServletResponse resp) throws IOException
+	{
 		boolean isError = false;
 		if ( matchResponse instanceof HttpResponse ) {
 			HttpResponse httpResponse = (HttpResponse) matchResponse;
@@ -160,11 +427,7 @@ public class RequestServlet extends HttpServlet {
 			if ( contentType != null ) {
 				resp.setContentType( contentType );
 			}
-			// resp.setContentLength( data.length );
-			OutputStream out = resp.getOutputStream();
-			out.write( data );
-			out.flush();
 		}
-		resp.flushBuffer();
+		return isError;
 	}
 }
@@ -0,0 +1,241 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.mocksy.Response;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+
+/**
+ * Holds the state of a Response that is being delayed or written out in
+ * paced chunks.  Rather than sleeping on the servlet thread, the pacer
+ * suspends the request with a Jetty Continuation between writes, so the
+ * connector's shared timeout queue re-dispatches the request when the next
+ * chunk is due and the thread is free to serve other requests meanwhile.
+ *
+ * On connectors that don't support asynchronous continuations, e.g. the
+ * blocking SSL connector, Jetty falls back to a continuation that simply
+ * waits, so pacing still works, just without releasing the thread.
+ */
+class ResponsePacer {
+	private static final String ATTRIBUTE = ResponsePacer.class.getName();
+	// how many writes per second to aim for when only a bandwidth is given
+	private static final int WRITES_PER_SECOND = 10;
+	// the most writes per second, however small the chunks are meant to be
+	private static final int MAX_WRITES_PER_SECOND = 100;
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final Response response;
+	private final int chunkSize;
+	// kept in nanoseconds, since a small chunk at a high bandwidth is due
+	// in less than a millisecond
+	private final long chunkNanos;
+	private boolean delayed;
+	private InputStream content;
+	private long nextChunk;
+
+	/**
+	 * Creates the pacer for the given Response, working out the chunk size
+	 * and interval from the Response's bandwidth and chunk settings.  At a
+	 * bandwidth where the chunks would go out less than 10ms apart, they're
+	 * made bigger, since the request is suspended between chunks for whole
+	 * milliseconds, and suspending it thousands of times a second costs
+	 * more than the pacing is worth.
+	 *
+	 * @param response the Response to pace
+	 */
+	ResponsePacer(Response response) {
+		this.response = response;
+		int size = response.getChunkSize();
+		long nanos = response.getChunkInterval() * NANOS_PER_MILLI;
+		int bandwidth = response.getBandwidth();
+		if ( bandwidth > 0 ) {
+			if ( size <= 0 ) {
+				size = Math.max( 1, bandwidth / WRITES_PER_SECOND );
+			}
+			size = Math.max( size, ( bandwidth + MAX_WRITES_PER_SECOND - 1 )
+			        / MAX_WRITES_PER_SECOND );
+			nanos = size * NANOS_PER_SECOND / bandwidth;
+		}
+		this.chunkSize = ( size > 0 ? size : Integer.MAX_VALUE );
+		this.chunkNanos = Math.max( 0, nanos );
+		this.delayed = ( response.getDelay() <= 0 );
+	}
+
+	/**
+	 * Returns whether the given Response needs to be delayed or paced
+	 * rather than written out in one go.
+	 *
+	 * @param response the Response to check
+	 * @return true, if the Response has a delay, bandwidth or chunk size
+	 */
+	static boolean isPaced(Response response) {
+		return response.getDelay() > 0 || response.getBandwidth() > 0
+		        || response.getChunkSize() > 0;
+	}
+
+	/**
+	 * Returns the pacer for a request that has been re-dispatched after
+	 * being suspended.
+	 *
+	 * @param request the servlet request
+	 * @return the pacer, or null if the request is being seen for the first time
+	 */
+	static ResponsePacer getPacer(HttpServletRequest request) {
+		return (ResponsePacer) request.getAttribute( ATTRIBUTE );
+	}
+
+	/**
+	 * Associates this pacer with the request so that it can be picked up
+	 * again when the request is re-dispatched.
+	 *
+	 * @param request the servlet request
+	 */
+	void attach(HttpServletRequest request) {
+		request.setAttribute( ATTRIBUTE, this );
+	}
+
+	/**
+	 * Returns the Response being paced.
+	 *
+	 * @return the paced Response
+	 */
+	Response getResponse() {
+		return this.response;
+	}
+
+	/**
+	 * Suspends the request for the Response's delay, if that hasn't
+	 * happened yet.  With an asynchronous continuation this throws Jetty's
+	 * RetryRequest, so it must be allowed to propagate out of the servlet.
+	 *
+	 * @param request the servlet request
+	 */
+	void delay(HttpServletRequest request) {
+		if ( !this.delayed ) {
+			this.delayed = true;
+			suspend( request, this.response.getDelay() );
+		}
+	}
+
+	/**
+	 * Returns whether the content stream has been opened yet, i.e. whether
+	 * the status and headers have already been sent.
+	 *
+	 * @return true, if writing has started
+	 */
+	boolean isStarted() {
+		return this.content != null;
+	}
+
+	/**
+	 * Sets the content stream that the chunks are read from.
+	 *
+	 * @param content the (filtered) Response content
+	 */
+	void start(InputStream content) {
+		this.content = content;
+		this.nextChunk = System.nanoTime();
+	}
+
+	/**
+	 * Closes the content stream, if it's been opened, when the Response is
+	 * given up on part way through.
+	 */
+	void close() {
+		if ( this.content != null ) {
+			try {
+				this.content.close();
+			}
+			catch ( IOException e ) {
+				// nothing more to read from it anyway
+			}
+		}
+	}
+
+	/**
+	 * Writes the next chunk of content to the output and flushes it.
+	 *
+	 * @param output the stream to write to
+	 * @return true, if there's more content left to write
+	 * @throws IOException if the content can't be read or written
+	 */
+	boolean writeChunk(OutputStream output) throws IOException {
+		byte[] buffer = new byte[Math.min( this.chunkSize, 1024 * 10 )];
+		int remaining = this.chunkSize;
+		while ( remaining > 0 ) {
+			int read = this.content.read( buffer, 0, Math.min( buffer.length,
+			        remaining ) );
+			if ( read == -1 ) {
+				output.flush();
+				this.content.close();
+				return false;
+			}
+			output.write( buffer, 0, read );
+			remaining -= read;
+		}
+		output.flush();
+		return true;
+	}
+
+	/**
+	 * Works out how long to wait before the next chunk, and moves on to it,
+	 * so this is called once after each chunk.  Chunks are due a fixed
+	 * interval apart from when the first one was written, so a wait that's
+	 * rounded up to the millisecond, or a write that's late, is made up for
+	 * by the next wait being shorter.
+	 * 
+	 * @return how long to wait, in milliseconds, or 0 to write it now
+	 */
+	long nextChunkDelay() {
+		this.nextChunk += this.chunkNanos;
+		long wait = this.nextChunk - System.nanoTime();
+		if ( wait <= 0 ) {
+			return 0;
+		}
+		return ( wait + NANOS_PER_MILLI - 1 ) / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Suspends the request until the next chunk is due.
+	 *
+	 * @param request the servlet request
+	 */
+	void awaitNextChunk(HttpServletRequest request) {
+		suspend( request, this.nextChunkDelay() );
+	}
+
+	private static void suspend(HttpServletRequest request, long timeout) {
+		Continuation continuation = ContinuationSupport.getContinuation(
+		        request, null );
+		// a re-dispatched request still holds the continuation from the last
+		// suspend, which needs to be cleared whether or not it's suspended
+		// again, or Jetty takes the request to still be suspended
+		if ( continuation.isPending() ) {
+			continuation.reset();
+		}
+		if ( timeout > 0 ) {
+			continuation.suspend( timeout );
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.util.Map;
+import org.mocksy.rules.Ruleset;
+
+/**
+ * The part of a {@link MocksyServer} that accepts HTTP requests and writes
+ * out the Responses that a Ruleset matches for them.  The server picks a
+ * backend to serve requests with; the admin port stays with Jetty whatever
+ * the backend.
+ *
+ * Mocksy comes with a backend that serves requests through the
+ * {@link RequestServlet} in Jetty, which is the default, and
+ * {@link NioBackend}, a small HTTP/1.1 engine of its own.  Implementations
+ * need a public no-argument constructor to be picked by class name on the
+ * command line.
+ */
+public interface ServerBackend {
+
+	/**
+	 * Starts accepting requests on the given port, processing them with the
+	 * given Ruleset.
+	 * 
+	 * @param rules the Ruleset to process requests with
+	 * @param port the port to listen on, or 0 for any free port
+	 * @throws Exception if the backend can't be started
+	 */
+	void start(Ruleset rules, int port) throws Exception;
+
+	/**
+	 * Returns the port the backend is accepting requests on.
+	 * 
+	 * @return the local port, or 0 if the backend hasn't been started
+	 */
+	int getPort();
+
+	/**
+	 * Returns the connector and thread settings the backend is running
+	 * with, named as in {@link ServerTuning}, so they can be reported at
+	 * startup and on the admin port.  Settings that don't apply to the
+	 * backend are left out.
+	 * 
+	 * @return the settings, by name
+	 */
+	Map<String, Number> getSettings();
+
+	/**
+	 * Stops accepting requests and frees up the port again.
+	 * 
+	 * @throws Exception if the backend can't be shut down
+	 */
+	void stop() throws Exception;
+}
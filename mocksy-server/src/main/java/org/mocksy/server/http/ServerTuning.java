@@ -0,0 +1,438 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.mortbay.jetty.AbstractConnector;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.thread.BoundedThreadPool;
+import org.mortbay.thread.ThreadPool;
+
+/**
+ * The connector and thread pool settings of a server port, for tuning the
+ * server for heavy load.  Anything that isn't set is left at Jetty's
+ * default.
+ * 
+ * The settings are named the same on the command line and in a tuning
+ * file, a properties file like:
+ * 
+ * <pre>
+ * acceptors=4
+ * max-threads=500
+ * queue-size=2000
+ * admin.max-threads=10
+ * </pre>
+ * 
+ * where settings starting with <code>admin.</code> only apply to the admin
+ * port.
+ */
+public class ServerTuning {
+	private static final Logger logger = Logger.getLogger( ServerTuning.class
+	        .getName() );
+	public static final String ACCEPTORS = "acceptors";
+	public static final String SELECTORS = "selectors";
+	public static final String MIN_THREADS = "min-threads";
+	public static final String MAX_THREADS = "max-threads";
+	public static final String QUEUE_SIZE = "queue-size";
+	public static final String IDLE_TIMEOUT = "idle-timeout";
+	public static final String BACKLOG = "backlog";
+	public static final String HEADER_BUFFER = "header-buffer";
+	public static final String REQUEST_BUFFER = "request-buffer";
+	public static final String RESPONSE_BUFFER = "response-buffer";
+	/**
+	 * All of the setting names, in the order they're reported in.
+	 */
+	public static final String[] SETTINGS = { ACCEPTORS, SELECTORS,
+	        MIN_THREADS, MAX_THREADS, QUEUE_SIZE, IDLE_TIMEOUT, BACKLOG,
+	        HEADER_BUFFER, REQUEST_BUFFER, RESPONSE_BUFFER };
+	// the settings that the NIO backend has nothing to apply to
+	private static final String[] NIO_UNSUPPORTED = { ACCEPTORS, SELECTORS,
+	        HEADER_BUFFER, RESPONSE_BUFFER };
+	private static final String ADMIN_PREFIX = "admin.";
+	// how long a thread beyond the minimum is kept when there's no work
+	private static final int THREAD_IDLE_TIME = 60000;
+
+	private final Map<String, Integer> settings = new LinkedHashMap<String, Integer>();
+
+	/**
+	 * Creates the tuning with nothing set.
+	 */
+	public ServerTuning() {
+	}
+
+	/**
+	 * Creates a copy of the given tuning.
+	 * 
+	 * @param tuning the tuning to copy
+	 */
+	public ServerTuning(ServerTuning tuning) {
+		this.settings.putAll( tuning.settings );
+	}
+
+	/**
+	 * Sets the named setting.
+	 * 
+	 * @param name one of the {@link #SETTINGS}
+	 * @param value the value, which has to be positive
+	 * @throws IllegalArgumentException if there's no such setting, or the
+	 *         value isn't positive
+	 */
+	public void set(String name, int value) {
+		if ( !isSetting( name ) ) {
+			throw new IllegalArgumentException( "Unknown setting: " + name );
+		}
+		if ( value < 1 ) {
+			throw new IllegalArgumentException( name
+			        + " has to be positive, not " + value );
+		}
+		this.settings.put( name, value );
+	}
+
+	/**
+	 * Sets the named setting from a String, e.g. an option value.
+	 * 
+	 * @param name one of the {@link #SETTINGS}
+	 * @param value the value, or null to leave the setting alone
+	 * @throws IllegalArgumentException if there's no such setting, or the
+	 *         value isn't a positive number
+	 */
+	public void set(String name, String value) {
+		if ( value == null ) {
+			return;
+		}
+		try {
+			this.set( name, Integer.parseInt( value.trim() ) );
+		}
+		catch ( NumberFormatException e ) {
+			throw new IllegalArgumentException( name
+			        + " has to be a number, not '" + value + "'" );
+		}
+	}
+
+	/**
+	 * Returns the named setting.
+	 * 
+	 * @param name one of the {@link #SETTINGS}
+	 * @return the value, or 0 if it isn't set
+	 */
+	public int get(String name) {
+		Integer value = this.settings.get( name );
+		return ( value == null ? 0 : value );
+	}
+
+	/**
+	 * Returns whether the named setting is set.
+	 * 
+	 * @param name one of the {@link #SETTINGS}
+	 * @return true, if it has been set
+	 */
+	public boolean isSet(String name) {
+		return this.settings.containsKey( name );
+	}
+
+	/**
+	 * Reads the settings for the request port from a tuning file.
+	 * 
+	 * @param file the properties file
+	 * @return the tuning
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if there's a setting that isn't known
+	 *         or isn't a positive number
+	 */
+	public static ServerTuning load(File file) throws IOException {
+		return load( file, false );
+	}
+
+	/**
+	 * Reads the settings for the admin port from a tuning file: the ones
+	 * without a prefix, overridden by those starting with
+	 * <code>admin.</code>.
+	 * 
+	 * @param file the properties file
+	 * @return the tuning
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if there's a setting that isn't known
+	 *         or isn't a positive number
+	 */
+	public static ServerTuning loadAdmin(File file) throws IOException {
+		return load( file, true );
+	}
+
+	private static ServerTuning load(File file, boolean admin)
+	        throws IOException
+	{
+		Properties properties = new Properties();
+		InputStream input = new FileInputStream( file );
+		try {
+			properties.load( input );
+		}
+		finally {
+			input.close();
+		}
+		ServerTuning tuning = new ServerTuning();
+		Map<String, String> overrides = new LinkedHashMap<String, String>();
+		for ( String key : properties.stringPropertyNames() ) {
+			String value = properties.getProperty( key );
+			if ( key.startsWith( ADMIN_PREFIX ) ) {
+				String name = key.substring( ADMIN_PREFIX.length() );
+				if ( !isSetting( name ) ) {
+					throw new IllegalArgumentException( "Unknown setting: "
+					        + key );
+				}
+				if ( admin ) {
+					overrides.put( name, value );
+				}
+			}
+			else {
+				tuning.set( key, value );
+			}
+		}
+		for ( Map.Entry<String, String> override : overrides.entrySet() ) {
+			tuning.set( override.getKey(), override.getValue() );
+		}
+		return tuning;
+	}
+
+	/**
+	 * Applies the connector settings to a Jetty connector.  Jetty's
+	 * non-blocking connector accepts connections on each of its selectors,
+	 * so for that one the selector count, if it's set, is the acceptor
+	 * count.
+	 * 
+	 * @param connector the connector to tune
+	 */
+	public void apply(Connector connector) {
+		if ( connector instanceof AbstractConnector ) {
+			AbstractConnector jetty = (AbstractConnector) connector;
+			if ( this.isSet( ACCEPTORS ) ) {
+				jetty.setAcceptors( this.get( ACCEPTORS ) );
+			}
+			if ( this.isSet( SELECTORS )
+			        && connector instanceof SelectChannelConnector )
+			{
+				jetty.setAcceptors( this.get( SELECTORS ) );
+			}
+			if ( this.isSet( BACKLOG ) ) {
+				jetty.setAcceptQueueSize( this.get( BACKLOG ) );
+			}
+		}
+		if ( this.isSet( IDLE_TIMEOUT ) ) {
+			connector.setMaxIdleTime( this.get( IDLE_TIMEOUT ) );
+		}
+		if ( this.isSet( HEADER_BUFFER ) ) {
+			connector.setHeaderBufferSize( this.get( HEADER_BUFFER ) );
+		}
+		if ( this.isSet( REQUEST_BUFFER ) ) {
+			connector.setRequestBufferSize( this.get( REQUEST_BUFFER ) );
+		}
+		if ( this.isSet( RESPONSE_BUFFER ) ) {
+			connector.setResponseBufferSize( this.get( RESPONSE_BUFFER ) );
+		}
+	}
+
+	/**
+	 * Applies the settings that the NIO backend has: the threads, the queue
+	 * size, the idle timeout, the backlog and the request buffer size.  It
+	 * has the one selector that also accepts connections, and buffers
+	 * headers and responses as it needs to, so the rest don't apply to it,
+	 * and a warning is logged for any of them that are set.
+	 * 
+	 * @param backend the backend to tune
+	 */
+	public void apply(NioBackend backend) {
+		for ( String setting : NIO_UNSUPPORTED ) {
+			if ( this.isSet( setting ) ) {
+				logger.warning( "The NIO backend ignores " + setting );
+			}
+		}
+		if ( this.isSet( MIN_THREADS ) ) {
+			backend.setMinThreads( this.get( MIN_THREADS ) );
+		}
+		if ( this.isSet( MAX_THREADS ) ) {
+			backend.setThreads( this.get( MAX_THREADS ) );
+		}
+		if ( this.isSet( QUEUE_SIZE ) ) {
+			backend.setQueueSize( this.get( QUEUE_SIZE ) );
+		}
+		if ( this.isSet( IDLE_TIMEOUT ) ) {
+			backend.setIdleTimeout( this.get( IDLE_TIMEOUT ) );
+		}
+		if ( this.isSet( BACKLOG ) ) {
+			backend.setBacklog( this.get( BACKLOG ) );
+		}
+		if ( this.isSet( REQUEST_BUFFER ) ) {
+			backend.setBufferSize( this.get( REQUEST_BUFFER ) );
+		}
+	}
+
+	/**
+	 * Creates the thread pool for a Jetty server.  Jetty's own pool has no
+	 * limit on the jobs waiting for a thread, so if a queue size is set,
+	 * the pool is an executor that starts threads up to the maximum, then
+	 * queues jobs up to the queue size.  Past that, Jetty leaves the
+	 * connection be until it's selected again, rather than piling up work
+	 * the server can't get to.
+	 * 
+	 * @param name the name to give the threads
+	 * @return the thread pool, or null if no thread settings are set
+	 */
+	public ThreadPool newThreadPool(String name) {
+		if ( !this.isSet( MIN_THREADS ) && !this.isSet( MAX_THREADS )
+		        && !this.isSet( QUEUE_SIZE ) )
+		{
+			return null;
+		}
+		BoundedThreadPool defaults = new BoundedThreadPool();
+		int minThreads = ( this.isSet( MIN_THREADS ) ? this.get( MIN_THREADS )
+		        : defaults.getMinThreads() );
+		int maxThreads = Math.max( minThreads,
+		        this.isSet( MAX_THREADS ) ? this.get( MAX_THREADS ) : defaults
+		                .getMaxThreads() );
+		if ( !this.isSet( QUEUE_SIZE ) ) {
+			BoundedThreadPool pool = defaults;
+			pool.setName( name );
+			pool.setMinThreads( minThreads );
+			pool.setMaxThreads( maxThreads );
+			return pool;
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor( maxThreads,
+		        maxThreads, THREAD_IDLE_TIME, TimeUnit.MILLISECONDS,
+		        new ArrayBlockingQueue<Runnable>( this.get( QUEUE_SIZE ) ),
+		        new PoolThreadFactory( name ) );
+		// the executor only starts threads beyond its core size once the
+		// queue is full, so all of them are core threads that can time out
+		executor.allowCoreThreadTimeOut( true );
+		for ( int i = 0; i < minThreads; i++ ) {
+			executor.prestartCoreThread();
+		}
+		return new ExecutorThreadPool( executor );
+	}
+
+	/**
+	 * Returns the settings that a Jetty connector and thread pool actually
+	 * ended up with, including the defaults, for reporting.
+	 * 
+	 * @param connector the connector
+	 * @param pool the thread pool, or null if it isn't known
+	 * @return the settings, by name
+	 */
+	static Map<String, Number> describe(Connector connector, ThreadPool pool)
+	{
+		Map<String, Number> settings = new LinkedHashMap<String, Number>();
+		if ( connector instanceof AbstractConnector ) {
+			AbstractConnector jetty = (AbstractConnector) connector;
+			settings.put( ACCEPTORS, jetty.getAcceptors() );
+			settings.put( SELECTORS,
+			        connector instanceof SelectChannelConnector ? jetty
+			                .getAcceptors() : 0 );
+		}
+		if ( pool instanceof BoundedThreadPool ) {
+			BoundedThreadPool bounded = (BoundedThreadPool) pool;
+			settings.put( MIN_THREADS, bounded.getMinThreads() );
+			settings.put( MAX_THREADS, bounded.getMaxThreads() );
+		}
+		else if ( pool instanceof ExecutorThreadPool ) {
+			describe( ( (ExecutorThreadPool) pool ).getExecutor(), settings );
+		}
+		settings.put( IDLE_TIMEOUT, connector.getMaxIdleTime() );
+		if ( connector instanceof AbstractConnector ) {
+			settings.put( BACKLOG, ( (AbstractConnector) connector )
+			        .getAcceptQueueSize() );
+		}
+		settings.put( HEADER_BUFFER, connector.getHeaderBufferSize() );
+		settings.put( REQUEST_BUFFER, connector.getRequestBufferSize() );
+		settings.put( RESPONSE_BUFFER, connector.getResponseBufferSize() );
+		return settings;
+	}
+
+	/**
+	 * Adds the thread settings of an executor; one without a limit, e.g.
+	 * one that starts virtual threads, has none to report.
+	 */
+	static void describe(ExecutorService executor, Map<String, Number> settings)
+	{
+		if ( executor instanceof ThreadPoolExecutor ) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			// threads that can time out aren't kept around
+			settings.put( MIN_THREADS, pool.allowsCoreThreadTimeOut() ? 0
+			        : pool.getCorePoolSize() );
+			settings.put( MAX_THREADS, pool.getMaximumPoolSize() );
+			long queueSize = (long) pool.getQueue().remainingCapacity()
+			        + pool.getQueue().size();
+			if ( queueSize < Integer.MAX_VALUE ) {
+				settings.put( QUEUE_SIZE, (int) queueSize );
+			}
+		}
+	}
+
+	/**
+	 * Formats settings for the log, e.g. <code>acceptors=2, ...</code>.
+	 * 
+	 * @param settings the settings, by name
+	 * @return the formatted settings
+	 */
+	static String format(Map<String, Number> settings) {
+		StringBuilder formatted = new StringBuilder();
+		for ( Map.Entry<String, Number> setting : settings.entrySet() ) {
+			if ( formatted.length() > 0 ) {
+				formatted.append( ", " );
+			}
+			formatted.append( setting.getKey() ).append( '=' ).append(
+			        setting.getValue() );
+		}
+		return formatted.toString();
+	}
+
+	private static boolean isSetting(String name) {
+		for ( String setting : SETTINGS ) {
+			if ( setting.equals( name ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Names the threads of a pool that's backed by an executor.
+	 */
+	private static class PoolThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		PoolThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			return new Thread( runnable, this.name + "-"
+			        + this.count.incrementAndGet() );
+		}
+	}
+}
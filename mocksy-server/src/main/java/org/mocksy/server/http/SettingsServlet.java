@@ -0,0 +1,66 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that displays the connector and thread pool settings that the
+ * server is running with, one <code>name=value</code> pair per line, e.g.
+ * <code>request.max-threads=250</code> or <code>admin.acceptors=1</code>.
+ */
+public class SettingsServlet extends HttpServlet {
+	private static final long serialVersionUID = -2390484617730266512L;
+
+	private MocksyServer server;
+
+	/**
+	 * Creates the servlet that will display the server's settings.
+	 *
+	 * @param server the server to display
+	 */
+	SettingsServlet(MocksyServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public void destroy() {
+		this.server = null;
+		super.destroy();
+	}
+
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp)
+	        throws ServletException, IOException
+	{
+		if ( this.server != null ) {
+			resp.setContentType( "text/plain" );
+			PrintWriter writer = resp.getWriter();
+			for ( Map.Entry<String, Number> setting : this.server
+			        .getSettings().entrySet() )
+			{
+				writer.println( setting.getKey() + "=" + setting.getValue() );
+			}
+			resp.flushBuffer();
+		}
+	}
+}
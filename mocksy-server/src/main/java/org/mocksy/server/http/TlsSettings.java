@@ -0,0 +1,357 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.security.SslSocketConnector;
+
+/**
+ * How a port serves TLS: the keystore with the server's certificate, and
+ * which protocols and cipher suites it offers.  The same settings go for
+ * the {@link NioBackend}, which does TLS without blocking a thread per
+ * connection, and for Jetty's SSL connector.
+ * 
+ * Handshakes are expensive, so clients that reconnect can resume their
+ * sessions, either from the server's session cache or, on JVMs that have
+ * them (Java 13 and later), from session tickets kept by the client.  ALPN
+ * can be turned on for clients that insist on it; the only protocol there
+ * is to agree on is HTTP/1.1.
+ */
+public class TlsSettings {
+	private static final Logger logger = Logger.getLogger( TlsSettings.class
+	        .getName() );
+	/**
+	 * The JVM-wide switch for session tickets; it's read when the JVM's TLS
+	 * implementation is first used.
+	 */
+	static final String TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+	private static final String[] ALPN_PROTOCOLS = { "http/1.1" };
+	private static final Method SET_APPLICATION_PROTOCOLS = findAlpnMethod();
+	// whether a context has been created, after which it's too late to
+	// turn session tickets off
+	private static volatile boolean started;
+
+	private final File keystore;
+	private final String password;
+	private String[] protocols;
+	private String[] cipherSuites;
+	private int sessionCacheSize = -1;
+	private int sessionTimeout = -1;
+	private boolean sessionTickets = true;
+	private boolean alpn;
+	private SSLContext context;
+
+	/**
+	 * Creates the settings for serving TLS with the given keystore.  A
+	 * keystore ending in <code>.p12</code> or <code>.pfx</code> is read as
+	 * PKCS12, anything else as JKS.
+	 * 
+	 * @param keystore the keystore with the server's key and certificate
+	 * @param password the password of the keystore and the key
+	 */
+	public TlsSettings(File keystore, String password) {
+		this.keystore = keystore;
+		this.password = password;
+	}
+
+	/**
+	 * Sets the TLS versions to offer, e.g. <code>TLSv1.3</code>.
+	 * 
+	 * @param protocols the protocol names, or null for the JVM's defaults
+	 */
+	public void setProtocols(String... protocols) {
+		this.protocols = protocols;
+	}
+
+	/**
+	 * Sets the cipher suites to offer, in the JVM's names for them.
+	 * 
+	 * @param cipherSuites the cipher suites, or null for the JVM's defaults
+	 */
+	public void setCipherSuites(String... cipherSuites) {
+		this.cipherSuites = cipherSuites;
+	}
+
+	/**
+	 * Sets how many sessions the server keeps around for clients to resume.
+	 * 
+	 * @param size the number of sessions, or 0 for no limit
+	 */
+	public void setSessionCacheSize(int size) {
+		if ( size < 0 ) {
+			throw new IllegalArgumentException(
+			        "The session cache size can't be negative" );
+		}
+		this.sessionCacheSize = size;
+	}
+
+	/**
+	 * Sets how long a session can be resumed for, from the cache or a
+	 * ticket.
+	 * 
+	 * @param seconds the session lifetime, or 0 for no limit
+	 */
+	public void setSessionTimeout(int seconds) {
+		if ( seconds < 0 ) {
+			throw new IllegalArgumentException(
+			        "The session timeout can't be negative" );
+		}
+		this.sessionTimeout = seconds;
+	}
+
+	/**
+	 * Sets whether clients are given session tickets to resume their
+	 * sessions with.  The JVM only has the one switch for that, so this
+	 * is just what's reported, and a warning is logged if it isn't what
+	 * the JVM does; to turn tickets off, call
+	 * {@link #disableSessionTickets()} first.
+	 * 
+	 * @param sessionTickets false to only resume sessions from the cache
+	 */
+	public void setSessionTickets(boolean sessionTickets) {
+		this.sessionTickets = sessionTickets;
+	}
+
+	/**
+	 * Turns session tickets off for the whole JVM.  The JVM reads the
+	 * switch once, when TLS is first used, so this has to be called before
+	 * that, e.g. first thing in main; a warning is logged if a context has
+	 * been created already.  If the switch is set on the command line, that
+	 * wins.
+	 */
+	public static void disableSessionTickets() {
+		if ( System.getProperty( TICKETS_PROPERTY ) != null ) {
+			return;
+		}
+		if ( started ) {
+			logger.warning( "TLS is already in use, so session tickets may "
+			        + "stay on; set -D" + TICKETS_PROPERTY + "=false instead" );
+		}
+		System.setProperty( TICKETS_PROPERTY, "false" );
+	}
+
+	/**
+	 * Sets whether the server takes part in ALPN, agreeing on HTTP/1.1 with
+	 * clients that offer it.  This needs Java 9 or later, or a Java 8 with
+	 * ALPN backported.
+	 * 
+	 * @param alpn true to use ALPN
+	 */
+	public void setAlpn(boolean alpn) {
+		if ( alpn && SET_APPLICATION_PROTOCOLS == null ) {
+			logger.warning( "ALPN needs Java 9 or later, leaving it off" );
+			alpn = false;
+		}
+		this.alpn = alpn;
+	}
+
+	/**
+	 * Returns the SSLContext that connections are set up with, loading the
+	 * keystore the first time.
+	 * 
+	 * @return the context
+	 * @throws IOException if the keystore can't be read
+	 * @throws GeneralSecurityException if the keystore doesn't have a
+	 * 		usable key
+	 */
+	public synchronized SSLContext getContext() throws IOException,
+	        GeneralSecurityException
+	{
+		if ( this.context != null ) {
+			return this.context;
+		}
+		if ( !this.sessionTickets
+		        && !"false".equals( System.getProperty( TICKETS_PROPERTY ) ) )
+		{
+			logger.warning( "Session tickets are still on; they have to be "
+			        + "turned off before TLS is first used" );
+		}
+		started = true;
+		String name = this.keystore.getName().toLowerCase();
+		KeyStore keys = KeyStore.getInstance( name.endsWith( ".p12" )
+		        || name.endsWith( ".pfx" ) ? "PKCS12" : "JKS" );
+		InputStream input = new FileInputStream( this.keystore );
+		try {
+			keys.load( input, this.password.toCharArray() );
+		}
+		finally {
+			input.close();
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory
+		        .getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+		keyManagers.init( keys, this.password.toCharArray() );
+		SSLContext context = SSLContext.getInstance( "TLS" );
+		context.init( keyManagers.getKeyManagers(), null, null );
+		SSLSessionContext sessions = context.getServerSessionContext();
+		if ( this.sessionCacheSize >= 0 ) {
+			sessions.setSessionCacheSize( this.sessionCacheSize );
+		}
+		if ( this.sessionTimeout >= 0 ) {
+			sessions.setSessionTimeout( this.sessionTimeout );
+		}
+		// fail now, not on the first connection, if a name's wrong
+		this.configure( context.createSSLEngine() );
+		this.context = context;
+		return context;
+	}
+
+	/**
+	 * Creates an engine for a new connection, in server mode.
+	 * 
+	 * @return the engine
+	 * @throws IOException if the keystore can't be read
+	 * @throws GeneralSecurityException if the keystore doesn't have a
+	 * 		usable key
+	 */
+	public SSLEngine createEngine() throws IOException,
+	        GeneralSecurityException
+	{
+		SSLEngine engine = this.getContext().createSSLEngine();
+		this.configure( engine );
+		return engine;
+	}
+
+	/**
+	 * Creates a Jetty connector that serves TLS with these settings.  It's
+	 * Jetty's blocking connector, which takes up a thread per connection.
+	 * 
+	 * @return the connector
+	 */
+	public Connector createConnector() {
+		SslSocketConnector connector = new SslSocketConnector() {
+			@Override
+			protected SSLServerSocketFactory createFactory() throws Exception
+			{
+				return getContext().getServerSocketFactory();
+			}
+
+			@Override
+			protected ServerSocket newServerSocket(String host, int port,
+			        int backlog) throws IOException
+			{
+				SSLServerSocket socket = (SSLServerSocket) super
+				        .newServerSocket( host, port, backlog );
+				TlsSettings.this.configure( socket );
+				return socket;
+			}
+		};
+		connector.setKeystore( this.keystore.getAbsolutePath() );
+		connector.setPassword( this.password );
+		return connector;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder description = new StringBuilder( "keystore=" )
+		        .append( this.keystore );
+		if ( this.protocols != null ) {
+			description.append( ", protocols=" ).append(
+			        Arrays.asList( this.protocols ) );
+		}
+		if ( this.cipherSuites != null ) {
+			description.append( ", cipher-suites=" ).append(
+			        Arrays.asList( this.cipherSuites ) );
+		}
+		if ( this.sessionCacheSize >= 0 ) {
+			description.append( ", session-cache=" ).append(
+			        this.sessionCacheSize );
+		}
+		if ( this.sessionTimeout >= 0 ) {
+			description.append( ", session-timeout=" ).append(
+			        this.sessionTimeout );
+		}
+		description.append( ", session-tickets=" ).append(
+		        this.sessionTickets );
+		return description.append( ", alpn=" ).append( this.alpn ).toString();
+	}
+
+	private void configure(SSLEngine engine) {
+		engine.setUseClientMode( false );
+		if ( this.protocols != null ) {
+			engine.setEnabledProtocols( this.protocols );
+		}
+		if ( this.cipherSuites != null ) {
+			engine.setEnabledCipherSuites( this.cipherSuites );
+		}
+		if ( this.alpn ) {
+			SSLParameters parameters = engine.getSSLParameters();
+			if ( setApplicationProtocols( parameters ) ) {
+				engine.setSSLParameters( parameters );
+			}
+		}
+	}
+
+	private void configure(SSLServerSocket socket) {
+		if ( this.protocols != null ) {
+			socket.setEnabledProtocols( this.protocols );
+		}
+		if ( this.cipherSuites != null ) {
+			socket.setEnabledCipherSuites( this.cipherSuites );
+		}
+		if ( this.alpn ) {
+			SSLParameters parameters = socket.getSSLParameters();
+			if ( setApplicationProtocols( parameters ) ) {
+				socket.setSSLParameters( parameters );
+			}
+		}
+	}
+
+	/**
+	 * Sets the ALPN protocols on the parameters, which is looked up
+	 * reflectively since Mocksy is built for JVMs that don't have it.
+	 * 
+	 * @return false if ALPN couldn't be turned on
+	 */
+	private static boolean setApplicationProtocols(SSLParameters parameters) {
+		try {
+			SET_APPLICATION_PROTOCOLS.invoke( parameters,
+			        (Object) ALPN_PROTOCOLS );
+			return true;
+		}
+		catch ( Exception e ) {
+			logger.log( Level.WARNING, "Cannot turn on ALPN", e );
+			return false;
+		}
+	}
+
+	private static Method findAlpnMethod() {
+		try {
+			return SSLParameters.class.getMethod( "setApplicationProtocols",
+			        String[].class );
+		}
+		catch ( NoSuchMethodException e ) {
+			return null;
+		}
+	}
+}
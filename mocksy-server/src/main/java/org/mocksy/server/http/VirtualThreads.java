@@ -0,0 +1,81 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates executors that run each task on a virtual thread of its own, on
+ * JVMs that have them, i.e. Java 21 and later.  Mocksy is built to run on
+ * much older JVMs, so the executor is looked up reflectively.
+ * 
+ * Virtual threads are cheap enough that a request can block, e.g. on a
+ * proxied server or a big request body, without holding up any others;
+ * the number of requests in progress is no longer capped by the size of a
+ * thread pool.  The request path doesn't hold monitors while it blocks, so
+ * the virtual threads don't get pinned to their carrier threads.
+ */
+final class VirtualThreads {
+	private static final Logger logger = Logger.getLogger( VirtualThreads.class
+	        .getName() );
+	private static final Method NEW_EXECUTOR = findExecutorMethod();
+
+	private VirtualThreads() {
+		// static methods only
+	}
+
+	/**
+	 * Returns whether this JVM has virtual threads.
+	 * 
+	 * @return true, on Java 21 or later
+	 */
+	static boolean isAvailable() {
+		return NEW_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for each task.
+	 * 
+	 * @return the executor, or null if this JVM doesn't have virtual threads
+	 */
+	static ExecutorService newExecutor() {
+		if ( NEW_EXECUTOR == null ) {
+			logger.warning( "Virtual threads need Java 21 or later, "
+			        + "using a thread pool instead" );
+			return null;
+		}
+		try {
+			return (ExecutorService) NEW_EXECUTOR.invoke( null );
+		}
+		catch ( Exception e ) {
+			logger.log( Level.WARNING, "Cannot create virtual threads", e );
+			return null;
+		}
+	}
+
+	private static Method findExecutorMethod() {
+		try {
+			return Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+		}
+		catch ( NoSuchMethodException e ) {
+			return null;
+		}
+	}
+}
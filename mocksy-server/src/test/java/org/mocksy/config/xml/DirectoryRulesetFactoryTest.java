@@ -0,0 +1,131 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.config.xml.RulesetTestSupport.deleteDir;
+import static org.mocksy.config.xml.RulesetTestSupport.write;
+import java.io.File;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.config.RulesetFactoryFactory;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.server.http.MockHttpRequest;
+
+public class DirectoryRulesetFactoryTest {
+	private static final File DIR = new File( "target/ruleset-dir-test" );
+
+	@Before
+	public void setUp() throws Exception {
+		deleteDir( DIR );
+		DIR.mkdirs();
+		write( DIR, "00-base.xml", "<rules><rule file=\"base.txt\">"
+		        + "<match>.*/orders</match></rule>"
+		        + "<default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "base.txt", "base" );
+		write( DIR, "default.txt", "default" );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		deleteDir( DIR );
+	}
+
+	@Test
+	public void testMergesTheRulesetFiles() throws Exception {
+		// no default-rule, and sorts after 00-base.xml
+		write( DIR, "10-orders.xml", "<rules><rule file=\"orders.txt\">"
+		        + "<match>.*/orders.*</match></rule></rules>" );
+		write( DIR, "orders.txt", "orders" );
+		write( DIR, "users/users.xml", "<rules><rule ruleset=\"nested.xml\">"
+		        + "<match>.*/users/nested/.*</match></rule>"
+		        + "<rule file=\"users.txt\"><match>.*/users</match></rule>"
+		        + "</rules>" );
+		write( DIR, "users/users.txt", "users" );
+		write( DIR, "users/nested.xml", "<rules><rule file=\"nested.txt\">"
+		        + "<match>.*/users/.*</match></rule>"
+		        + "<default-rule file=\"nested.txt\"/></rules>" );
+		write( DIR, "users/nested.txt", "nested" );
+		// a response file, not a ruleset
+		write( DIR, "responses/order.xml", "<order>1</order>" );
+		write( DIR, "drafts/wip.xml", "<rules><rule file=\"../base.txt\">"
+		        + "<match>.*/wip</match></rule></rules>" );
+
+		DirectoryRulesetFactory factory = new DirectoryRulesetFactory( DIR,
+		        null, Arrays.asList( "drafts/**" ) );
+		Ruleset rules = factory.getRuleset();
+		// the nested ruleset's rule isn't merged in as well
+		Assert.assertEquals( 4, rules.getRules().size() );
+		Assert.assertEquals( "base", process( rules, "/orders" ) );
+		Assert.assertEquals( "orders", process( rules, "/orders/2" ) );
+		Assert.assertEquals( "users", process( rules, "/users" ) );
+		Assert.assertEquals( "nested", process( rules, "/users/nested/a" ) );
+		Assert.assertEquals( "default", process( rules, "/wip" ) );
+		Assert.assertEquals( "default", process( rules, "/other" ) );
+	}
+
+	@Test
+	public void testPicksUpAddedAndRemovedFiles() throws Exception {
+		DirectoryRulesetFactory factory = (DirectoryRulesetFactory) RulesetFactoryFactory
+		        .getRulesetFactory( DIR.getPath() );
+		Ruleset rules = factory.getRuleset();
+		Assert.assertEquals( "default", process( rules, "/new" ) );
+
+		write( DIR, "20-new.xml", "<rules><rule file=\"new.txt\">"
+		        + "<match>.*/new</match></rule></rules>" );
+		write( DIR, "new.txt", "new" );
+		Thread.sleep( 1100 );
+		Assert.assertEquals( "new", process( rules, "/new" ) );
+		Assert.assertEquals( 2, rules.getRules().size() );
+
+		new File( DIR, "20-new.xml" ).delete();
+		Thread.sleep( 1100 );
+		Assert.assertEquals( "default", process( rules, "/new" ) );
+		Assert.assertEquals( 1, rules.getRules().size() );
+	}
+
+	@Test
+	public void testGlobs() throws Exception {
+		assertMatches( "**/*.xml", "a.xml", true );
+		assertMatches( "**/*.xml", "a/b/c.xml", true );
+		assertMatches( "**/*.xml", "a.xml.snapshot", false );
+		assertMatches( "*.xml", "a/b.xml", true );
+		assertMatches( "drafts/**", "drafts/a/b.xml", true );
+		assertMatches( "drafts/**", "other/drafts.xml", false );
+		assertMatches( "mocks/*.xml", "mocks/a/b.xml", false );
+		assertMatches( "?.xml", "a.xml", true );
+		assertMatches( "?.xml", "ab.xml", false );
+	}
+
+	private static void assertMatches(String glob, String path,
+	        boolean matches)
+	{
+		Pattern pattern = DirectoryRulesetFactory.toPattern( glob );
+		Assert.assertEquals( glob + " ~ " + path, matches, pattern.matcher(
+		        path ).matches() );
+	}
+
+	private static String process(Ruleset rules, String path)
+	        throws Exception
+	{
+		return rules.process( new MockHttpRequest( "http://localhost" + path ) )
+		        .toString();
+	}
+}
@@ -0,0 +1,62 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class InternerTest {
+
+	@Test
+	public void testEqualValuesAreShared() throws Exception {
+		String header = Interner.string( new String( "Content-Type" ) );
+		Assert.assertSame( header, Interner.string( new String(
+		        "Content-Type" ) ) );
+		Assert.assertNull( Interner.string( null ) );
+
+		byte[] content = Interner.content( "<response/>".getBytes() );
+		Assert.assertSame( content, Interner.content( "<response/>"
+		        .getBytes() ) );
+		Assert.assertNotSame( content, Interner.content( "<other/>"
+		        .getBytes() ) );
+
+		Pattern pattern = Interner.pattern( new String( ".*/orders/.*" ) );
+		Assert.assertSame( pattern, Interner.pattern( new String(
+		        ".*/orders/.*" ) ) );
+		Assert.assertNotSame( pattern, Interner.pattern( ".*/users/.*" ) );
+	}
+
+	@Test
+	public void testUnusedValuesAreLetGo() throws Exception {
+		long before = Interner.getMetrics().get( "contents.shared" )
+		        .longValue();
+		for ( int i = 0; i < 10000; i++ ) {
+			Interner.content( new byte[1000 + i] );
+		}
+		for ( int i = 0; i < 10 && Interner.getMetrics().get(
+		        "contents.shared" ).longValue() > before + 100; i++ )
+		{
+			System.gc();
+			Thread.sleep( 50 );
+			// entries are cleared out as new values come in
+			Interner.content( new byte[1] );
+		}
+		Assert.assertTrue( Interner.getMetrics().get( "contents.shared" )
+		        .longValue() <= before + 100 );
+	}
+}
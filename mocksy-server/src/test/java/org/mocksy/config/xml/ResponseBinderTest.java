@@ -0,0 +1,127 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.filter.ResponseFilter;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.server.http.HttpResponse;
+
+public class ResponseBinderTest {
+
+	@Test
+	public void testOptions() throws Exception {
+		ResponseBinder binder = ResponseBinder.get( CustomResponse.class );
+		Assert.assertSame( binder, ResponseBinder.get( CustomResponse.class ) );
+		CustomResponse response = (CustomResponse) binder.create( "custom",
+		        new ByteArrayInputStream( "body".getBytes() ),
+		        new ArrayList<ResponseFilter>() );
+		Assert.assertEquals( "custom", response.getId() );
+		Assert.assertEquals( "body", response.toString() );
+
+		Map<String, String> options = new HashMap<String, String>();
+		// Response's setter
+		options.put( "delay", " 100 " );
+		// HttpResponse's setter, by either name
+		options.put( "status-code", "404" );
+		// fields, without setters
+		options.put( "retries", "3" );
+		options.put( "cached", "true" );
+		options.put( "label", "hello" );
+		binder.apply( response, options );
+		Assert.assertEquals( 100, response.getDelay() );
+		Assert.assertEquals( 404, response.getStatusCode() );
+		Assert.assertEquals( 3L, response.retries );
+		Assert.assertTrue( response.cached );
+		Assert.assertEquals( "hello", response.label );
+
+		options.clear();
+		options.put( "statusCode", "500" );
+		binder.apply( response, options );
+		Assert.assertEquals( 500, response.getStatusCode() );
+	}
+
+	@Test
+	public void testBadOptions() throws Exception {
+		ResponseBinder binder = ResponseBinder.get( CustomResponse.class );
+		CustomResponse response = new CustomResponse( "custom",
+		        new ByteArrayInputStream( new byte[0] ), null );
+		Map<String, String> options = new HashMap<String, String>();
+		options.put( "missing", "1" );
+		try {
+			binder.apply( response, options );
+			Assert.fail( "there's no such option" );
+		}
+		catch ( IOException e ) {
+			Assert.assertTrue( e.getMessage().contains( "missing" ) );
+		}
+		options.clear();
+		options.put( "retries", "three" );
+		try {
+			binder.apply( response, options );
+			Assert.fail( "three isn't a number" );
+		}
+		catch ( IOException e ) {
+			Assert.assertTrue( e.getCause() instanceof NumberFormatException );
+		}
+	}
+
+	@Test
+	public void testOptionsInRuleset() throws Exception {
+		File dir = new File( "target/response-binder-test" );
+		dir.mkdirs();
+		File rules = new File( dir, "rules.xml" );
+		FileWriter writer = new FileWriter( rules );
+		writer.write( "<rules><default-rule><response class=\""
+		        + HttpResponse.class.getName() + "\">"
+		        + "<source>rules.xml</source><options>"
+		        + "<delay>100</delay><statusCode>400</statusCode>"
+		        + "</options></response></default-rule></rules>" );
+		writer.close();
+		Ruleset ruleset = new XmlRulesetFactory( rules ).getRuleset();
+		HttpResponse response = (HttpResponse) ( (ResponseRule) ruleset
+		        .getDefaultRule() ).getResponse();
+		Assert.assertEquals( 100, response.getDelay() );
+		Assert.assertEquals( 400, response.getStatusCode() );
+		rules.delete();
+		dir.delete();
+	}
+
+	public static class CustomResponse extends HttpResponse {
+		private long retries;
+		private boolean cached;
+		private String label;
+
+		public CustomResponse(String id, InputStream content,
+		        List<ResponseFilter> filters)
+		{
+			super( id, content, filters );
+		}
+	}
+}
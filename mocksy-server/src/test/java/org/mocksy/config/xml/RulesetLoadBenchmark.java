@@ -0,0 +1,122 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.config.xml.RulesetTestSupport.write;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Rule;
+import org.mocksy.rules.Ruleset;
+
+/**
+ * Measures how long a large ruleset takes to load, and how much memory the
+ * loaded Ruleset holds on to.  The ruleset is generated under target/,
+ * with each rule serving its own small response file.
+ *
+ * This isn't run as part of the build; run it by hand with
+ * <code>java org.mocksy.config.xml.RulesetLoadBenchmark [rules] [runs] [snapshot] [nointern]</code>
+ * on the test classpath; with "snapshot", every run after the first loads
+ * the ruleset from its compiled snapshot, and with "nointern", repeated
+ * patterns, names and response content aren't shared, to show what sharing
+ * them saves.
+ */
+public class RulesetLoadBenchmark {
+	private static final File DIR = new File( "target/ruleset-load-benchmark" );
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt( args[0] ) : 50000;
+		int runs = args.length > 1 ? Integer.parseInt( args[1] ) : 5;
+		List<String> flags = Arrays.asList( args ).subList(
+		        Math.min( 2, args.length ), args.length );
+		XmlRulesetFactory.setSnapshots( flags.contains( "snapshot" ) );
+		Interner.setEnabled( !flags.contains( "nointern" ) );
+
+		File rulesFile = generate( count );
+		System.out.println( count + " rules, " + rulesFile.length() / 1024
+		        + " KB" );
+		long before = usedMemory();
+		Ruleset rules = null;
+		for ( int i = 0; i < runs; i++ ) {
+			long start = System.currentTimeMillis();
+			rules = new XmlRulesetFactory( rulesFile ).getRuleset();
+			long elapsed = System.currentTimeMillis() - start;
+			long after = usedMemory();
+			System.out.println( "run " + ( i + 1 ) + ": " + elapsed + " ms, "
+			        + ( after - before ) / 1024 + " KB held by "
+			        + rules.getRules().size() + " rules" );
+			// read every response, as if each rule had been matched once
+			for ( Rule rule : rules.getRules() ) {
+				( (ResponseRule) rule ).getResponse().toByteArray( false );
+			}
+			long read = usedMemory();
+			System.out.println( "  " + ( read - before ) / 1024
+			        + " KB held once all " + rules.getRules().size()
+			        + " responses have been read" );
+			// let go of this run's rules before the next one is measured
+			rules = null;
+		}
+		System.out.println( "shared: " + Interner.getMetrics() );
+		System.exit( 0 );
+	}
+
+	private static File generate(int count) throws Exception {
+		DIR.mkdirs();
+		File rulesFile = new File( DIR, "rules.xml" );
+		RulesetSnapshot.getFile( rulesFile ).delete();
+		Writer writer = new BufferedWriter( new FileWriter( rulesFile ) );
+		try {
+			writer.write( "<rules>\n" );
+			for ( int i = 0; i < count; i++ ) {
+				writer.write( "\t<rule file=\"responses/" + ( i % 100 )
+				        + ".xml\" delay=\"" + ( i % 10 ) + "\">\n" );
+				writer.write( "\t\t<match>.*/service/" + i + "</match>\n" );
+				writer.write( "\t\t<match header=\"SOAPAction\">op" + i
+				        + "</match>\n" );
+				writer.write( "\t\t<match header=\"Content-Type\">"
+				        + ( i % 2 == 0 ? "text/xml" : "application/json" )
+				        + "</match>\n" );
+				writer.write( "\t</rule>\n" );
+			}
+			writer.write( "\t<default-rule file=\"responses/default.xml\"/>\n" );
+			writer.write( "</rules>\n" );
+		}
+		finally {
+			writer.close();
+		}
+		// the rules share a hundred response files between them
+		for ( int i = 0; i < 100; i++ ) {
+			write( DIR, "responses/" + i + ".xml", "<response id=\"" + i
+			        + "\"/>" );
+		}
+		write( DIR, "responses/default.xml", "<default/>" );
+		return rulesFile;
+	}
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for ( int i = 0; i < 3; i++ ) {
+			System.gc();
+			Thread.sleep( 100 );
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
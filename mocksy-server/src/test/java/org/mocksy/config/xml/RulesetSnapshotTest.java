@@ -0,0 +1,105 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.config.xml.RulesetTestSupport.deleteDir;
+import static org.mocksy.config.xml.RulesetTestSupport.write;
+import java.io.File;
+import java.io.FileWriter;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.server.http.MockHttpRequest;
+
+public class RulesetSnapshotTest {
+	private static final File DIR = new File( "target/ruleset-snapshot-test" );
+	private static final File RULES = new File( DIR, "rules.xml" );
+
+	@Before
+	public void setUp() throws Exception {
+		deleteDir( DIR );
+		new File( DIR, "sub" ).mkdirs();
+		write( DIR, "rules.xml", "<rules><rule file=\"a.txt\" delay=\"0\">"
+		        + "<match>.*/a</match><not-match header=\"x-skip\">.*</not-match>"
+		        + "</rule><rule ruleset=\"sub/rules.xml\"><match>.*/sub/.*"
+		        + "</match></rule><default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "sub/rules.xml",
+		        "<rules><default-rule file=\"b.txt\"/></rules>" );
+		write( DIR, "a.txt", "aaaa" );
+		write( DIR, "sub/b.txt", "bbbb" );
+		write( DIR, "default.txt", "default" );
+		XmlRulesetFactory.setSnapshots( true );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		XmlRulesetFactory.setSnapshots( false );
+		deleteDir( DIR );
+	}
+
+	@Test
+	public void testLoadFromSnapshot() throws Exception {
+		assertRules( new XmlRulesetFactory( RULES ).getRuleset(), "aaaa" );
+		Assert.assertTrue( RulesetSnapshot.getFile( RULES ).isFile() );
+		Assert.assertTrue( new File( DIR, "sub/rules.xml.snapshot" ).isFile() );
+
+		// same size and age, so the snapshot's content is used
+		File a = new File( DIR, "a.txt" );
+		long lastModified = a.lastModified();
+		write( DIR, "a.txt", "cccc" );
+		a.setLastModified( lastModified );
+		assertRules( new XmlRulesetFactory( RULES ).getRuleset(), "aaaa" );
+
+		// and now it's out of date
+		write( DIR, "a.txt", "ccccc" );
+		assertRules( new XmlRulesetFactory( RULES ).getRuleset(), "ccccc" );
+		assertRules( new XmlRulesetFactory( RULES ).getRuleset(), "ccccc" );
+	}
+
+	@Test
+	public void testChangedRuleset() throws Exception {
+		new XmlRulesetFactory( RULES );
+		write( DIR, "rules.xml",
+		        "<rules><default-rule file=\"a.txt\"/></rules>" );
+		Ruleset rules = new XmlRulesetFactory( RULES ).getRuleset();
+		Assert.assertEquals( 0, rules.getRules().size() );
+		Assert.assertEquals( "aaaa", rules.process(
+		        new MockHttpRequest( "http://localhost/other" ) ).toString() );
+	}
+
+	@Test
+	public void testBrokenSnapshot() throws Exception {
+		new XmlRulesetFactory( RULES );
+		FileWriter writer = new FileWriter( RulesetSnapshot.getFile( RULES ) );
+		writer.write( "not a snapshot" );
+		writer.close();
+		assertRules( new XmlRulesetFactory( RULES ).getRuleset(), "aaaa" );
+	}
+
+	private static void assertRules(Ruleset rules, String a) throws Exception {
+		Assert.assertEquals( 2, rules.getRules().size() );
+		Assert.assertEquals( a, rules.process(
+		        new MockHttpRequest( "http://localhost/a" ) ).toString() );
+		MockHttpRequest skipped = new MockHttpRequest( "http://localhost/a" );
+		skipped.addHeader( "x-skip", "yes" );
+		Assert.assertEquals( "default", rules.process( skipped ).toString() );
+		Assert.assertEquals( "bbbb", rules.process(
+		        new MockHttpRequest( "http://localhost/sub/b" ) ).toString() );
+	}
+}
@@ -0,0 +1,60 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * What the ruleset loading tests have in common: writing out the files of
+ * a ruleset under a scratch directory, and clearing the directory away.
+ */
+class RulesetTestSupport {
+	private RulesetTestSupport() {
+	}
+
+	/**
+	 * Writes the file with the given path under the directory, creating
+	 * any directories it's in.
+	 */
+	static void write(File dir, String name, String content)
+	        throws IOException
+	{
+		File file = new File( dir, name );
+		file.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter( file );
+		try {
+			writer.write( content );
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Deletes the directory and everything under it.
+	 */
+	static void deleteDir(File dir) {
+		if ( dir.isDirectory() ) {
+			for ( File file : dir.listFiles() ) {
+				deleteDir( file );
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,200 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.FileNotFoundException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.Matcher;
+import org.mocksy.rules.Rule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.server.http.HttpRequest;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+public class UrlXmlSourceTest {
+	private MocksyServer server;
+	private ConfigRule config;
+
+	@Before
+	public void setUp() throws Exception {
+		UrlXmlSource.setRefreshInterval( 100 );
+		this.config = new ConfigRule();
+		this.config.files.put( "/rules.xml", "<rules><rule file=\"a.txt\">"
+		        + "<match>.*/a</match></rule>"
+		        + "<default-rule file=\"default.txt\"/></rules>" );
+		this.config.files.put( "/a.txt", "a" );
+		this.config.files.put( "/default.txt", "default" );
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( this.config );
+		this.server = new MocksyServer( rules, 0 );
+		this.server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.server.stop();
+		UrlXmlSource.setRefreshInterval( 30000 );
+	}
+
+	@Test
+	public void testUnchanged() throws Exception {
+		Ruleset rules = this.load();
+		Rule rule = rules.getRules().get( 0 );
+		Thread.sleep( 1000 );
+		// polled, but nothing's changed, so nothing's reloaded
+		Assert.assertTrue( this.config.notModified.get() > 0 );
+		Assert.assertEquals( "a", fetch( rules, "/a" ) );
+		Assert.assertSame( rule, rules.getRules().get( 0 ) );
+	}
+
+	@Test
+	public void testChangedResponse() throws Exception {
+		Ruleset rules = this.load();
+		this.config.files.put( "/a.txt", "changed" );
+		Assert.assertEquals( "changed", this.waitFor( rules, "/a", "changed" ) );
+	}
+
+	@Test
+	public void testChangedRuleset() throws Exception {
+		Ruleset rules = this.load();
+		this.config.files.put( "/rules.xml", "<rules><rule file=\"b.txt\">"
+		        + "<match>.*/b</match></rule>"
+		        + "<default-rule file=\"default.txt\"/></rules>" );
+		this.config.files.put( "/b.txt", "b" );
+		Assert.assertEquals( "b", this.waitFor( rules, "/b", "b" ) );
+	}
+
+	@Test
+	public void testMissingFile() throws Exception {
+		UrlXmlSource source = new UrlXmlSource( this.url( "/missing.xml" ) );
+		try {
+			source.openStream();
+			Assert.fail( "Opened a ruleset that isn't there" );
+		}
+		catch ( FileNotFoundException e ) {
+			// expected
+		}
+		try {
+			source.openRelativeURL( this.url( "/missing.txt" ) );
+			Assert.fail( "Opened a file that isn't there" );
+		}
+		catch ( FileNotFoundException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFileAddedLater() throws Exception {
+		UrlXmlSource source = new UrlXmlSource( this.url( "/rules.xml" ) );
+		source.openStream().close();
+		URL later = this.url( "/later.txt" );
+		long stamp = source.getStamp( later );
+		// polled while it isn't there, which isn't a change
+		Thread.sleep( 500 );
+		Assert.assertEquals( stamp, source.getStamp( later ) );
+		this.config.files.put( "/later.txt", "later" );
+		for ( int i = 0; i < 50 && source.getStamp( later ) == stamp; i++ ) {
+			Thread.sleep( 100 );
+		}
+		Assert.assertTrue( source.getStamp( later ) != stamp );
+		Assert.assertEquals( 'l', source.openRelativeURL( later ).read() );
+	}
+
+	private URL url(String path) throws Exception {
+		return new URL( "http://127.0.0.1:" + this.server.getPort() + path );
+	}
+
+	private Ruleset load() throws Exception {
+		return new XmlRulesetFactory( new URL( "http://127.0.0.1:"
+		        + this.server.getPort() + "/rules.xml" ) ).getRuleset();
+	}
+
+	private String waitFor(Ruleset rules, String path, String expected)
+	        throws Exception
+	{
+		String body = null;
+		for ( int i = 0; i < 50; i++ ) {
+			body = fetch( rules, path );
+			if ( body.equals( expected ) ) {
+				break;
+			}
+			Thread.sleep( 100 );
+		}
+		return body;
+	}
+
+	private static String fetch(Ruleset rules, String path) throws Exception {
+		return rules.process( new MockHttpRequest( "http://localhost" + path ) )
+		        .toString();
+	}
+
+	/**
+	 * Serves config files, with ETags, the way a config server would.
+	 */
+	private static class ConfigRule implements Rule {
+		private final Map<String, String> files = new ConcurrentHashMap<String, String>();
+		private final AtomicInteger notModified = new AtomicInteger();
+		private final Collection<Matcher> matchers = new ArrayList<Matcher>();
+
+		public void addMatcher(Matcher matcher) {
+			this.matchers.add( matcher );
+		}
+
+		public Collection<Matcher> getMatchers() {
+			return this.matchers;
+		}
+
+		public boolean matches(Request request) {
+			return true;
+		}
+
+		public Response process(Request request) {
+			String path = ( (HttpRequest) request ).getServletRequest()
+			        .getPathInfo();
+			String content = this.files.get( path );
+			if ( content == null ) {
+				HttpResponse response = new HttpResponse( "missing", "" );
+				response.setStatusCode( 404 );
+				return response;
+			}
+			String etag = "\"" + content.hashCode() + "\"";
+			if ( etag.equals( ( (HttpRequest) request ).getServletRequest()
+			        .getHeader( "If-None-Match" ) ) )
+			{
+				this.notModified.incrementAndGet();
+				HttpResponse response = new HttpResponse( "config", "" );
+				response.setStatusCode( 304 );
+				return response;
+			}
+			HttpResponse response = new HttpResponse( "config", content );
+			response.setHeader( "ETag", etag );
+			return response;
+		}
+	}
+}
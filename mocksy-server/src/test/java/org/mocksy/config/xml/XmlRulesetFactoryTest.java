@@ -0,0 +1,266 @@
+package org.mocksy.config.xml;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.config.xml.RulesetTestSupport.deleteDir;
+import static org.mocksy.config.xml.RulesetTestSupport.write;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.rules.Rule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.rules.RulesetRule;
+import org.mocksy.rules.http.HttpMatcher;
+import org.mocksy.server.http.MockHttpRequest;
+
+public class XmlRulesetFactoryTest {
+	private static final File DIR = new File( "target/ruleset-load-test" );
+	private static final int NESTED = 30;
+
+	@Before
+	public void setUp() throws Exception {
+		deleteDir( DIR );
+		DIR.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		deleteDir( DIR );
+		XmlRulesetFactory.setLazyLoading( false );
+	}
+
+	@Test
+	public void testNestedRulesetsKeepTheirOrder() throws Exception {
+		StringBuilder root = new StringBuilder( "<rules>" );
+		for ( int i = 0; i < NESTED; i++ ) {
+			root.append( "<rule ruleset=\"sub" + i + ".xml\"><match>.*/sub" + i
+			        + "/.*</match></rule>" );
+			write( DIR, "sub" + i + ".xml", "<rules><rule file=\"a" + i
+			        + ".txt\"><match>.*/a</match></rule>"
+			        + "<default-rule file=\"b" + i + ".txt\"/></rules>" );
+			write( DIR, "a" + i + ".txt", "a" + i );
+			write( DIR, "b" + i + ".txt", "b" + i );
+		}
+		root.append( "<default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "rules.xml", root.toString() );
+		write( DIR, "default.txt", "default" );
+
+		XmlRulesetFactory factory = new XmlRulesetFactory( new File( DIR,
+		        "rules.xml" ) );
+		Ruleset rules = factory.getRuleset();
+		Assert.assertEquals( NESTED, rules.getRules().size() );
+		for ( int i = 0; i < NESTED; i++ ) {
+			RulesetRule rule = (RulesetRule) rules.getRules().get( i );
+			Assert.assertEquals( "b" + i, rule.getRuleset().getDefaultRule()
+			        .process( null ).toString() );
+		}
+		Assert.assertEquals( "a7", rules.process(
+		        new MockHttpRequest( "http://localhost/sub7/a" ) ).toString() );
+		Assert.assertEquals( "b12", rules.process(
+		        new MockHttpRequest( "http://localhost/sub12/b" ) ).toString() );
+		Assert.assertEquals( "default", rules.process(
+		        new MockHttpRequest( "http://localhost/other" ) ).toString() );
+		Assert.assertTrue( factory.getLoadTime() >= 0 );
+	}
+
+	@Test
+	public void testMissingFileFailsTheLoad() throws Exception {
+		write( DIR, "rules.xml", "<rules><rule ruleset=\"sub.xml\">"
+		        + "<match>.*</match></rule>"
+		        + "<default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "default.txt", "default" );
+		write( DIR, "sub.xml",
+		        "<rules><default-rule file=\"missing.txt\"/></rules>" );
+		try {
+			new XmlRulesetFactory( new File( DIR, "rules.xml" ) );
+			Assert.fail( "The missing file should have been noticed" );
+		}
+		catch ( IOException e ) {
+			Assert.assertTrue( e.getMessage().contains( "missing.txt" ) );
+		}
+	}
+
+	@Test
+	public void testLazyLoading() throws Exception {
+		write( DIR, "rules.xml",
+		        "<rules lazy=\"true\"><rule file=\"later.txt\">"
+		        + "<match>.*/later</match></rule>"
+		        + "<default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "default.txt", "default" );
+		// the file doesn't have to be there until it's needed
+		Ruleset rules = new XmlRulesetFactory( new File( DIR, "rules.xml" ) )
+		        .getRuleset();
+		write( DIR, "later.txt", "written later" );
+		Assert.assertEquals( "written later", rules.process(
+		        new MockHttpRequest( "http://localhost/later" ) ).toString() );
+	}
+
+	@Test
+	public void testLazyLoadingDefault() throws Exception {
+		XmlRulesetFactory.setLazyLoading( true );
+		write( DIR, "rules.xml",
+		        "<rules><default-rule file=\"default.txt\"/></rules>" );
+		Ruleset rules = new XmlRulesetFactory( new File( DIR, "rules.xml" ) )
+		        .getRuleset();
+		write( DIR, "default.txt", "default" );
+		Assert.assertEquals( "default", rules.process(
+		        new MockHttpRequest( "http://localhost/" ) ).toString() );
+
+		// but the ruleset can say otherwise
+		write( DIR, "rules.xml", "<rules lazy=\"false\">"
+		        + "<default-rule file=\"missing.txt\"/></rules>" );
+		try {
+			new XmlRulesetFactory( new File( DIR, "rules.xml" ) );
+			Assert.fail( "The missing file should have been noticed" );
+		}
+		catch ( IOException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOnlyTheRulesOwnElementsAreRead() throws Exception {
+		write( DIR, "rules.xml", "<?xml version=\"1.0\"?>\n<!-- comment -->\n"
+		        + "<rules>\n  <!-- the filter's match isn't a matcher -->\n"
+		        + "  <rule file=\"a.txt\"><match><![CDATA[.*/a]]></match>"
+		        + "<filter class=\"org.mocksy.filter.PropertyFilter\">"
+		        + "<match>world</match></filter></rule>\n"
+		        + "  <default-rule file=\"default.txt\"/>\n</rules>" );
+		write( DIR, "a.txt", "hello ${match}" );
+		write( DIR, "default.txt", "default" );
+		Ruleset rules = new XmlRulesetFactory( new File( DIR, "rules.xml" ) )
+		        .getRuleset();
+		Assert.assertEquals( 1, rules.getRules().get( 0 ).getMatchers()
+		        .size() );
+		Assert.assertEquals( "hello world", rules.process(
+		        new MockHttpRequest( "http://localhost/a" ) ).toString( true ) );
+	}
+
+	@Test
+	public void testReloadReusesUnchangedRules() throws Exception {
+		write( DIR, "rules.xml", "<rules><rule id=\"a\" file=\"a.txt\">"
+		        + "<match>.*/a</match></rule><rule ruleset=\"sub.xml\">"
+		        + "<match>.*/sub/.*</match></rule>"
+		        + "<default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "sub.xml",
+		        "<rules><default-rule file=\"b.txt\"/></rules>" );
+		write( DIR, "a.txt", "a" );
+		write( DIR, "b.txt", "b" );
+		write( DIR, "default.txt", "default" );
+		XmlRulesetFactory factory = new XmlRulesetFactory( new File( DIR,
+		        "rules.xml" ) );
+		Ruleset rules = factory.getRuleset();
+		List<Rule> before = new ArrayList<Rule>( rules.getRules() );
+		Rule defaultRule = rules.getDefaultRule();
+
+		// a new rule at the top
+		write( DIR, "rules.xml",
+		        "<rules><rule file=\"c.txt\"><match>.*/c</match>"
+		        + "</rule><rule id=\"a\" file=\"a.txt\"><match>.*/a</match>"
+		        + "</rule><rule ruleset=\"sub.xml\"><match>.*/sub/.*</match>"
+		        + "</rule><default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "c.txt", "c" );
+		touch( "rules.xml" );
+		factory.checkForUpdates();
+		Assert.assertEquals( 3, rules.getRules().size() );
+		Assert.assertSame( before.get( 0 ), rules.getRules().get( 1 ) );
+		Assert.assertSame( before.get( 1 ), rules.getRules().get( 2 ) );
+		Assert.assertSame( defaultRule, rules.getDefaultRule() );
+		Assert.assertEquals( "c", rules.process(
+		        new MockHttpRequest( "http://localhost/c" ) ).toString() );
+
+		// a changed response file only rebuilds the rule that serves it
+		Thread.sleep( 1100 );
+		write( DIR, "a.txt", "changed" );
+		touch( "a.txt" );
+		Assert.assertEquals( "changed", rules.process(
+		        new MockHttpRequest( "http://localhost/a" ) ).toString() );
+		Assert.assertNotSame( before.get( 0 ), rules.getRules().get( 1 ) );
+		Assert.assertSame( before.get( 1 ), rules.getRules().get( 2 ) );
+	}
+
+	@Test
+	public void testFailedReloadKeepsTheOldRules() throws Exception {
+		write( DIR, "rules.xml",
+		        "<rules><rule file=\"a.txt\"><match>.*/a</match>"
+		        + "</rule><default-rule file=\"default.txt\"/></rules>" );
+		write( DIR, "a.txt", "a" );
+		write( DIR, "default.txt", "default" );
+		XmlRulesetFactory factory = new XmlRulesetFactory( new File( DIR,
+		        "rules.xml" ) );
+		write( DIR, "rules.xml", "<rules><rule file=\"missing.txt\">"
+		        + "<match>.*/a</match></rule>"
+		        + "<default-rule file=\"default.txt\"/></rules>" );
+		touch( "rules.xml" );
+		try {
+			factory.checkForUpdates();
+			Assert.fail( "The missing file should have been noticed" );
+		}
+		catch ( IOException e ) {
+			// expected
+		}
+		Assert.assertEquals( "a", factory.getRuleset().process(
+		        new MockHttpRequest( "http://localhost/a" ) ).toString() );
+	}
+
+	/**
+	 * Makes sure the file looks changed, however coarse the file system's
+	 * timestamps are.
+	 */
+	@Test
+	public void testRepeatedPatternsAndContentAreShared() throws Exception {
+		write( DIR, "rules.xml", "<rules>"
+		        + "<rule file=\"a.xml\"><match>.*/a</match>"
+		        + "<match header=\"Content-Type\">text/xml</match></rule>"
+		        + "<rule file=\"b.xml\"><match>.*/b</match>"
+		        + "<match header=\"Content-Type\">text/xml</match></rule>"
+		        + "<rule file=\"a.xml\"><match>.*/c</match></rule>"
+		        + "<default-rule file=\"b.xml\"/></rules>" );
+		// different files, same content
+		write( DIR, "a.xml", "<response/>" );
+		write( DIR, "b.xml", "<response/>" );
+
+		Ruleset rules = new XmlRulesetFactory( new File( DIR, "rules.xml" ) )
+		        .getRuleset();
+		HttpMatcher first = (HttpMatcher) rules.getRules().get( 0 )
+		        .getMatchers().toArray()[1];
+		HttpMatcher second = (HttpMatcher) rules.getRules().get( 1 )
+		        .getMatchers().toArray()[1];
+		Assert.assertSame( first.getPattern(), second.getPattern() );
+		Assert.assertSame( first.getHeader(), second.getHeader() );
+
+		byte[] a = rules.process( new MockHttpRequest( "http://localhost/a" ) )
+		        .toByteArray( false );
+		byte[] b = rules.process( new MockHttpRequest( "http://localhost/b" ) )
+		        .toByteArray( false );
+		byte[] c = rules.process( new MockHttpRequest( "http://localhost/c" ) )
+		        .toByteArray( false );
+		Assert.assertEquals( "<response/>", new String( a ) );
+		Assert.assertSame( a, b );
+		Assert.assertSame( a, c );
+	}
+
+	private static void touch(String name) {
+		File file = new File( DIR, name );
+		file.setLastModified( file.lastModified() + 2000 );
+	}
+}
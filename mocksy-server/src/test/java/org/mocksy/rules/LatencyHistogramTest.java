@@ -0,0 +1,105 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.server.http.MockHttpRequest;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketPrecision() {
+		for ( long value = 0; value < 100000; value += 7 ) {
+			long middle = LatencyHistogram.getMiddle( LatencyHistogram
+			        .getBucket( value ) );
+			assertTrue( value + " came back as " + middle, Math.abs( middle
+			        - value ) <= Math.max( 1, value / 32 ) );
+		}
+		// the biggest latency still has a bucket
+		LatencyHistogram.getBucket( Integer.MAX_VALUE );
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals( 0, histogram.getPercentile( 50 ) );
+		assertNull( histogram.toDistribution() );
+		for ( int i = 1; i <= 1000; i++ ) {
+			histogram.record( i );
+		}
+		assertEquals( 1000, histogram.getCount() );
+		assertEquals( 500.5, histogram.getMean(), 0.0 );
+		assertEquals( 1, histogram.getPercentile( 0 ) );
+		assertEquals( 1000, histogram.getPercentile( 100 ) );
+		assertEquals( 500.0, histogram.getPercentile( 50 ), 500 * 0.04 );
+		assertEquals( 990.0, histogram.getPercentile( 99 ), 990 * 0.04 );
+	}
+
+	@Test
+	public void testParseEmpirical() {
+		Distribution distribution = Distribution
+		        .parse( "empirical:0=10,50=20,100=30" );
+		assertEquals( 20.0, distribution.getMean(), 0.001 );
+		for ( int i = 0; i < 100; i++ ) {
+			long sample = distribution.sample();
+			assertTrue( sample >= 10 && sample <= 30 );
+		}
+		// missing ends are filled in flat
+		assertEquals( 50.0, Distribution.parse( "empirical:50=50" ).getMean(),
+		        0.001 );
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidEmpirical() {
+		Distribution.parse( "empirical:50=20,90=10" );
+	}
+
+	@Test
+	public void testToDistribution() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// mostly quick, with a slow tail
+		for ( int i = 0; i < 980; i++ ) {
+			histogram.record( 20 );
+		}
+		for ( int i = 0; i < 20; i++ ) {
+			histogram.record( 500 );
+		}
+		Distribution distribution = histogram.toDistribution();
+		assertTrue( distribution.toString().startsWith( "empirical:0=20," ) );
+		LatencyHistogram sampled = new LatencyHistogram();
+		for ( int i = 0; i < 10000; i++ ) {
+			sampled.record( distribution.sample() );
+		}
+		assertEquals( 20, sampled.getPercentile( 50 ) );
+		assertTrue( sampled.getPercentile( 99.5 ) >= 400 );
+	}
+
+	@Test
+	public void testResponseRuleDelay() throws Exception {
+		Response response = new Response( "measured", "measured response" );
+		ResponseRule rule = new ResponseRule( response );
+		rule.setDelay( Distribution.parse( "empirical:0=40,100=60" ) );
+		Response delayed = rule.process( new MockHttpRequest(
+		        "http://localhost/" ) );
+		assertTrue( delayed.getDelay() >= 40 && delayed.getDelay() <= 60 );
+		assertEquals( 0, response.getDelay() );
+	}
+}
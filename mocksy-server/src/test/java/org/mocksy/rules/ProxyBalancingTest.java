@@ -0,0 +1,173 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.deadUrl;
+import static org.mocksy.rules.ProxyTestSupport.fetch;
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.rules.http.HttpMatcher;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.UpstreamGroup;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+public class ProxyBalancingTest {
+	private MocksyServer fast;
+	private MocksyServer slow;
+
+	@Before
+	public void setUp() throws Exception {
+		this.fast = backend( "fast", 0 );
+		this.slow = backend( "slow", 200 );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.fast.stop();
+		this.slow.stop();
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+		HttpProxyRule rule = proxy( this.slow, this.fast );
+		Assert.assertEquals( 2, rule.getProxyUrls().size() );
+		Assert.assertEquals( "slow", fetch( rule, "/a" ) );
+		Assert.assertEquals( "fast", fetch( rule, "/a" ) );
+		Assert.assertEquals( "slow", fetch( rule, "/a" ) );
+		Assert.assertEquals( "fast", fetch( rule, "/a" ) );
+		Map<String, Number> metrics = rule.getMetrics();
+		Assert.assertEquals( 2L, metrics.get( "upstream[0].requests" ) );
+		Assert.assertEquals( 2L, metrics.get( "upstream[1].requests" ) );
+	}
+
+	@Test
+	public void testLeastOutstanding() throws Exception {
+		final HttpProxyRule rule = proxy( this.fast, this.slow );
+		rule.setBalance( UpstreamGroup.LEAST_OUTSTANDING );
+		// tie up the fast server with a slow request
+		Thread busy = new Thread() {
+			@Override
+			public void run() {
+				try {
+					fetch( rule, "/linger" );
+				}
+				catch ( Exception e ) {
+					// the assertions below will fail
+				}
+			}
+		};
+		busy.start();
+		for ( int i = 0; i < 100 && rule.getMetrics().get(
+		        "upstream[0].connections.leased" ).intValue() == 0; i++ )
+		{
+			Thread.sleep( 10 );
+		}
+		for ( int i = 0; i < 3; i++ ) {
+			Assert.assertEquals( "slow", fetch( rule, "/a" ) );
+		}
+		busy.join();
+		Assert.assertEquals( 1L, rule.getMetrics()
+		        .get( "upstream[0].requests" ) );
+	}
+
+	@Test
+	public void testEwma() throws Exception {
+		HttpProxyRule rule = proxy( this.slow, this.fast );
+		rule.setBalance( UpstreamGroup.EWMA );
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		counts.put( "slow", 0 );
+		counts.put( "fast", 0 );
+		for ( int i = 0; i < 10; i++ ) {
+			String server = fetch( rule, "/a" );
+			counts.put( server, counts.get( server ) + 1 );
+		}
+		// the slow server is tried, and then left alone
+		Assert.assertEquals( 1, counts.get( "slow" ).intValue() );
+		Assert.assertEquals( 9, counts.get( "fast" ).intValue() );
+	}
+
+	@Test
+	public void testEjection() throws Exception {
+		HttpProxyRule rule = new HttpProxyRule( deadUrl() + ", "
+		        + url( this.fast ) );
+		rule.setMaxFailures( 2 );
+		rule.setEjectTime( 60000 );
+		int unavailable = 0;
+		for ( int i = 0; i < 10; i++ ) {
+			HttpResponse response = (HttpResponse) rule
+			        .process( new MockHttpRequest( "http://localhost/a" ) );
+			if ( response.getStatusCode() == 503 ) {
+				unavailable++;
+			}
+			else {
+				Assert.assertEquals( "fast", response.toString() );
+			}
+		}
+		Assert.assertEquals( 2, unavailable );
+		Map<String, Number> metrics = rule.getMetrics();
+		Assert.assertEquals( 1, metrics.get( "upstream[0].ejected" ) );
+		Assert.assertEquals( 1L, metrics.get( "upstream[0].ejections" ) );
+		Assert.assertEquals( 0, metrics.get( "upstream[1].ejected" ) );
+		Assert.assertEquals( 8L, metrics.get( "upstream[1].requests" ) );
+	}
+
+	@Test
+	public void testAllEjected() throws Exception {
+		String dead = deadUrl();
+		HttpProxyRule rule = new HttpProxyRule( dead + "," + dead + "/other" );
+		rule.setMaxFailures( 1 );
+		for ( int i = 0; i < 4; i++ ) {
+			// still tried, rather than giving up without asking
+			HttpResponse response = (HttpResponse) rule
+			        .process( new MockHttpRequest( "http://localhost/a" ) );
+			Assert.assertEquals( 503, response.getStatusCode() );
+		}
+		Assert.assertEquals( 1, rule.getMetrics().get( "upstream[0].ejected" ) );
+	}
+
+	private static MocksyServer backend(String name, int delay)
+	        throws Exception
+	{
+		Ruleset rules = new Ruleset();
+		Response lingering = new Response( "linger", name );
+		lingering.setDelay( 1000 );
+		ResponseRule lingerRule = new ResponseRule( lingering );
+		HttpMatcher matcher = new HttpMatcher();
+		matcher.setPattern( Pattern.compile( ".*/linger" ) );
+		lingerRule.addMatcher( matcher );
+		rules.addRule( lingerRule );
+		Response response = new Response( name, name );
+		response.setDelay( delay );
+		rules.setDefaultRule( new ResponseRule( response ) );
+		return startBackend( rules );
+	}
+
+	private static HttpProxyRule proxy(MocksyServer first, MocksyServer second)
+	{
+		return new HttpProxyRule( url( first ) + "," + url( second ) );
+	}
+}
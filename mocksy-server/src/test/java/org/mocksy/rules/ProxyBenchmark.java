@@ -0,0 +1,124 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mocksy.Response;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.server.http.MocksyServer;
+
+/**
+ * Measures proxied throughput: a client hammers a Mocksy server whose only
+ * rule proxies to a second, local Mocksy server serving a static response.
+ *
+ * This isn't run as part of the build; run it by hand with
+ * <code>java org.mocksy.rules.ProxyBenchmark [threads] [seconds] [bytes]</code>
+ * on the test classpath.
+ */
+public class ProxyBenchmark {
+	private static final int BACKEND_PORT = 11130;
+	private static final int PROXY_PORT = 11131;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 16;
+		int seconds = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+		int size = args.length > 2 ? Integer.parseInt( args[2] ) : 1024;
+
+		StringBuilder body = new StringBuilder();
+		while ( body.length() < size ) {
+			body.append( 'x' );
+		}
+		Ruleset backendRules = new Ruleset();
+		backendRules.setDefaultRule( new ResponseRule( new Response(
+		        "backend", body.toString() ) ) );
+		MocksyServer backend = new MocksyServer( backendRules, BACKEND_PORT );
+		backend.start();
+
+		Ruleset proxyRules = new Ruleset();
+		proxyRules.setDefaultRule( new HttpProxyRule( "http://127.0.0.1:"
+		        + BACKEND_PORT ) );
+		MocksyServer proxy = new MocksyServer( proxyRules, PROXY_PORT );
+		proxy.start();
+
+		final URL url = new URL( "http://127.0.0.1:" + PROXY_PORT
+		        + "/benchmark" );
+		// warm up
+		run( url, threads, 2000L );
+		long start = System.currentTimeMillis();
+		Result result = run( url, threads, seconds * 1000L );
+		long elapsed = System.currentTimeMillis() - start;
+
+		System.out.println( threads + " threads, " + size + " byte body, "
+		        + seconds + "s" );
+		System.out.println( "requests:   " + result.requests.get() );
+		System.out.println( "errors:     " + result.errors.get() );
+		System.out.println( "throughput: " + result.requests.get() * 1000
+		        / elapsed + " req/s" );
+		System.out.println( "mean:       " + result.nanos.get()
+		        / Math.max( 1, result.requests.get() ) / 1000 + " us" );
+
+		proxy.stop();
+		backend.stop();
+		System.exit( 0 );
+	}
+
+	private static Result run(final URL url, int threads, long millis)
+	        throws InterruptedException
+	{
+		final Result result = new Result();
+		final long end = System.currentTimeMillis() + millis;
+		final CountDownLatch done = new CountDownLatch( threads );
+		for ( int i = 0; i < threads; i++ ) {
+			new Thread() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					while ( System.currentTimeMillis() < end ) {
+						long start = System.nanoTime();
+						try {
+							HttpURLConnection conn = (HttpURLConnection) url
+							        .openConnection();
+							InputStream input = conn.getInputStream();
+							while ( input.read( buffer ) > -1 ) {
+								// drain it so the connection can be reused
+							}
+							input.close();
+							result.requests.incrementAndGet();
+							result.nanos.addAndGet( System.nanoTime() - start );
+						}
+						catch ( Exception e ) {
+							result.errors.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		return result;
+	}
+
+	private static class Result {
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+	}
+}
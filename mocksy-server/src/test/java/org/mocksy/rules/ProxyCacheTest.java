@@ -0,0 +1,191 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.deleteDir;
+import static org.mocksy.rules.ProxyTestSupport.fetch;
+import static org.mocksy.rules.ProxyTestSupport.getPath;
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.ProxyTestSupport.CountingRule;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.ProxyCache;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+public class ProxyCacheTest {
+	private MocksyServer backend;
+	private CountingRule counter;
+
+	@Before
+	public void setUp() throws Exception {
+		this.counter = new CacheControlRule();
+		this.backend = startBackend( this.counter );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.backend.stop();
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		ProxyCache cache = new ProxyCache( 10 );
+		cache.setTtl( 60 );
+		HttpProxyRule rule = proxy( cache );
+
+		Assert.assertEquals( "response 1", fetch( rule, "/ttl" ) );
+		Assert.assertEquals( "response 1", fetch( rule, "/ttl" ) );
+		Assert.assertEquals( 1, this.counter.count.get() );
+		Map<String, Number> metrics = rule.getMetrics();
+		Assert.assertEquals( 1L, metrics.get( "cache.hits" ) );
+		Assert.assertEquals( 1L, metrics.get( "cache.misses" ) );
+		Assert.assertEquals( 1, metrics.get( "cache.entries" ) );
+	}
+
+	@Test
+	public void testNoTtl() throws Exception {
+		HttpProxyRule rule = proxy( new ProxyCache( 10 ) );
+		// nothing says it can be cached
+		Assert.assertEquals( "response 1", fetch( rule, "/plain" ) );
+		Assert.assertEquals( "response 2", fetch( rule, "/plain" ) );
+	}
+
+	@Test
+	public void testCacheControl() throws Exception {
+		ProxyCache cache = new ProxyCache( 10 );
+		cache.setTtl( 60 );
+		HttpProxyRule rule = proxy( cache );
+		// the server's say goes over the TTL
+		Assert.assertEquals( "response 1", fetch( rule, "/no-store" ) );
+		Assert.assertEquals( "response 2", fetch( rule, "/no-store" ) );
+		Assert.assertEquals( "response 3", fetch( rule, "/max-age=0" ) );
+		Assert.assertEquals( "response 4", fetch( rule, "/max-age=0" ) );
+
+		HttpProxyRule noTtlRule = proxy( new ProxyCache( 10 ) );
+		Assert.assertEquals( "response 5", fetch( noTtlRule, "/max-age=60" ) );
+		Assert.assertEquals( "response 5", fetch( noTtlRule, "/max-age=60" ) );
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		ProxyCache cache = new ProxyCache( 2 );
+		cache.setTtl( 60 );
+		HttpProxyRule rule = proxy( cache );
+		Assert.assertEquals( "response 1", fetch( rule, "/a" ) );
+		Assert.assertEquals( "response 2", fetch( rule, "/b" ) );
+		// use a, so that b is the least recently used
+		Assert.assertEquals( "response 1", fetch( rule, "/a" ) );
+		Assert.assertEquals( "response 3", fetch( rule, "/c" ) );
+		Assert.assertEquals( "response 1", fetch( rule, "/a" ) );
+		Assert.assertEquals( "response 4", fetch( rule, "/b" ) );
+		Assert.assertEquals( 2L, rule.getMetrics().get( "cache.evictions" ) );
+	}
+
+	@Test
+	public void testKeyHeaders() throws Exception {
+		ProxyCache cache = new ProxyCache( 10 );
+		cache.setTtl( 60 );
+		HttpProxyRule rule = proxy( cache );
+		rule.setKeyHeaders( Arrays.asList( "Accept" ) );
+
+		MockHttpRequest xml = new MockHttpRequest( "http://localhost/headers" );
+		xml.addHeader( "Accept", "text/xml" );
+		MockHttpRequest json = new MockHttpRequest( "http://localhost/headers" );
+		json.addHeader( "Accept", "application/json" );
+		Assert.assertEquals( "response 1", rule.process( xml ).toString() );
+		Assert.assertEquals( "response 2", rule.process( json ).toString() );
+		Assert.assertEquals( "response 1", rule.process( xml ).toString() );
+	}
+
+	@Test
+	public void testDirectory() throws Exception {
+		File dir = new File( "target/proxy-cache-test" );
+		deleteDir( dir );
+		ProxyCache cache = new ProxyCache( 10 );
+		cache.setTtl( 60 );
+		cache.setDirectory( dir );
+		Assert.assertEquals( "response 1", fetch( proxy( cache ), "/saved" ) );
+		Assert.assertEquals( 1, dir.listFiles().length );
+
+		// a new cache, as if the server had been restarted
+		ProxyCache restored = new ProxyCache( 10 );
+		restored.setDirectory( dir );
+		Assert.assertEquals( 1, restored.size() );
+		HttpProxyRule rule = proxy( restored );
+		HttpResponse response = (HttpResponse) rule
+		        .process( new MockHttpRequest( "http://localhost/saved" ) );
+		Assert.assertEquals( "response 1", response.toString() );
+		Assert.assertEquals( "yes", response.getHeader( "x-counted" ) );
+		Assert.assertEquals( 1, this.counter.count.get() );
+		deleteDir( dir );
+	}
+
+	@Test
+	public void testDirectoryOnlyLoadsEntries() throws Exception {
+		File dir = new File( "target/proxy-cache-test" );
+		deleteDir( dir );
+		dir.mkdirs();
+		// a serialized object rather than an entry is never read in
+		File file = new File( dir, "object.entry" );
+		ObjectOutputStream output = new ObjectOutputStream(
+		        new FileOutputStream( file ) );
+		output.writeObject( new ArrayList<String>() );
+		output.close();
+		ProxyCache cache = new ProxyCache( 10 );
+		cache.setDirectory( dir );
+		Assert.assertEquals( 0, cache.size() );
+		Assert.assertFalse( file.exists() );
+		deleteDir( dir );
+	}
+
+	private HttpProxyRule proxy(ProxyCache cache) {
+		HttpProxyRule rule = new HttpProxyRule( url( this.backend ) );
+		rule.setCache( cache );
+		return rule;
+	}
+
+	/**
+	 * Numbers its responses, and sets a Cache-Control header if the path
+	 * asks for one.
+	 */
+	private static class CacheControlRule extends CountingRule {
+		Response respond(Request request, int count) {
+			HttpResponse response = new HttpResponse( "counted", "response "
+			        + count );
+			response.setHeader( "x-counted", "yes" );
+			String path = getPath( request );
+			if ( path.equals( "/no-store" ) || path.startsWith( "/max-age" ) ) {
+				response.setHeader( "Cache-Control", path.substring( 1 ) );
+			}
+			return response;
+		}
+	}
+}
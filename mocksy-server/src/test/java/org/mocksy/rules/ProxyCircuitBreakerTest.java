@@ -0,0 +1,189 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.deadUrl;
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.util.Map;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.ProxyTestSupport.BackendRule;
+import org.mocksy.rules.http.CircuitBreaker;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.ProxyCache;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+public class ProxyCircuitBreakerTest {
+	private MocksyServer backend;
+
+	@After
+	public void tearDown() throws Exception {
+		if ( this.backend != null ) {
+			this.backend.stop();
+		}
+	}
+
+	@Test
+	public void testOpensOnFailures() throws Exception {
+		HttpProxyRule rule = new HttpProxyRule( deadUrl() );
+		rule.setCircuitBreaker( breaker( 60000 ) );
+		for ( int i = 0; i < 10; i++ ) {
+			Assert.assertEquals( 503, fetch( rule ).getStatusCode() );
+		}
+		Map<String, Number> metrics = rule.getMetrics();
+		Assert.assertEquals( CircuitBreaker.OPEN, metrics.get( "breaker.state" ) );
+		Assert.assertEquals( 1L, metrics.get( "breaker.opens" ) );
+		// the first four tried and failed, the rest never got that far
+		Assert.assertEquals( 6L, metrics.get( "breaker.rejected" ) );
+	}
+
+	@Test
+	public void testHalfOpenProbesClose() throws Exception {
+		StatusRule status = new StatusRule();
+		status.status = 500;
+		this.backend = startBackend( status );
+		HttpProxyRule rule = new HttpProxyRule( url( this.backend ) );
+		CircuitBreaker settings = breaker( 200 );
+		settings.setProbes( 2 );
+		rule.setCircuitBreaker( settings );
+
+		for ( int i = 0; i < 4; i++ ) {
+			Assert.assertEquals( 500, fetch( rule ).getStatusCode() );
+		}
+		Assert.assertEquals( 503, fetch( rule ).getStatusCode() );
+		Assert.assertEquals( 4, status.calls );
+
+		// the server recovers, and once the breaker lets the probes
+		// through, it closes again
+		status.status = 200;
+		Thread.sleep( 300 );
+		for ( int i = 0; i < 5; i++ ) {
+			Assert.assertEquals( 200, fetch( rule ).getStatusCode() );
+		}
+		Map<String, Number> metrics = rule.getMetrics();
+		Assert.assertEquals( CircuitBreaker.CLOSED, metrics
+		        .get( "breaker.state" ) );
+		Assert.assertEquals( 1L, metrics.get( "breaker.half-opens" ) );
+		Assert.assertEquals( 1L, metrics.get( "breaker.closes" ) );
+	}
+
+	@Test
+	public void testHalfOpenProbeFailureReopens() throws Exception {
+		CircuitBreaker breaker = breaker( 100 );
+		for ( int i = 0; i < 4; i++ ) {
+			Assert.assertTrue( breaker.tryAcquire() );
+			breaker.record( 1, true );
+		}
+		Assert.assertFalse( breaker.tryAcquire() );
+		Thread.sleep( 150 );
+		Assert.assertTrue( breaker.tryAcquire() );
+		Assert.assertEquals( CircuitBreaker.HALF_OPEN, breaker.getState() );
+		breaker.record( 1, true );
+		Assert.assertEquals( CircuitBreaker.OPEN, breaker.getState() );
+		Assert.assertFalse( breaker.tryAcquire() );
+	}
+
+	@Test
+	public void testSlowCalls() throws Exception {
+		CircuitBreaker breaker = breaker( 60000 );
+		breaker.setSlowCallTime( 100 );
+		breaker.setSlowCallRate( 50 );
+		for ( int i = 0; i < 3; i++ ) {
+			Assert.assertTrue( breaker.tryAcquire() );
+			breaker.record( 10, false );
+		}
+		Assert.assertEquals( CircuitBreaker.CLOSED, breaker.getState() );
+		for ( int i = 0; i < 3; i++ ) {
+			Assert.assertTrue( breaker.tryAcquire() );
+			breaker.record( 500, false );
+		}
+		// three out of six calls were slow
+		Assert.assertEquals( CircuitBreaker.OPEN, breaker.getState() );
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+		HttpProxyRule rule = new HttpProxyRule( deadUrl() );
+		rule.setCircuitBreaker( breaker( 60000 ) );
+		HttpResponse fallback = new HttpResponse( "fallback", "<down/>" );
+		rule.setFallback( fallback );
+		for ( int i = 0; i < 6; i++ ) {
+			Response response = rule.process( new MockHttpRequest(
+			        "http://localhost/down" ) );
+			Assert.assertEquals( "<down/>", response.toString() );
+		}
+	}
+
+	@Test
+	public void testServeStale() throws Exception {
+		StatusRule status = new StatusRule();
+		this.backend = startBackend( status );
+		HttpProxyRule rule = new HttpProxyRule( url( this.backend ) );
+		ProxyCache cache = new ProxyCache( 10 );
+		cache.setTtl( 1 );
+		cache.setMaxStale( 60 );
+		rule.setCache( cache );
+
+		Assert.assertEquals( "call 1", fetch( rule ).toString() );
+		Thread.sleep( 1100 );
+		// expired, so the server is asked again, but it's failing
+		status.status = 500;
+		HttpResponse response = fetch( rule );
+		Assert.assertEquals( "call 1", response.toString() );
+		Assert.assertNotNull( response.getHeader( "Warning" ) );
+		Assert.assertEquals( 2, status.calls );
+
+		// and when the server is gone altogether
+		this.backend.stop();
+		this.backend = null;
+		Assert.assertEquals( "call 1", fetch( rule ).toString() );
+		Assert.assertEquals( 2L, rule.getMetrics().get( "cache.stale-hits" ) );
+	}
+
+	private static CircuitBreaker breaker(int openTime) {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setWindow( 8 );
+		breaker.setOpenTime( openTime );
+		return breaker;
+	}
+
+	private static HttpResponse fetch(HttpProxyRule rule) throws Exception {
+		return (HttpResponse) rule.process( new MockHttpRequest(
+		        "http://localhost/breaker" ) );
+	}
+
+	/**
+	 * Answers with whatever status it's told to, and counts its calls.
+	 */
+	private static class StatusRule extends BackendRule {
+		private volatile int status = 200;
+		private volatile int calls;
+
+		public synchronized Response process(Request request) {
+			HttpResponse response = new HttpResponse( "status", "call "
+			        + ( ++this.calls ) );
+			response.setStatusCode( this.status );
+			return response;
+		}
+	}
+}
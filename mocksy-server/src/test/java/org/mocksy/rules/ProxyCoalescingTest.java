@@ -0,0 +1,156 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.deadUrl;
+import static org.mocksy.rules.ProxyTestSupport.getPath;
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.ProxyTestSupport.CountingRule;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+public class ProxyCoalescingTest {
+	private static final int THREADS = 20;
+	private MocksyServer backend;
+	private CountingRule counter;
+
+	@Before
+	public void setUp() throws Exception {
+		this.counter = new SlowCountingRule();
+		this.backend = startBackend( this.counter );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.backend.stop();
+	}
+
+	@Test
+	public void testIdenticalRequestsShareOneCall() throws Exception {
+		HttpProxyRule rule = proxy();
+		List<String> bodies = fetchAll( rule, new RequestMaker() {
+			public Request make(int i) throws Exception {
+				return new MockHttpRequest( "http://localhost/same" );
+			}
+		} );
+		Assert.assertEquals( 1, this.counter.count.get() );
+		for ( String body : bodies ) {
+			Assert.assertEquals( "response 1 for /same", body );
+		}
+		Assert.assertEquals( 1L, rule.getMetrics().get( "coalesce.calls" ) );
+		Assert.assertEquals( (long) THREADS - 1, rule.getMetrics().get(
+		        "coalesce.coalesced" ) );
+		Assert.assertEquals( 0, rule.getMetrics().get( "coalesce.in-flight" ) );
+
+		// once it's done, the next request makes a call of its own
+		Assert.assertEquals( "response 2 for /same", rule.process(
+		        new MockHttpRequest( "http://localhost/same" ) ).toString() );
+	}
+
+	@Test
+	public void testDifferentRequestsAreNotCoalesced() throws Exception {
+		HttpProxyRule rule = proxy();
+		fetchAll( rule, new RequestMaker() {
+			public Request make(int i) throws Exception {
+				MockHttpRequest request = new MockHttpRequest(
+				        "http://localhost/post" );
+				request.setData( new ByteArrayInputStream( ( "<id>" + ( i % 2 )
+				        + "</id>" ).getBytes() ) );
+				return request;
+			}
+		} );
+		// two different bodies, so two calls
+		Assert.assertEquals( 2, this.counter.count.get() );
+	}
+
+	@Test
+	public void testUnavailable() throws Exception {
+		HttpProxyRule rule = new HttpProxyRule( deadUrl() );
+		rule.setCoalescing( true );
+		HttpResponse response = (HttpResponse) rule
+		        .process( new MockHttpRequest( "http://localhost/down" ) );
+		Assert.assertEquals( 503, response.getStatusCode() );
+	}
+
+	private HttpProxyRule proxy() {
+		HttpProxyRule rule = new HttpProxyRule( url( this.backend ) );
+		rule.setCoalescing( true );
+		rule.setMaxConnections( THREADS );
+		return rule;
+	}
+
+	private static List<String> fetchAll(final HttpProxyRule rule,
+	        final RequestMaker maker) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+		final CountDownLatch start = new CountDownLatch( 1 );
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for ( int i = 0; i < THREADS; i++ ) {
+				final Request request = maker.make( i );
+				futures.add( executor.submit( new Callable<String>() {
+					public String call() throws Exception {
+						start.await();
+						return rule.process( request ).toString();
+					}
+				} ) );
+			}
+			start.countDown();
+			List<String> bodies = new ArrayList<String>();
+			for ( Future<String> future : futures ) {
+				bodies.add( future.get() );
+			}
+			return bodies;
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private interface RequestMaker {
+		Request make(int i) throws Exception;
+	}
+
+	/**
+	 * Takes its time, so that requests pile up behind the first one, and
+	 * numbers its responses.
+	 */
+	private static class SlowCountingRule extends CountingRule {
+		Response respond(Request request, int count) throws Exception {
+			Thread.sleep( 300 );
+			return new HttpResponse( "counted", "response " + count + " for "
+			        + getPath( request ) );
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.deleteDir;
+import static org.mocksy.rules.ProxyTestSupport.postForm;
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.io.File;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.ProxyTestSupport.BackendRule;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.ProxyCache;
+import org.mocksy.rules.http.ProxyRecorder;
+import org.mocksy.server.http.HttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+/**
+ * Form posts sent through a real server, since the servlet container only
+ * has the parameters as long as nothing else has read the body.
+ */
+public class ProxyFormTest {
+	private MocksyServer backend;
+	private MocksyServer proxy;
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		this.backend = startBackend( new EchoRule() );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if ( this.proxy != null ) {
+			this.proxy.stop();
+		}
+		this.backend.stop();
+		if ( this.dir != null ) {
+			deleteDir( this.dir );
+		}
+	}
+
+	@Test
+	public void testPlain() throws Exception {
+		this.startProxy( this.proxyRule() );
+		Assert.assertEquals( "name=bob", this.post( "name=bob" ) );
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		HttpProxyRule rule = this.proxyRule();
+		rule.setCache( new ProxyCache( 10 ) );
+		this.startProxy( rule );
+		Assert.assertEquals( "name=bob", this.post( "name=bob" ) );
+		Assert.assertEquals( "name=sue", this.post( "name=sue" ) );
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		HttpProxyRule rule = this.proxyRule();
+		rule.setCoalescing( true );
+		this.startProxy( rule );
+		Assert.assertEquals( "name=bob", this.post( "name=bob" ) );
+	}
+
+	@Test
+	public void testRecording() throws Exception {
+		this.dir = new File( System.getProperty( "java.io.tmpdir" ),
+		        "mocksy-form-" + System.nanoTime() );
+		HttpProxyRule rule = this.proxyRule();
+		rule.setRecorder( new ProxyRecorder( this.dir, url( this.backend ) ) );
+		this.startProxy( rule );
+		Assert.assertEquals( "name=bob", this.post( "name=bob" ) );
+	}
+
+	private HttpProxyRule proxyRule() {
+		return new HttpProxyRule( url( this.backend ) );
+	}
+
+	private void startProxy(Rule rule) throws Exception {
+		this.proxy = startBackend( rule );
+	}
+
+	private String post(String form) throws Exception {
+		return postForm( url( this.proxy ) + "/form", form );
+	}
+
+	/**
+	 * Answers with the name parameter it was sent.
+	 */
+	static class EchoRule extends BackendRule {
+		public Response process(Request request) throws Exception {
+			String name = ( (HttpRequest) request ).getServletRequest()
+			        .getParameter( "name" );
+			return new Response( "echo", "name=" + name );
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.deadUrl;
+import static org.mocksy.rules.ProxyTestSupport.postForm;
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.ProxyTestSupport.BackendRule;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.MirrorRule;
+import org.mocksy.server.http.HttpRequest;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+public class ProxyMirrorTest {
+	private MocksyServer mirror;
+	private SeenRule seen;
+
+	@Before
+	public void setUp() throws Exception {
+		this.seen = new SeenRule();
+		this.mirror = startBackend( this.seen );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.mirror.stop();
+	}
+
+	@Test
+	public void testMirrorsRequests() throws Exception {
+		MirrorRule rule = new MirrorRule( new ResponseRule( new Response(
+		        "primary", "mocked" ) ), url( this.mirror ) );
+		Assert.assertEquals( "mocked", rule.process(
+		        new MockHttpRequest( "http://localhost/get?a=1" ) ).toString() );
+		MockHttpRequest post = new MockHttpRequest( "http://localhost/post" );
+		post.setData( new ByteArrayInputStream( "<body/>".getBytes() ) );
+		Assert.assertEquals( "mocked", rule.process( post ).toString() );
+
+		waitFor( rule, "mirror.sent", 2 );
+		Assert.assertTrue( this.seen.requests.toString(), this.seen.requests
+		        .contains( "GET /get?a=1 " ) );
+		Assert.assertTrue( this.seen.requests.toString(), this.seen.requests
+		        .contains( "POST /post <body/>" ) );
+		Map<String, Number> metrics = rule.getMetrics();
+		Assert.assertEquals( 0L, metrics.get( "mirror.failed" ) );
+		Assert.assertEquals( 0L, metrics.get( "mirror.dropped" ) );
+	}
+
+	@Test
+	public void testSlowMirrorDoesNotDelay() throws Exception {
+		this.seen.delay = 500;
+		MirrorRule rule = new MirrorRule( new ResponseRule( new Response(
+		        "primary", "mocked" ) ), url( this.mirror ), 1, 1 );
+		long start = System.currentTimeMillis();
+		for ( int i = 0; i < 5; i++ ) {
+			Assert.assertEquals( "mocked", rule.process(
+			        new MockHttpRequest( "http://localhost/slow" ) ).toString() );
+		}
+		Assert.assertTrue( System.currentTimeMillis() - start < 500 );
+		// one is being sent, one is waiting and the rest didn't fit
+		Assert.assertEquals( 3L, rule.getMetrics().get( "mirror.dropped" ) );
+		waitFor( rule, "mirror.sent", 2 );
+	}
+
+	@Test
+	public void testMirrorDown() throws Exception {
+		MirrorRule rule = new MirrorRule( new ResponseRule( new Response(
+		        "primary", "mocked" ) ), deadUrl() );
+		Assert.assertEquals( "mocked", rule.process(
+		        new MockHttpRequest( "http://localhost/down" ) ).toString() );
+		waitFor( rule, "mirror.failed", 1 );
+		Assert.assertEquals( 0L, rule.getMetrics().get( "mirror.sent" ) );
+	}
+
+	@Test
+	public void testMirrorsForms() throws Exception {
+		MocksyServer primary = startBackend( new ProxyFormTest.EchoRule() );
+		MirrorRule rule = new MirrorRule( new HttpProxyRule( url( primary ) ),
+		        url( this.mirror ) );
+		MocksyServer front = startBackend( rule );
+		try {
+			Assert.assertEquals( "name=bob", postForm( url( front ) + "/form",
+			        "name=bob" ) );
+			waitFor( rule, "mirror.sent", 1 );
+			Assert.assertTrue( this.seen.requests.toString(),
+			        this.seen.requests.contains( "POST /form name=bob" ) );
+		}
+		finally {
+			front.stop();
+			primary.stop();
+		}
+	}
+
+	@Test
+	public void testClosedWhenReplaced() throws Exception {
+		MirrorRule rule = new MirrorRule( new ResponseRule( new Response(
+		        "primary", "mocked" ) ), url( this.mirror ) );
+		Ruleset rules = new Ruleset();
+		rules.setRules( new ArrayList<Rule>( Collections.singletonList(
+		        (Rule) rule ) ), null );
+		// kept on, so it isn't closed
+		rules.setRules( new ArrayList<Rule>( rules.getRules() ), null );
+		rule.process( new MockHttpRequest( "http://localhost/kept" ) );
+		waitFor( rule, "mirror.sent", 1 );
+
+		rules.setRules( new ArrayList<Rule>(), null );
+		// still answers requests that were on their way to it, but stops
+		// sending copies
+		Assert.assertEquals( "mocked", rule.process(
+		        new MockHttpRequest( "http://localhost/late" ) ).toString() );
+		Assert.assertEquals( 1L, rule.getMetrics().get( "mirror.dropped" ) );
+	}
+
+	private static void waitFor(MirrorRule rule, String metric, long value)
+	        throws Exception
+	{
+		for ( int i = 0; i < 100; i++ ) {
+			if ( rule.getMetrics().get( metric ).longValue() >= value ) {
+				return;
+			}
+			Thread.sleep( 50 );
+		}
+		Assert.fail( metric + " never got to " + value + ": "
+		        + rule.getMetrics() );
+	}
+
+	/**
+	 * Writes down the method, URL and body of each request it sees.
+	 */
+	private static class SeenRule extends BackendRule {
+		private final List<String> requests = Collections
+		        .synchronizedList( new ArrayList<String>() );
+		private volatile int delay;
+
+		public Response process(Request request) throws Exception {
+			if ( this.delay > 0 ) {
+				Thread.sleep( this.delay );
+			}
+			HttpRequest httpRequest = (HttpRequest) request;
+			StringBuilder body = new StringBuilder();
+			InputStream data = httpRequest.getData();
+			int b;
+			while ( ( b = data.read() ) > -1 ) {
+				body.append( (char) b );
+			}
+			this.requests.add( httpRequest.getServletRequest().getMethod()
+			        + " " + httpRequest.getFullURL() + " " + body );
+			return new HttpResponse( "seen", "ok" );
+		}
+	}
+}
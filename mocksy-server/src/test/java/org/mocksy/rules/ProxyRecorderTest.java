@@ -0,0 +1,158 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.deleteDir;
+import static org.mocksy.rules.ProxyTestSupport.fetch;
+import static org.mocksy.rules.ProxyTestSupport.getPath;
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.config.xml.XmlRulesetFactory;
+import org.mocksy.rules.ProxyTestSupport.CountingRule;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.http.ProxyRecorder;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+public class ProxyRecorderTest {
+	private static final File DIR = new File( "target/proxy-record-test" );
+	private MocksyServer backend;
+	private CountingRule counter;
+
+	@Before
+	public void setUp() throws Exception {
+		deleteDir( DIR );
+		this.counter = new XmlCountingRule();
+		this.backend = startBackend( this.counter );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.backend.stop();
+		deleteDir( DIR );
+	}
+
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		HttpProxyRule rule = new HttpProxyRule( url( this.backend ) );
+		ProxyRecorder recorder = new ProxyRecorder( DIR, rule.getProxyUrl() );
+		rule.setRecorder( recorder );
+
+		Assert.assertEquals( "<count>1</count>", fetch( rule, get( "/a?b=c" ) ) );
+		// already recorded, so it isn't recorded again
+		Assert.assertEquals( "<count>2</count>", fetch( rule, get( "/a?b=c" ) ) );
+		Assert.assertEquals( "<count>3</count>", fetch( rule, post( "/order",
+		        "<id>1</id>" ) ) );
+		Assert.assertEquals( "<count>4</count>", fetch( rule, post( "/order",
+		        "<id>2</id>" ) ) );
+		HttpResponse proxied = (HttpResponse) rule.process( get( "/missing" ) );
+		String missingBody = proxied.toString();
+		proxied.close();
+		Assert.assertEquals( 404, proxied.getStatusCode() );
+		recorder.flush();
+		Assert.assertEquals( 4L, rule.getMetrics().get( "record.recorded" ) );
+		Assert.assertEquals( 0L, rule.getMetrics().get( "record.dropped" ) );
+
+		Ruleset replay = new XmlRulesetFactory( new File( DIR,
+		        ProxyRecorder.RULES_FILE ) ).getRuleset();
+		Assert.assertEquals( 4, replay.getRules().size() );
+		Assert.assertEquals( "<count>1</count>", replay.process(
+		        get( "/a?b=c" ) ).toString() );
+		Assert.assertEquals( "<count>4</count>", replay.process(
+		        post( "/order", "<id>2</id>" ) ).toString() );
+		Assert.assertEquals( "<count>3</count>", replay.process(
+		        post( "/order", "<id>1</id>" ) ).toString() );
+		HttpResponse missing = (HttpResponse) replay
+		        .process( get( "/missing" ) );
+		Assert.assertEquals( missingBody, missing.toString() );
+		Assert.assertEquals( 404, missing.getStatusCode() );
+		Assert.assertEquals( proxied.getContentType(), missing
+		        .getContentType() );
+
+		// anything else still goes to the server
+		Assert.assertEquals( "<count>6</count>", replay.process(
+		        get( "/other" ) ).toString() );
+		Assert.assertEquals( 6, this.counter.count.get() );
+	}
+
+	@Test
+	public void testRecordedLatency() throws Exception {
+		HttpProxyRule rule = new HttpProxyRule( url( this.backend ) );
+		rule.setLatencyTracking( true );
+		ProxyRecorder recorder = new ProxyRecorder( DIR, rule.getProxyUrl() );
+		rule.setRecorder( recorder );
+		for ( int i = 0; i < 3; i++ ) {
+			fetch( rule, get( "/slow?page=" + i ) );
+		}
+		recorder.flush();
+		Assert.assertEquals( 3L, rule.getMetrics().get( "latency.count" ) );
+		Assert.assertEquals( 1, rule.getMetrics().get( "latency.routes" ) );
+		Assert.assertTrue( rule.getMetrics().get( "latency.p50" ).longValue()
+		        >= 100 );
+
+		// the recorded rules take as long as the server did
+		Ruleset replay = new XmlRulesetFactory( new File( DIR,
+		        ProxyRecorder.RULES_FILE ) ).getRuleset();
+		ResponseRule recorded = (ResponseRule) replay.getRules().get( 0 );
+		Assert.assertNotNull( recorded.getDelay() );
+		Response response = replay.process( get( "/slow?page=1" ) );
+		Assert.assertEquals( "<count>2</count>", response.toString() );
+		Assert.assertTrue( response.getDelay() >= 95 );
+	}
+
+	private static MockHttpRequest get(String path) throws Exception {
+		return new MockHttpRequest( "http://localhost" + path );
+	}
+
+	private static MockHttpRequest post(String path, String body)
+	        throws Exception
+	{
+		MockHttpRequest request = new MockHttpRequest( "http://localhost"
+		        + path );
+		request.setData( new ByteArrayInputStream( body.getBytes() ) );
+		return request;
+	}
+
+	/**
+	 * Numbers its responses, returns a 404 for /missing and takes 100ms to
+	 * answer /slow.
+	 */
+	private static class XmlCountingRule extends CountingRule {
+		Response respond(Request request, int count) {
+			HttpResponse response = new HttpResponse( "counted", "<count>"
+			        + count + "</count>" );
+			response.setContentType( "text/xml" );
+			String path = getPath( request );
+			if ( path.equals( "/missing" ) ) {
+				response.setStatusCode( 404 );
+			}
+			else if ( path.equals( "/slow" ) ) {
+				response.setDelay( 100 );
+			}
+			return response;
+		}
+	}
+}
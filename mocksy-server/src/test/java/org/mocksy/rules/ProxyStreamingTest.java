@@ -0,0 +1,173 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.mocksy.rules.ProxyTestSupport.startBackend;
+import static org.mocksy.rules.ProxyTestSupport.url;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.config.Source;
+import org.mocksy.filter.FilterException;
+import org.mocksy.filter.ResponseFilter;
+import org.mocksy.rules.http.HttpMatcher;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.rules.xml.XmlMatcher;
+import org.mocksy.server.http.MocksyServer;
+
+public class ProxyStreamingTest {
+	private MocksyServer backend;
+	private MocksyServer proxy;
+
+	@Before
+	public void setUp() throws Exception {
+		Ruleset backendRules = new Ruleset();
+		// 5 chunks of 10 bytes, 200ms apart
+		Response slow = new Response( "slow", "0123456789abcdefghij"
+		        + "klmnopqrstuvwxyzABCDEFGHIJKLMN" );
+		slow.setChunkSize( 10 );
+		slow.setChunkInterval( 200 );
+		ResponseRule slowRule = new ResponseRule( slow );
+		HttpMatcher slowMatcher = new HttpMatcher();
+		slowMatcher.setPattern( Pattern.compile( ".*/slow" ) );
+		slowRule.addMatcher( slowMatcher );
+		backendRules.addRule( slowRule );
+
+		ResponseRule xmlRule = new ResponseRule( new Response( "xml",
+		        "matched xml" ) );
+		XmlMatcher xmlMatcher = new XmlMatcher( "/order/item" );
+		xmlMatcher.setPattern( Pattern.compile( "widget" ) );
+		xmlRule.addMatcher( xmlMatcher );
+		backendRules.addRule( xmlRule );
+
+		backendRules.setDefaultRule( new ResponseRule( new Response(
+		        "default", "default response" ) ) );
+		this.backend = startBackend( backendRules );
+
+		Ruleset proxyRules = new Ruleset();
+		HttpProxyRule filteredRule = new HttpProxyRule( url( this.backend ) );
+		filteredRule.addFilter( new UpperCaseFilter() );
+		HttpMatcher filteredMatcher = new HttpMatcher();
+		filteredMatcher.setPattern( Pattern.compile( ".*/filtered/.*" ) );
+		filteredRule.addMatcher( filteredMatcher );
+		proxyRules.addRule( filteredRule );
+		proxyRules.setDefaultRule( new HttpProxyRule( url( this.backend ) ) );
+		this.proxy = startBackend( proxyRules );
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.proxy.stop();
+		this.backend.stop();
+	}
+
+	@Test
+	public void testResponseIsStreamed() throws Exception {
+		long start = System.currentTimeMillis();
+		InputStream input = new URL( url( this.proxy ) + "/slow" )
+		        .openStream();
+		byte[] buffer = new byte[1024];
+		int read = input.read( buffer );
+		long firstByte = System.currentTimeMillis() - start;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		while ( read > -1 ) {
+			output.write( buffer, 0, read );
+			read = input.read( buffer );
+		}
+		long lastByte = System.currentTimeMillis() - start;
+		input.close();
+
+		Assert.assertEquals( "0123456789abcdefghijklmnopqrstuvwxyz"
+		        + "ABCDEFGHIJKLMN", new String( output.toByteArray() ) );
+		// the body takes 800ms to come out of the backend, but the first
+		// chunk shouldn't wait for the rest of it
+		Assert.assertTrue( "last byte after " + lastByte + "ms",
+		        lastByte >= 700 );
+		Assert.assertTrue( "first byte after " + firstByte + "ms",
+		        firstByte < lastByte - 400 );
+	}
+
+	@Test
+	public void testFilteredResponseIsBuffered() throws Exception {
+		Assert.assertEquals( "DEFAULT RESPONSE", fetch( "/filtered/page" ) );
+	}
+
+	@Test
+	public void testRequestBodyIsStreamed() throws Exception {
+		HttpURLConnection conn = (HttpURLConnection) new URL( url( this.proxy )
+		        + "/order" ).openConnection();
+		conn.setRequestMethod( "POST" );
+		conn.setRequestProperty( "Content-Type", "text/xml" );
+		conn.setDoOutput( true );
+		// send it chunked, so the proxy can't know the length up front
+		conn.setChunkedStreamingMode( 16 );
+		OutputStream out = conn.getOutputStream();
+		out.write( "<order><item>widget</item></order>".getBytes() );
+		out.close();
+		Assert.assertEquals( "matched xml", read( conn.getInputStream() ) );
+	}
+
+	private String fetch(String path) throws Exception {
+		return read( new URL( url( this.proxy ) + path ).openStream() );
+	}
+
+	private static String read(InputStream input) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = -1;
+		while ( ( read = input.read( buffer ) ) > -1 ) {
+			output.write( buffer, 0, read );
+		}
+		input.close();
+		return new String( output.toByteArray() );
+	}
+
+	private static class UpperCaseFilter implements ResponseFilter {
+		public InputStream filter(InputStream input) throws FilterException {
+			try {
+				return new ByteArrayInputStream( read( input ).toUpperCase()
+				        .getBytes() );
+			}
+			catch ( Exception e ) {
+				throw new FilterException( e );
+			}
+		}
+
+		public void initialize(Map<String, String> properties) {
+			// nothing to set up
+		}
+
+		public Map<String, String> getProperties() {
+			return Collections.emptyMap();
+		}
+
+		public void setRelativeSource(Source source) {
+			// doesn't need any resources
+		}
+	}
+}
@@ -1,12 +1,16 @@
 package org.mocksy.rules;
 
+import java.net.ServerSocket;
+import java.util.Map;
 import java.util.regex.Pattern;
 import junit.framework.Assert;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mocksy.DeferredResponse;
 import org.mocksy.Request;
 import org.mocksy.Response;
+import org.mocksy.rules.http.HttpClientPool;
 import org.mocksy.rules.http.HttpMatcher;
 import org.mocksy.rules.http.HttpProxyRule;
 import org.mocksy.server.http.HttpResponse;
@@ -66,6 +70,14 @@ public class ProxyTest {
 		statusRule.addMatcher( statusMatcher );
 		rules.addRule( statusRule );
 
+		HttpResponse slowResponse = new HttpResponse( "slow", "slow response" );
+		slowResponse.setDelay( 1000 );
+		ResponseRule slowRule = new ResponseRule( slowResponse );
+		HttpMatcher slowMatcher = new HttpMatcher();
+		slowMatcher.setPattern( Pattern.compile( ".*/slow.*" ) );
+		slowRule.addMatcher( slowMatcher );
+		rules.addRule( slowRule );
+
 		HttpResponse simpleResponse = new HttpResponse( "simple",
 		        "simple response" );
 		simpleResponse.setContentType( "text/plain" );
@@ -156,4 +168,105 @@ public class ProxyTest {
 		Assert.assertEquals( "custom header response", response.toString() );
 	}
 
+	@Test
+	public void testProxyDefersAsyncRequests() throws Exception {
+		HttpProxyRule proxyRule = new HttpProxyRule( "http://127.0.0.1:11112" );
+		HttpMatcher matcher = new HttpMatcher();
+		matcher.setPattern( Pattern.compile( "http://test.mocksy.org/proxy/.*" ) );
+		proxyRule.addMatcher( matcher );
+		proxyRule.setAsync( true );
+		Ruleset ruleset = new Ruleset();
+		ruleset.addRule( proxyRule );
+
+		MockHttpRequest request = new MockHttpRequest(
+		        "http://test.mocksy.org/proxy/success" );
+		request.setAsync( true );
+		Response response = ruleset.process( request );
+		Assert.assertTrue( response instanceof DeferredResponse );
+		Assert.assertEquals( "simple response", ( (DeferredResponse) response )
+		        .get().toString() );
+
+		proxyRule.setAsync( false );
+		request = new MockHttpRequest( "http://test.mocksy.org/proxy/success" );
+		request.setAsync( true );
+		response = ruleset.process( request );
+		Assert.assertEquals( "simple response", response.toString() );
+	}
+
+	@Test
+	public void testProxyTurnsAwayDeferredCallsWhenBusy() throws Exception {
+		// a server that takes connections but never answers them
+		ServerSocket silent = new ServerSocket( 0 );
+		try {
+			HttpProxyRule proxyRule = new HttpProxyRule( "http://127.0.0.1:"
+			        + silent.getLocalPort() );
+			proxyRule.setAsync( true );
+			proxyRule.setMaxConnections( 1 );
+			proxyRule.setReadTimeout( 1000 );
+			Ruleset ruleset = new Ruleset();
+			ruleset.setDefaultRule( proxyRule );
+
+			// one call on the rule's only thread, one waiting for it
+			DeferredResponse[] responses = new DeferredResponse[3];
+			for ( int i = 0; i < responses.length; i++ ) {
+				MockHttpRequest request = new MockHttpRequest(
+				        "http://test.mocksy.org/proxy/silent" );
+				request.setAsync( true );
+				responses[i] = (DeferredResponse) ruleset.process( request );
+			}
+			// and no room for the third
+			Assert.assertTrue( responses[2].isDone() );
+			Assert.assertEquals( 503, ( (HttpResponse) responses[2].get() )
+			        .getStatusCode() );
+			Assert.assertFalse( responses[0].isDone() );
+		}
+		finally {
+			silent.close();
+		}
+	}
+
+	@Test
+	public void testProxyReusesConnections() throws Exception {
+		HttpProxyRule proxyRule = new HttpProxyRule( "http://127.0.0.1:11112" );
+		// an unusual size, so this test gets a pool of its own
+		proxyRule.setMaxConnections( 7 );
+		HttpMatcher matcher = new HttpMatcher();
+		matcher.setPattern( Pattern.compile( "http://test.mocksy.org/proxy/.*" ) );
+		proxyRule.addMatcher( matcher );
+		Ruleset ruleset = new Ruleset();
+		ruleset.addRule( proxyRule );
+
+		for ( int i = 0; i < 10; i++ ) {
+			Request request = new MockHttpRequest(
+			        "http://test.mocksy.org/proxy/success" );
+			Assert.assertEquals( "simple response", ruleset.process( request )
+			        .toString() );
+		}
+		Map<String, Number> metrics = proxyRule.getMetrics();
+		Assert.assertEquals( 1, metrics.get( "connections.open" ) );
+		Assert.assertEquals( 0, metrics.get( "connections.leased" ) );
+		Assert.assertEquals( 7, metrics.get( "connections.max" ) );
+		Assert.assertEquals( 10L, metrics.get( "requests" ) );
+		Assert.assertSame( proxyRule.getPool(), HttpClientPool.getPool(
+		        "http://127.0.0.1:11112/other", 7,
+		        HttpClientPool.DEFAULT_CONNECT_TIMEOUT,
+		        HttpClientPool.DEFAULT_READ_TIMEOUT,
+		        HttpClientPool.DEFAULT_IDLE_TIMEOUT ) );
+	}
+
+	@Test
+	public void testProxyReadTimeout() throws Exception {
+		HttpProxyRule proxyRule = new HttpProxyRule( "http://127.0.0.1:11112" );
+		proxyRule.setReadTimeout( 200 );
+		HttpMatcher matcher = new HttpMatcher();
+		matcher.setPattern( Pattern.compile( "http://test.mocksy.org/proxy/.*" ) );
+		proxyRule.addMatcher( matcher );
+		Ruleset ruleset = new Ruleset();
+		ruleset.addRule( proxyRule );
+
+		Request request = new MockHttpRequest(
+		        "http://test.mocksy.org/proxy/slow" );
+		HttpResponse response = (HttpResponse) ruleset.process( request );
+		Assert.assertEquals( 504, response.getStatusCode() );
+	}
 }
@@ -0,0 +1,176 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.http.HttpProxyRule;
+import org.mocksy.server.http.HttpRequest;
+import org.mocksy.server.http.MockHttpRequest;
+import org.mocksy.server.http.MocksyServer;
+
+/**
+ * What the proxy tests have in common: a server on a free port for the
+ * proxy rules to call, the rules it answers with, and calling a proxy rule
+ * the way the server would.
+ */
+class ProxyTestSupport {
+	private ProxyTestSupport() {
+	}
+
+	/**
+	 * Starts a server on any free port that answers every request with the
+	 * given Rule.
+	 */
+	static MocksyServer startBackend(Rule rule) throws Exception {
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( rule );
+		return startBackend( rules );
+	}
+
+	/**
+	 * Starts a server on any free port that answers with the given Rules.
+	 */
+	static MocksyServer startBackend(Ruleset rules) throws Exception {
+		MocksyServer server = new MocksyServer( rules, 0 );
+		server.start();
+		return server;
+	}
+
+	static String url(MocksyServer server) {
+		return "http://127.0.0.1:" + server.getPort();
+	}
+
+	/**
+	 * Returns the URL of a port that nothing is listening on.
+	 */
+	static String deadUrl() throws IOException {
+		ServerSocket socket = new ServerSocket( 0 );
+		try {
+			return "http://127.0.0.1:" + socket.getLocalPort();
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	static String fetch(HttpProxyRule rule, String path) throws Exception {
+		return fetch( rule, new MockHttpRequest( "http://localhost" + path ) );
+	}
+
+	/**
+	 * Processes the request and reads the response through, as the client
+	 * would, e.g. so that it's recorded.
+	 */
+	static String fetch(HttpProxyRule rule, Request request) throws Exception {
+		Response response = rule.process( request );
+		String body = response.toString();
+		response.close();
+		return body;
+	}
+
+	/**
+	 * Posts the form to the server over HTTP, so that it's decoded by the
+	 * servlet container, and returns the body of the response.
+	 */
+	static String postForm(String url, String form) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL( url )
+		        .openConnection();
+		connection.setDoOutput( true );
+		connection.setRequestMethod( "POST" );
+		connection.setRequestProperty( "Content-Type",
+		        "application/x-www-form-urlencoded" );
+		OutputStream output = connection.getOutputStream();
+		output.write( form.getBytes( "UTF-8" ) );
+		output.close();
+		InputStream input = connection.getInputStream();
+		try {
+			StringBuilder body = new StringBuilder();
+			int read = -1;
+			while ( ( read = input.read() ) > -1 ) {
+				body.append( (char) read );
+			}
+			return body.toString();
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	static String getPath(Request request) {
+		return ( (HttpRequest) request ).getServletRequest().getPathInfo();
+	}
+
+	static void deleteDir(File dir) {
+		if ( dir.isDirectory() ) {
+			for ( File file : dir.listFiles() ) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * A Rule for a backend, that takes every request it's given.
+	 */
+	abstract static class BackendRule implements Rule {
+		private final Collection<Matcher> matchers = new ArrayList<Matcher>();
+
+		public void addMatcher(Matcher matcher) {
+			this.matchers.add( matcher );
+		}
+
+		public Collection<Matcher> getMatchers() {
+			return this.matchers;
+		}
+
+		public boolean matches(Request request) {
+			return true;
+		}
+	}
+
+	/**
+	 * Numbers the requests it's given, so that tests can tell which call to
+	 * the backend a response came from.
+	 */
+	abstract static class CountingRule extends BackendRule {
+		final AtomicInteger count = new AtomicInteger();
+
+		public Response process(Request request) throws Exception {
+			return this.respond( request, this.count.incrementAndGet() );
+		}
+
+		/**
+		 * Answers the request.
+		 * 
+		 * @param request the request
+		 * @param count which request it is, starting at 1
+		 */
+		abstract Response respond(Request request, int count)
+		        throws Exception;
+	}
+}
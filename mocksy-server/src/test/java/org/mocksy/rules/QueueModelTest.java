@@ -0,0 +1,104 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.server.http.HttpResponse;
+import org.mocksy.server.http.MockHttpRequest;
+
+public class QueueModelTest {
+
+	@Test
+	public void testParseDistributions() {
+		assertEquals( 50.0, Distribution.parse( "50" ).getMean(), 0.0 );
+		assertEquals( 50L, Distribution.parse( "constant:50" ).sample() );
+		assertEquals( 50.0, Distribution.parse( "uniform:20,80" ).getMean(),
+		        0.0 );
+		assertEquals( 50.0, Distribution.parse( "exponential:50" ).getMean(),
+		        0.0 );
+		assertEquals( 50.0, Distribution.parse( "normal:50,10" ).getMean(),
+		        0.0 );
+		for ( int i = 0; i < 100; i++ ) {
+			long sample = Distribution.parse( "uniform:20,80" ).sample();
+			assertTrue( sample >= 20 && sample <= 80 );
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDistribution() {
+		Distribution.parse( "poisson:4" );
+	}
+
+	@Test
+	public void testLatencyGrowsWithLoad() {
+		QueueModel model = new QueueModel( 2, Distribution.parse( "1000" ) );
+		// two workers are free, so the first two requests go straight in
+		assertTrue( model.admit() <= 1000 );
+		assertTrue( model.admit() <= 1000 );
+		assertEquals( 2, model.getBusyWorkers() );
+		// the rest have to wait for a worker
+		long third = model.admit();
+		assertTrue( third > 1900 && third <= 2000 );
+		long fourth = model.admit();
+		assertTrue( fourth > 1900 && fourth <= 2000 );
+		long fifth = model.admit();
+		assertTrue( fifth > 2900 && fifth <= 3000 );
+		assertEquals( 5, model.getAdmitted() );
+	}
+
+	@Test
+	public void testRejectWhenQueueIsFull() {
+		QueueModel model = new QueueModel( 1, Distribution.parse( "1000" ) );
+		model.setQueueSize( 1 );
+		assertTrue( model.admit() >= 0 );
+		// one waiting request is allowed
+		assertTrue( model.admit() >= 0 );
+		// but not two
+		assertEquals( -1, model.admit() );
+		assertEquals( 2, model.getAdmitted() );
+		assertEquals( 1, model.getRejected() );
+	}
+
+	@Test
+	public void testResponseRuleDelay() throws Exception {
+		Response response = new Response( "slow", "slow response" );
+		ResponseRule rule = new ResponseRule( response );
+		QueueModel model = new QueueModel( 1, Distribution.parse( "1000" ) );
+		model.setQueueSize( 0 );
+		HttpResponse overload = new HttpResponse( "busy", "too busy" );
+		overload.setStatusCode( 503 );
+		rule.setQueueModel( model, overload );
+
+		MockHttpRequest request = new MockHttpRequest( "http://localhost/" );
+		Response first = rule.process( request );
+		assertNotSame( response, first );
+		assertEquals( "slow response", first.toString() );
+		assertTrue( first.getDelay() > 900 );
+		// the shared response is left alone
+		assertEquals( 0, response.getDelay() );
+
+		Response second = rule.process( request );
+		assertEquals( 503, ( (HttpResponse) second ).getStatusCode() );
+		assertSame( overload, second );
+		assertSame( second, rule.process( request ) );
+	}
+}
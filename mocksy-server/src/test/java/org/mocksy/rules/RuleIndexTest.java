@@ -0,0 +1,226 @@
+package org.mocksy.rules;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.config.UpdateableRulesetFactory;
+import org.mocksy.rules.http.HttpMatcher;
+import org.mocksy.server.http.MockHttpRequest;
+
+public class RuleIndexTest {
+	private static final String BASE_URL = "http://localhost";
+
+	@Test
+	public void testGuardsAreCheckedOncePerRequest() throws Exception {
+		Ruleset nested = new Ruleset();
+		CountingMatcher nestedRules = new CountingMatcher( ".*/other/.*" );
+		nested.addRule( rule( "a", nestedRules ) );
+		nested.addRule( rule( "b", new CountingMatcher( ".*/b" ) ) );
+		CountingMatcher guard = new CountingMatcher( ".*/nested/.*" );
+		Ruleset rules = new Ruleset();
+		rules.addRule( nest( nested, guard ) );
+		rules.addRule( rule( "c", new CountingMatcher( ".*/c" ) ) );
+
+		Assert.assertEquals( "b", process( rules, "/nested/b" ) );
+		Assert.assertEquals( 1, guard.count );
+		// the guard doesn't match, so none of the nested rules are tried
+		Assert.assertEquals( "c", process( rules, "/c" ) );
+		Assert.assertEquals( 2, guard.count );
+		Assert.assertEquals( 1, nestedRules.count );
+		// two rules, the nested ruleset's fallback and one more rule
+		Assert.assertEquals( 4, rules.getIndex().size() );
+	}
+
+	@Test
+	public void testNestedDefaults() throws Exception {
+		Ruleset inner = new Ruleset();
+		inner.addRule( rule( "inner", new CountingMatcher( ".*/inner" ) ) );
+		Ruleset middle = new Ruleset();
+		middle.addRule( nest( inner, new CountingMatcher( ".*/a/b/.*" ) ) );
+		middle.addRule( rule( "middle", new CountingMatcher( ".*/middle" ) ) );
+		Ruleset rules = new Ruleset();
+		rules.addRule( nest( middle, new CountingMatcher( ".*/a/.*" ) ) );
+		rules.addRule( rule( "after", new CountingMatcher( ".*" ) ) );
+		rules.setDefaultRule( rule( "default" ) );
+
+		Assert.assertEquals( "inner", process( rules, "/a/b/inner" ) );
+		Assert.assertEquals( "middle", process( rules, "/a/middle" ) );
+		// nothing nested matched, and they've no defaults, so it's the
+		// top-level default rather than the rule after them
+		Assert.assertEquals( "default", process( rules, "/a/b/other" ) );
+		Assert.assertEquals( "after", process( rules, "/other" ) );
+
+		middle.setDefaultRule( rule( "middle-default" ) );
+		Assert.assertEquals( "middle-default", process( rules, "/a/b/other" ) );
+		inner.setDefaultRule( rule( "inner-default" ) );
+		Assert.assertEquals( "inner-default", process( rules, "/a/b/other" ) );
+		Assert.assertEquals( "middle-default", process( rules, "/a/other" ) );
+	}
+
+	@Test
+	public void testNestedChangesArePickedUp() throws Exception {
+		Ruleset nested = new Ruleset();
+		Ruleset rules = new Ruleset();
+		rules.addRule( nest( nested, new CountingMatcher( ".*/nested/.*" ) ) );
+		rules.setDefaultRule( rule( "default" ) );
+		Assert.assertEquals( "default", process( rules, "/nested/a" ) );
+		RuleIndex index = rules.getIndex();
+		Assert.assertSame( index, rules.getIndex() );
+
+		nested.addRule( rule( "a", new CountingMatcher( ".*/a" ) ) );
+		Assert.assertEquals( "a", process( rules, "/nested/a" ) );
+		Assert.assertNotSame( index, rules.getIndex() );
+
+		// a change to a ruleset that isn't part of it leaves the index be
+		index = rules.getIndex();
+		new Ruleset().addRule( rule( "x" ) );
+		Assert.assertSame( index, rules.getIndex() );
+	}
+
+	@Test
+	public void testNestedRulesetIsUpdatedWhenMatched() throws Exception {
+		UpdatingFactory factory = new UpdatingFactory();
+		Ruleset rules = new Ruleset();
+		rules.addRule( nest( factory.getRuleset(), new CountingMatcher(
+		        ".*/nested/.*" ) ) );
+		rules.setDefaultRule( rule( "default" ) );
+
+		Assert.assertEquals( "default", process( rules, "/other" ) );
+		Assert.assertEquals( 0, factory.checks );
+		Assert.assertEquals( "updated", process( rules, "/nested/a" ) );
+		int checks = factory.checks;
+		Assert.assertEquals( "updated", process( rules, "/nested/a" ) );
+		Assert.assertEquals( checks + 1, factory.checks );
+	}
+
+	@Test
+	public void testRulesetNestedInItself() throws Exception {
+		Ruleset rules = new Ruleset();
+		rules.addRule( nest( rules, new CountingMatcher( ".*/again/.*" ) ) );
+		rules.addRule( rule( "a", new CountingMatcher( ".*/a" ) ) );
+		rules.setDefaultRule( rule( "default" ) );
+		// it's left as it is rather than inlined over and over
+		Assert.assertEquals( "a", process( rules, "/a" ) );
+		Assert.assertEquals( "default", process( rules, "/b" ) );
+		Assert.assertEquals( 2, rules.getIndex().size() );
+	}
+
+	@Test
+	public void testUpdateCheckDoesNotHoldUpOtherRequests() throws Exception {
+		final BlockingFactory factory = new BlockingFactory();
+		factory.getRuleset().setDefaultRule( rule( "default" ) );
+		Thread checker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					factory.getRuleset().checkForUpdates();
+				}
+				catch ( Exception e ) {
+					// nothing to check
+				}
+			}
+		};
+		checker.start();
+		Assert.assertTrue( factory.checking.await( 5, TimeUnit.SECONDS ) );
+		// served with the rules as they are, rather than waiting
+		Assert.assertEquals( "default", process( factory.getRuleset(), "/a" ) );
+		factory.release.countDown();
+		checker.join();
+	}
+
+	private static String process(Ruleset rules, String path)
+	        throws Exception
+	{
+		return rules.process( new MockHttpRequest( BASE_URL + path ) ).getId();
+	}
+
+	private static Rule rule(String id, Matcher... matchers) {
+		ResponseRule rule = new ResponseRule( new Response( id, id ) );
+		for ( Matcher matcher : matchers ) {
+			rule.addMatcher( matcher );
+		}
+		return rule;
+	}
+
+	private static Rule nest(Ruleset ruleset, Matcher matcher) {
+		RulesetRule rule = new RulesetRule( ruleset );
+		rule.addMatcher( matcher );
+		return rule;
+	}
+
+	/**
+	 * Matches the URL and counts how often it's asked to.
+	 */
+	private static class CountingMatcher extends HttpMatcher {
+		private int count;
+
+		CountingMatcher(String pattern) {
+			this.setPattern( Pattern.compile( pattern ) );
+		}
+
+		@Override
+		public boolean matches(Request request) {
+			this.count++;
+			return super.matches( request );
+		}
+	}
+
+	/**
+	 * Adds a rule the first time it's checked for updates.
+	 */
+	private static class UpdatingFactory implements UpdateableRulesetFactory {
+		private final Ruleset ruleset = new Ruleset( this );
+		private int checks;
+
+		public Ruleset getRuleset() {
+			return this.ruleset;
+		}
+
+		public void checkForUpdates() {
+			if ( this.checks++ == 0 ) {
+				this.ruleset.addRule( rule( "updated", new CountingMatcher(
+				        ".*/a" ) ) );
+			}
+		}
+	}
+
+	/**
+	 * Blocks the first check for updates until it's released.
+	 */
+	private static class BlockingFactory implements UpdateableRulesetFactory {
+		private final Ruleset ruleset = new Ruleset( this );
+		final CountDownLatch checking = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+
+		public Ruleset getRuleset() {
+			return this.ruleset;
+		}
+
+		public void checkForUpdates() throws Exception {
+			if ( this.checking.getCount() > 0 ) {
+				this.checking.countDown();
+				this.release.await();
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mocksy.Response;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+
+/**
+ * Measures the throughput and latency of the request backends head to
+ * head: the same static response is served by each backend in turn, and
+ * hammered by a number of client threads over kept-alive connections.
+ *
+ * This isn't run as part of the build; run it by hand with
+ * <code>java org.mocksy.server.http.BackendBenchmark [threads] [seconds] [bytes]</code>
+ * on the test classpath.
+ */
+public class BackendBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 16;
+		int seconds = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+		int size = args.length > 2 ? Integer.parseInt( args[2] ) : 1024;
+		// logging each match would swamp what's being measured
+		Logger.getLogger( "org.mocksy" ).setLevel( Level.WARNING );
+
+		StringBuilder body = new StringBuilder();
+		while ( body.length() < size ) {
+			body.append( 'x' );
+		}
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( new ResponseRule( new Response( "benchmark",
+		        body.toString() ) ) );
+
+		System.out.println( threads + " threads, " + size + " byte body, "
+		        + seconds + "s" );
+		String[] backends = { "jetty", "nio" };
+		for ( String name : backends ) {
+			MocksyServer server = new MocksyServer( rules, 0 );
+			server.setBackend( MocksyServer.createBackend( name ) );
+			server.start();
+			URL url = new URL( "http://127.0.0.1:" + server.getPort()
+			        + "/benchmark" );
+			// warm up
+			run( url, threads, 2000L );
+			long start = System.currentTimeMillis();
+			Result result = run( url, threads, seconds * 1000L );
+			long elapsed = System.currentTimeMillis() - start;
+			server.stop();
+
+			long[] latencies = result.getLatencies();
+			System.out.println();
+			System.out.println( name );
+			System.out.println( "requests:   " + latencies.length );
+			System.out.println( "errors:     " + result.errors.get() );
+			System.out.println( "throughput: " + latencies.length * 1000L
+			        / elapsed + " req/s" );
+			System.out.println( "p50:        " + percentile( latencies, 50 )
+			        + " us" );
+			System.out.println( "p99:        " + percentile( latencies, 99 )
+			        + " us" );
+			System.out.println( "max:        " + percentile( latencies, 100 )
+			        + " us" );
+		}
+		System.exit( 0 );
+	}
+
+	private static Result run(final URL url, int threads, long millis)
+	        throws InterruptedException
+	{
+		final Result result = new Result( threads );
+		final long end = System.currentTimeMillis() + millis;
+		final CountDownLatch done = new CountDownLatch( threads );
+		for ( int i = 0; i < threads; i++ ) {
+			final int thread = i;
+			new Thread() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					long[] latencies = new long[1024];
+					int count = 0;
+					while ( System.currentTimeMillis() < end ) {
+						long start = System.nanoTime();
+						try {
+							HttpURLConnection conn = (HttpURLConnection) url
+							        .openConnection();
+							InputStream input = conn.getInputStream();
+							while ( input.read( buffer ) > -1 ) {
+								// drain it so the connection can be reused
+							}
+							input.close();
+							if ( count == latencies.length ) {
+								latencies = Arrays.copyOf( latencies,
+								        count * 2 );
+							}
+							latencies[count++] = ( System.nanoTime() - start )
+							        / 1000;
+						}
+						catch ( Exception e ) {
+							result.errors.incrementAndGet();
+						}
+					}
+					result.latencies[thread] = Arrays.copyOf( latencies,
+					        count );
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		return result;
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if ( sorted.length == 0 ) {
+			return 0;
+		}
+		int index = (int) Math.ceil( sorted.length * percent / 100.0 ) - 1;
+		return sorted[Math.max( 0, index )];
+	}
+
+	private static class Result {
+		final AtomicLong errors = new AtomicLong();
+		final long[][] latencies;
+
+		Result(int threads) {
+			this.latencies = new long[threads][];
+		}
+
+		/**
+		 * Returns the latencies of all the threads' requests, sorted.
+		 */
+		long[] getLatencies() {
+			int total = 0;
+			for ( long[] thread : this.latencies ) {
+				total += thread.length;
+			}
+			long[] all = new long[total];
+			int offset = 0;
+			for ( long[] thread : this.latencies ) {
+				System.arraycopy( thread, 0, all, offset, thread.length );
+				offset += thread.length;
+			}
+			Arrays.sort( all );
+			return all;
+		}
+	}
+}
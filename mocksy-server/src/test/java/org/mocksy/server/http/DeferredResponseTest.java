@@ -0,0 +1,225 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.DeferredResponse;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.Matcher;
+import org.mocksy.rules.Rule;
+import org.mocksy.rules.Ruleset;
+
+public class DeferredResponseTest {
+	private ScheduledExecutorService timer;
+
+	@Before
+	public void setUp() {
+		this.timer = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		this.timer.shutdownNow();
+	}
+
+	@Test
+	public void testCompletedLater() throws Exception {
+		for ( ServerBackend backend : backends() ) {
+			MocksyServer server = start( backend, new LaterRule( 200, 0 ) );
+			try {
+				Assert.assertEquals( "later", fetch( server, "/" ) );
+			}
+			finally {
+				server.stop();
+			}
+		}
+	}
+
+	@Test
+	public void testTimedOut() throws Exception {
+		for ( ServerBackend backend : backends() ) {
+			MocksyServer server = start( backend, new LaterRule( 2000, 100 ) );
+			try {
+				Assert.assertEquals( 504, getStatus( server, "/" ) );
+			}
+			finally {
+				server.stop();
+			}
+		}
+	}
+
+	@Test
+	public void testFailed() throws Exception {
+		for ( ServerBackend backend : backends() ) {
+			MocksyServer server = start( backend, new LaterRule( -1, 0 ) );
+			try {
+				Assert.assertEquals( 500, getStatus( server, "/" ) );
+			}
+			finally {
+				server.stop();
+			}
+		}
+	}
+
+	@Test
+	public void testWaitingHoldsNoThreads() throws Exception {
+		// 20 requests that are each completed 300ms after they arrive; two
+		// workers blocking on them would need three seconds
+		NioBackend backend = new NioBackend();
+		backend.setThreads( 2 );
+		final MocksyServer server = start( backend, new LaterRule( 300, 0 ) );
+		ExecutorService clients = Executors.newFixedThreadPool( 20 );
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			long start = System.currentTimeMillis();
+			for ( int i = 0; i < 20; i++ ) {
+				results.add( clients.submit( new Callable<String>() {
+					public String call() throws Exception {
+						return fetch( server, "/" );
+					}
+				} ) );
+			}
+			for ( Future<String> result : results ) {
+				Assert.assertEquals( "later", result.get() );
+			}
+			long duration = System.currentTimeMillis() - start;
+			Assert.assertTrue( "took " + duration + "ms", duration < 1500 );
+		}
+		finally {
+			clients.shutdownNow();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testLateCompletionIsIgnored() throws Exception {
+		DeferredResponse deferred = new DeferredResponse( "cancelled" );
+		Assert.assertTrue( deferred.cancel() );
+		Assert.assertTrue( deferred.isDone() );
+		Assert.assertFalse( deferred.complete( new Response( "late", "late" ) ) );
+		Assert.assertTrue( deferred.isCancelled() );
+		Assert.assertFalse( deferred.whenDone( new Runnable() {
+			public void run() {
+				Assert.fail( "already done" );
+			}
+		} ) );
+	}
+
+	private static List<ServerBackend> backends() {
+		List<ServerBackend> backends = new ArrayList<ServerBackend>();
+		backends.add( new JettyBackend() );
+		backends.add( new NioBackend() );
+		return backends;
+	}
+
+	private static MocksyServer start(ServerBackend backend, Rule rule)
+	        throws Exception
+	{
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( rule );
+		MocksyServer server = new MocksyServer( rules, 0 );
+		server.setBackend( backend );
+		server.start();
+		return server;
+	}
+
+	private static int getStatus(MocksyServer server, String path)
+	        throws Exception
+	{
+		HttpURLConnection conn = (HttpURLConnection) new URL( "http://127.0.0.1:"
+		        + server.getPort() + path ).openConnection();
+		return conn.getResponseCode();
+	}
+
+	private static String fetch(MocksyServer server, String path)
+	        throws Exception
+	{
+		InputStream input = new URL( "http://127.0.0.1:" + server.getPort()
+		        + path ).openStream();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = -1;
+		while ( ( read = input.read( buffer ) ) > -1 ) {
+			output.write( buffer, 0, read );
+		}
+		input.close();
+		return new String( output.toByteArray() );
+	}
+
+	/**
+	 * Completes its Responses on a timer, or fails them if the delay is
+	 * negative.
+	 */
+	private class LaterRule implements Rule {
+		private final long delay;
+		private final long timeout;
+
+		LaterRule(long delay, long timeout) {
+			this.delay = delay;
+			this.timeout = timeout;
+		}
+
+		public void addMatcher(Matcher matcher) {
+		}
+
+		public boolean matches(Request request) {
+			return true;
+		}
+
+		public Collection<Matcher> getMatchers() {
+			return Collections.emptyList();
+		}
+
+		public Response process(Request request) throws Exception {
+			Assert.assertTrue( ( (HttpRequest) request ).isAsync() );
+			final DeferredResponse deferred = new DeferredResponse( "later" );
+			deferred.setTimeout( this.timeout );
+			if ( this.delay < 0 ) {
+				timer.execute( new Runnable() {
+					public void run() {
+						deferred.fail( new IllegalStateException( "failed" ) );
+					}
+				} );
+				return deferred;
+			}
+			timer.schedule( new Runnable() {
+				public void run() {
+					deferred.complete( new Response( "later", "later" ) );
+				}
+			}, this.delay, TimeUnit.MILLISECONDS );
+			return deferred;
+		}
+	}
+}
@@ -16,12 +16,15 @@ package org.mocksy.server.http;
  *  limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 
 public class MockHttpRequest extends HttpRequest {
 	private MockHttpServletRequest servletRequest;
-	private InputStream data;
+	private byte[] data;
 
 	public MockHttpRequest(String url) throws MalformedURLException {
 		super( new MockHttpServletRequest( url ) );
@@ -39,11 +42,24 @@ public class MockHttpRequest extends HttpRequest {
 
 	@Override
 	public InputStream getData() {
-		return this.data;
+		// a new stream each time, as the real request does
+		return ( this.data == null ? null : new ByteArrayInputStream(
+		        this.data ) );
 	}
 
-	public void setData(InputStream data) {
-		this.data = data;
+	@Override
+	public InputStream streamData() {
+		return this.getData();
+	}
+
+	public void setData(InputStream data) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = -1;
+		while ( ( read = data.read( buffer ) ) > -1 ) {
+			output.write( buffer, 0, read );
+		}
+		this.data = output.toByteArray();
 		this.servletRequest.setMethod( "POST" );
 	}
 
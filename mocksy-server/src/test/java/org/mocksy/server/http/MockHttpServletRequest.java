@@ -223,8 +223,8 @@ public class MockHttpServletRequest implements HttpServletRequest {
 
 	@Override
 	public int getContentLength() {
-		// TODO Auto-generated method stub
-		return 0;
+		// not known, as for a chunked request
+		return -1;
 	}
 
 	@Override
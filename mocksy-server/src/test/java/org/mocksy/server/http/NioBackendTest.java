@@ -0,0 +1,492 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpSession;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.rules.http.HttpMatcher;
+import org.mocksy.rules.http.HttpProxyRule;
+
+public class NioBackendTest {
+	private MocksyServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		Ruleset rules = new Ruleset();
+		rules.addRule( rule( new Response( "a", "first" ), ".*/a" ) );
+		rules.addRule( rule( new Response( "b", "second" ), ".*/b" ) );
+
+		Response form = new Response( "form", "posted" );
+		ResponseRule formRule = new ResponseRule( form );
+		HttpMatcher param = new HttpMatcher();
+		param.setParam( "name" );
+		param.setPattern( Pattern.compile( "value" ) );
+		formRule.addMatcher( param );
+		rules.addRule( formRule );
+
+		Response chunked = new Response( "chunked", "0123456789" );
+		chunked.setChunkSize( 4 );
+		chunked.setChunkInterval( 100 );
+		rules.addRule( rule( chunked, ".*/chunked" ) );
+
+		this.server = new MocksyServer( rules, 0 );
+		this.server.setBackend( new NioBackend() );
+		this.server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.server.stop();
+	}
+
+	@Test
+	public void testPipelinedRequests() throws Exception {
+		Socket socket = new Socket( "127.0.0.1", this.server.getPort() );
+		try {
+			// all three go out before any of the responses come back
+			OutputStream output = socket.getOutputStream();
+			output.write( ( "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+			        + "GET /b HTTP/1.1\r\nHost: localhost\r\n\r\n"
+			        + "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n" )
+			        .getBytes( "ISO-8859-1" ) );
+			output.flush();
+			InputStream input = socket.getInputStream();
+			Assert.assertEquals( "first", readResponse( input ) );
+			Assert.assertEquals( "second", readResponse( input ) );
+			Assert.assertEquals( "first", readResponse( input ) );
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testContinueAfterPipelinedRequest() throws Exception {
+		Ruleset rules = new Ruleset();
+		ResponseRule slow = new ResponseRule( new Response( "slow", "slow" ) ) {
+			@Override
+			public Response process(Request request) {
+				try {
+					Thread.sleep( 300 );
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				return super.process( request );
+			}
+		};
+		HttpMatcher matcher = new HttpMatcher();
+		matcher.setPattern( Pattern.compile( ".*/slow" ) );
+		slow.addMatcher( matcher );
+		rules.addRule( slow );
+		rules.addRule( rule( new Response( "a", "first" ), ".*/a" ) );
+		MocksyServer server = new MocksyServer( rules, 0 );
+		server.setBackend( new NioBackend() );
+		server.start();
+		Socket socket = new Socket( "127.0.0.1", server.getPort() );
+		try {
+			socket.setSoTimeout( 5000 );
+			OutputStream output = socket.getOutputStream();
+			// the POST's head arrives while the GET is still being served
+			output.write( ( "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+			        + "POST /a HTTP/1.1\r\nHost: localhost\r\n"
+			        + "Expect: 100-continue\r\nContent-Length: 4\r\n\r\n" )
+			        .getBytes( "ISO-8859-1" ) );
+			output.flush();
+			InputStream input = socket.getInputStream();
+			Assert.assertEquals( "slow", readResponse( input ) );
+			byte[] expected = "HTTP/1.1 100 Continue\r\n\r\n"
+			        .getBytes( "ISO-8859-1" );
+			for ( byte b : expected ) {
+				Assert.assertEquals( b, input.read() );
+			}
+			output.write( "body".getBytes( "ISO-8859-1" ) );
+			output.flush();
+			Assert.assertEquals( "first", readResponse( input ) );
+		}
+		finally {
+			socket.close();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testChunkedRequestBody() throws Exception {
+		Socket socket = new Socket( "127.0.0.1", this.server.getPort() );
+		try {
+			OutputStream output = socket.getOutputStream();
+			output.write( ( "POST /form HTTP/1.1\r\nHost: localhost\r\n"
+			        + "Content-Type: application/x-www-form-urlencoded\r\n"
+			        + "Transfer-Encoding: chunked\r\n\r\n"
+			        + "5\r\nname=\r\n5\r\nvalue\r\n0\r\n\r\n" )
+			        .getBytes( "ISO-8859-1" ) );
+			output.flush();
+			Assert.assertEquals( "posted", readResponse( socket
+			        .getInputStream() ) );
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testPacedResponse() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertEquals( "0123456789", fetch( "/chunked" ) );
+		long duration = System.currentTimeMillis() - start;
+		// 3 chunks, with 2 intervals between them
+		Assert.assertTrue( "took " + duration + "ms", duration >= 200 );
+	}
+
+	@Test
+	public void testNoMatchingRule() throws Exception {
+		HttpURLConnection conn = (HttpURLConnection) new URL( "http://127.0.0.1:"
+		        + this.server.getPort() + "/missing" ).openConnection();
+		Assert.assertEquals( 404, conn.getResponseCode() );
+	}
+
+	@Test
+	public void testProxiedResponse() throws Exception {
+		// the proxy streams the response back through the NIO backend
+		Ruleset proxyRules = new Ruleset();
+		proxyRules.setDefaultRule( new HttpProxyRule( "http://127.0.0.1:"
+		        + this.server.getPort() ) );
+		MocksyServer proxy = new MocksyServer( proxyRules, 0 );
+		proxy.setBackend( new NioBackend() );
+		proxy.start();
+		try {
+			Assert.assertEquals( "second", fetch( proxy.getPort(), "/b" ) );
+		}
+		finally {
+			proxy.stop();
+		}
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		// falls back on the worker pool where there aren't virtual threads
+		NioBackend backend = new NioBackend();
+		backend.setVirtualThreads( true );
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( new ResponseRule( new Response( "virtual",
+		        "virtual" ) ) );
+		MocksyServer server = new MocksyServer( rules, 0 );
+		server.setBackend( backend );
+		server.start();
+		try {
+			Assert.assertEquals( "virtual", fetch( server.getPort(), "/" ) );
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testIdleConnectionsAreClosed() throws Exception {
+		MocksyServer server = this.startLimited();
+		try {
+			// one says nothing, the other stops halfway through its head
+			Socket silent = new Socket( "127.0.0.1", server.getPort() );
+			Socket partial = new Socket( "127.0.0.1", server.getPort() );
+			try {
+				partial.getOutputStream().write(
+				        "GET /a HTTP/1.1\r\nHost: loc".getBytes( "ISO-8859-1" ) );
+				silent.setSoTimeout( 5000 );
+				partial.setSoTimeout( 5000 );
+				Assert.assertEquals( -1, silent.getInputStream().read() );
+				Assert.assertEquals( -1, partial.getInputStream().read() );
+			}
+			finally {
+				silent.close();
+				partial.close();
+			}
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testKeptAliveConnectionIsClosedWhenIdle() throws Exception {
+		MocksyServer server = this.startLimited();
+		try {
+			Socket socket = new Socket( "127.0.0.1", server.getPort() );
+			try {
+				socket.setSoTimeout( 5000 );
+				socket.getOutputStream().write(
+				        "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				                .getBytes( "ISO-8859-1" ) );
+				InputStream input = socket.getInputStream();
+				Assert.assertEquals( "first", readResponse( input ) );
+				Assert.assertEquals( -1, input.read() );
+			}
+			finally {
+				socket.close();
+			}
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testBodyTooLarge() throws Exception {
+		MocksyServer server = this.startLimited();
+		try {
+			Assert.assertEquals( 413, statusOf( server.getPort(),
+			        "POST /a HTTP/1.1\r\nHost: localhost\r\n"
+			                + "Content-Length: 2147483647\r\n\r\n" ) );
+			Assert.assertEquals( 413, statusOf( server.getPort(),
+			        "POST /a HTTP/1.1\r\nHost: localhost\r\n"
+			                + "Transfer-Encoding: chunked\r\n\r\n"
+			                + "200\r\n" ) );
+			// up to the limit is fine
+			Assert.assertEquals( 200, statusOf( server.getPort(),
+			        "POST /a HTTP/1.1\r\nHost: localhost\r\n"
+			                + "Content-Length: 4\r\n\r\nbody" ) );
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testFullQueueGets503() throws Exception {
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( new ResponseRule( new Response( "slow", "slow" ) ) {
+			@Override
+			public Response process(Request request) {
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				return super.process( request );
+			}
+		} );
+		NioBackend backend = new NioBackend();
+		backend.setThreads( 1 );
+		backend.setQueueSize( 1 );
+		MocksyServer server = new MocksyServer( rules, 0 );
+		server.setBackend( backend );
+		server.start();
+		String get = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+		Socket working = new Socket( "127.0.0.1", server.getPort() );
+		Socket waiting = new Socket( "127.0.0.1", server.getPort() );
+		try {
+			working.getOutputStream().write( get.getBytes( "ISO-8859-1" ) );
+			Assert.assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+			waiting.getOutputStream().write( get.getBytes( "ISO-8859-1" ) );
+			// give the selector time to queue the second one
+			Thread.sleep( 500 );
+			Assert.assertEquals( 503, statusOf( server.getPort(), get ) );
+		}
+		finally {
+			release.countDown();
+			working.close();
+			waiting.close();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testPacedResponseWithFullQueueGets503() throws Exception {
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		Response paced = new Response( "paced", "paced-body" );
+		paced.setDelay( 1000 );
+		Ruleset rules = new Ruleset();
+		rules.addRule( rule( paced, "/paced" ) );
+		rules.setDefaultRule( new ResponseRule( new Response( "slow", "slow" ) ) {
+			@Override
+			public Response process(Request request) {
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				return super.process( request );
+			}
+		} );
+		NioBackend backend = new NioBackend();
+		backend.setThreads( 1 );
+		backend.setQueueSize( 1 );
+		MocksyServer server = new MocksyServer( rules, 0 );
+		server.setBackend( backend );
+		server.start();
+		String get = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+		Socket pacedSocket = new Socket( "127.0.0.1", server.getPort() );
+		Socket working = new Socket( "127.0.0.1", server.getPort() );
+		Socket waiting = new Socket( "127.0.0.1", server.getPort() );
+		try {
+			pacedSocket.getOutputStream().write(
+			        "GET /paced HTTP/1.1\r\nHost: localhost\r\n\r\n"
+			                .getBytes( "ISO-8859-1" ) );
+			// let it get as far as waiting out its delay
+			Thread.sleep( 200 );
+			working.getOutputStream().write( get.getBytes( "ISO-8859-1" ) );
+			Assert.assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+			waiting.getOutputStream().write( get.getBytes( "ISO-8859-1" ) );
+			// once the delay is up there's no worker to carry on with it
+			Assert.assertEquals( 503, readStatus( pacedSocket ) );
+		}
+		finally {
+			release.countDown();
+			pacedSocket.close();
+			working.close();
+			waiting.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Starts a server with a short idle timeout and a small body limit.
+	 */
+	private MocksyServer startLimited() throws Exception {
+		NioBackend backend = new NioBackend();
+		backend.setIdleTimeout( 200 );
+		backend.setMaxBodySize( 256 );
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( new ResponseRule( new Response( "a", "first" ) ) );
+		MocksyServer server = new MocksyServer( rules, 0 );
+		server.setBackend( backend );
+		server.start();
+		return server;
+	}
+
+	private static int statusOf(int port, String request) throws IOException
+	{
+		Socket socket = new Socket( "127.0.0.1", port );
+		try {
+			socket.getOutputStream().write( request.getBytes( "ISO-8859-1" ) );
+			return readStatus( socket );
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	private static int readStatus(Socket socket) throws IOException {
+		socket.setSoTimeout( 5000 );
+		InputStream input = socket.getInputStream();
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ( ( c = input.read() ) > -1 && c != '\r' ) {
+			line.append( (char) c );
+		}
+		return Integer.parseInt( line.toString().split( " " )[1] );
+	}
+
+	private static ResponseRule rule(Response response, String pattern) {
+		ResponseRule rule = new ResponseRule( response );
+		HttpMatcher matcher = new HttpMatcher();
+		matcher.setPattern( Pattern.compile( pattern ) );
+		rule.addMatcher( matcher );
+		return rule;
+	}
+
+	private String fetch(String path) throws Exception {
+		return fetch( this.server.getPort(), path );
+	}
+
+	private static String fetch(int port, String path) throws Exception {
+		InputStream input = new URL( "http://127.0.0.1:" + port + path )
+		        .openStream();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = -1;
+		while ( ( read = input.read( buffer ) ) > -1 ) {
+			output.write( buffer, 0, read );
+		}
+		input.close();
+		return new String( output.toByteArray() );
+	}
+
+	/**
+	 * Reads one response with a Content-Length off the stream, leaving the
+	 * stream at the start of the next one.
+	 */
+	private static String readResponse(InputStream input) throws IOException {
+		StringBuilder head = new StringBuilder();
+		while ( !head.toString().endsWith( "\r\n\r\n" ) ) {
+			int c = input.read();
+			if ( c < 0 ) {
+				throw new IOException( "Connection closed after " + head );
+			}
+			head.append( (char) c );
+		}
+		Assert.assertTrue( head.toString(), head.toString().startsWith(
+		        "HTTP/1.1 200" ) );
+		int length = -1;
+		for ( String line : head.toString().split( "\r\n" ) ) {
+			if ( line.toLowerCase().startsWith( "content-length:" ) ) {
+				length = Integer.parseInt( line.substring( 15 ).trim() );
+			}
+		}
+		byte[] body = new byte[length];
+		int read = 0;
+		while ( read < length ) {
+			int count = input.read( body, read, length - read );
+			if ( count < 0 ) {
+				throw new IOException( "Connection closed" );
+			}
+			read += count;
+		}
+		return new String( body, "ISO-8859-1" );
+	}
+
+	@Test
+	public void testSessionLastsForTheRequest() throws Exception {
+		NioServletRequest request = new NioServletRequest( "GET", "/",
+		        "HTTP/1.1" );
+		Assert.assertNull( request.getSession( false ) );
+		HttpSession session = request.getSession();
+		session.setAttribute( "user", "alice" );
+		Assert.assertSame( session, request.getSession( false ) );
+		Assert.assertEquals( "alice", request.getSession().getAttribute(
+		        "user" ) );
+		session.invalidate();
+		Assert.assertNull( request.getSession( false ) );
+		Assert.assertNotSame( session, request.getSession( true ) );
+		// another request doesn't see it
+		Assert.assertNull( new NioServletRequest( "GET", "/", "HTTP/1.1" )
+		        .getSession( false ) );
+	}
+}
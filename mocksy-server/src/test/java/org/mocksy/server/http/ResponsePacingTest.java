@@ -0,0 +1,137 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.rules.http.HttpMatcher;
+
+public class ResponsePacingTest {
+	private static final String BODY;
+	static {
+		StringBuilder body = new StringBuilder();
+		for ( int i = 0; i < 100; i++ ) {
+			body.append( "0123456789" );
+		}
+		BODY = body.toString();
+	}
+	private MocksyServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		Ruleset rules = new Ruleset();
+
+		Response throttled = new Response( "throttled", BODY );
+		// 1000 bytes at 2000 bytes/sec
+		throttled.setBandwidth( 2000 );
+		rules.addRule( rule( throttled, ".*/throttled" ) );
+
+		Response tiny = new Response( "tiny", BODY );
+		// 1 byte chunks would be due every half a millisecond
+		tiny.setBandwidth( 2000 );
+		tiny.setChunkSize( 1 );
+		rules.addRule( rule( tiny, ".*/tiny" ) );
+
+		Response chunked = new Response( "chunked", BODY );
+		// 4 chunks of 250 bytes, 100ms apart
+		chunked.setChunkSize( 250 );
+		chunked.setChunkInterval( 100 );
+		rules.addRule( rule( chunked, ".*/chunked" ) );
+
+		Response delayed = new Response( "delayed", BODY );
+		delayed.setDelay( 300 );
+		rules.addRule( rule( delayed, ".*/delayed" ) );
+
+		rules.setDefaultRule( new ResponseRule( new Response( "default",
+		        BODY ) ) );
+		this.server = new MocksyServer( rules, 0 );
+		this.server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.server.stop();
+	}
+
+	@Test
+	public void testUnpacedResponse() throws Exception {
+		Assert.assertEquals( BODY, fetch( "/plain" ) );
+	}
+
+	@Test
+	public void testThrottledResponse() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertEquals( BODY, fetch( "/throttled" ) );
+		long duration = System.currentTimeMillis() - start;
+		// the last of the 10 chunks is sent after 9 intervals of 50ms
+		Assert.assertTrue( "took " + duration + "ms", duration >= 400 );
+	}
+
+	@Test
+	public void testSmallChunksAreStillThrottled() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertEquals( BODY, fetch( "/tiny" ) );
+		long duration = System.currentTimeMillis() - start;
+		Assert.assertTrue( "took " + duration + "ms", duration >= 450 );
+	}
+
+	@Test
+	public void testChunkedResponse() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertEquals( BODY, fetch( "/chunked" ) );
+		long duration = System.currentTimeMillis() - start;
+		Assert.assertTrue( "took " + duration + "ms", duration >= 300 );
+	}
+
+	@Test
+	public void testDelayedResponse() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertEquals( BODY, fetch( "/delayed" ) );
+		long duration = System.currentTimeMillis() - start;
+		Assert.assertTrue( "took " + duration + "ms", duration >= 300 );
+	}
+
+	private static ResponseRule rule(Response response, String pattern) {
+		ResponseRule rule = new ResponseRule( response );
+		HttpMatcher matcher = new HttpMatcher();
+		matcher.setPattern( Pattern.compile( pattern ) );
+		rule.addMatcher( matcher );
+		return rule;
+	}
+
+	private String fetch(String path) throws Exception {
+		InputStream input = new URL( "http://127.0.0.1:"
+		        + this.server.getPort() + path ).openStream();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = -1;
+		while ( ( read = input.read( buffer ) ) > -1 ) {
+			output.write( buffer, 0, read );
+		}
+		input.close();
+		return new String( output.toByteArray() );
+	}
+}
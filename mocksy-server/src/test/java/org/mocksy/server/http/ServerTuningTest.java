@@ -0,0 +1,185 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import junit.framework.Assert;
+import org.apache.commons.cli.CommandLine;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+
+public class ServerTuningTest {
+	private static final int PORT = 11121;
+
+	@Test
+	public void testTuningFile() throws Exception {
+		File file = File.createTempFile( "tuning", ".properties" );
+		try {
+			FileWriter writer = new FileWriter( file );
+			writer.write( "acceptors=4\nmax-threads=500\nqueue-size=2000\n"
+			        + "admin.max-threads=10\n" );
+			writer.close();
+			ServerTuning tuning = ServerTuning.load( file );
+			Assert.assertEquals( 4, tuning.get( ServerTuning.ACCEPTORS ) );
+			Assert.assertEquals( 500, tuning.get( ServerTuning.MAX_THREADS ) );
+			Assert.assertFalse( tuning.isSet( ServerTuning.BACKLOG ) );
+			ServerTuning admin = ServerTuning.loadAdmin( file );
+			Assert.assertEquals( 4, admin.get( ServerTuning.ACCEPTORS ) );
+			Assert.assertEquals( 10, admin.get( ServerTuning.MAX_THREADS ) );
+
+			writer = new FileWriter( file );
+			writer.write( "max-thread=500\n" );
+			writer.close();
+			try {
+				ServerTuning.load( file );
+				Assert.fail( "unknown setting" );
+			}
+			catch ( IllegalArgumentException e ) {
+				// expected
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testBadValue() {
+		ServerTuning tuning = new ServerTuning();
+		try {
+			tuning.set( ServerTuning.MAX_THREADS, "lots" );
+			Assert.fail( "not a number" );
+		}
+		catch ( IllegalArgumentException e ) {
+			// expected
+		}
+		try {
+			tuning.set( ServerTuning.BACKLOG, 0 );
+			Assert.fail( "not positive" );
+		}
+		catch ( IllegalArgumentException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCommandLine() {
+		CommandLine line = MocksyServer.parseCommandLine( new String[] {
+		        "--max-threads", "300", "--idle-timeout", "5000" } );
+		Assert.assertEquals( "300", line.getOptionValue( "max-threads" ) );
+		Assert.assertEquals( "5000", line.getOptionValue( "idle-timeout" ) );
+		Assert.assertNull( line.getOptionValue( "backlog" ) );
+	}
+
+	@Test
+	public void testJettySettings() throws Exception {
+		ServerTuning tuning = new ServerTuning();
+		tuning.set( ServerTuning.SELECTORS, 3 );
+		tuning.set( ServerTuning.MAX_THREADS, 40 );
+		tuning.set( ServerTuning.QUEUE_SIZE, 100 );
+		tuning.set( ServerTuning.IDLE_TIMEOUT, 5000 );
+		tuning.set( ServerTuning.BACKLOG, 64 );
+		tuning.set( ServerTuning.HEADER_BUFFER, 8192 );
+		ServerTuning adminTuning = new ServerTuning();
+		adminTuning.set( ServerTuning.MIN_THREADS, 2 );
+		adminTuning.set( ServerTuning.MAX_THREADS, 5 );
+
+		MocksyServer server = new MocksyServer( rules(), PORT );
+		server.startAdminPort( true );
+		server.setTuning( tuning );
+		server.setAdminTuning( adminTuning );
+		server.start();
+		try {
+			Assert.assertEquals( "tuned", fetch( PORT, "/" ) );
+			Map<String, Number> settings = server.getSettings();
+			Assert.assertEquals( 3, settings.get( "request.acceptors" ) );
+			Assert.assertEquals( 3, settings.get( "request.selectors" ) );
+			Assert.assertEquals( 40, settings.get( "request.max-threads" ) );
+			Assert.assertEquals( 100, settings.get( "request.queue-size" ) );
+			Assert.assertEquals( 5000, settings.get( "request.idle-timeout" ) );
+			Assert.assertEquals( 64, settings.get( "request.backlog" ) );
+			Assert.assertEquals( 8192, settings.get( "request.header-buffer" ) );
+			Assert.assertEquals( 2, settings.get( "admin.min-threads" ) );
+			Assert.assertEquals( 5, settings.get( "admin.max-threads" ) );
+
+			String report = fetch( PORT + 1, "/settings" );
+			Assert.assertTrue( report, report
+			        .contains( "request.max-threads=40" ) );
+			Assert.assertTrue( report, report
+			        .contains( "admin.max-threads=5" ) );
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testNioSettings() throws Exception {
+		ServerTuning tuning = new ServerTuning();
+		tuning.set( ServerTuning.MAX_THREADS, 16 );
+		tuning.set( ServerTuning.BACKLOG, 128 );
+		tuning.set( ServerTuning.REQUEST_BUFFER, 4096 );
+		tuning.set( ServerTuning.MIN_THREADS, 2 );
+		tuning.set( ServerTuning.QUEUE_SIZE, 50 );
+		tuning.set( ServerTuning.IDLE_TIMEOUT, 5000 );
+		NioBackend backend = new NioBackend();
+		tuning.apply( backend );
+		MocksyServer server = new MocksyServer( rules(), 0 );
+		server.setBackend( backend );
+		server.start();
+		try {
+			Assert.assertEquals( "tuned", fetch( server.getPort(), "/" ) );
+			Map<String, Number> settings = server.getSettings();
+			Assert.assertEquals( 16, settings.get( "request.max-threads" ) );
+			Assert.assertEquals( 128, settings.get( "request.backlog" ) );
+			Assert.assertEquals( 4096, settings
+			        .get( "request.request-buffer" ) );
+			Assert.assertEquals( 50, settings.get( "request.queue-size" ) );
+			Assert.assertEquals( 5000, settings.get( "request.idle-timeout" ) );
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	private static Ruleset rules() {
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( new ResponseRule( new Response( "tuned",
+		        "tuned" ) ) );
+		return rules;
+	}
+
+	private static String fetch(int port, String path) throws Exception {
+		InputStream input = new URL( "http://127.0.0.1:" + port + path )
+		        .openStream();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = -1;
+		while ( ( read = input.read( buffer ) ) > -1 ) {
+			output.write( buffer, 0, read );
+		}
+		input.close();
+		return new String( output.toByteArray() );
+	}
+}
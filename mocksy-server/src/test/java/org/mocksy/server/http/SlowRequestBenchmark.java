@@ -0,0 +1,210 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mocksy.Request;
+import org.mocksy.Response;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+
+/**
+ * Measures how each backend copes with a lot of slow requests at once:
+ * every request blocks its thread for a while, the way a Rule waiting on a
+ * slow proxied server does, and all of them are sent at the same time.
+ * With a thread pool, the requests are served a pool's worth at a time;
+ * with virtual threads, they can all wait at once.
+ *
+ * The client opens a connection per request from a single selector thread,
+ * spread over several loopback addresses so that there are enough local
+ * ports for them.  There need to be enough file descriptors for both ends,
+ * e.g. <code>ulimit -n 120000</code> for the default 50,000 requests.
+ *
+ * This isn't run as part of the build; run it by hand with
+ * <code>java org.mocksy.server.http.SlowRequestBenchmark [requests] [millis]</code>
+ * on the test classpath.  Virtual threads need Java 21 or later; on older
+ * JVMs the virtual modes fall back on the thread pool.
+ */
+public class SlowRequestBenchmark {
+	// connections per loopback address, leaving room in the port range
+	private static final int CONNECTIONS_PER_ADDRESS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt( args[0] ) : 50000;
+		final int millis = args.length > 1 ? Integer.parseInt( args[1] )
+		        : 1000;
+		Logger.getLogger( "org.mocksy" ).setLevel( Level.WARNING );
+
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( new ResponseRule( new Response( "slow", "slow" ) ) {
+			@Override
+			public Response process(Request request) {
+				// block the thread, as a slow proxied server would
+				try {
+					Thread.sleep( millis );
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				return super.process( request );
+			}
+		} );
+
+		System.out.println( requests + " requests, each blocking for "
+		        + millis + "ms, virtual threads "
+		        + ( VirtualThreads.isAvailable() ? "available"
+		                : "unavailable" ) );
+		String[] modes = { "jetty", "jetty virtual", "nio", "nio virtual" };
+		for ( String mode : modes ) {
+			boolean virtual = mode.endsWith( "virtual" );
+			ServerBackend backend;
+			if ( mode.startsWith( "nio" ) ) {
+				NioBackend nio = new NioBackend();
+				nio.setVirtualThreads( virtual );
+				backend = nio;
+			}
+			else {
+				JettyBackend jetty = new JettyBackend();
+				jetty.setVirtualThreads( virtual );
+				backend = jetty;
+			}
+			MocksyServer server = new MocksyServer( rules, 0 );
+			server.setBackend( backend );
+			server.start();
+			long start = System.currentTimeMillis();
+			long[] latencies = run( server.getPort(), requests );
+			long elapsed = System.currentTimeMillis() - start;
+			server.stop();
+
+			System.out.println();
+			System.out.println( mode );
+			System.out.println( "completed:  " + latencies.length );
+			System.out.println( "errors:     "
+			        + ( requests - latencies.length ) );
+			System.out.println( "elapsed:    " + elapsed + " ms" );
+			System.out.println( "p50:        " + percentile( latencies, 50 )
+			        + " ms" );
+			System.out.println( "p99:        " + percentile( latencies, 99 )
+			        + " ms" );
+		}
+		System.exit( 0 );
+	}
+
+	/**
+	 * Sends all of the requests at once and waits for their responses.
+	 * 
+	 * @return the latencies of the requests that completed, sorted
+	 */
+	private static long[] run(int port, int requests) throws IOException {
+		Selector selector = Selector.open();
+		byte[] request = ( "GET /slow HTTP/1.1\r\nHost: localhost\r\n"
+		        + "Connection: close\r\n\r\n" ).getBytes( "ISO-8859-1" );
+		for ( int i = 0; i < requests; i++ ) {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking( false );
+			channel.socket().bind(
+			        new InetSocketAddress( "127.0.0."
+			                + ( 2 + i / CONNECTIONS_PER_ADDRESS ), 0 ) );
+			channel.connect( new InetSocketAddress( "127.0.0.1", port ) );
+			channel.register( selector, SelectionKey.OP_CONNECT,
+			        new Exchange( request ) );
+		}
+
+		long[] latencies = new long[requests];
+		int completed = 0;
+		int open = requests;
+		ByteBuffer buffer = ByteBuffer.allocate( 8192 );
+		long deadline = System.currentTimeMillis() + 10 * 60 * 1000L;
+		while ( open > 0 && System.currentTimeMillis() < deadline ) {
+			selector.select( 1000 );
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while ( keys.hasNext() ) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				SocketChannel channel = (SocketChannel) key.channel();
+				Exchange exchange = (Exchange) key.attachment();
+				try {
+					if ( key.isConnectable() ) {
+						channel.finishConnect();
+						key.interestOps( SelectionKey.OP_WRITE );
+					}
+					else if ( key.isWritable() ) {
+						channel.write( exchange.request );
+						if ( !exchange.request.hasRemaining() ) {
+							key.interestOps( SelectionKey.OP_READ );
+						}
+					}
+					else if ( key.isReadable() ) {
+						buffer.clear();
+						int read = channel.read( buffer );
+						if ( read > 0 ) {
+							exchange.received += read;
+						}
+						else if ( read < 0 ) {
+							// the server closes the connection after the response
+							if ( exchange.received > 0 ) {
+								latencies[completed++] = System
+								        .currentTimeMillis()
+								        - exchange.start;
+							}
+							channel.close();
+							open--;
+						}
+					}
+				}
+				catch ( IOException e ) {
+					channel.close();
+					open--;
+				}
+			}
+		}
+		for ( SelectionKey key : selector.keys() ) {
+			key.channel().close();
+		}
+		selector.close();
+		long[] done = Arrays.copyOf( latencies, completed );
+		Arrays.sort( done );
+		return done;
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if ( sorted.length == 0 ) {
+			return 0;
+		}
+		int index = (int) Math.ceil( sorted.length * percent / 100.0 ) - 1;
+		return sorted[Math.max( 0, index )];
+	}
+
+	private static class Exchange {
+		final ByteBuffer request;
+		final long start = System.currentTimeMillis();
+		int received;
+
+		Exchange(byte[] request) {
+			this.request = ByteBuffer.wrap( request );
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A keystore with a self-signed certificate for 127.0.0.1, generated with
+ * the JVM's keytool the first time it's needed.
+ */
+class TestKeystore {
+	static final String PASSWORD = "password";
+	private static File keystore;
+
+	/**
+	 * Returns the keystore, generating it if it hasn't been yet.
+	 */
+	static synchronized File get() throws Exception {
+		if ( keystore != null ) {
+			return keystore;
+		}
+		File file = File.createTempFile( "mocksy", ".jks" );
+		file.delete();
+		file.deleteOnExit();
+		String keytool = new File( System.getProperty( "java.home" ), "bin"
+		        + File.separator + "keytool" ).getPath();
+		Process process = new ProcessBuilder( keytool, "-genkeypair",
+		        "-alias", "mocksy", "-keyalg", "RSA", "-keysize", "2048",
+		        "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1",
+		        "-validity", "1", "-storetype", "JKS", "-keystore", file
+		                .getPath(), "-storepass", PASSWORD, "-keypass",
+		        PASSWORD ).redirectErrorStream( true ).start();
+		InputStream output = process.getInputStream();
+		while ( output.read() > -1 ) {
+			// keytool can block if its output isn't read
+		}
+		if ( process.waitFor() != 0 || !file.isFile() ) {
+			throw new IllegalStateException( "keytool couldn't create "
+			        + file );
+		}
+		keystore = file;
+		return keystore;
+	}
+
+	/**
+	 * Creates a client SSLContext that trusts the keystore's certificate.
+	 */
+	static SSLContext clientContext() throws Exception {
+		KeyStore keys = KeyStore.getInstance( "JKS" );
+		InputStream input = new FileInputStream( get() );
+		try {
+			keys.load( input, PASSWORD.toCharArray() );
+		}
+		finally {
+			input.close();
+		}
+		TrustManagerFactory trust = TrustManagerFactory
+		        .getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+		trust.init( keys );
+		SSLContext context = SSLContext.getInstance( "TLS" );
+		context.init( null, trust.getTrustManagers(), null );
+		return context;
+	}
+}
@@ -0,0 +1,236 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.mocksy.Response;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+
+/**
+ * Measures HTTPS on Jetty's SSL connector against the NIO backend, with a
+ * keystore generated for the purpose.  For each, it measures:
+ * 
+ * <ul>
+ * <li>full handshakes per second, with a new connection and a new session
+ * for every request</li>
+ * <li>resumed handshakes per second, with a new connection for every
+ * request that picks up the session of the one before</li>
+ * <li>steady-state throughput, over kept-alive connections</li>
+ * </ul>
+ * 
+ * All of it happens while a number of other connections sit idle, the way
+ * a load test's spare connections do.  Jetty's connector takes up a thread
+ * for each of them, the NIO backend doesn't; with more idle connections
+ * than Jetty has threads, Jetty stops answering and the requests time out.
+ *
+ * This isn't run as part of the build; run it by hand with
+ * <code>java org.mocksy.server.http.TlsBenchmark [threads] [seconds] [idle]</code>
+ * on the test classpath.
+ */
+public class TlsBenchmark {
+	// a server that has run out of threads doesn't answer at all
+	private static final int TIMEOUT = 10000;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 16;
+		int seconds = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+		int idle = args.length > 2 ? Integer.parseInt( args[2] ) : 200;
+		Logger.getLogger( "org.mocksy" ).setLevel( Level.WARNING );
+		Logger.getLogger( "org.mortbay" ).setLevel( Level.WARNING );
+
+		Ruleset rules = new Ruleset();
+		rules.setDefaultRule( new ResponseRule( new Response( "benchmark",
+		        "benchmark" ) ) );
+		SSLContext client = TestKeystore.clientContext();
+
+		System.out.println( threads + " threads, " + idle
+		        + " idle connections, " + seconds + "s each" );
+		String[] backends = { "jetty", "nio" };
+		for ( String name : backends ) {
+			TlsSettings tls = new TlsSettings( TestKeystore.get(),
+			        TestKeystore.PASSWORD );
+			ServerBackend backend = MocksyServer.createBackend( name );
+			if ( backend instanceof NioBackend ) {
+				( (NioBackend) backend ).setTls( tls );
+			}
+			MocksyServer server = new MocksyServer( rules, 0 );
+			server.setTls( tls );
+			server.setBackend( backend );
+			server.start();
+			int port = server.getPort();
+			List<SSLSocket> idleConnections = new ArrayList<SSLSocket>();
+			int refused = 0;
+			for ( int i = 0; i < idle; i++ ) {
+				SSLSocket socket = (SSLSocket) client.getSocketFactory()
+				        .createSocket( "127.0.0.1", port );
+				idleConnections.add( socket );
+				socket.setSoTimeout( TIMEOUT );
+				try {
+					socket.startHandshake();
+				}
+				catch ( IOException e ) {
+					refused++;
+				}
+			}
+			// warm up
+			connect( client, port, threads, 2000L, true );
+
+			System.out.println();
+			System.out.println( name );
+			if ( refused > 0 ) {
+				System.out.println( "idle not served:    " + refused );
+			}
+			System.out.println( "full handshakes:    "
+			        + connect( client, port, threads, seconds * 1000L, false )
+			        + " /s" );
+			System.out.println( "resumed handshakes: "
+			        + connect( client, port, threads, seconds * 1000L, true )
+			        + " /s" );
+			System.out.println( "kept-alive:         "
+			        + keepAlive( client, port, threads, seconds * 1000L )
+			        + " req/s" );
+			for ( SSLSocket socket : idleConnections ) {
+				socket.close();
+			}
+			server.stop();
+		}
+		System.exit( 0 );
+	}
+
+	/**
+	 * Makes a request on a new connection at a time from each thread.
+	 * 
+	 * @return the number of connections per second
+	 */
+	private static long connect(final SSLContext client, final int port,
+	        int threads, long millis, final boolean resume)
+	        throws InterruptedException
+	{
+		final byte[] request = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+		        .getBytes();
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final long end = System.currentTimeMillis() + millis;
+		final CountDownLatch done = new CountDownLatch( threads );
+		for ( int i = 0; i < threads; i++ ) {
+			new Thread() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[1024];
+					while ( System.currentTimeMillis() < end ) {
+						try {
+							SSLSocket socket = (SSLSocket) client
+							        .getSocketFactory().createSocket(
+							                "127.0.0.1", port );
+							try {
+								socket.setSoTimeout( TIMEOUT );
+								OutputStream output = socket
+								        .getOutputStream();
+								output.write( request );
+								output.flush();
+								InputStream input = socket.getInputStream();
+								while ( input.read( buffer ) > -1 ) {
+									// read up to the close
+								}
+								if ( !resume ) {
+									// so the next connection can't resume it
+									socket.getSession().invalidate();
+								}
+							}
+							finally {
+								socket.close();
+							}
+							count.incrementAndGet();
+						}
+						catch ( Exception e ) {
+							errors.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		if ( errors.get() > 0 ) {
+			System.out.println( "errors:             " + errors.get() );
+		}
+		return count.get() * 1000L / millis;
+	}
+
+	/**
+	 * Makes requests over kept-alive connections from each thread.
+	 * 
+	 * @return the number of requests per second
+	 */
+	private static long keepAlive(SSLContext client, int port, int threads,
+	        long millis) throws Exception
+	{
+		// connections are only kept alive for the same socket factory
+		final SSLSocketFactory factory = client.getSocketFactory();
+		final URL url = new URL( "https://127.0.0.1:" + port + "/benchmark" );
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final long end = System.currentTimeMillis() + millis;
+		final CountDownLatch done = new CountDownLatch( threads );
+		for ( int i = 0; i < threads; i++ ) {
+			new Thread() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[1024];
+					while ( System.currentTimeMillis() < end ) {
+						try {
+							HttpsURLConnection conn = (HttpsURLConnection) url
+							        .openConnection();
+							conn.setSSLSocketFactory( factory );
+							conn.setConnectTimeout( TIMEOUT );
+							conn.setReadTimeout( TIMEOUT );
+							InputStream input = conn.getInputStream();
+							while ( input.read( buffer ) > -1 ) {
+								// drain it so the connection can be reused
+							}
+							input.close();
+							count.incrementAndGet();
+						}
+						catch ( Exception e ) {
+							errors.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		if ( errors.get() > 0 ) {
+			System.out.println( "errors:             " + errors.get() );
+		}
+		return count.get() * 1000L / millis;
+	}
+}
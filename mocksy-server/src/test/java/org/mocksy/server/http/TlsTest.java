@@ -0,0 +1,238 @@
+package org.mocksy.server.http;
+
+/*
+ * Copyright 2009, PayPal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.regex.Pattern;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mocksy.Response;
+import org.mocksy.rules.ResponseRule;
+import org.mocksy.rules.Ruleset;
+import org.mocksy.rules.http.HttpMatcher;
+
+public class TlsTest {
+	private static final String CIPHER_SUITE = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+	private Ruleset rules;
+	private SSLContext client;
+	private MocksyServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		this.rules = new Ruleset();
+		ResponseRule secure = new ResponseRule(
+		        new Response( "secure", "secure" ) );
+		HttpMatcher https = new HttpMatcher();
+		https.setPattern( Pattern.compile( ".*/secure" ) );
+		secure.addMatcher( https );
+		this.rules.addRule( secure );
+		StringBuilder big = new StringBuilder();
+		while ( big.length() < 100000 ) {
+			big.append( "0123456789" );
+		}
+		this.rules.setDefaultRule( new ResponseRule( new Response( "big", big
+		        .toString() ) ) );
+		this.client = TestKeystore.clientContext();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if ( this.server != null ) {
+			this.server.stop();
+		}
+	}
+
+	@Test
+	public void testNioServesHttps() throws Exception {
+		this.start( new NioBackend(), this.tls() );
+		Assert.assertEquals( "secure", this.fetch( "/secure" ) );
+		// records are at most 16KB, so this takes a few of them
+		Assert.assertEquals( 100000, this.fetch( "/big" ).length() );
+	}
+
+	@Test
+	public void testLargeRequestBody() throws Exception {
+		this.start( new NioBackend(), this.tls() );
+		HttpsURLConnection conn = this.open( "/upload" );
+		conn.setDoOutput( true );
+		conn.setRequestProperty( "Content-Type", "application/octet-stream" );
+		OutputStream output = conn.getOutputStream();
+		output.write( new byte[200000] );
+		output.close();
+		Assert.assertEquals( 200, conn.getResponseCode() );
+		Assert.assertEquals( 100000, read( conn.getInputStream() ).length() );
+	}
+
+	@Test
+	public void testSessionResumption() throws Exception {
+		TlsSettings tls = this.tls();
+		tls.setSessionCacheSize( 100 );
+		this.start( new NioBackend(), tls );
+		// session ids only say whether it was resumed up to TLS 1.2
+		byte[] first = this.handshake( "TLSv1.2" ).getSession().getId();
+		byte[] second = this.handshake( "TLSv1.2" ).getSession().getId();
+		Assert.assertTrue( java.util.Arrays.equals( first, second ) );
+	}
+
+	@Test
+	public void testCipherSuites() throws Exception {
+		TlsSettings tls = this.tls();
+		tls.setCipherSuites( CIPHER_SUITE );
+		this.start( new NioBackend(), tls );
+		Assert.assertEquals( CIPHER_SUITE, this.handshake( "TLSv1.2" )
+		        .getSession().getCipherSuite() );
+	}
+
+	@Test
+	public void testJettyCipherSuites() throws Exception {
+		TlsSettings tls = this.tls();
+		tls.setCipherSuites( CIPHER_SUITE );
+		// the default backend serves TLS with Jetty's connector
+		this.start( null, tls );
+		Assert.assertEquals( CIPHER_SUITE, this.handshake( "TLSv1.2" )
+		        .getSession().getCipherSuite() );
+		Assert.assertEquals( "secure", this.fetch( "/secure" ) );
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownCipherSuite() throws Exception {
+		TlsSettings tls = this.tls();
+		tls.setCipherSuites( "TLS_NOT_A_CIPHER_SUITE" );
+		tls.getContext();
+	}
+
+	@Test
+	public void testAlpn() throws Exception {
+		Method setProtocols;
+		try {
+			setProtocols = SSLParameters.class.getMethod(
+			        "setApplicationProtocols", String[].class );
+		}
+		catch ( NoSuchMethodException e ) {
+			// this JVM doesn't do ALPN
+			return;
+		}
+		TlsSettings tls = this.tls();
+		tls.setAlpn( true );
+		this.start( new NioBackend(), tls );
+		SSLSocket socket = (SSLSocket) this.client.getSocketFactory()
+		        .createSocket( "127.0.0.1", this.server.getPort() );
+		try {
+			SSLParameters parameters = socket.getSSLParameters();
+			setProtocols.invoke( parameters, (Object) new String[] { "h2",
+			        "http/1.1" } );
+			socket.setSSLParameters( parameters );
+			socket.startHandshake();
+			Assert.assertEquals( "http/1.1", SSLSocket.class.getMethod(
+			        "getApplicationProtocol" ).invoke( socket ) );
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testPlainRequestOnTlsPort() throws Exception {
+		this.start( new NioBackend(), this.tls() );
+		java.net.Socket socket = new java.net.Socket( "127.0.0.1", this.server
+		        .getPort() );
+		try {
+			socket.setSoTimeout( 5000 );
+			OutputStream output = socket.getOutputStream();
+			output.write( "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+			        .getBytes( "ISO-8859-1" ) );
+			output.flush();
+			// turned away, rather than left hanging
+			InputStream input = socket.getInputStream();
+			try {
+				while ( input.read() > -1 ) {
+					// maybe an alert first
+				}
+			}
+			catch ( IOException e ) {
+				// or reset
+			}
+		}
+		finally {
+			socket.close();
+		}
+		// and the server's still fine
+		Assert.assertEquals( "secure", this.fetch( "/secure" ) );
+	}
+
+	private TlsSettings tls() throws Exception {
+		return new TlsSettings( TestKeystore.get(), TestKeystore.PASSWORD );
+	}
+
+	private void start(ServerBackend backend, TlsSettings tls)
+	        throws Exception
+	{
+		if ( backend instanceof NioBackend ) {
+			( (NioBackend) backend ).setTls( tls );
+		}
+		this.server = new MocksyServer( this.rules, 0 );
+		this.server.setTls( tls );
+		this.server.setBackend( backend );
+		this.server.start();
+	}
+
+	private SSLSocket handshake(String protocol) throws Exception {
+		SSLSocket socket = (SSLSocket) this.client.getSocketFactory()
+		        .createSocket( "127.0.0.1", this.server.getPort() );
+		try {
+			socket.setEnabledProtocols( new String[] { protocol } );
+			socket.startHandshake();
+			return socket;
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	private HttpsURLConnection open(String path) throws Exception {
+		HttpsURLConnection conn = (HttpsURLConnection) new URL( "https://127.0.0.1:"
+		        + this.server.getPort() + path ).openConnection();
+		conn.setSSLSocketFactory( this.client.getSocketFactory() );
+		return conn;
+	}
+
+	private String fetch(String path) throws Exception {
+		return read( this.open( path ).getInputStream() );
+	}
+
+	private static String read(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = -1;
+		while ( ( read = input.read( buffer ) ) > -1 ) {
+			output.write( buffer, 0, read );
+		}
+		input.close();
+		return new String( output.toByteArray() );
+	}
+}